@@ -0,0 +1,118 @@
+package yanbinwa.iCache.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import yanbinwa.common.exceptions.RedisErrorException;
+import yanbinwa.common.exceptions.ServiceUnavailableException;
+import yanbinwa.iCache.service.BenchmarkCacheService;
+import yanbinwa.iCache.service.CacheService;
+import yanbinwa.iCache.service.CacheServiceImpl;
+
+/**
+ * 较大的JSON value分别通过字符串接口和二进制接口读写，二进制接口比较开启和关闭压缩；
+ * latencyMicros模拟往返延迟，压缩节省的主要是网络和Redis的内存，在loopback上只能看到编解码的开销
+ *
+ * @author yanbinwa
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class BinaryValueBenchmark
+{
+    static final int KEY_NUM = 100;
+
+    @State(Scope.Benchmark)
+    public static class ServiceState
+    {
+        @Param({"0", "100"})
+        public long latencyMicros;
+
+        @Param({"32768"})
+        public int valueSize;
+
+        @Param({"false", "true"})
+        public boolean compression;
+
+        FakeRedisServer server;
+        CacheServiceImpl service;
+        String value;
+        byte[] bytes;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException, RedisErrorException, ServiceUnavailableException
+        {
+            server = new FakeRedisServer(latencyMicros);
+            JSONObject config = new JSONObject();
+            config.put(CacheService.COMPRESSION_KEY, new JSONObject().put(CacheService.COMPRESSION_ENABLE, compression));
+            service = BenchmarkCacheService.create(config);
+            BenchmarkCacheService.applyTopology(service, new int[] {server.getPort()}, 16);
+            StringBuilder builder = new StringBuilder("[");
+            for (int i = 0; builder.length() < valueSize; i ++)
+            {
+                builder.append("{\"id\":").append(i).append(",\"name\":\"item-").append(i).append("\",\"tags\":[\"cache\",\"redis\"]},");
+            }
+            builder.setCharAt(builder.length() - 1, ']');
+            value = builder.toString();
+            bytes = value.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < KEY_NUM; i ++)
+            {
+                service.setString("string:" + i, value);
+                service.setBytes("bytes:" + i, bytes);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException
+        {
+            BenchmarkCacheService.shutdown(service);
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public String getString(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        return state.service.getString("string:" + ThreadLocalRandom.current().nextInt(KEY_NUM));
+    }
+
+    @Benchmark
+    public void setString(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        state.service.setString("string:" + ThreadLocalRandom.current().nextInt(KEY_NUM), state.value);
+    }
+
+    @Benchmark
+    public byte[] getBytes(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        return state.service.getBytes("bytes:" + ThreadLocalRandom.current().nextInt(KEY_NUM));
+    }
+
+    @Benchmark
+    public void setBytes(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        state.service.setBytes("bytes:" + ThreadLocalRandom.current().nextInt(KEY_NUM), state.bytes);
+    }
+}
@@ -0,0 +1,127 @@
+package yanbinwa.iCache.benchmark;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+import yanbinwa.iCache.controller.CacheController;
+import yanbinwa.iCache.service.BenchmarkCacheService;
+import yanbinwa.iCache.service.CacheService;
+import yanbinwa.iCache.service.CacheServiceImpl;
+
+/**
+ * 通过MockMvc调用CacheController，包含参数绑定、DeferredResult的异步派发和消息转换，不包含tomcat的网络开销
+ *
+ * @author yanbinwa
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class CacheControllerBenchmark
+{
+    static final int KEY_NUM = 1000;
+    static final long ASYNC_TIMEOUT_MS = 1000;
+    static final long ASYNC_POLL_NANOS = 10000;
+
+    @State(Scope.Benchmark)
+    public static class ControllerState
+    {
+        @Param({"0"})
+        public long latencyMicros;
+
+        FakeRedisServer server;
+        CacheServiceImpl service;
+        MockMvc mockMvc;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception
+        {
+            server = new FakeRedisServer(latencyMicros);
+            service = BenchmarkCacheService.create(new JSONObject());
+            BenchmarkCacheService.applyTopology(service, new int[] {server.getPort()}, 16);
+            for (int i = 0; i < KEY_NUM; i ++)
+            {
+                service.setString("controller:" + i, "value-" + i);
+            }
+            CacheController controller = new CacheController();
+            ReflectionTestUtils.setField(controller, "cacheService", service);
+            mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException
+        {
+            BenchmarkCacheService.shutdown(service);
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public String getString(ControllerState state) throws Exception
+    {
+        String key = "controller:" + ThreadLocalRandom.current().nextInt(KEY_NUM);
+        MvcResult result = state.mockMvc.perform(get("/cache/getString").param("key", key)
+                .header(CacheService.REQUEST_DEADLINE_HEADER, "1000")).andReturn();
+        awaitAsyncResult(result);
+        return state.mockMvc.perform(asyncDispatch(result)).andReturn().getResponse().getContentAsString();
+    }
+
+    /**
+     * MvcResult.getAsyncResult按200ms的间隔轮询，会掩盖真实的耗时，这里直接检查WebAsyncManager
+     */
+    private static void awaitAsyncResult(MvcResult result)
+    {
+        WebAsyncManager asyncManager = WebAsyncUtils.getAsyncManager(result.getRequest());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ASYNC_TIMEOUT_MS);
+        while (!asyncManager.hasConcurrentResult())
+        {
+            if (System.nanoTime() > deadline)
+            {
+                throw new IllegalStateException("Async result is not set in " + ASYNC_TIMEOUT_MS + "ms");
+            }
+            LockSupport.parkNanos(ASYNC_POLL_NANOS);
+        }
+    }
+
+    @Benchmark
+    public String getStrings(ControllerState state) throws Exception
+    {
+        int start = ThreadLocalRandom.current().nextInt(KEY_NUM - 8);
+        String[] keys = new String[8];
+        for (int i = 0; i < keys.length; i ++)
+        {
+            keys[i] = "controller:" + (start + i);
+        }
+        return state.mockMvc.perform(get("/cache/batch").param("key", keys)).andReturn().getResponse().getContentAsString();
+    }
+}
@@ -0,0 +1,151 @@
+package yanbinwa.iCache.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import yanbinwa.common.exceptions.RedisErrorException;
+import yanbinwa.common.exceptions.ServiceUnavailableException;
+import yanbinwa.iCache.service.BenchmarkCacheService;
+import yanbinwa.iCache.service.CacheService;
+import yanbinwa.iCache.service.CacheServiceImpl;
+
+/**
+ * CacheServiceImpl的完整请求路径，redis由进程内的FakeRedisServer代替，latencyMicros模拟每次往返的延迟
+ *
+ * @author yanbinwa
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class CacheServiceBenchmark
+{
+    static final int KEY_NUM = 10000;
+    static final int BATCH_SIZE = 16;
+
+    @State(Scope.Benchmark)
+    public static class ServiceState
+    {
+        @Param({"0", "100"})
+        public long latencyMicros;
+
+        @Param({"false", "true"})
+        public boolean autoPipeline;
+
+        @Param({"2"})
+        public int shardNum;
+
+        @Param({"128"})
+        public int valueSize;
+
+        FakeRedisServer[] servers;
+        CacheServiceImpl service;
+        String value;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException, RedisErrorException, ServiceUnavailableException
+        {
+            servers = new FakeRedisServer[shardNum];
+            int[] ports = new int[shardNum];
+            for (int i = 0; i < shardNum; i ++)
+            {
+                servers[i] = new FakeRedisServer(latencyMicros);
+                ports[i] = servers[i].getPort();
+            }
+            JSONObject config = new JSONObject();
+            config.put(CacheService.AUTO_PIPELINE_KEY, new JSONObject().put(CacheService.AUTO_PIPELINE_ENABLE, autoPipeline));
+            service = BenchmarkCacheService.create(config);
+            BenchmarkCacheService.applyTopology(service, ports, 64);
+            StringBuilder builder = new StringBuilder();
+            while (builder.length() < valueSize)
+            {
+                builder.append('v');
+            }
+            value = builder.toString();
+            Map<String, String> keyToValueMap = new HashMap<String, String>();
+            for (int i = 0; i < KEY_NUM; i ++)
+            {
+                keyToValueMap.put(key(i), value);
+                if (keyToValueMap.size() == 500)
+                {
+                    service.setStrings(keyToValueMap);
+                    keyToValueMap.clear();
+                }
+            }
+            service.setStrings(keyToValueMap);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            BenchmarkCacheService.shutdown(service);
+            for (FakeRedisServer server : servers)
+            {
+                server.close();
+            }
+        }
+    }
+
+    static String key(int i)
+    {
+        return "bench:" + i;
+    }
+
+    static String randomKey()
+    {
+        return key(ThreadLocalRandom.current().nextInt(KEY_NUM));
+    }
+
+    @Benchmark
+    public String getString(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        return state.service.getString(randomKey());
+    }
+
+    @Benchmark
+    public void setString(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        state.service.setString(randomKey(), state.value);
+    }
+
+    @Benchmark
+    public String getStringAsync(ServiceState state)
+    {
+        return state.service.getStringAsync(randomKey()).join();
+    }
+
+    @Benchmark
+    public List<String> getStrings(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        List<String> keys = new ArrayList<String>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i ++)
+        {
+            keys.add(randomKey());
+        }
+        return state.service.getStrings(keys);
+    }
+}
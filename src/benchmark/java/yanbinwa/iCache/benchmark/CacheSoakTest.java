@@ -0,0 +1,406 @@
+package yanbinwa.iCache.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+import yanbinwa.common.exceptions.RedisErrorException;
+import yanbinwa.common.exceptions.ServiceUnavailableException;
+import yanbinwa.common.orchestrationClient.OrchestrationServiceState;
+import yanbinwa.iCache.metrics.CacheMetrics;
+import yanbinwa.iCache.metrics.LatencyHistogram;
+import yanbinwa.iCache.service.CacheService;
+import yanbinwa.iCache.service.SoakCacheService;
+
+/**
+ * 长时间压测：在进程内启动多个FakeRedisServer，以固定速率发送Zipfian分布的读写请求，
+ * 同时周期性地加减分片(DEPCHANGE)、注入延迟和错误、触发NOTREADY/READY，每个周期输出一行JSON。
+ *
+ * 请求按计划的开始时间计算耗时，服务变慢时排队的时间也计入。每个key只由一个worker写入，版本号单调递增，
+ * 读到null但该key已经写过计为misrouted，读到比已确认版本旧的值计为stale。
+ *
+ * 运行: mvn -Pbenchmark compile exec:java -Dexec.mainClass=yanbinwa.iCache.benchmark.CacheSoakTest -Dexec.args="--durationSec=60 --rate=20000"
+ *
+ * @author yanbinwa
+ *
+ */
+public class CacheSoakTest
+{
+    private static final String KEY_PREFIX = "soak:";
+
+    private final Map<String, String> options;
+    private final long durationSec;
+    private final int rate;
+    private final int threads;
+    private final int keyNum;
+    private final double readRatio;
+    private final int initShards;
+    private final int maxShards;
+    private final long churnIntervalSec;
+    private final long faultLatencyMicros;
+    private final long faultDurationSec;
+    private final long reportIntervalSec;
+
+    private final ZipfianGenerator zipfian;
+    private final AtomicLongArray writeVersions;
+    private final AtomicLongArray committedVersions;
+    private final Random churnRandom;
+
+    private final List<FakeRedisServer> activeServers = new ArrayList<FakeRedisServer>();
+    private final List<FakeRedisServer> inactiveServers = new ArrayList<FakeRedisServer>();
+    private SoakCacheService service;
+
+    private final AtomicReference<IntervalStats> intervalStats = new AtomicReference<IntervalStats>(new IntervalStats());
+    private final IntervalStats totalStats = new IntervalStats();
+    private volatile String lastEvent = null;
+    private volatile boolean isRunning = true;
+
+    public CacheSoakTest(Map<String, String> options)
+    {
+        this.options = options;
+        this.durationSec = getLong("durationSec", 60);
+        this.rate = (int) getLong("rate", 20000);
+        this.threads = (int) getLong("threads", 16);
+        this.keyNum = (int) getLong("keys", 100000);
+        this.readRatio = getDouble("readRatio", 0.9);
+        this.initShards = (int) getLong("shards", 4);
+        this.maxShards = (int) getLong("maxShards", 8);
+        this.churnIntervalSec = getLong("churnIntervalSec", 10);
+        this.faultLatencyMicros = getLong("faultLatencyMicros", 20000);
+        this.faultDurationSec = getLong("faultDurationSec", 3);
+        this.reportIntervalSec = getLong("reportIntervalSec", 1);
+        this.zipfian = new ZipfianGenerator(keyNum, getDouble("theta", 0.99));
+        this.writeVersions = new AtomicLongArray(keyNum);
+        this.committedVersions = new AtomicLongArray(keyNum);
+        this.churnRandom = new Random(getLong("seed", 1));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args)
+        {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+            {
+                System.err.println("Un valid argument " + arg + ", expect --name=value");
+                System.exit(1);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new CacheSoakTest(options).run();
+        System.exit(0);
+    }
+
+    public void run() throws IOException, InterruptedException
+    {
+        long serverLatencyMicros = getLong("serverLatencyMicros", 0);
+        for (int i = 0; i < initShards; i ++)
+        {
+            activeServers.add(new FakeRedisServer(serverLatencyMicros));
+        }
+        JSONObject config = new JSONObject();
+        config.put(CacheService.ROUTING_KEY, new JSONObject().put(CacheService.ROUTING_STRATEGY, getString("strategy", "PARTITION")));
+        config.put(CacheService.AUTO_PIPELINE_KEY, new JSONObject().put(CacheService.AUTO_PIPELINE_ENABLE, Boolean.parseBoolean(getString("autoPipeline", "false"))));
+        service = new SoakCacheService((int) getLong("partitionNum", 64), config);
+        service.setRedisPorts(ports());
+        service.fireServiceStateChange(OrchestrationServiceState.READY);
+
+        final long startNanos = System.nanoTime();
+        final long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSec);
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threads / rate;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i ++)
+        {
+            final int workerId = i;
+            Thread worker = new Thread(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    runWorker(workerId, startNanos + intervalNanos * workerId / threads, endNanos, intervalNanos);
+                }
+
+            }, "soak-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        Thread churn = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                runChurn();
+            }
+
+        }, "soak-churn");
+        churn.setDaemon(true);
+        churn.start();
+
+        long nextReport = startNanos;
+        while (System.nanoTime() < endNanos)
+        {
+            nextReport += TimeUnit.SECONDS.toNanos(reportIntervalSec);
+            LockSupport.parkNanos(Math.max(0, nextReport - System.nanoTime()));
+            report(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+        }
+        isRunning = false;
+        churn.interrupt();
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+        churn.join();
+        JSONObject summary = totalStats.toJson(durationSec);
+        summary.put("summary", true);
+        summary.put("cacheStats", new JSONObject(service.getCacheStats()));
+        System.out.println(summary);
+        service.shutdown();
+        for (FakeRedisServer server : activeServers)
+        {
+            server.close();
+        }
+        for (FakeRedisServer server : inactiveServers)
+        {
+            server.close();
+        }
+    }
+
+    private void runWorker(int workerId, long firstNanos, long endNanos, long intervalNanos)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long intendedNanos = firstNanos;
+        while (isRunning && intendedNanos < endNanos)
+        {
+            long waitNanos = intendedNanos - System.nanoTime();
+            if (waitNanos > 0)
+            {
+                LockSupport.parkNanos(waitNanos);
+            }
+            int rank = (int) zipfian.next(random);
+            boolean isRead = random.nextDouble() < readRatio;
+            if (!isRead)
+            {
+                // 每个key只由一个worker写入，保证版本号在redis中单调
+                rank = rank - rank % threads + workerId;
+                if (rank >= keyNum)
+                {
+                    rank = workerId % keyNum;
+                }
+            }
+            String key = KEY_PREFIX + rank;
+            IntervalStats stats = intervalStats.get();
+            try
+            {
+                if (isRead)
+                {
+                    long expectVersion = committedVersions.get(rank);
+                    String value = service.getString(key);
+                    if (value == null)
+                    {
+                        if (expectVersion > 0)
+                        {
+                            stats.misroutedCount.increment();
+                            totalStats.misroutedCount.increment();
+                        }
+                    }
+                    else if (Long.parseLong(value.substring(1)) < expectVersion)
+                    {
+                        stats.staleCount.increment();
+                        totalStats.staleCount.increment();
+                    }
+                }
+                else
+                {
+                    long version = writeVersions.incrementAndGet(rank);
+                    service.setString(key, "v" + version);
+                    committedVersions.set(rank, version);
+                }
+            }
+            catch (RedisErrorException | ServiceUnavailableException e)
+            {
+                stats.errorCount.increment();
+                totalStats.errorCount.increment();
+            }
+            long latencyMicros = (System.nanoTime() - intendedNanos) / 1000;
+            stats.record(latencyMicros);
+            totalStats.record(latencyMicros);
+            intendedNanos += intervalNanos;
+        }
+    }
+
+    private void runChurn()
+    {
+        while (isRunning)
+        {
+            try
+            {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(churnIntervalSec));
+                switch (churnRandom.nextInt(5))
+                {
+                case 0:
+                    addShard();
+                    break;
+                case 1:
+                    removeShard();
+                    break;
+                case 2:
+                    injectFault(true);
+                    break;
+                case 3:
+                    injectFault(false);
+                    break;
+                default:
+                    lastEvent = "NOTREADY/READY";
+                    service.fireServiceStateChange(OrchestrationServiceState.NOTREADY);
+                    Thread.sleep(500);
+                    service.fireServiceStateChange(OrchestrationServiceState.READY);
+                    break;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (IOException e)
+            {
+                lastEvent = "churn failed: " + e.getMessage();
+            }
+        }
+    }
+
+    /**
+     * 优先重新加入之前移除的分片，上面残留的旧数据会表现为stale
+     */
+    private void addShard() throws IOException
+    {
+        if (activeServers.size() >= maxShards)
+        {
+            removeShard();
+            return;
+        }
+        FakeRedisServer server = inactiveServers.isEmpty() ? new FakeRedisServer(0) : inactiveServers.remove(0);
+        activeServers.add(server);
+        lastEvent = "DEPCHANGE add shard " + server.getPort();
+        service.setRedisPorts(ports());
+        service.fireServiceStateChange(OrchestrationServiceState.DEPCHANGE);
+    }
+
+    private void removeShard()
+    {
+        if (activeServers.size() <= 1)
+        {
+            return;
+        }
+        FakeRedisServer server = activeServers.remove(churnRandom.nextInt(activeServers.size()));
+        inactiveServers.add(server);
+        lastEvent = "DEPCHANGE remove shard " + server.getPort();
+        service.setRedisPorts(ports());
+        service.fireServiceStateChange(OrchestrationServiceState.DEPCHANGE);
+    }
+
+    private void injectFault(boolean isLatency) throws InterruptedException
+    {
+        FakeRedisServer server = activeServers.get(churnRandom.nextInt(activeServers.size()));
+        lastEvent = (isLatency ? "latency fault " + faultLatencyMicros + "us on " : "error fault on ") + server.getPort();
+        if (isLatency)
+        {
+            server.setLatencyMicros(faultLatencyMicros);
+        }
+        else
+        {
+            server.setFailing(true);
+        }
+        try
+        {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(faultDurationSec));
+        }
+        finally
+        {
+            server.setLatencyMicros(getLong("serverLatencyMicros", 0));
+            server.setFailing(false);
+        }
+    }
+
+    private void report(long elapsedSec)
+    {
+        IntervalStats stats = intervalStats.getAndSet(new IntervalStats());
+        JSONObject line = stats.toJson(reportIntervalSec);
+        line.put("t", elapsedSec);
+        line.put("shards", activeServers.size());
+        line.put("epoch", service.getPartitionEpoch());
+        line.put("partitionNum", service.getPartitionNum());
+        String event = lastEvent;
+        if (event != null)
+        {
+            line.put("event", event);
+            lastEvent = null;
+        }
+        System.out.println(line);
+    }
+
+    private int[] ports()
+    {
+        int[] ports = new int[activeServers.size()];
+        for (int i = 0; i < ports.length; i ++)
+        {
+            ports[i] = activeServers.get(i).getPort();
+        }
+        return ports;
+    }
+
+    private String getString(String name, String defaultValue)
+    {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private long getLong(String name, long defaultValue)
+    {
+        return Long.parseLong(getString(name, String.valueOf(defaultValue)));
+    }
+
+    private double getDouble(String name, double defaultValue)
+    {
+        return Double.parseDouble(getString(name, String.valueOf(defaultValue)));
+    }
+
+    static class IntervalStats
+    {
+        final LatencyHistogram latency = new LatencyHistogram(CacheMetrics.LATENCY_SUB_BUCKET_BITS, CacheMetrics.LATENCY_MAX_MICROS);
+        final LongAdder errorCount = new LongAdder();
+        final LongAdder misroutedCount = new LongAdder();
+        final LongAdder staleCount = new LongAdder();
+
+        void record(long latencyMicros)
+        {
+            latency.record(latencyMicros);
+        }
+
+        JSONObject toJson(long seconds)
+        {
+            JSONObject json = new JSONObject();
+            long count = latency.getCount();
+            json.put("ops", count);
+            json.put("opsPerSec", seconds > 0 ? count / seconds : count);
+            json.put("p50Micros", latency.getValueAtPercentile(50));
+            json.put("p99Micros", latency.getValueAtPercentile(99));
+            json.put("p999Micros", latency.getValueAtPercentile(99.9));
+            json.put("errors", errorCount.sum());
+            json.put("misrouted", misroutedCount.sum());
+            json.put("stale", staleCount.sum());
+            return json;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package yanbinwa.iCache.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 进程内的RESP服务，支持GET/SET/SETNX/MGET/MSET/DEL/PSETEX/PTTL/SCAN/PING/SELECT/QUIT，数据保存在内存中，过期的key在访问时删除。
+ *
+ * 每个连接一个线程，按顺序处理命令，输入缓冲中没有更多命令时才flush，因此pipeline的一批命令只产生一次latencyMicros的延迟，
+ * 用来模拟一次网络往返
+ *
+ * @author yanbinwa
+ *
+ */
+public class FakeRedisServer implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(FakeRedisServer.class);
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.UTF_8);
+    // role为slave时这些命令返回READONLY
+    private static final Set<String> WRITE_COMMANDS = new HashSet<String>(Arrays.asList("SET", "SETNX", "PSETEX", "MSET", "DEL"));
+
+    private final ServerSocket serverSocket;
+    private final ConcurrentHashMap<String, String> store = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, Long> expireAt = new ConcurrentHashMap<String, Long>();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile long latencyMicros;
+    // 为true时所有命令返回错误，用于注入故障
+    private volatile boolean isFailing = false;
+    // INFO replication中返回的角色
+    private volatile String role = "master";
+    private volatile boolean isRunning = true;
+
+    public FakeRedisServer(long latencyMicros) throws IOException
+    {
+        this.latencyMicros = latencyMicros;
+        this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                acceptLoop();
+            }
+
+        }, "fake-redis-accept-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    public void setLatencyMicros(long latencyMicros)
+    {
+        this.latencyMicros = latencyMicros;
+    }
+
+    public void setFailing(boolean isFailing)
+    {
+        this.isFailing = isFailing;
+    }
+
+    public void setRole(String role)
+    {
+        this.role = role;
+    }
+
+    public int size()
+    {
+        return store.size();
+    }
+
+    @Override
+    public void close()
+    {
+        isRunning = false;
+        try
+        {
+            serverSocket.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Fail to close fake redis server: " + e.getMessage());
+        }
+        for (Socket socket : connections)
+        {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptLoop()
+    {
+        while (isRunning)
+        {
+            try
+            {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                Thread worker = new Thread(new Runnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        serve(socket);
+                    }
+
+                }, "fake-redis-" + getPort() + "-" + socket.getPort());
+                worker.setDaemon(true);
+                worker.start();
+            }
+            catch (IOException e)
+            {
+                if (isRunning)
+                {
+                    logger.error("Fail to accept connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket)
+    {
+        try
+        {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (isRunning)
+            {
+                List<String> command = readCommand(in);
+                if (command == null)
+                {
+                    break;
+                }
+                boolean isQuit = execute(command, out);
+                if (isQuit || in.available() == 0)
+                {
+                    long latency = latencyMicros;
+                    if (latency > 0)
+                    {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latency));
+                    }
+                    out.flush();
+                }
+                if (isQuit)
+                {
+                    break;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // 连接被客户端关闭
+        }
+        finally
+        {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private boolean execute(List<String> command, OutputStream out) throws IOException
+    {
+        String name = command.get(0).toUpperCase();
+        if (isFailing && !name.equals("QUIT"))
+        {
+            writeSimple(out, "-ERR fault injected");
+        }
+        else if ("slave".equals(role) && WRITE_COMMANDS.contains(name))
+        {
+            writeSimple(out, "-READONLY You can't write against a read only replica.");
+        }
+        else if (name.equals("GET") && command.size() == 2)
+        {
+            writeBulk(out, get(command.get(1)));
+        }
+        else if (name.equals("SET") && command.size() >= 3)
+        {
+            writeSimple(out, set(command) ? "+OK" : "$-1");
+        }
+        else if (name.equals("SETNX") && command.size() == 3)
+        {
+            boolean isAbsent = get(command.get(1)) == null;
+            if (isAbsent)
+            {
+                put(command.get(1), command.get(2));
+            }
+            writeSimple(out, isAbsent ? ":1" : ":0");
+        }
+        else if (name.equals("PSETEX") && command.size() == 4)
+        {
+            store.put(command.get(1), command.get(3));
+            expireAt.put(command.get(1), System.currentTimeMillis() + Long.parseLong(command.get(2)));
+            writeSimple(out, "+OK");
+        }
+        else if (name.equals("PTTL") && command.size() == 2)
+        {
+            String key = command.get(1);
+            Long expire = expireAt.get(key);
+            long ttl = get(key) == null ? -2 : expire == null ? -1 : Math.max(expire - System.currentTimeMillis(), 0);
+            writeSimple(out, ":" + ttl);
+        }
+        else if (name.equals("MGET") && command.size() >= 2)
+        {
+            writeSimple(out, "*" + (command.size() - 1));
+            for (int i = 1; i < command.size(); i ++)
+            {
+                writeBulk(out, get(command.get(i)));
+            }
+        }
+        else if (name.equals("MSET") && command.size() >= 3 && command.size() % 2 == 1)
+        {
+            for (int i = 1; i < command.size(); i += 2)
+            {
+                put(command.get(i), command.get(i + 1));
+            }
+            writeSimple(out, "+OK");
+        }
+        else if (name.equals("DEL") && command.size() >= 2)
+        {
+            int removed = 0;
+            for (int i = 1; i < command.size(); i ++)
+            {
+                boolean isExisting = get(command.get(i)) != null;
+                expireAt.remove(command.get(i));
+                if (isExisting && store.remove(command.get(i)) != null)
+                {
+                    removed ++;
+                }
+            }
+            writeSimple(out, ":" + removed);
+        }
+        else if (name.equals("SCAN") && command.size() >= 2)
+        {
+            scan(command, out);
+        }
+        else if (name.equals("INFO"))
+        {
+            writeBulk(out, "# Replication\r\nrole:" + role + "\r\n");
+        }
+        else if (name.equals("PING"))
+        {
+            writeSimple(out, "+PONG");
+        }
+        else if (name.equals("SELECT"))
+        {
+            writeSimple(out, "+OK");
+        }
+        else if (name.equals("QUIT"))
+        {
+            writeSimple(out, "+OK");
+            return true;
+        }
+        else
+        {
+            writeSimple(out, "-ERR unknown command '" + command.get(0) + "'");
+        }
+        return false;
+    }
+
+    /**
+     * 支持NX、XX、EX、PX选项，没有写入时返回false
+     */
+    private boolean set(List<String> command)
+    {
+        String key = command.get(1);
+        long ttlMs = 0;
+        boolean isNx = false;
+        boolean isXx = false;
+        for (int i = 3; i < command.size(); i ++)
+        {
+            String option = command.get(i).toUpperCase();
+            if (option.equals("NX"))
+            {
+                isNx = true;
+            }
+            else if (option.equals("XX"))
+            {
+                isXx = true;
+            }
+            else if ((option.equals("EX") || option.equals("PX")) && i + 1 < command.size())
+            {
+                ttlMs = Long.parseLong(command.get(++ i)) * (option.equals("EX") ? 1000 : 1);
+            }
+        }
+        boolean isExisting = get(key) != null;
+        if ((isNx && isExisting) || (isXx && !isExisting))
+        {
+            return false;
+        }
+        put(key, command.get(2));
+        if (ttlMs > 0)
+        {
+            expireAt.put(key, System.currentTimeMillis() + ttlMs);
+        }
+        return true;
+    }
+
+    /**
+     * cursor是按字典序排序后的key列表中的下标，扫描期间新增的key可能被跳过，与Redis的语义一致
+     */
+    private void scan(List<String> command, OutputStream out) throws IOException
+    {
+        int cursor = Integer.parseInt(command.get(1));
+        int count = 10;
+        for (int i = 2; i + 1 < command.size(); i += 2)
+        {
+            if (command.get(i).toUpperCase().equals("COUNT"))
+            {
+                count = Integer.parseInt(command.get(i + 1));
+            }
+        }
+        List<String> keys = new ArrayList<String>(store.keySet());
+        Collections.sort(keys);
+        int end = Math.min(keys.size(), cursor + count);
+        writeSimple(out, "*2");
+        writeBulk(out, String.valueOf(end >= keys.size() ? 0 : end));
+        List<String> batch = new ArrayList<String>();
+        for (int i = cursor; i < end; i ++)
+        {
+            if (get(keys.get(i)) != null)
+            {
+                batch.add(keys.get(i));
+            }
+        }
+        writeSimple(out, "*" + batch.size());
+        for (String key : batch)
+        {
+            writeBulk(out, key);
+        }
+    }
+
+    private String get(String key)
+    {
+        Long expire = expireAt.get(key);
+        if (expire != null && expire <= System.currentTimeMillis())
+        {
+            store.remove(key);
+            expireAt.remove(key);
+        }
+        return store.get(key);
+    }
+
+    private void put(String key, String value)
+    {
+        store.put(key, value);
+        expireAt.remove(key);
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException
+    {
+        String header = readLine(in);
+        if (header == null)
+        {
+            return null;
+        }
+        if (header.isEmpty() || header.charAt(0) != '*')
+        {
+            throw new IOException("Un support inline command: " + header);
+        }
+        int argc = Integer.parseInt(header.substring(1));
+        List<String> command = new ArrayList<String>(argc);
+        for (int i = 0; i < argc; i ++)
+        {
+            String lengthLine = readLine(in);
+            if (lengthLine == null || lengthLine.isEmpty() || lengthLine.charAt(0) != '$')
+            {
+                throw new IOException("Un valid bulk header: " + lengthLine);
+            }
+            int length = Integer.parseInt(lengthLine.substring(1));
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length)
+            {
+                int read = in.read(data, offset, length - offset);
+                if (read < 0)
+                {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            in.read();
+            in.read();
+            // ISO_8859_1与字节一一对应，二进制的value原样保存
+            command.add(new String(data, StandardCharsets.ISO_8859_1));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1)
+        {
+            if (c == '\r')
+            {
+                in.read();
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void writeSimple(OutputStream out, String line) throws IOException
+    {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    private static void writeBulk(OutputStream out, String value) throws IOException
+    {
+        if (value == null)
+        {
+            writeSimple(out, "$-1");
+            return;
+        }
+        byte[] data = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeSimple(out, "$" + data.length);
+        out.write(data);
+        out.write(CRLF);
+    }
+
+    private static void closeQuietly(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+    }
+}
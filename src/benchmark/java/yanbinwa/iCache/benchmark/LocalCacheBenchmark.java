@@ -0,0 +1,91 @@
+package yanbinwa.iCache.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import yanbinwa.iCache.local.LocalCache;
+import yanbinwa.iCache.local.NearCache;
+import yanbinwa.iCache.local.OffHeapCache;
+
+/**
+ * 进程内缓存分别保存在堆上和堆外，缓存接近装满后的读写吞吐。
+ *
+ * 需要配合-prof gc查看GC次数和时间：堆上的数据越多，每次GC需要扫描的对象越多，堆外只有索引数组在堆上
+ *
+ * @author yanbinwa
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g", "-XX:MaxDirectMemorySize=2g"})
+@Threads(4)
+public class LocalCacheBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class CacheState
+    {
+        @Param({"heap", "offHeap"})
+        public String storage;
+
+        @Param({"500000"})
+        public int keyNum;
+
+        @Param({"1024"})
+        public int valueSize;
+
+        LocalCache cache;
+        String value;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            long maxBytes = (long) keyNum * (valueSize * 2 + 128);
+            cache = storage.equals("offHeap") ? new OffHeapCache(keyNum, maxBytes, 0) : new NearCache(keyNum, maxBytes, 0);
+            StringBuilder builder = new StringBuilder();
+            while (builder.length() < valueSize)
+            {
+                builder.append('v');
+            }
+            value = builder.toString();
+            for (int i = 0; i < keyNum; i ++)
+            {
+                String key = key(i);
+                cache.putIfNotInvalidated(key, value, cache.beginLoad(key));
+            }
+        }
+    }
+
+    static String key(int i)
+    {
+        return "bench:" + i;
+    }
+
+    @Benchmark
+    public String get(CacheState state)
+    {
+        return state.cache.get(key(ThreadLocalRandom.current().nextInt(state.keyNum)));
+    }
+
+    @Benchmark
+    public boolean put(CacheState state)
+    {
+        String key = key(ThreadLocalRandom.current().nextInt(state.keyNum));
+        return state.cache.putIfNotInvalidated(key, state.value, state.cache.beginLoad(key));
+    }
+}
@@ -0,0 +1,106 @@
+package yanbinwa.iCache.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import yanbinwa.common.exceptions.RedisErrorException;
+import yanbinwa.common.exceptions.ServiceUnavailableException;
+import yanbinwa.iCache.service.BenchmarkCacheService;
+import yanbinwa.iCache.service.CacheService;
+import yanbinwa.iCache.service.CacheServiceImpl;
+
+/**
+ * 读不存在的key，比较关闭、只开启NegativeCache以及同时开启Bloom filter。
+ *
+ * repeatedMiss在少量key上重复读，NegativeCache在第一次未命中后即可回答；uniqueMiss每次读不同的key，只有Bloom filter能省掉往返
+ *
+ * @author yanbinwa
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class NegativeLookupBenchmark
+{
+    static final int KEY_NUM = 10000;
+    static final int REPEATED_KEY_NUM = 100;
+
+    @State(Scope.Benchmark)
+    public static class ServiceState
+    {
+        @Param({"100"})
+        public long latencyMicros;
+
+        @Param({"off", "cache", "bloom"})
+        public String mode;
+
+        FakeRedisServer server;
+        CacheServiceImpl service;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException, RedisErrorException, ServiceUnavailableException, InterruptedException
+        {
+            server = new FakeRedisServer(latencyMicros);
+            JSONObject config = new JSONObject();
+            if (!mode.equals("off"))
+            {
+                JSONObject negativeCacheObj = new JSONObject().put(CacheService.NEGATIVE_CACHE_ENABLE, true);
+                negativeCacheObj.put(CacheService.NEGATIVE_CACHE_BLOOM, new JSONObject().put(CacheService.NEGATIVE_CACHE_BLOOM_ENABLE, mode.equals("bloom")));
+                config.put(CacheService.NEGATIVE_CACHE_KEY, negativeCacheObj);
+            }
+            service = BenchmarkCacheService.create(config);
+            BenchmarkCacheService.applyTopology(service, new int[] {server.getPort()}, 16);
+            for (int i = 0; i < KEY_NUM; i ++)
+            {
+                service.setString("present:" + i, "value-" + i);
+            }
+            // 等待第一次扫描完成
+            Thread.sleep(1000);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException
+        {
+            BenchmarkCacheService.shutdown(service);
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public String repeatedMiss(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        return state.service.getString("absent:" + ThreadLocalRandom.current().nextInt(REPEATED_KEY_NUM));
+    }
+
+    @Benchmark
+    public String uniqueMiss(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        return state.service.getString("absent:" + ThreadLocalRandom.current().nextLong());
+    }
+
+    @Benchmark
+    public String hit(ServiceState state) throws RedisErrorException, ServiceUnavailableException
+    {
+        return state.service.getString("present:" + ThreadLocalRandom.current().nextInt(KEY_NUM));
+    }
+}
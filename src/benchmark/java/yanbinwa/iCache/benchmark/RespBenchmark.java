@@ -0,0 +1,145 @@
+package yanbinwa.iCache.benchmark;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import yanbinwa.iCache.resp.RespServer;
+import yanbinwa.iCache.service.BenchmarkCacheService;
+import yanbinwa.iCache.service.CacheServiceImpl;
+
+/**
+ * 用Jedis分别直接访问redis和通过RESP前端访问，比较代理本身的开销；pipeline的用例检查前端的并发执行和按序回复
+ *
+ * @author yanbinwa
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RespBenchmark
+{
+    static final int KEY_NUM = 1000;
+    static final int PIPELINE_SIZE = 16;
+
+    @State(Scope.Benchmark)
+    public static class ServerState
+    {
+        @Param({"0"})
+        public long latencyMicros;
+
+        FakeRedisServer server;
+        CacheServiceImpl service;
+        RespServer respServer;
+        int respPort;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception
+        {
+            server = new FakeRedisServer(latencyMicros);
+            service = BenchmarkCacheService.create(new JSONObject());
+            BenchmarkCacheService.applyTopology(service, new int[] {server.getPort()}, 16);
+            for (int i = 0; i < KEY_NUM; i ++)
+            {
+                service.setString("resp:" + i, "value-" + i);
+            }
+            try (ServerSocket socket = new ServerSocket(0))
+            {
+                respPort = socket.getLocalPort();
+            }
+            respServer = new RespServer(service, respPort, 2, 16);
+            respServer.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException
+        {
+            respServer.stop();
+            BenchmarkCacheService.shutdown(service);
+            server.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState
+    {
+        Jedis direct;
+        Jedis proxy;
+
+        @Setup(Level.Trial)
+        public void setup(ServerState serverState)
+        {
+            direct = new Jedis("127.0.0.1", serverState.server.getPort());
+            proxy = new Jedis("127.0.0.1", serverState.respPort);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            direct.close();
+            proxy.close();
+        }
+    }
+
+    @Benchmark
+    public String directGet(ClientState state)
+    {
+        return state.direct.get(randomKey());
+    }
+
+    @Benchmark
+    public String respGet(ClientState state)
+    {
+        return state.proxy.get(randomKey());
+    }
+
+    @Benchmark
+    public List<Object> directPipelinedGet(ClientState state)
+    {
+        return pipelinedGet(state.direct);
+    }
+
+    @Benchmark
+    public List<Object> respPipelinedGet(ClientState state)
+    {
+        return pipelinedGet(state.proxy);
+    }
+
+    private static List<Object> pipelinedGet(Jedis jedis)
+    {
+        Pipeline pipeline = jedis.pipelined();
+        for (int i = 0; i < PIPELINE_SIZE; i ++)
+        {
+            pipeline.get(randomKey());
+        }
+        return pipeline.syncAndReturnAll();
+    }
+
+    private static String randomKey()
+    {
+        return "resp:" + ThreadLocalRandom.current().nextInt(KEY_NUM);
+    }
+}
@@ -0,0 +1,152 @@
+package yanbinwa.iCache.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import yanbinwa.iCache.redis.RedisShardClient;
+import yanbinwa.iCache.service.BenchmarkCacheService;
+import yanbinwa.iCache.service.CacheService;
+import yanbinwa.iCache.service.CacheServiceImpl;
+
+/**
+ * key到RedisShardClient的路由，swapIntervalMs大于0时后台线程按该间隔在shardNum和shardNum+1个分片之间切换拓扑。
+ *
+ * 路由只读取路由表，不需要redis服务，端口不会被连接
+ *
+ * @author yanbinwa
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RoutingBenchmark
+{
+    private static final int BASE_PORT = 40000;
+
+    @State(Scope.Benchmark)
+    public static class RoutingState
+    {
+        @Param({"PARTITION", "JUMP", "RING"})
+        public String strategy;
+
+        @Param({"0", "10"})
+        public long swapIntervalMs;
+
+        @Param({"8"})
+        public int shardNum;
+
+        @Param({"1024"})
+        public int partitionNum;
+
+        CacheServiceImpl service;
+        Thread swapper;
+        volatile boolean isSwapping;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            JSONObject config = new JSONObject();
+            config.put(CacheService.ROUTING_KEY, new JSONObject().put(CacheService.ROUTING_STRATEGY, strategy));
+            config.put(CacheService.TOPOLOGY_SWAP_KEY, new JSONObject().put(CacheService.TOPOLOGY_SWAP_PREWARM_CONNECTIONS, 0)
+                    .put(CacheService.TOPOLOGY_SWAP_DRAIN_GRACE_MS, 0));
+            service = BenchmarkCacheService.create(config);
+            BenchmarkCacheService.applyTopology(service, ports(shardNum), partitionNum);
+            if (swapIntervalMs > 0)
+            {
+                isSwapping = true;
+                swapper = new Thread(new Runnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        boolean isGrown = false;
+                        while (isSwapping)
+                        {
+                            isGrown = !isGrown;
+                            BenchmarkCacheService.applyTopology(service, ports(isGrown ? shardNum + 1 : shardNum), partitionNum);
+                            try
+                            {
+                                Thread.sleep(swapIntervalMs);
+                            }
+                            catch (InterruptedException e)
+                            {
+                                return;
+                            }
+                        }
+                    }
+
+                }, "routing-swapper");
+                swapper.setDaemon(true);
+                swapper.start();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException
+        {
+            isSwapping = false;
+            if (swapper != null)
+            {
+                swapper.interrupt();
+                swapper.join();
+            }
+            BenchmarkCacheService.shutdown(service);
+        }
+
+        private static int[] ports(int num)
+        {
+            int[] ports = new int[num];
+            for (int i = 0; i < num; i ++)
+            {
+                ports[i] = BASE_PORT + i;
+            }
+            return ports;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class KeyState
+    {
+        String[] keys = new String[4096];
+        int index = 0;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            for (int i = 0; i < keys.length; i ++)
+            {
+                keys[i] = "user:" + ((i * 2654435761L) & 0xffffffffL) + ":profile";
+            }
+        }
+
+        String next()
+        {
+            index = (index + 1) & (keys.length - 1);
+            return keys[index];
+        }
+    }
+
+    @Benchmark
+    public RedisShardClient route(RoutingState state, KeyState keys)
+    {
+        return BenchmarkCacheService.route(state.service, keys.next());
+    }
+}
@@ -0,0 +1,52 @@
+package yanbinwa.iCache.benchmark;
+
+import java.util.Random;
+
+/**
+ * Gray等人的Zipfian生成算法(与YCSB相同)，返回[0, itemNum)，0最热
+ *
+ * @author yanbinwa
+ *
+ */
+public class ZipfianGenerator
+{
+    private final long itemNum;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    public ZipfianGenerator(long itemNum, double theta)
+    {
+        this.itemNum = itemNum;
+        this.theta = theta;
+        this.zetaN = zeta(itemNum, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / itemNum, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    public long next(Random random)
+    {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1.0)
+        {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, theta))
+        {
+            return 1;
+        }
+        return Math.min(itemNum - 1, (long) (itemNum * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    private static double zeta(long n, double theta)
+    {
+        double sum = 0;
+        for (long i = 1; i <= n; i ++)
+        {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,68 @@
+package yanbinwa.iCache.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import yanbinwa.common.zNodedata.ZNodeServiceData;
+import yanbinwa.common.zNodedata.ZNodeServiceDataImpl;
+import yanbinwa.iCache.redis.RedisShardClient;
+
+/**
+ * 不依赖zookeeper创建可以工作的CacheServiceImpl，拓扑和service config直接注入
+ *
+ * @author yanbinwa
+ *
+ */
+public final class BenchmarkCacheService
+{
+    public static final String REDIS_HOST = "127.0.0.1";
+
+    private BenchmarkCacheService()
+    {
+    }
+
+    public static CacheServiceImpl create(JSONObject serviceConfigPropertiesObj)
+    {
+        CacheServiceImpl service = new CacheServiceImpl();
+        service.isRunning = true;
+        service.isConfiged = true;
+        service.updateServiceConfigProperties(serviceConfigPropertiesObj);
+        return service;
+    }
+
+    /**
+     * 每个port一个redis服务，partition按轮转分配给各个服务
+     */
+    public static void applyTopology(CacheServiceImpl service, int[] ports, int partitionNum)
+    {
+        Set<ZNodeServiceData> redisServiceData = new HashSet<ZNodeServiceData>();
+        Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap = new HashMap<String, Set<Integer>>();
+        for (int i = 0; i < ports.length; i ++)
+        {
+            String serviceName = "redis-" + ports[i];
+            redisServiceData.add(new ZNodeServiceDataImpl(REDIS_HOST, CacheService.REDIS_SERVICE_GROUP_KEY, serviceName, ports[i], "/" + serviceName));
+            Set<Integer> partitionKeys = new HashSet<Integer>();
+            for (int partition = i; partition < partitionNum; partition += ports.length)
+            {
+                partitionKeys.add(partition);
+            }
+            redisServiceNameToPartitionKeyMap.put(serviceName, partitionKeys);
+        }
+        service.applyRedisTopology(redisServiceData, redisServiceNameToPartitionKeyMap);
+    }
+
+    public static RedisShardClient route(CacheServiceImpl service, String key)
+    {
+        return service.redisPartitionTable.getRedisClient(key);
+    }
+
+    public static void shutdown(CacheServiceImpl service)
+    {
+        service.applyRedisTopology(new HashSet<ZNodeServiceData>(), new HashMap<String, Set<Integer>>());
+        service.shardExecutor.shutdown();
+    }
+}
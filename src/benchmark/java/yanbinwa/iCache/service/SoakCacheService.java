@@ -0,0 +1,62 @@
+package yanbinwa.iCache.service;
+
+import org.json.JSONObject;
+
+import yanbinwa.common.orchestrationClient.OrchestrationServiceState;
+
+/**
+ * 压测用的CacheServiceImpl，拓扑由压测工具设置，状态变化通过真实的OrchestrationWatcher触发，
+ * 不需要zookeeper和orchestration服务
+ *
+ * @author yanbinwa
+ *
+ */
+public class SoakCacheService extends CacheServiceImpl
+{
+    private final int partitionNum;
+    private volatile int[] redisPorts = new int[0];
+
+    public SoakCacheService(int partitionNum, JSONObject serviceConfigPropertiesObj)
+    {
+        this.partitionNum = partitionNum;
+        isRunning = true;
+        isConfiged = true;
+        updateServiceConfigProperties(serviceConfigPropertiesObj);
+    }
+
+    public void setRedisPorts(int[] redisPorts)
+    {
+        this.redisPorts = redisPorts.clone();
+    }
+
+    public void fireServiceStateChange(OrchestrationServiceState state)
+    {
+        watcher.handleServiceStateChange(state);
+    }
+
+    public void applyServiceConfig(JSONObject serviceConfigPropertiesObj)
+    {
+        updateServiceConfigProperties(serviceConfigPropertiesObj);
+    }
+
+    public long getPartitionEpoch()
+    {
+        return redisPartitionTable.getEpoch();
+    }
+
+    public int getPartitionNum()
+    {
+        return redisPartitionTable.getPartitionNum();
+    }
+
+    @Override
+    void buildOrUpdateRedisPartitionInfo()
+    {
+        BenchmarkCacheService.applyTopology(this, redisPorts, partitionNum);
+    }
+
+    public void shutdown()
+    {
+        BenchmarkCacheService.shutdown(this);
+    }
+}
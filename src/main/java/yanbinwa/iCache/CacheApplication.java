@@ -8,6 +8,10 @@ import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletCont
 import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+
+import yanbinwa.iCache.resp.RespServer;
+import yanbinwa.iCache.service.CacheService;
 
 
 @SpringBootApplication
@@ -19,6 +23,16 @@ public class CacheApplication implements EmbeddedServletContainerCustomizer
     @Value("${tomcatPort:}")
     int tomcatPort;
     
+    // RESP前端的端口，小于等于0时不启动
+    @Value("${respPort:0}")
+    int respPort;
+    
+    @Value("${respIoThreads:2}")
+    int respIoThreads;
+    
+    @Value("${respWorkerThreads:16}")
+    int respWorkerThreads;
+    
     public static void main(String[] args)
     {
         SpringApplication.run(CacheApplication.class, args);
@@ -29,4 +43,10 @@ public class CacheApplication implements EmbeddedServletContainerCustomizer
     {
         container.setPort(tomcatPort);
     }
+    
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public RespServer respServer(CacheService cacheService)
+    {
+        return new RespServer(cacheService, respPort, respIoThreads, respWorkerThreads);
+    }
 }
@@ -1,16 +1,32 @@
 package yanbinwa.iCache.controller;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+import javax.servlet.http.HttpServletRequest;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.MissingServletRequestParameterException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import yanbinwa.common.exceptions.RedisErrorException;
 import yanbinwa.common.exceptions.ServiceUnavailableException;
+import yanbinwa.iCache.redis.TtlValue;
 import yanbinwa.iCache.service.CacheService;
 
 @RestController
@@ -51,15 +67,163 @@ public class CacheController
     }
     
     @RequestMapping(value="/setString",method=RequestMethod.GET)
-    void setString(@RequestParam("key") String key, @RequestParam("value") String value) throws RedisErrorException, ServiceUnavailableException
+    DeferredResult<Void> setString(@RequestParam("key") String key, @RequestParam("value") String value,
+            @RequestHeader(value=CacheService.REQUEST_DEADLINE_HEADER, defaultValue="0") long timeoutMs)
     {
-        cacheService.setString(key, value);
+        return toDeferredResult(cacheService.setStringAsync(key, value, timeoutMs));
     }
     
     @RequestMapping(value="/getString",method=RequestMethod.GET)
-    String getString(@RequestParam("key") String key) throws RedisErrorException, ServiceUnavailableException
+    DeferredResult<String> getString(@RequestParam("key") String key,
+            @RequestHeader(value=CacheService.REQUEST_DEADLINE_HEADER, defaultValue="0") long timeoutMs)
+    {
+        return toDeferredResult(cacheService.getStringAsync(key, timeoutMs));
+    }
+    
+    @RequestMapping(value="/setStringWithTtl",method=RequestMethod.GET)
+    void setStringWithTtl(@RequestParam("key") String key, @RequestParam("value") String value, @RequestParam("ttlMs") long ttlMs)
+            throws RedisErrorException, ServiceUnavailableException
+    {
+        cacheService.setString(key, value, ttlMs);
+    }
+    
+    @RequestMapping(value="/getStringWithTtl",method=RequestMethod.GET)
+    TtlValue getStringWithTtl(@RequestParam("key") String key) throws RedisErrorException, ServiceUnavailableException
+    {
+        return cacheService.getStringWithTtl(key);
+    }
+    
+    /**
+     * 每个key一个key参数，key中可以包含逗号
+     */
+    @RequestMapping(value="/batch",method=RequestMethod.GET)
+    List<String> getStrings(HttpServletRequest request,
+            @RequestHeader(value=CacheService.REQUEST_DEADLINE_HEADER, defaultValue="0") long timeoutMs)
+            throws RedisErrorException, ServiceUnavailableException, MissingServletRequestParameterException
+    {
+        return cacheService.getStrings(getKeyParams(request), timeoutMs);
+    }
+    
+    /**
+     * 与GET相同，key以JSON数组放在body中
+     */
+    @RequestMapping(value="/batch/get",method=RequestMethod.POST)
+    List<String> getStringsByBody(@RequestBody List<String> keys,
+            @RequestHeader(value=CacheService.REQUEST_DEADLINE_HEADER, defaultValue="0") long timeoutMs) throws RedisErrorException, ServiceUnavailableException
+    {
+        return cacheService.getStrings(keys, timeoutMs);
+    }
+    
+    @RequestMapping(value="/batch",method=RequestMethod.POST)
+    void setStrings(@RequestBody Map<String, String> keyToValueMap,
+            @RequestHeader(value=CacheService.REQUEST_DEADLINE_HEADER, defaultValue="0") long timeoutMs) throws RedisErrorException, ServiceUnavailableException
+    {
+        cacheService.setStrings(keyToValueMap, timeoutMs);
+    }
+    
+    /**
+     * 有body时key从body的JSON数组中读取，否则从重复的key参数中读取
+     */
+    @RequestMapping(value="/batch",method=RequestMethod.DELETE)
+    long deleteStrings(HttpServletRequest request, @RequestBody(required=false) List<String> bodyKeys,
+            @RequestHeader(value=CacheService.REQUEST_DEADLINE_HEADER, defaultValue="0") long timeoutMs)
+            throws RedisErrorException, ServiceUnavailableException, MissingServletRequestParameterException
+    {
+        if (bodyKeys != null)
+        {
+            return cacheService.deleteStrings(bodyKeys, timeoutMs);
+        }
+        return cacheService.deleteStrings(getKeyParams(request), timeoutMs);
+    }
+    
+    @RequestMapping(value="/bytes",method=RequestMethod.PUT,consumes=MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    void setBytes(@RequestParam("key") String key, @RequestBody byte[] value) throws RedisErrorException, ServiceUnavailableException
+    {
+        cacheService.setBytes(key, value);
+    }
+    
+    /**
+     * 不存在的key返回404，以便与空的value区分
+     */
+    @RequestMapping(value="/bytes",method=RequestMethod.GET,produces=MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    ResponseEntity<byte[]> getBytes(@RequestParam("key") String key) throws RedisErrorException, ServiceUnavailableException
+    {
+        byte[] value = cacheService.getBytes(key);
+        if (value == null)
+        {
+            return new ResponseEntity<byte[]>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<byte[]>(value, HttpStatus.OK);
+    }
+    
+    @RequestMapping(value="/getNearCacheStats",method=RequestMethod.GET)
+    public String getNearCacheStats()
+    {
+        return cacheService.getNearCacheStats();
+    }
+    
+    @RequestMapping(value="/getShardStats",method=RequestMethod.GET)
+    public String getShardStats()
+    {
+        return cacheService.getShardStats();
+    }
+    
+    @RequestMapping(value="/getRoutingStats",method=RequestMethod.GET)
+    public String getRoutingStats()
+    {
+        return cacheService.getRoutingStats();
+    }
+    
+    @RequestMapping(value="/getHotKeys",method=RequestMethod.GET)
+    public String getHotKeys()
+    {
+        return cacheService.getHotKeys();
+    }
+    
+    @RequestMapping(value="/stats",method=RequestMethod.GET)
+    public String getCacheStats()
+    {
+        return cacheService.getCacheStats();
+    }
+    
+    /**
+     * 直接读取原始的参数值，@RequestParam绑定到List或数组时只有一个值会按逗号拆分
+     */
+    private static List<String> getKeyParams(HttpServletRequest request) throws MissingServletRequestParameterException
+    {
+        String[] keys = request.getParameterValues("key");
+        if (keys == null)
+        {
+            throw new MissingServletRequestParameterException("key", "String[]");
+        }
+        return Arrays.asList(keys);
+    }
+    
+    /**
+     * Redis的I/O在分片线程池中完成，请求线程在这里就被释放了，超时按redis error处理
+     */
+    private <T> DeferredResult<T> toDeferredResult(CompletableFuture<T> future)
     {
-        return cacheService.getString(key);
+        final DeferredResult<T> deferredResult = new DeferredResult<T>(CacheService.ASYNC_REQUEST_TIMEOUT_MS_DEFAULT, new RedisErrorException());
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+
+            @Override
+            public void accept(T value, Throwable e)
+            {
+                if (e == null)
+                {
+                    deferredResult.setResult(value);
+                    return;
+                }
+                if (e instanceof CompletionException && e.getCause() != null)
+                {
+                    e = e.getCause();
+                }
+                deferredResult.setErrorResult(e);
+            }
+            
+        });
+        return deferredResult;
     }
     
     @ResponseStatus(value=HttpStatus.NOT_FOUND, reason="webService is stop")
@@ -0,0 +1,54 @@
+package yanbinwa.iCache.invalidation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 进程内的传输实现，同一个group中的transport互相广播，用于测试以及单机部署
+ * 
+ * @author yanbinwa
+ *
+ */
+public class InMemoryInvalidationTransport implements InvalidationTransport
+{
+    private final List<InMemoryInvalidationTransport> group;
+    
+    private volatile MessageCallBack callBack = null;
+    
+    public InMemoryInvalidationTransport(List<InMemoryInvalidationTransport> group)
+    {
+        this.group = group;
+    }
+    
+    public static List<InMemoryInvalidationTransport> newGroup()
+    {
+        return new CopyOnWriteArrayList<InMemoryInvalidationTransport>();
+    }
+    
+    @Override
+    public void start(MessageCallBack callBack)
+    {
+        this.callBack = callBack;
+        group.add(this);
+    }
+
+    @Override
+    public void send(String message)
+    {
+        for (InMemoryInvalidationTransport transport : group)
+        {
+            MessageCallBack target = transport.callBack;
+            if (target != null)
+            {
+                target.handleMessage(message);
+            }
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        group.remove(this);
+        callBack = null;
+    }
+}
@@ -0,0 +1,10 @@
+package yanbinwa.iCache.invalidation;
+
+import java.util.List;
+
+public interface InvalidationCallBack
+{
+    void handleInvalidate(List<String> keys);
+    
+    void handleInvalidateAll();
+}
@@ -0,0 +1,235 @@
+package yanbinwa.iCache.invalidation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import yanbinwa.iCache.util.DaemonThreadFactory;
+
+/**
+ * 跨实例的近端缓存失效通道。
+ *
+ * 写入的key先放到一个待发送的集合中，同一个flush周期内对同一个key的多次写只会产生一次失效，
+ * 每个周期把集合按maxBatchKeys拆成若干条消息发送出去。待发送的key超过maxPendingKeys时，
+ * 直接发送一条全量失效的消息。自己发出的消息会被忽略，本地的失效由写路径同步完成
+ *
+ * @author yanbinwa
+ *
+ */
+public class InvalidationChannel
+{
+    private static final Logger logger = Logger.getLogger(InvalidationChannel.class);
+
+    public static final String MESSAGE_SOURCE = "source";
+    public static final String MESSAGE_KEYS = "keys";
+    public static final String MESSAGE_ALL = "all";
+
+    private final InvalidationTransport transport;
+    private final String instanceId;
+    private final long flushIntervalMs;
+    private final int maxBatchKeys;
+    private final int maxPendingKeys;
+
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pendingKeyNum = new AtomicInteger(0);
+    private final AtomicBoolean pendingAll = new AtomicBoolean(false);
+
+    private final LongAdder requestedCount = new LongAdder();
+    private final LongAdder sentKeyCount = new LongAdder();
+    private final LongAdder sentMessageCount = new LongAdder();
+    private final LongAdder receivedKeyCount = new LongAdder();
+    private final LongAdder receivedMessageCount = new LongAdder();
+
+    private ScheduledExecutorService flushExecutor = null;
+
+    public InvalidationChannel(InvalidationTransport transport, String instanceId, long flushIntervalMs, int maxBatchKeys, int maxPendingKeys)
+    {
+        this.transport = transport;
+        this.instanceId = instanceId;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxBatchKeys = maxBatchKeys;
+        this.maxPendingKeys = maxPendingKeys;
+    }
+
+    public void start(final InvalidationCallBack callBack)
+    {
+        transport.start(new InvalidationTransport.MessageCallBack() {
+
+            @Override
+            public void handleMessage(String message)
+            {
+                handleInvalidationMessage(message, callBack);
+            }
+
+        });
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-invalidation-flush"));
+        flushExecutor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    flush();
+                }
+                catch (Exception e)
+                {
+                    logger.error("Fail to flush invalidation keys: " + e.getMessage());
+                }
+            }
+
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("Start invalidation channel for " + instanceId);
+    }
+
+    public void stop()
+    {
+        if (flushExecutor != null)
+        {
+            flushExecutor.shutdown();
+            try
+            {
+                flushExecutor.awaitTermination(flushIntervalMs * 2, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            flushExecutor = null;
+        }
+        try
+        {
+            flush();
+        }
+        catch (Exception e)
+        {
+            logger.error("Fail to flush invalidation keys on stop: " + e.getMessage());
+        }
+        transport.stop();
+        logger.info("Stop invalidation channel for " + instanceId);
+    }
+
+    public void invalidate(String key)
+    {
+        requestedCount.increment();
+        if (pendingAll.get())
+        {
+            return;
+        }
+        if (pendingKeys.add(key) && pendingKeyNum.incrementAndGet() > maxPendingKeys)
+        {
+            pendingAll.set(true);
+        }
+    }
+
+    public void invalidateAll()
+    {
+        requestedCount.increment();
+        pendingAll.set(true);
+    }
+
+    void flush()
+    {
+        if (pendingAll.getAndSet(false))
+        {
+            pendingKeys.clear();
+            pendingKeyNum.set(0);
+            JSONObject message = new JSONObject();
+            message.put(MESSAGE_SOURCE, instanceId);
+            message.put(MESSAGE_ALL, true);
+            transport.send(message.toString());
+            sentMessageCount.increment();
+            return;
+        }
+        List<String> batch = new ArrayList<String>();
+        Iterator<String> iterator = pendingKeys.iterator();
+        while (iterator.hasNext())
+        {
+            batch.add(iterator.next());
+            iterator.remove();
+            pendingKeyNum.decrementAndGet();
+            if (batch.size() >= maxBatchKeys)
+            {
+                sendBatch(batch);
+                batch = new ArrayList<String>();
+            }
+        }
+        if (!batch.isEmpty())
+        {
+            sendBatch(batch);
+        }
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("instanceId", instanceId);
+        stats.put("flushIntervalMs", flushIntervalMs);
+        stats.put("pendingKeys", pendingKeyNum.get());
+        stats.put("requestedCount", requestedCount.sum());
+        stats.put("sentKeyCount", sentKeyCount.sum());
+        stats.put("sentMessageCount", sentMessageCount.sum());
+        stats.put("receivedKeyCount", receivedKeyCount.sum());
+        stats.put("receivedMessageCount", receivedMessageCount.sum());
+        return stats;
+    }
+
+    private void sendBatch(List<String> keys)
+    {
+        JSONObject message = new JSONObject();
+        message.put(MESSAGE_SOURCE, instanceId);
+        message.put(MESSAGE_KEYS, new JSONArray(keys));
+        transport.send(message.toString());
+        sentKeyCount.add(keys.size());
+        sentMessageCount.increment();
+    }
+
+    private void handleInvalidationMessage(String message, InvalidationCallBack callBack)
+    {
+        JSONObject messageObj;
+        try
+        {
+            messageObj = new JSONObject(message);
+        }
+        catch (JSONException e)
+        {
+            logger.error("Un valid invalidation message: " + message);
+            return;
+        }
+        if (instanceId.equals(messageObj.optString(MESSAGE_SOURCE)))
+        {
+            return;
+        }
+        receivedMessageCount.increment();
+        if (messageObj.optBoolean(MESSAGE_ALL, false))
+        {
+            callBack.handleInvalidateAll();
+            return;
+        }
+        JSONArray keysObj = messageObj.optJSONArray(MESSAGE_KEYS);
+        if (keysObj == null)
+        {
+            return;
+        }
+        List<String> keys = new ArrayList<String>(keysObj.length());
+        for (int i = 0; i < keysObj.length(); i ++)
+        {
+            keys.add(keysObj.getString(i));
+        }
+        receivedKeyCount.add(keys.size());
+        callBack.handleInvalidate(keys);
+    }
+}
@@ -0,0 +1,22 @@
+package yanbinwa.iCache.invalidation;
+
+/**
+ * 失效消息的传输层，InvalidationChannel负责消息的合并和编解码，这里只负责广播字符串消息，
+ * 每个实例都要能收到所有消息(包括自己发出的)
+ * 
+ * @author yanbinwa
+ *
+ */
+public interface InvalidationTransport
+{
+    void start(MessageCallBack callBack);
+    
+    void send(String message);
+    
+    void stop();
+    
+    interface MessageCallBack
+    {
+        void handleMessage(String message);
+    }
+}
@@ -0,0 +1,145 @@
+package yanbinwa.iCache.invalidation;
+
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.log4j.Logger;
+
+/**
+ * 基于Kafka的广播实现，每个实例使用独立的consumer group，这样所有实例都能收到全部的失效消息，
+ * 只消费启动之后的消息
+ * 
+ * @author yanbinwa
+ *
+ */
+public class KafkaInvalidationTransport implements InvalidationTransport
+{
+    private static final Logger logger = Logger.getLogger(KafkaInvalidationTransport.class);
+    
+    private static final long POLL_TIMEOUT_MS = 1000;
+    
+    private final String brokerList;
+    private final String topic;
+    private final String groupId;
+    
+    private KafkaProducer<String, String> producer = null;
+    private KafkaConsumer<String, String> consumer = null;
+    private Thread consumerThread = null;
+    private volatile boolean isRunning = false;
+    
+    public KafkaInvalidationTransport(String brokerList, String topic, String groupId)
+    {
+        this.brokerList = brokerList;
+        this.topic = topic;
+        this.groupId = groupId;
+    }
+    
+    @Override
+    public void start(final MessageCallBack callBack)
+    {
+        Properties producerProps = new Properties();
+        producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, brokerList);
+        producerProps.put(ProducerConfig.ACKS_CONFIG, "1");
+        producerProps.put(ProducerConfig.LINGER_MS_CONFIG, "5");
+        producerProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        producer = new KafkaProducer<String, String>(producerProps);
+        
+        Properties consumerProps = new Properties();
+        consumerProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, brokerList);
+        consumerProps.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+        consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest");
+        consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "true");
+        consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        consumer = new KafkaConsumer<String, String>(consumerProps);
+        consumer.subscribe(Collections.singletonList(topic));
+        
+        isRunning = true;
+        consumerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (isRunning)
+                    {
+                        ConsumerRecords<String, String> records = consumer.poll(POLL_TIMEOUT_MS);
+                        for (ConsumerRecord<String, String> record : records)
+                        {
+                            callBack.handleMessage(record.value());
+                        }
+                    }
+                }
+                catch (WakeupException e)
+                {
+                    if (isRunning)
+                    {
+                        logger.error("Invalidation consumer is waked up unexpectedly");
+                    }
+                }
+                catch (Exception e)
+                {
+                    logger.error("Invalidation consumer is stopped by error: " + e.getMessage());
+                }
+                finally
+                {
+                    consumer.close();
+                }
+            }
+            
+        }, "cache-invalidation-consumer");
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+        logger.info("Start kafka invalidation transport on topic " + topic);
+    }
+
+    @Override
+    public void send(String message)
+    {
+        if (producer == null)
+        {
+            return;
+        }
+        producer.send(new ProducerRecord<String, String>(topic, message));
+    }
+
+    @Override
+    public void stop()
+    {
+        isRunning = false;
+        if (consumer != null)
+        {
+            consumer.wakeup();
+        }
+        if (consumerThread != null)
+        {
+            try
+            {
+                consumerThread.join(POLL_TIMEOUT_MS * 2);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            consumerThread = null;
+        }
+        if (producer != null)
+        {
+            producer.close();
+            producer = null;
+        }
+        logger.info("Stop kafka invalidation transport on topic " + topic);
+    }
+}
@@ -0,0 +1,293 @@
+package yanbinwa.iCache.loader;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import yanbinwa.iCache.metrics.CacheMetrics;
+import yanbinwa.iCache.metrics.LatencyHistogram;
+import yanbinwa.iCache.util.DaemonThreadFactory;
+
+/**
+ * 一个key前缀上的CacheLoader，把并发的未命中合并成批量加载。
+ *
+ * 第一个未命中的key开始一个windowMicros的窗口，窗口结束或者攒够maxBatch个key时在loader线程池中调用一次loadAll；
+ * 同一个key在等待或加载期间只加载一次。加载到的value先返回给调用方，再写回Redis，写回完成前新的读直接使用加载的结果
+ *
+ * @author yanbinwa
+ *
+ */
+public class BatchingLoader
+{
+    private static final Logger logger = Logger.getLogger(BatchingLoader.class);
+
+    private static final ScheduledExecutorService loaderTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-loader-timer"));
+
+    private final String prefix;
+    private final CacheLoader loader;
+    private final long ttlMs;
+    private final LoadedValueWriter writer;
+    private final Executor loadExecutor;
+    private volatile LoaderConfig config;
+
+    // 等待发送的key以及已经发送、还没有写回的key，都由lock保护
+    private final Object lock = new Object();
+    private Map<String, CompletableFuture<String>> pending = new HashMap<String, CompletableFuture<String>>();
+    private final Map<String, CompletableFuture<String>> loading = new HashMap<String, CompletableFuture<String>>();
+    private ScheduledFuture<?> flushTask = null;
+
+    private final LatencyHistogram loadLatency = new LatencyHistogram(CacheMetrics.LATENCY_SUB_BUCKET_BITS, CacheMetrics.LATENCY_MAX_MICROS);
+    private final LatencyHistogram batchSize = new LatencyHistogram(CacheMetrics.SIZE_SUB_BUCKET_BITS, CacheMetrics.SIZE_MAX);
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder loadedCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder writeBackErrorCount = new LongAdder();
+
+    public BatchingLoader(String prefix, CacheLoader loader, long ttlMs, LoadedValueWriter writer, Executor loadExecutor, LoaderConfig config)
+    {
+        this.prefix = prefix;
+        this.loader = loader;
+        this.ttlMs = ttlMs;
+        this.writer = writer;
+        this.loadExecutor = loadExecutor;
+        this.config = config;
+    }
+
+    public void setConfig(LoaderConfig config)
+    {
+        this.config = config;
+    }
+
+    /**
+     * 返回的future总是正常结束，数据源中不存在、加载失败或超过timeoutMs时结果为null
+     */
+    public CompletableFuture<String> load(String key, long timeoutMs)
+    {
+        requestCount.increment();
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        final ScheduledFuture<?> timeoutTask = loaderTimer.schedule(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                if (result.complete(null))
+                {
+                    timeoutCount.increment();
+                }
+            }
+
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        join(key).whenComplete(new BiConsumer<String, Throwable>() {
+
+            @Override
+            public void accept(String value, Throwable e)
+            {
+                timeoutTask.cancel(false);
+                result.complete(value);
+            }
+
+        });
+        return result;
+    }
+
+    /**
+     * key被写入或删除后调用，之后的未命中重新加载
+     */
+    public void forget(String key)
+    {
+        synchronized(lock)
+        {
+            loading.remove(key);
+            pending.remove(key);
+        }
+    }
+
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("ttlMs", ttlMs);
+        stats.put("requestCount", requestCount.sum());
+        stats.put("coalescedCount", coalescedCount.sum());
+        stats.put("loadedCount", loadedCount.sum());
+        stats.put("errorCount", errorCount.sum());
+        stats.put("timeoutCount", timeoutCount.sum());
+        stats.put("writeBackErrorCount", writeBackErrorCount.sum());
+        stats.put("loadLatencyMicros", loadLatency.getSnapshot());
+        stats.put("batchSize", batchSize.getSnapshot());
+        return stats;
+    }
+
+    private CompletableFuture<String> join(String key)
+    {
+        Map<String, CompletableFuture<String>> batch = null;
+        CompletableFuture<String> future = null;
+        synchronized(lock)
+        {
+            future = loading.get(key);
+            if (future == null)
+            {
+                future = pending.get(key);
+            }
+            if (future != null)
+            {
+                coalescedCount.increment();
+                return future;
+            }
+            future = new CompletableFuture<String>();
+            pending.put(key, future);
+            LoaderConfig currentConfig = config;
+            if (pending.size() >= currentConfig.getMaxBatch())
+            {
+                batch = takePending();
+            }
+            else if (flushTask == null)
+            {
+                flushTask = loaderTimer.schedule(new Runnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        flush();
+                    }
+
+                }, currentConfig.getWindowMicros(), TimeUnit.MICROSECONDS);
+            }
+        }
+        if (batch != null)
+        {
+            dispatch(batch);
+        }
+        return future;
+    }
+
+    private void flush()
+    {
+        Map<String, CompletableFuture<String>> batch = null;
+        synchronized(lock)
+        {
+            flushTask = null;
+            if (pending.isEmpty())
+            {
+                return;
+            }
+            batch = takePending();
+        }
+        dispatch(batch);
+    }
+
+    /**
+     * 调用时需要持有lock
+     */
+    private Map<String, CompletableFuture<String>> takePending()
+    {
+        Map<String, CompletableFuture<String>> batch = pending;
+        pending = new HashMap<String, CompletableFuture<String>>();
+        loading.putAll(batch);
+        if (flushTask != null)
+        {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        return batch;
+    }
+
+    private void dispatch(final Map<String, CompletableFuture<String>> batch)
+    {
+        try
+        {
+            loadExecutor.execute(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    loadBatch(batch);
+                }
+
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            logger.error("Loader of " + prefix + " is busy, drop " + batch.size() + " keys");
+            errorCount.add(batch.size());
+            finish(batch);
+        }
+    }
+
+    private void loadBatch(Map<String, CompletableFuture<String>> batch)
+    {
+        long startTime = System.nanoTime();
+        Map<String, String> keyToValueMap = null;
+        try
+        {
+            keyToValueMap = loader.loadAll(Collections.unmodifiableSet(batch.keySet()));
+        }
+        catch (Exception e)
+        {
+            logger.error("Fail to load " + batch.size() + " keys for " + prefix + ": " + e.getMessage());
+            errorCount.add(batch.size());
+        }
+        loadLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+        batchSize.record(batch.size());
+        Map<String, String> loaded = new HashMap<String, String>();
+        for (Map.Entry<String, CompletableFuture<String>> entry : batch.entrySet())
+        {
+            String value = keyToValueMap == null ? null : keyToValueMap.get(entry.getKey());
+            if (value != null)
+            {
+                loaded.put(entry.getKey(), value);
+            }
+            entry.getValue().complete(value);
+        }
+        loadedCount.add(loaded.size());
+        if (!loaded.isEmpty())
+        {
+            try
+            {
+                writer.writeIfAbsent(loaded, ttlMs);
+            }
+            catch (Exception e)
+            {
+                logger.error("Fail to write back " + loaded.size() + " loaded keys for " + prefix + ": " + e.getMessage());
+                writeBackErrorCount.add(loaded.size());
+            }
+        }
+        finish(batch);
+    }
+
+    /**
+     * 结束这一批加载，还没有结束的future以未命中结束
+     */
+    private void finish(Map<String, CompletableFuture<String>> batch)
+    {
+        synchronized(lock)
+        {
+            for (Map.Entry<String, CompletableFuture<String>> entry : batch.entrySet())
+            {
+                loading.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        for (CompletableFuture<String> future : batch.values())
+        {
+            future.complete(null);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package yanbinwa.iCache.loader;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 读穿透的数据源，按key前缀注册到CacheService。
+ *
+ * 未命中的key在一个很短的窗口内合并后调用一次loadAll，实现需要是线程安全的
+ *
+ * @author yanbinwa
+ *
+ */
+public interface CacheLoader
+{
+    /**
+     * 返回的map中没有的key表示数据源中也不存在，不会写回Redis；抛出异常时这一批key都按未命中返回
+     */
+    Map<String, String> loadAll(Set<String> keys) throws Exception;
+}
@@ -0,0 +1,17 @@
+package yanbinwa.iCache.loader;
+
+import java.util.Map;
+
+/**
+ * 把加载到的value写回Redis，只在key不存在时写入，不会覆盖加载期间的并发写
+ *
+ * @author yanbinwa
+ *
+ */
+public interface LoadedValueWriter
+{
+    /**
+     * ttlMs小于等于0表示不设置过期时间
+     */
+    void writeIfAbsent(Map<String, String> keyToValueMap, long ttlMs) throws Exception;
+}
@@ -0,0 +1,68 @@
+package yanbinwa.iCache.loader;
+
+public final class LoaderConfig
+{
+    private final long windowMicros;
+    private final int maxBatch;
+    private final long timeoutMs;
+    private final int threads;
+    
+    public LoaderConfig(long windowMicros, int maxBatch, long timeoutMs, int threads)
+    {
+        this.windowMicros = windowMicros;
+        this.maxBatch = maxBatch;
+        this.timeoutMs = timeoutMs;
+        this.threads = threads;
+    }
+
+    public long getWindowMicros()
+    {
+        return windowMicros;
+    }
+
+    public int getMaxBatch()
+    {
+        return maxBatch;
+    }
+
+    public long getTimeoutMs()
+    {
+        return timeoutMs;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof LoaderConfig))
+        {
+            return false;
+        }
+        LoaderConfig other = (LoaderConfig) obj;
+        return windowMicros == other.windowMicros && maxBatch == other.maxBatch && timeoutMs == other.timeoutMs && threads == other.threads;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = (int) (windowMicros ^ (windowMicros >>> 32));
+        result = 31 * result + maxBatch;
+        result = 31 * result + (int) (timeoutMs ^ (timeoutMs >>> 32));
+        result = 31 * result + threads;
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LoaderConfig [windowMicros=" + windowMicros + ", maxBatch=" + maxBatch + ", timeoutMs=" + timeoutMs + ", threads=" + threads + "]";
+    }
+}
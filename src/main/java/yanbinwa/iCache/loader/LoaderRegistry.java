@@ -0,0 +1,147 @@
+package yanbinwa.iCache.loader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import yanbinwa.iCache.util.DaemonThreadFactory;
+
+/**
+ * 按key前缀注册的BatchingLoader，一个key使用最长匹配的前缀。
+ *
+ * 注册很少发生，loaders整体替换；所有前缀共用一个loader线程池
+ *
+ * @author yanbinwa
+ *
+ */
+public class LoaderRegistry
+{
+    private static final Logger logger = Logger.getLogger(LoaderRegistry.class);
+
+    private static final int LOAD_QUEUE_SIZE = 1000;
+
+    private final LoadedValueWriter writer;
+    private final ThreadPoolExecutor loadExecutor;
+    private volatile LoaderConfig config;
+    // 按前缀长度从长到短排列
+    private volatile List<BatchingLoader> loaders = Collections.emptyList();
+
+    public LoaderRegistry(LoadedValueWriter writer, LoaderConfig config)
+    {
+        this.writer = writer;
+        this.config = config;
+        this.loadExecutor = new ThreadPoolExecutor(config.getThreads(), config.getThreads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(LOAD_QUEUE_SIZE), new DaemonThreadFactory("cache-loader"));
+    }
+
+    public synchronized void register(String prefix, CacheLoader loader, long ttlMs)
+    {
+        List<BatchingLoader> newLoaders = new ArrayList<BatchingLoader>();
+        for (BatchingLoader batchingLoader : loaders)
+        {
+            if (!batchingLoader.getPrefix().equals(prefix))
+            {
+                newLoaders.add(batchingLoader);
+            }
+        }
+        newLoaders.add(new BatchingLoader(prefix, loader, ttlMs, writer, loadExecutor, config));
+        Collections.sort(newLoaders, new Comparator<BatchingLoader>() {
+
+            @Override
+            public int compare(BatchingLoader a, BatchingLoader b)
+            {
+                return Integer.compare(b.getPrefix().length(), a.getPrefix().length());
+            }
+
+        });
+        loaders = newLoaders;
+        logger.info("Register cache loader for prefix " + prefix + ", ttlMs " + ttlMs);
+    }
+
+    public synchronized void unregister(String prefix)
+    {
+        List<BatchingLoader> newLoaders = new ArrayList<BatchingLoader>(loaders);
+        for (int i = 0; i < newLoaders.size(); i ++)
+        {
+            if (newLoaders.get(i).getPrefix().equals(prefix))
+            {
+                newLoaders.remove(i);
+                loaders = newLoaders;
+                logger.info("Unregister cache loader for prefix " + prefix);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 没有匹配的前缀时返回null
+     */
+    public BatchingLoader find(String key)
+    {
+        List<BatchingLoader> currentLoaders = loaders;
+        for (int i = 0; i < currentLoaders.size(); i ++)
+        {
+            BatchingLoader loader = currentLoaders.get(i);
+            if (key.startsWith(loader.getPrefix()))
+            {
+                return loader;
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty()
+    {
+        return loaders.isEmpty();
+    }
+
+    public void forget(String key)
+    {
+        BatchingLoader loader = find(key);
+        if (loader != null)
+        {
+            loader.forget(key);
+        }
+    }
+
+    public LoaderConfig getConfig()
+    {
+        return config;
+    }
+
+    public synchronized void setConfig(LoaderConfig config)
+    {
+        if (config.getThreads() > loadExecutor.getMaximumPoolSize())
+        {
+            loadExecutor.setMaximumPoolSize(config.getThreads());
+            loadExecutor.setCorePoolSize(config.getThreads());
+        }
+        else
+        {
+            loadExecutor.setCorePoolSize(config.getThreads());
+            loadExecutor.setMaximumPoolSize(config.getThreads());
+        }
+        this.config = config;
+        for (BatchingLoader loader : loaders)
+        {
+            loader.setConfig(config);
+        }
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        for (BatchingLoader loader : loaders)
+        {
+            stats.put(loader.getPrefix(), loader.getStats());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,92 @@
+package yanbinwa.iCache.local;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import yanbinwa.iCache.partition.KeyHash;
+
+/**
+ * 线程安全的Bloom filter，只支持添加。
+ *
+ * 位数组大小按预期的key个数和误判率计算，不超过maxBytes；k个下标由一个64位hash拆成两个32位hash组合得到
+ *
+ * @author yanbinwa
+ *
+ */
+public class BloomFilter
+{
+    private static final int MAX_HASH_NUM = 16;
+
+    private final AtomicLongArray words;
+    private final long bitNum;
+    private final int hashNum;
+    private final LongAdder insertCount = new LongAdder();
+
+    public BloomFilter(long expectedKeys, double falsePositiveRate, long maxBytes)
+    {
+        long optimalBits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        long bits = Math.max(64, Math.min(optimalBits, maxBytes * 8));
+        int wordNum = (int) Math.min((bits + 63) / 64, Integer.MAX_VALUE);
+        this.words = new AtomicLongArray(wordNum);
+        this.bitNum = (long) wordNum * 64;
+        this.hashNum = (int) Math.max(1, Math.min(MAX_HASH_NUM, Math.round((double) bitNum / Math.max(expectedKeys, 1) * Math.log(2))));
+    }
+
+    public void put(String key)
+    {
+        long hash = KeyHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashNum; i ++)
+        {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitNum;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word = words.get(index);
+            while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask))
+            {
+                word = words.get(index);
+            }
+        }
+        insertCount.increment();
+    }
+
+    public boolean mightContain(String key)
+    {
+        long hash = KeyHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashNum; i ++)
+        {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitNum;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按已经添加的次数估算当前的误判率，重复添加同一个key会使估算偏高
+     */
+    public double getEstimatedFalsePositiveRate()
+    {
+        return Math.pow(1 - Math.exp(-hashNum * (double) insertCount.sum() / bitNum), hashNum);
+    }
+
+    public long getInsertCount()
+    {
+        return insertCount.sum();
+    }
+
+    public long getBitNum()
+    {
+        return bitNum;
+    }
+
+    public int getHashNum()
+    {
+        return hashNum;
+    }
+}
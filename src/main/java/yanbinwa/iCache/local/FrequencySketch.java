@@ -0,0 +1,103 @@
+package yanbinwa.iCache.local;
+
+import java.util.Arrays;
+
+/**
+ * 4行的Count-Min Sketch，用来估计key的访问频率，计数器饱和于15，
+ * 累计的增加次数达到sampleSize后所有计数器减半，使得频率能够随时间衰减。
+ * 
+ * 非线程安全，调用方需要自己加锁
+ * 
+ * @author yanbinwa
+ *
+ */
+public class FrequencySketch
+{
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb0f1d3c5, 0x6a09e667, 0xbb67ae85};
+    
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+    
+    public FrequencySketch(int expectedEntries)
+    {
+        int width = tableSizeFor(Math.max(expectedEntries, 16));
+        table = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = width * 10;
+    }
+    
+    public int frequency(Object key)
+    {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i ++)
+        {
+            frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+    
+    public void increment(Object key)
+    {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i ++)
+        {
+            int index = indexOf(hash, i);
+            if (table[i][index] < MAX_COUNT)
+            {
+                table[i][index] ++;
+                added = true;
+            }
+        }
+        if (added && ++ additions >= sampleSize)
+        {
+            reset();
+        }
+    }
+    
+    public void clear()
+    {
+        for (int i = 0; i < DEPTH; i ++)
+        {
+            Arrays.fill(table[i], (byte)0);
+        }
+        additions = 0;
+    }
+    
+    private void reset()
+    {
+        for (int i = 0; i < DEPTH; i ++)
+        {
+            byte[] row = table[i];
+            for (int j = 0; j < row.length; j ++)
+            {
+                row[j] = (byte)(row[j] >>> 1);
+            }
+        }
+        additions = additions >>> 1;
+    }
+    
+    private int indexOf(int hash, int row)
+    {
+        int h = (hash + SEEDS[row]) * 0x9E3779B9;
+        h ^= h >>> 17;
+        return h & mask;
+    }
+    
+    private static int spread(int hash)
+    {
+        int h = hash * 0x85ebca6b;
+        return h ^ (h >>> 16);
+    }
+    
+    private static int tableSizeFor(int size)
+    {
+        int n = Integer.highestOneBit(Math.min(size, 1 << 30) - 1) << 1;
+        return n <= 0 ? 1 : n;
+    }
+}
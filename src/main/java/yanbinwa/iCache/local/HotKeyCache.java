@@ -0,0 +1,145 @@
+package yanbinwa.iCache.local;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * 热点key在进程内的短时副本，只接纳HotKeyDetector判定为热点的key，条目数不超过maxEntries。
+ *
+ * 与NearCache一样，读Redis之前调用beginLoad，期间发生过invalidate则丢弃回填；
+ * 另外副本在ttlMs后过期，即使错过了失效广播，旧值也最多保留ttlMs
+ *
+ * @author yanbinwa
+ *
+ */
+public class HotKeyCache
+{
+    private static final int STRIPE_NUM = 64;
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLongArray invalidationSeqs = new AtomicLongArray(STRIPE_NUM);
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder promotionCount = new LongAdder();
+
+    public HotKeyCache(int maxEntries, long ttlMs)
+    {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+    }
+
+    public String get(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expireAt)
+        {
+            entries.remove(key, entry);
+            return null;
+        }
+        hitCount.increment();
+        return entry.value;
+    }
+
+    public long beginLoad(String key)
+    {
+        return invalidationSeqs.get(stripeOf(key));
+    }
+
+    public boolean putIfNotInvalidated(String key, String value, long loadSeq)
+    {
+        if (value == null || (entries.size() >= maxEntries && !entries.containsKey(key)))
+        {
+            return false;
+        }
+        int stripe = stripeOf(key);
+        if (invalidationSeqs.get(stripe) != loadSeq)
+        {
+            return false;
+        }
+        Entry entry = new Entry(value, System.currentTimeMillis() + ttlMs);
+        entries.put(key, entry);
+        // put之后再检查一次，避免覆盖掉并发的invalidate
+        if (invalidationSeqs.get(stripe) != loadSeq)
+        {
+            entries.remove(key, entry);
+            return false;
+        }
+        promotionCount.increment();
+        return true;
+    }
+
+    public void invalidate(String key)
+    {
+        invalidationSeqs.incrementAndGet(stripeOf(key));
+        entries.remove(key);
+    }
+
+    /**
+     * 热点集合变化后移除已经不再是热点的key
+     */
+    public void retain(Set<String> hotKeys)
+    {
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext())
+        {
+            if (!hotKeys.contains(iterator.next()))
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < STRIPE_NUM; i ++)
+        {
+            invalidationSeqs.incrementAndGet(i);
+        }
+        entries.clear();
+    }
+
+    public boolean isSameConfig(int maxEntries, long ttlMs)
+    {
+        return this.maxEntries == maxEntries && this.ttlMs == ttlMs;
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("size", entries.size());
+        stats.put("ttlMs", ttlMs);
+        stats.put("hitCount", hitCount.sum());
+        stats.put("promotionCount", promotionCount.sum());
+        return stats;
+    }
+
+    private static int stripeOf(String key)
+    {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return h & (STRIPE_NUM - 1);
+    }
+
+    static final class Entry
+    {
+        final String value;
+        final long expireAt;
+
+        Entry(String value, long expireAt)
+        {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
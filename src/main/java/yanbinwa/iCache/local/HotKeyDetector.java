@@ -0,0 +1,243 @@
+package yanbinwa.iCache.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import yanbinwa.iCache.util.DaemonThreadFactory;
+
+/**
+ * 按固定时间窗口找出访问次数最多的key。
+ *
+ * 每次访问在一个4行的Count-Min Sketch上做无锁的计数，估计值超过当前候选集合中的最小值时才尝试进入候选集合，
+ * 候选集合最多topK个key。候选集合只记录key，计数从sketch中读取，已经是候选的key的访问只做一次无锁的查找；
+ * 每次尝试进入时用实时的计数重新计算进入需要超过的值。每个窗口结束时，估计值达到hotThreshold的候选key成为下一个窗口的热点key，
+ * 然后清空计数。占用的内存只和sketchWidth与topK有关，和key的个数无关
+ *
+ * @author yanbinwa
+ *
+ */
+public class HotKeyDetector
+{
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x97cb3127, 0xb0f1d3c5, 0x6a09e667, 0xbb67ae85};
+
+    private static final ScheduledExecutorService windowTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-hotkey"));
+
+    private final int width;
+    private final int mask;
+    private final int topK;
+    private final int hotThreshold;
+    private final long windowMs;
+    private final AtomicIntegerArray counters;
+
+    private final Set<String> candidates = ConcurrentHashMap.<String>newKeySet();
+    // 候选集合已满时进入集合需要达到的估计值，候选key的计数只增不减，这个值只会偏低
+    private volatile int admitCount = 1;
+
+    private volatile Map<String, Integer> hotKeys = Collections.emptyMap();
+    private volatile HotKeyListener listener = null;
+    private ScheduledFuture<?> windowTask = null;
+
+    public HotKeyDetector(int sketchWidth, int topK, int hotThreshold, long windowMs)
+    {
+        if (sketchWidth <= 0 || topK <= 0 || hotThreshold <= 0 || windowMs <= 0)
+        {
+            throw new IllegalArgumentException("sketchWidth, topK, hotThreshold and windowMs should be positive");
+        }
+        this.width = Integer.highestOneBit(Math.min(sketchWidth, 1 << 24) * 2 - 1);
+        this.mask = width - 1;
+        this.topK = topK;
+        this.hotThreshold = hotThreshold;
+        this.windowMs = windowMs;
+        this.counters = new AtomicIntegerArray(DEPTH * width);
+    }
+
+    public synchronized void start(HotKeyListener listener)
+    {
+        this.listener = listener;
+        if (windowTask == null)
+        {
+            windowTask = windowTimer.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    rotate();
+                }
+
+            }, windowMs, windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop()
+    {
+        if (windowTask != null)
+        {
+            windowTask.cancel(false);
+            windowTask = null;
+        }
+        listener = null;
+        hotKeys = Collections.emptyMap();
+    }
+
+    public void record(String key)
+    {
+        int hash = spread(key.hashCode());
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i ++)
+        {
+            estimate = Math.min(estimate, counters.incrementAndGet(i * width + indexOf(hash, i)));
+        }
+        if (estimate < admitCount || candidates.contains(key))
+        {
+            return;
+        }
+        admit(key, estimate);
+    }
+
+    public boolean isHot(String key)
+    {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 上一个窗口的热点key和估计的访问次数，按次数从大到小排列
+     */
+    public List<Map.Entry<String, Integer>> getHotKeys()
+    {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(hotKeys.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b)
+            {
+                return Integer.compare(b.getValue(), a.getValue());
+            }
+
+        });
+        return entries;
+    }
+
+    public int getHotThreshold()
+    {
+        return hotThreshold;
+    }
+
+    public long getWindowMs()
+    {
+        return windowMs;
+    }
+
+    public boolean isSameConfig(int sketchWidth, int topK, int hotThreshold, long windowMs)
+    {
+        return this.width == Integer.highestOneBit(Math.min(sketchWidth, 1 << 24) * 2 - 1) && this.topK == topK
+                && this.hotThreshold == hotThreshold && this.windowMs == windowMs;
+    }
+
+    private synchronized void admit(String key, int estimate)
+    {
+        if (estimate < admitCount || candidates.contains(key))
+        {
+            return;
+        }
+        if (candidates.size() < topK)
+        {
+            candidates.add(key);
+            if (candidates.size() == topK)
+            {
+                admitCount = estimate(minCandidate()) + 1;
+            }
+            return;
+        }
+        String victim = minCandidate();
+        int victimCount = estimate(victim);
+        if (estimate > victimCount)
+        {
+            candidates.remove(victim);
+            candidates.add(key);
+            victim = minCandidate();
+            victimCount = estimate(victim);
+        }
+        // 拒绝时也用实时的计数更新，之后计数更低的key不再进入admit
+        admitCount = victimCount + 1;
+    }
+
+    /**
+     * 持有锁时调用，返回计数最小的候选key
+     */
+    private String minCandidate()
+    {
+        String min = null;
+        int minCount = Integer.MAX_VALUE;
+        for (String candidate : candidates)
+        {
+            int count = estimate(candidate);
+            if (min == null || count < minCount)
+            {
+                min = candidate;
+                minCount = count;
+            }
+        }
+        return min;
+    }
+
+    private int estimate(String key)
+    {
+        int hash = spread(key.hashCode());
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i ++)
+        {
+            estimate = Math.min(estimate, counters.get(i * width + indexOf(hash, i)));
+        }
+        return estimate;
+    }
+
+    synchronized void rotate()
+    {
+        Map<String, Integer> nextHotKeys = new HashMap<String, Integer>();
+        for (String candidate : candidates)
+        {
+            int count = estimate(candidate);
+            if (count >= hotThreshold)
+            {
+                nextHotKeys.put(candidate, count);
+            }
+        }
+        candidates.clear();
+        admitCount = 1;
+        for (int i = 0; i < counters.length(); i ++)
+        {
+            counters.set(i, 0);
+        }
+        hotKeys = Collections.unmodifiableMap(nextHotKeys);
+        HotKeyListener currentListener = listener;
+        if (currentListener != null)
+        {
+            currentListener.handleHotKeysChange(hotKeys.keySet());
+        }
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        int h = (hash + SEEDS[row]) * 0x9E3779B9;
+        h ^= h >>> 17;
+        return h & mask;
+    }
+
+    private static int spread(int hash)
+    {
+        int h = hash * 0x85ebca6b;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,8 @@
+package yanbinwa.iCache.local;
+
+import java.util.Set;
+
+public interface HotKeyListener
+{
+    void handleHotKeysChange(Set<String> hotKeys);
+}
@@ -0,0 +1,35 @@
+package yanbinwa.iCache.local;
+
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * 进程内缓存层的接口，NearCache保存在堆上，OffHeapCache保存在堆外内存中。
+ *
+ * 读Redis之前调用beginLoad拿到版本号，回填时若期间发生过invalidate则丢弃
+ *
+ * @author yanbinwa
+ *
+ */
+public interface LocalCache
+{
+    String get(String key);
+
+    long beginLoad(String key);
+
+    boolean putIfNotInvalidated(String key, String value, long loadSeq);
+
+    void invalidate(String key);
+
+    void clear();
+
+    /**
+     * 返回最多limit个仍然有效的条目，按热度从高到低排列，用于写快照
+     */
+    Map<String, String> getHottest(int limit);
+
+    boolean isSameConfig(int maxEntries, long maxBytes, long expireAfterWriteMs);
+
+    JSONObject getStats();
+}
@@ -0,0 +1,354 @@
+package yanbinwa.iCache.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * 进程内的近端缓存，同时受条目数和字节数限制。
+ *
+ * 每个segment内部是一个按访问顺序排列的LinkedHashMap，淘汰时取最久未访问的条目作为victim，
+ * 只有新key的估计频率高于victim时才会被接纳(TinyLFU)，这样一次性的扫描不会把热点数据挤出去。
+ *
+ * 写路径在更新Redis后调用invalidate，读路径在读Redis之前调用beginLoad拿到版本号，
+ * 若期间发生过invalidate，则回填会被丢弃，避免把旧值写回缓存
+ *
+ * @author yanbinwa
+ *
+ */
+public class NearCache implements LocalCache
+{
+    private static final int SEGMENT_NUM_MAX = 16;
+    private static final int ENTRIES_PER_SEGMENT_MIN = 64;
+    // String对象头、char[]以及LinkedHashMap.Entry的大致开销
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long expireAfterWriteMs;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder rejectionCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+
+    public NearCache(int maxEntries, long maxBytes, long expireAfterWriteMs)
+    {
+        if (maxEntries <= 0 || maxBytes <= 0)
+        {
+            throw new IllegalArgumentException("maxEntries and maxBytes should be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.expireAfterWriteMs = expireAfterWriteMs;
+
+        int segmentNum = 1;
+        while (segmentNum < SEGMENT_NUM_MAX && maxEntries / (segmentNum * 2) >= ENTRIES_PER_SEGMENT_MIN)
+        {
+            segmentNum = segmentNum * 2;
+        }
+        segments = new Segment[segmentNum];
+        segmentMask = segmentNum - 1;
+        int segmentMaxEntries = (maxEntries + segmentNum - 1) / segmentNum;
+        long segmentMaxBytes = (maxBytes + segmentNum - 1) / segmentNum;
+        for (int i = 0; i < segmentNum; i ++)
+        {
+            segments[i] = new Segment(segmentMaxEntries, segmentMaxBytes);
+        }
+    }
+
+    @Override
+    public String get(String key)
+    {
+        Segment segment = segmentFor(key);
+        String value = null;
+        synchronized(segment)
+        {
+            segment.sketch.increment(key);
+            Entry entry = segment.map.get(key);
+            if (entry != null)
+            {
+                if (isExpired(entry))
+                {
+                    segment.remove(key);
+                }
+                else
+                {
+                    value = entry.value;
+                }
+            }
+        }
+        if (value == null)
+        {
+            missCount.increment();
+        }
+        else
+        {
+            hitCount.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 在读取Redis之前调用，返回值传给putIfNotInvalidated
+     */
+    @Override
+    public long beginLoad(String key)
+    {
+        return segmentFor(key).invalidationSeq;
+    }
+
+    @Override
+    public boolean putIfNotInvalidated(String key, String value, long loadSeq)
+    {
+        if (key == null || value == null)
+        {
+            return false;
+        }
+        Segment segment = segmentFor(key);
+        long weight = weightOf(key, value);
+        synchronized(segment)
+        {
+            if (segment.invalidationSeq != loadSeq)
+            {
+                return false;
+            }
+            if (weight > segment.maxBytes)
+            {
+                rejectionCount.increment();
+                return false;
+            }
+            boolean isReplace = segment.remove(key) != null;
+            Iterator<Map.Entry<String, Entry>> iterator = segment.map.entrySet().iterator();
+            while (iterator.hasNext() && (segment.map.size() >= segment.maxEntries || segment.bytes + weight > segment.maxBytes))
+            {
+                Map.Entry<String, Entry> victim = iterator.next();
+                if (!isReplace && !isExpired(victim.getValue())
+                        && segment.sketch.frequency(key) <= segment.sketch.frequency(victim.getKey()))
+                {
+                    rejectionCount.increment();
+                    return false;
+                }
+                iterator.remove();
+                segment.bytes -= victim.getValue().weight;
+                evictionCount.increment();
+            }
+            segment.map.put(key, new Entry(value, weight, System.currentTimeMillis()));
+            segment.bytes += weight;
+            return true;
+        }
+    }
+
+    @Override
+    public void invalidate(String key)
+    {
+        if (key == null)
+        {
+            return;
+        }
+        Segment segment = segmentFor(key);
+        synchronized(segment)
+        {
+            segment.invalidationSeq ++;
+            segment.remove(key);
+        }
+        invalidationCount.increment();
+    }
+
+    @Override
+    public void clear()
+    {
+        for (Segment segment : segments)
+        {
+            synchronized(segment)
+            {
+                segment.invalidationSeq ++;
+                segment.map.clear();
+                segment.bytes = 0;
+                segment.sketch.clear();
+            }
+        }
+    }
+
+    /**
+     * 按sketch中的估计频率从高到低排序，频率相同时最近访问的优先
+     */
+    @Override
+    public Map<String, String> getHottest(int limit)
+    {
+        Map<String, String> hottest = new LinkedHashMap<String, String>();
+        if (limit <= 0)
+        {
+            return hottest;
+        }
+        Comparator<HotEntry> order = new Comparator<HotEntry>() {
+
+            @Override
+            public int compare(HotEntry a, HotEntry b)
+            {
+                if (a.frequency != b.frequency)
+                {
+                    return Integer.compare(a.frequency, b.frequency);
+                }
+                return Long.compare(a.rank, b.rank);
+            }
+
+        };
+        PriorityQueue<HotEntry> queue = new PriorityQueue<HotEntry>(Math.min(limit, maxEntries) + 1, order);
+        for (Segment segment : segments)
+        {
+            synchronized(segment)
+            {
+                long rank = 0;
+                for (Map.Entry<String, Entry> entry : segment.map.entrySet())
+                {
+                    rank ++;
+                    if (isExpired(entry.getValue()))
+                    {
+                        continue;
+                    }
+                    HotEntry candidate = new HotEntry(entry.getKey(), entry.getValue().value, segment.sketch.frequency(entry.getKey()), rank);
+                    if (queue.size() < limit)
+                    {
+                        queue.add(candidate);
+                    }
+                    else if (order.compare(candidate, queue.peek()) > 0)
+                    {
+                        queue.poll();
+                        queue.add(candidate);
+                    }
+                }
+            }
+        }
+        List<HotEntry> sorted = new ArrayList<HotEntry>(queue);
+        Collections.sort(sorted, Collections.reverseOrder(order));
+        for (HotEntry entry : sorted)
+        {
+            hottest.put(entry.key, entry.value);
+        }
+        return hottest;
+    }
+
+    @Override
+    public boolean isSameConfig(int maxEntries, long maxBytes, long expireAfterWriteMs)
+    {
+        return this.maxEntries == maxEntries && this.maxBytes == maxBytes && this.expireAfterWriteMs == expireAfterWriteMs;
+    }
+
+    @Override
+    public JSONObject getStats()
+    {
+        long size = 0;
+        long bytes = 0;
+        for (Segment segment : segments)
+        {
+            synchronized(segment)
+            {
+                size += segment.map.size();
+                bytes += segment.bytes;
+            }
+        }
+        long hits = hitCount.sum();
+        long misses = missCount.sum();
+        JSONObject stats = new JSONObject();
+        stats.put("storage", "heap");
+        stats.put("maxEntries", maxEntries);
+        stats.put("maxBytes", maxBytes);
+        stats.put("expireAfterWriteMs", expireAfterWriteMs);
+        stats.put("size", size);
+        stats.put("bytes", bytes);
+        stats.put("hitCount", hits);
+        stats.put("missCount", misses);
+        stats.put("hitRate", hits + misses == 0 ? 0.0 : (double)hits / (hits + misses));
+        stats.put("evictionCount", evictionCount.sum());
+        stats.put("rejectionCount", rejectionCount.sum());
+        stats.put("invalidationCount", invalidationCount.sum());
+        return stats;
+    }
+
+    private boolean isExpired(Entry entry)
+    {
+        return expireAfterWriteMs > 0 && System.currentTimeMillis() - entry.writeTime >= expireAfterWriteMs;
+    }
+
+    private Segment segmentFor(String key)
+    {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & segmentMask];
+    }
+
+    private static long weightOf(String key, String value)
+    {
+        return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + value.length());
+    }
+
+    static final class Entry
+    {
+        final String value;
+        final long weight;
+        final long writeTime;
+
+        Entry(String value, long weight, long writeTime)
+        {
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = writeTime;
+        }
+    }
+
+    static final class HotEntry
+    {
+        final String key;
+        final String value;
+        final int frequency;
+        // segment内按访问顺序的位置，越大越近
+        final long rank;
+
+        HotEntry(String key, String value, int frequency, long rank)
+        {
+            this.key = key;
+            this.value = value;
+            this.frequency = frequency;
+            this.rank = rank;
+        }
+    }
+
+    static final class Segment
+    {
+        final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        final FrequencySketch sketch;
+        final int maxEntries;
+        final long maxBytes;
+        long bytes = 0;
+        volatile long invalidationSeq = 0;
+
+        Segment(int maxEntries, long maxBytes)
+        {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.sketch = new FrequencySketch(maxEntries);
+        }
+
+        Entry remove(String key)
+        {
+            Entry entry = map.remove(key);
+            if (entry != null)
+            {
+                bytes -= entry.weight;
+            }
+            return entry;
+        }
+    }
+}
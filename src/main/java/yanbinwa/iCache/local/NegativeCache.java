@@ -0,0 +1,136 @@
+package yanbinwa.iCache.local;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * 记录最近在Redis中不存在的key，条目在ttlMs后过期，条目数不超过maxEntries。
+ *
+ * 与HotKeyCache一样，读Redis之前调用beginLookup，期间发生过invalidate(写入)则不记录，避免把刚写入的key当作不存在
+ *
+ * @author yanbinwa
+ *
+ */
+public class NegativeCache
+{
+    private static final int STRIPE_NUM = 64;
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final ConcurrentHashMap<String, Long> keyToExpireAt = new ConcurrentHashMap<String, Long>();
+    private final AtomicLongArray invalidationSeqs = new AtomicLongArray(STRIPE_NUM);
+    // 已满时最多每ttlMs清理一次过期的条目
+    private final AtomicLong lastSweepAt = new AtomicLong(0);
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public NegativeCache(int maxEntries, long ttlMs)
+    {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+    }
+
+    public boolean isAbsent(String key)
+    {
+        Long expireAt = keyToExpireAt.get(key);
+        if (expireAt == null)
+        {
+            return false;
+        }
+        if (System.currentTimeMillis() >= expireAt)
+        {
+            keyToExpireAt.remove(key, expireAt);
+            return false;
+        }
+        hitCount.increment();
+        return true;
+    }
+
+    public long beginLookup(String key)
+    {
+        return invalidationSeqs.get(stripeOf(key));
+    }
+
+    public boolean putIfNotInvalidated(String key, long lookupSeq)
+    {
+        long now = System.currentTimeMillis();
+        if (keyToExpireAt.size() >= maxEntries && !keyToExpireAt.containsKey(key) && !sweep(now))
+        {
+            rejectedCount.increment();
+            return false;
+        }
+        int stripe = stripeOf(key);
+        if (invalidationSeqs.get(stripe) != lookupSeq)
+        {
+            return false;
+        }
+        Long expireAt = now + ttlMs;
+        keyToExpireAt.put(key, expireAt);
+        // put之后再检查一次，避免覆盖掉并发的invalidate
+        if (invalidationSeqs.get(stripe) != lookupSeq)
+        {
+            keyToExpireAt.remove(key, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    public void invalidate(String key)
+    {
+        invalidationSeqs.incrementAndGet(stripeOf(key));
+        keyToExpireAt.remove(key);
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < STRIPE_NUM; i ++)
+        {
+            invalidationSeqs.incrementAndGet(i);
+        }
+        keyToExpireAt.clear();
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("size", keyToExpireAt.size());
+        stats.put("ttlMs", ttlMs);
+        stats.put("hitCount", hitCount.sum());
+        stats.put("rejectedCount", rejectedCount.sum());
+        return stats;
+    }
+
+    /**
+     * 返回true表示清理后有空位
+     */
+    private boolean sweep(long now)
+    {
+        long last = lastSweepAt.get();
+        if (now - last < ttlMs || !lastSweepAt.compareAndSet(last, now))
+        {
+            return false;
+        }
+        Iterator<Long> iterator = keyToExpireAt.values().iterator();
+        while (iterator.hasNext())
+        {
+            if (now >= iterator.next())
+            {
+                iterator.remove();
+            }
+        }
+        return keyToExpireAt.size() < maxEntries;
+    }
+
+    private static int stripeOf(String key)
+    {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return h & (STRIPE_NUM - 1);
+    }
+}
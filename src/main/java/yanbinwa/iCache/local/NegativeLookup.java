@@ -0,0 +1,305 @@
+package yanbinwa.iCache.local;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisException;
+import yanbinwa.iCache.redis.RedisShardClient;
+import yanbinwa.iCache.util.DaemonThreadFactory;
+import yanbinwa.iCache.util.Deadline;
+
+/**
+ * 判断key是否确定不在Redis中，命中时读请求不需要访问Redis。
+ *
+ * 由两部分组成：NegativeCache记录最近读到不存在的key，ttlMs后过期；开启bloom时每个primary分片有一个Bloom filter，
+ * 通过SCAN全量构建，之后每次写入把key加入filter，filter认为不存在的key一定不在该分片上。
+ *
+ * filter只会增加，删除和过期的key通过每rebuildIntervalMs一次的重建清理掉。重建期间的写同时加入新旧两个filter，
+ * 扫描开始前先等待write-behind缓冲区写入Redis，完成后整体替换。分片第一次扫描完成前filter不参与判断。
+ *
+ * 其他进程直接写入Redis的key只能通过失效广播或者下一次重建加入filter
+ *
+ * @author yanbinwa
+ *
+ */
+public class NegativeLookup
+{
+    private static final Logger logger = Logger.getLogger(NegativeLookup.class);
+
+    private static final long SCAN_TIMEOUT_MS = 5000;
+    private static final long FLUSH_TIMEOUT_MS = 1000;
+
+    private static final ScheduledExecutorService scanTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-negative-scan"));
+
+    private final NegativeLookupConfig config;
+    private final NegativeCache negativeCache;
+    private final Map<RedisShardClient, ShardFilter> shardToFilterMap = new ConcurrentHashMap<RedisShardClient, ShardFilter>();
+
+    private final LongAdder bloomAbsentCount = new LongAdder();
+    private final LongAdder scanErrorCount = new LongAdder();
+
+    private ScheduledFuture<?> rebuildTask = null;
+    private volatile boolean isRunning = false;
+
+    public NegativeLookup(NegativeLookupConfig config)
+    {
+        this.config = config;
+        this.negativeCache = new NegativeCache(config.getMaxEntries(), config.getTtlMs());
+    }
+
+    public synchronized void start()
+    {
+        isRunning = true;
+        if (config.isBloomEnabled() && rebuildTask == null)
+        {
+            rebuildTask = scanTimer.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    for (ShardFilter filter : shardToFilterMap.values())
+                    {
+                        rebuild(filter);
+                    }
+                }
+
+            }, config.getRebuildIntervalMs(), config.getRebuildIntervalMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop()
+    {
+        isRunning = false;
+        if (rebuildTask != null)
+        {
+            rebuildTask.cancel(false);
+            rebuildTask = null;
+        }
+        shardToFilterMap.clear();
+        negativeCache.clear();
+    }
+
+    public NegativeLookupConfig getConfig()
+    {
+        return config;
+    }
+
+    /**
+     * primary为key所在分片的primary，返回true表示key确定不存在
+     */
+    public boolean isKnownAbsent(RedisShardClient primary, String key)
+    {
+        if (negativeCache.isAbsent(key))
+        {
+            return true;
+        }
+        ShardFilter filter = primary == null ? null : shardToFilterMap.get(primary);
+        BloomFilter current = filter == null ? null : filter.current;
+        if (current != null && !current.mightContain(key))
+        {
+            bloomAbsentCount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    public long beginLookup(String key)
+    {
+        return negativeCache.beginLookup(key);
+    }
+
+    public void recordMiss(String key, long lookupSeq)
+    {
+        negativeCache.putIfNotInvalidated(key, lookupSeq);
+    }
+
+    /**
+     * key写入之后调用，删除也按写入处理，只会让filter多一个key
+     */
+    public void recordWrite(RedisShardClient primary, String key)
+    {
+        negativeCache.invalidate(key);
+        ShardFilter filter = primary == null ? null : shardToFilterMap.get(primary);
+        if (filter != null)
+        {
+            filter.put(key);
+        }
+    }
+
+    /**
+     * 可能错过了部分写入，清空NegativeCache，所有filter重新扫描后才参与判断
+     */
+    public void invalidateAll()
+    {
+        negativeCache.clear();
+        for (ShardFilter filter : shardToFilterMap.values())
+        {
+            filter.generation ++;
+            filter.current = null;
+            scheduleRebuild(filter);
+        }
+    }
+
+    /**
+     * 路由表切换后调用，新的primary立即开始第一次扫描，被移除的分片丢弃对应的filter
+     */
+    public void updateShards(Collection<RedisShardClient> primaries)
+    {
+        if (!config.isBloomEnabled())
+        {
+            return;
+        }
+        Set<RedisShardClient> primarySet = Collections.newSetFromMap(new IdentityHashMap<RedisShardClient, Boolean>());
+        primarySet.addAll(primaries);
+        shardToFilterMap.keySet().retainAll(primarySet);
+        for (RedisShardClient primary : primarySet)
+        {
+            if (!shardToFilterMap.containsKey(primary))
+            {
+                ShardFilter filter = new ShardFilter(primary);
+                shardToFilterMap.put(primary, filter);
+                scheduleRebuild(filter);
+            }
+        }
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("cache", negativeCache.getStats());
+        stats.put("bloomEnable", config.isBloomEnabled());
+        stats.put("bloomAbsentCount", bloomAbsentCount.sum());
+        stats.put("scanErrorCount", scanErrorCount.sum());
+        JSONArray shards = new JSONArray();
+        for (ShardFilter filter : shardToFilterMap.values())
+        {
+            JSONObject shardStats = new JSONObject();
+            shardStats.put("shard", filter.shard.toString());
+            BloomFilter current = filter.current;
+            shardStats.put("ready", current != null);
+            if (current != null)
+            {
+                shardStats.put("insertCount", current.getInsertCount());
+                shardStats.put("bitNum", current.getBitNum());
+                shardStats.put("hashNum", current.getHashNum());
+                shardStats.put("estimatedFalsePositiveRate", current.getEstimatedFalsePositiveRate());
+            }
+            shardStats.put("lastRebuildAt", filter.lastRebuildAt);
+            shardStats.put("lastRebuildMs", filter.lastRebuildMs);
+            shards.put(shardStats);
+        }
+        stats.put("shards", shards);
+        return stats;
+    }
+
+    private void scheduleRebuild(final ShardFilter filter)
+    {
+        scanTimer.execute(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                rebuild(filter);
+            }
+
+        });
+    }
+
+    private void rebuild(ShardFilter filter)
+    {
+        if (!isRunning || shardToFilterMap.get(filter.shard) != filter)
+        {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        int generation = filter.generation;
+        BloomFilter building = new BloomFilter(config.getExpectedKeys(), config.getFalsePositiveRate(), config.getMaxBytes());
+        filter.building = building;
+        try
+        {
+            // 之前写入但还在缓冲区中的key在扫描开始前写入Redis，扫描期间的写已经同时进入building
+            filter.shard.flushWriteBehind(FLUSH_TIMEOUT_MS);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do
+            {
+                if (!isRunning || shardToFilterMap.get(filter.shard) != filter)
+                {
+                    return;
+                }
+                ScanResult<String> result = filter.shard.scan(cursor, config.getScanCount(), Deadline.after(SCAN_TIMEOUT_MS));
+                for (String key : result.getResult())
+                {
+                    building.put(key);
+                }
+                cursor = result.getStringCursor();
+            }
+            while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+            // 扫描期间调用过invalidateAll时丢弃结果，等待之后的重建
+            if (generation != filter.generation)
+            {
+                return;
+            }
+            filter.current = building;
+            filter.lastRebuildAt = System.currentTimeMillis();
+            filter.lastRebuildMs = filter.lastRebuildAt - startTime;
+            logger.info("Rebuild bloom filter of " + filter.shard + " with " + building.getInsertCount() + " keys in " + filter.lastRebuildMs + "ms");
+        }
+        catch (JedisException e)
+        {
+            scanErrorCount.increment();
+            logger.error("Fail to scan keys from " + filter.shard + ": " + e.getMessage());
+        }
+        finally
+        {
+            filter.building = null;
+        }
+    }
+
+    static final class ShardFilter
+    {
+        final RedisShardClient shard;
+        // 第一次扫描完成前为null
+        volatile BloomFilter current = null;
+        // 重建期间的新filter
+        volatile BloomFilter building = null;
+        // invalidateAll时加一
+        volatile int generation = 0;
+        volatile long lastRebuildAt = 0;
+        volatile long lastRebuildMs = 0;
+
+        ShardFilter(RedisShardClient shard)
+        {
+            this.shard = shard;
+        }
+
+        void put(String key)
+        {
+            // 先写building，替换时不会丢失
+            BloomFilter next = building;
+            if (next != null)
+            {
+                next.put(key);
+            }
+            BloomFilter now = current;
+            if (now != null && now != next)
+            {
+                now.put(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package yanbinwa.iCache.local;
+
+public final class NegativeLookupConfig
+{
+    private final long ttlMs;
+    private final int maxEntries;
+    private final boolean isBloomEnabled;
+    private final long expectedKeys;
+    private final double falsePositiveRate;
+    private final long maxBytes;
+    private final long rebuildIntervalMs;
+    private final int scanCount;
+    
+    public NegativeLookupConfig(long ttlMs, int maxEntries, boolean isBloomEnabled, long expectedKeys, double falsePositiveRate, long maxBytes,
+            long rebuildIntervalMs, int scanCount)
+    {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+        this.isBloomEnabled = isBloomEnabled;
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxBytes = maxBytes;
+        this.rebuildIntervalMs = rebuildIntervalMs;
+        this.scanCount = scanCount;
+    }
+
+    public long getTtlMs()
+    {
+        return ttlMs;
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    public boolean isBloomEnabled()
+    {
+        return isBloomEnabled;
+    }
+
+    public long getExpectedKeys()
+    {
+        return expectedKeys;
+    }
+
+    public double getFalsePositiveRate()
+    {
+        return falsePositiveRate;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getRebuildIntervalMs()
+    {
+        return rebuildIntervalMs;
+    }
+
+    public int getScanCount()
+    {
+        return scanCount;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof NegativeLookupConfig))
+        {
+            return false;
+        }
+        NegativeLookupConfig other = (NegativeLookupConfig) obj;
+        return ttlMs == other.ttlMs && maxEntries == other.maxEntries && isBloomEnabled == other.isBloomEnabled
+                && expectedKeys == other.expectedKeys && Double.compare(falsePositiveRate, other.falsePositiveRate) == 0
+                && maxBytes == other.maxBytes && rebuildIntervalMs == other.rebuildIntervalMs && scanCount == other.scanCount;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = (int) (ttlMs ^ (ttlMs >>> 32));
+        result = 31 * result + maxEntries;
+        result = 31 * result + (isBloomEnabled ? 1 : 0);
+        result = 31 * result + (int) (expectedKeys ^ (expectedKeys >>> 32));
+        long bits = Double.doubleToLongBits(falsePositiveRate);
+        result = 31 * result + (int) (bits ^ (bits >>> 32));
+        result = 31 * result + (int) (maxBytes ^ (maxBytes >>> 32));
+        result = 31 * result + (int) (rebuildIntervalMs ^ (rebuildIntervalMs >>> 32));
+        result = 31 * result + scanCount;
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "NegativeLookupConfig [ttlMs=" + ttlMs + ", maxEntries=" + maxEntries + ", isBloomEnabled=" + isBloomEnabled
+                + ", expectedKeys=" + expectedKeys + ", falsePositiveRate=" + falsePositiveRate + ", maxBytes=" + maxBytes
+                + ", rebuildIntervalMs=" + rebuildIntervalMs + ", scanCount=" + scanCount + "]";
+    }
+}
@@ -0,0 +1,636 @@
+package yanbinwa.iCache.local;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * 保存在堆外内存中的进程内缓存，key和value以UTF-8字节写入direct ByteBuffer，堆上只有每个segment的两个int数组作为索引，
+ * 缓存的数据量增长时不会增加GC需要扫描的对象。
+ *
+ * 每个segment在创建时一次分配maxBytes/segmentNum的堆外内存，作为环形的日志：新条目追加在tail，空间或条目数不足时从head淘汰。
+ * 淘汰按CLOCK的方式给被访问过的条目第二次机会，把它移动到tail并清除访问标记，每次写入最多移动SECOND_CHANCE_MAX个条目。
+ * 被替换和invalidate的条目只清除存活标记，空间在head经过时回收。
+ *
+ * 索引是线性探测的开放寻址表，保存条目的offset和hash，删除时向前移动后续的条目，不使用墓碑。
+ *
+ * 每个segment一把锁；堆外内存在缓存对象被回收时释放，需要保证-XX:MaxDirectMemorySize不小于maxBytes
+ *
+ * @author yanbinwa
+ *
+ */
+public class OffHeapCache implements LocalCache
+{
+    private static final int SEGMENT_NUM_MAX = 16;
+    private static final int ENTRIES_PER_SEGMENT_MIN = 64;
+    private static final long BYTES_PER_SEGMENT_MIN = 64 * 1024;
+    // 单个ByteBuffer不超过2GB，数据量更大时增加segment个数
+    private static final long BYTES_PER_SEGMENT_MAX = 1L << 30;
+    private static final int SECOND_CHANCE_MAX = 8;
+
+    // 条目格式：[len][hash][writeTime][flags][keyLen][valueLen][key][value]，整体按8字节对齐；
+    // 环的末尾放不下下一个条目时填充到末尾，填充只有一个负数的len
+    private static final int HASH_OFFSET = 4;
+    private static final int WRITE_TIME_OFFSET = 8;
+    private static final int FLAGS_OFFSET = 16;
+    private static final int KEY_LEN_OFFSET = 20;
+    private static final int VALUE_LEN_OFFSET = 24;
+    private static final int HEADER_BYTES = 28;
+
+    private static final int FLAG_ALIVE = 1;
+    private static final int FLAG_REFERENCED = 2;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long expireAfterWriteMs;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder secondChanceCount = new LongAdder();
+    private final LongAdder rejectionCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+
+    public OffHeapCache(int maxEntries, long maxBytes, long expireAfterWriteMs)
+    {
+        if (maxEntries <= 0 || maxBytes <= 0)
+        {
+            throw new IllegalArgumentException("maxEntries and maxBytes should be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.expireAfterWriteMs = expireAfterWriteMs;
+
+        int segmentNum = 1;
+        while (segmentNum < SEGMENT_NUM_MAX && maxEntries / (segmentNum * 2) >= ENTRIES_PER_SEGMENT_MIN
+                && maxBytes / (segmentNum * 2) >= BYTES_PER_SEGMENT_MIN)
+        {
+            segmentNum = segmentNum * 2;
+        }
+        while (maxBytes / segmentNum > BYTES_PER_SEGMENT_MAX)
+        {
+            segmentNum = segmentNum * 2;
+        }
+        segments = new Segment[segmentNum];
+        segmentMask = segmentNum - 1;
+        int segmentMaxEntries = (maxEntries + segmentNum - 1) / segmentNum;
+        int segmentCapacity = (int) Math.max(HEADER_BYTES + 8, (maxBytes / segmentNum) & ~7L);
+        for (int i = 0; i < segmentNum; i ++)
+        {
+            segments[i] = new Segment(segmentMaxEntries, segmentCapacity);
+        }
+    }
+
+    @Override
+    public String get(String key)
+    {
+        int h = spread(key.hashCode());
+        Segment segment = segments[h & segmentMask];
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes;
+        synchronized(segment)
+        {
+            valueBytes = segment.get(keyBytes, indexHash(h), System.currentTimeMillis());
+        }
+        if (valueBytes == null)
+        {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return new String(valueBytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long beginLoad(String key)
+    {
+        return segments[spread(key.hashCode()) & segmentMask].invalidationSeq;
+    }
+
+    @Override
+    public boolean putIfNotInvalidated(String key, String value, long loadSeq)
+    {
+        if (key == null || value == null)
+        {
+            return false;
+        }
+        int h = spread(key.hashCode());
+        Segment segment = segments[h & segmentMask];
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = align(HEADER_BYTES + keyBytes.length + valueBytes.length);
+        synchronized(segment)
+        {
+            if (segment.invalidationSeq != loadSeq)
+            {
+                return false;
+            }
+            // 过大的条目会把整个segment挤空
+            if (length > segment.capacity / 2)
+            {
+                rejectionCount.increment();
+                return false;
+            }
+            return segment.put(keyBytes, valueBytes, indexHash(h), length, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void invalidate(String key)
+    {
+        if (key == null)
+        {
+            return;
+        }
+        int h = spread(key.hashCode());
+        Segment segment = segments[h & segmentMask];
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        synchronized(segment)
+        {
+            segment.invalidationSeq ++;
+            segment.remove(keyBytes, indexHash(h));
+        }
+        invalidationCount.increment();
+    }
+
+    @Override
+    public void clear()
+    {
+        for (Segment segment : segments)
+        {
+            synchronized(segment)
+            {
+                segment.invalidationSeq ++;
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * 没有访问计数，按CLOCK的访问标记和在环中的位置排序：被访问过的条目优先，其次越靠近tail的越新。
+     * 每个segment取ceil(limit/segmentNum)个，只解码选中的条目
+     */
+    @Override
+    public Map<String, String> getHottest(int limit)
+    {
+        Map<String, String> hottest = new LinkedHashMap<String, String>();
+        if (limit <= 0)
+        {
+            return hottest;
+        }
+        int quota = (limit + segments.length - 1) / segments.length;
+        long now = System.currentTimeMillis();
+        int segmentNum = segments.length;
+        long[][] ranks = new long[segmentNum][];
+        byte[][][] keyValues = new byte[segmentNum][][];
+        for (int i = 0; i < segmentNum; i ++)
+        {
+            Segment segment = segments[i];
+            synchronized(segment)
+            {
+                ranks[i] = segment.rankAlive(now);
+                int num = Math.min(quota, ranks[i].length);
+                keyValues[i] = new byte[num * 2][];
+                for (int j = 0; j < num; j ++)
+                {
+                    int offset = (int) ranks[i][ranks[i].length - 1 - j];
+                    keyValues[i][j * 2] = new byte[segment.buffer.getInt(offset + KEY_LEN_OFFSET)];
+                    keyValues[i][j * 2 + 1] = new byte[segment.buffer.getInt(offset + VALUE_LEN_OFFSET)];
+                    segment.read(offset + HEADER_BYTES, keyValues[i][j * 2]);
+                    segment.read(offset + HEADER_BYTES + keyValues[i][j * 2].length, keyValues[i][j * 2 + 1]);
+                }
+            }
+        }
+        // 各segment的结果轮流合并，保证整体上仍然是先热后冷
+        for (int j = 0; j < quota && hottest.size() < limit; j ++)
+        {
+            for (int i = 0; i < segmentNum && hottest.size() < limit; i ++)
+            {
+                if (j * 2 < keyValues[i].length)
+                {
+                    hottest.put(new String(keyValues[i][j * 2], StandardCharsets.UTF_8), new String(keyValues[i][j * 2 + 1], StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return hottest;
+    }
+
+    @Override
+    public boolean isSameConfig(int maxEntries, long maxBytes, long expireAfterWriteMs)
+    {
+        return this.maxEntries == maxEntries && this.maxBytes == maxBytes && this.expireAfterWriteMs == expireAfterWriteMs;
+    }
+
+    @Override
+    public JSONObject getStats()
+    {
+        long size = 0;
+        long bytes = 0;
+        long capacity = 0;
+        for (Segment segment : segments)
+        {
+            synchronized(segment)
+            {
+                size += segment.count;
+                bytes += segment.used;
+                capacity += segment.capacity;
+            }
+        }
+        long hits = hitCount.sum();
+        long misses = missCount.sum();
+        JSONObject stats = new JSONObject();
+        stats.put("storage", "offHeap");
+        stats.put("maxEntries", maxEntries);
+        stats.put("maxBytes", maxBytes);
+        stats.put("expireAfterWriteMs", expireAfterWriteMs);
+        stats.put("segmentNum", segments.length);
+        stats.put("size", size);
+        stats.put("bytes", bytes);
+        stats.put("capacityBytes", capacity);
+        stats.put("hitCount", hits);
+        stats.put("missCount", misses);
+        stats.put("hitRate", hits + misses == 0 ? 0.0 : (double)hits / (hits + misses));
+        stats.put("evictionCount", evictionCount.sum());
+        stats.put("secondChanceCount", secondChanceCount.sum());
+        stats.put("rejectionCount", rejectionCount.sum());
+        stats.put("invalidationCount", invalidationCount.sum());
+        return stats;
+    }
+
+    private static int spread(int h)
+    {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * segment已经用掉了低位，索引使用重新混合过的hash
+     */
+    private static int indexHash(int h)
+    {
+        return h * 0x9E3779B9;
+    }
+
+    private static int align(int length)
+    {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * 所有方法都需要在持有segment的锁时调用
+     */
+    final class Segment
+    {
+        final ByteBuffer buffer;
+        final int capacity;
+        final int maxEntries;
+        final int[] slots;
+        final int[] hashes;
+        final int indexMask;
+
+        // 最早的条目、下一个条目以及已使用的字节数(包含失效的条目和填充)
+        int head = 0;
+        int tail = 0;
+        int used = 0;
+        int count = 0;
+        volatile long invalidationSeq = 0;
+
+        Segment(int maxEntries, int capacity)
+        {
+            this.buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            this.capacity = capacity;
+            this.maxEntries = maxEntries;
+            int indexSize = Integer.highestOneBit(Math.max(16, maxEntries) * 2 - 1) * 2;
+            // slots中保存offset + 1，0表示空位
+            this.slots = new int[indexSize];
+            this.hashes = new int[indexSize];
+            this.indexMask = indexSize - 1;
+        }
+
+        byte[] get(byte[] keyBytes, int hash, long now)
+        {
+            int slot = findSlot(keyBytes, hash);
+            if (slot < 0)
+            {
+                return null;
+            }
+            int offset = slots[slot] - 1;
+            if (isExpired(offset, now))
+            {
+                kill(offset);
+                removeSlot(slot);
+                return null;
+            }
+            int flags = buffer.getInt(offset + FLAGS_OFFSET);
+            if ((flags & FLAG_REFERENCED) == 0)
+            {
+                buffer.putInt(offset + FLAGS_OFFSET, flags | FLAG_REFERENCED);
+            }
+            byte[] valueBytes = new byte[buffer.getInt(offset + VALUE_LEN_OFFSET)];
+            read(offset + HEADER_BYTES + buffer.getInt(offset + KEY_LEN_OFFSET), valueBytes);
+            return valueBytes;
+        }
+
+        boolean put(byte[] keyBytes, byte[] valueBytes, int hash, int length, long now)
+        {
+            remove(keyBytes, hash);
+            int offset = reserve(length);
+            if (offset < 0)
+            {
+                rejectionCount.increment();
+                return false;
+            }
+            buffer.putInt(offset, length);
+            buffer.putInt(offset + HASH_OFFSET, hash);
+            buffer.putLong(offset + WRITE_TIME_OFFSET, now);
+            buffer.putInt(offset + FLAGS_OFFSET, FLAG_ALIVE);
+            buffer.putInt(offset + KEY_LEN_OFFSET, keyBytes.length);
+            buffer.putInt(offset + VALUE_LEN_OFFSET, valueBytes.length);
+            write(offset + HEADER_BYTES, keyBytes);
+            write(offset + HEADER_BYTES + keyBytes.length, valueBytes);
+            int slot = hash & indexMask;
+            while (slots[slot] != 0)
+            {
+                slot = (slot + 1) & indexMask;
+            }
+            slots[slot] = offset + 1;
+            hashes[slot] = hash;
+            count ++;
+            return true;
+        }
+
+        void remove(byte[] keyBytes, int hash)
+        {
+            int slot = findSlot(keyBytes, hash);
+            if (slot >= 0)
+            {
+                kill(slots[slot] - 1);
+                removeSlot(slot);
+            }
+        }
+
+        void clear()
+        {
+            Arrays.fill(slots, 0);
+            head = 0;
+            tail = 0;
+            used = 0;
+            count = 0;
+        }
+
+        /**
+         * 返回所有未过期条目的offset，高位是排序用的分数，按分数从低到高排列
+         */
+        long[] rankAlive(long now)
+        {
+            long[] ranks = new long[count];
+            int num = 0;
+            for (int slot = 0; slot < slots.length; slot ++)
+            {
+                if (slots[slot] == 0)
+                {
+                    continue;
+                }
+                int offset = slots[slot] - 1;
+                if (isExpired(offset, now))
+                {
+                    continue;
+                }
+                long distance = offset >= head ? offset - head : offset + capacity - head;
+                if ((buffer.getInt(offset + FLAGS_OFFSET) & FLAG_REFERENCED) != 0)
+                {
+                    distance += capacity;
+                }
+                ranks[num ++] = (distance << 32) | offset;
+            }
+            ranks = Arrays.copyOf(ranks, num);
+            Arrays.sort(ranks);
+            return ranks;
+        }
+
+        /**
+         * 从head淘汰直到有length字节的连续空间并且条目数未满，返回写入位置
+         */
+        private int reserve(int length)
+        {
+            int secondChances = 0;
+            while (true)
+            {
+                if (count < maxEntries)
+                {
+                    int offset = tryReserve(length);
+                    if (offset >= 0)
+                    {
+                        return offset;
+                    }
+                }
+                if (used == 0)
+                {
+                    return -1;
+                }
+                if (evictHead(secondChances < SECOND_CHANCE_MAX))
+                {
+                    secondChances ++;
+                }
+            }
+        }
+
+        /**
+         * 不淘汰任何条目，空间不足时返回-1
+         */
+        private int tryReserve(int length)
+        {
+            if (used == 0)
+            {
+                head = 0;
+                tail = 0;
+            }
+            if (used + length > capacity)
+            {
+                return -1;
+            }
+            if (tail >= head && capacity - tail < length)
+            {
+                // 末尾放不下，填充到末尾后从0开始，前提是0到head之间足够
+                if (head < length)
+                {
+                    return -1;
+                }
+                buffer.putInt(tail, tail - capacity);
+                used += capacity - tail;
+                tail = 0;
+            }
+            else if (tail < head && head - tail < length)
+            {
+                return -1;
+            }
+            int offset = tail;
+            tail += length;
+            used += length;
+            if (tail == capacity)
+            {
+                tail = 0;
+            }
+            return offset;
+        }
+
+        /**
+         * 返回true表示head的条目得到了第二次机会，被移动到了tail
+         */
+        private boolean evictHead(boolean allowSecondChance)
+        {
+            int offset = head;
+            int length = buffer.getInt(offset);
+            if (length < 0)
+            {
+                pop(-length);
+                return false;
+            }
+            int flags = buffer.getInt(offset + FLAGS_OFFSET);
+            int slot = -1;
+            if ((flags & FLAG_ALIVE) != 0)
+            {
+                slot = findSlotByOffset(buffer.getInt(offset + HASH_OFFSET), offset);
+            }
+            if (slot >= 0 && allowSecondChance && (flags & FLAG_REFERENCED) != 0 && !isExpired(offset, System.currentTimeMillis()))
+            {
+                byte[] entry = new byte[length];
+                read(offset, entry);
+                pop(length);
+                int newOffset = tryReserve(length);
+                if (newOffset >= 0)
+                {
+                    write(newOffset, entry);
+                    buffer.putInt(newOffset + FLAGS_OFFSET, flags & ~FLAG_REFERENCED);
+                    slots[slot] = newOffset + 1;
+                    secondChanceCount.increment();
+                    return true;
+                }
+                removeSlot(slot);
+                evictionCount.increment();
+                return false;
+            }
+            if (slot >= 0)
+            {
+                removeSlot(slot);
+                evictionCount.increment();
+            }
+            pop(length);
+            return false;
+        }
+
+        private void pop(int length)
+        {
+            head += length;
+            used -= length;
+            if (head == capacity)
+            {
+                head = 0;
+            }
+        }
+
+        private int findSlot(byte[] keyBytes, int hash)
+        {
+            int slot = hash & indexMask;
+            while (slots[slot] != 0)
+            {
+                if (hashes[slot] == hash && isSameKey(slots[slot] - 1, keyBytes))
+                {
+                    return slot;
+                }
+                slot = (slot + 1) & indexMask;
+            }
+            return -1;
+        }
+
+        private int findSlotByOffset(int hash, int offset)
+        {
+            int slot = hash & indexMask;
+            while (slots[slot] != 0)
+            {
+                if (slots[slot] == offset + 1)
+                {
+                    return slot;
+                }
+                slot = (slot + 1) & indexMask;
+            }
+            return -1;
+        }
+
+        /**
+         * 线性探测的删除，把后面不在自己原位置的条目向前移动，填补空位
+         */
+        private void removeSlot(int slot)
+        {
+            slots[slot] = 0;
+            count --;
+            int hole = slot;
+            int next = slot;
+            while (true)
+            {
+                next = (next + 1) & indexMask;
+                if (slots[next] == 0)
+                {
+                    return;
+                }
+                int home = hashes[next] & indexMask;
+                boolean isMovable = next > hole ? (home <= hole || home > next) : (home <= hole && home > next);
+                if (isMovable)
+                {
+                    slots[hole] = slots[next];
+                    hashes[hole] = hashes[next];
+                    slots[next] = 0;
+                    hole = next;
+                }
+            }
+        }
+
+        private boolean isSameKey(int offset, byte[] keyBytes)
+        {
+            if (buffer.getInt(offset + KEY_LEN_OFFSET) != keyBytes.length)
+            {
+                return false;
+            }
+            int keyOffset = offset + HEADER_BYTES;
+            for (int i = 0; i < keyBytes.length; i ++)
+            {
+                if (buffer.get(keyOffset + i) != keyBytes[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isExpired(int offset, long now)
+        {
+            return expireAfterWriteMs > 0 && now - buffer.getLong(offset + WRITE_TIME_OFFSET) >= expireAfterWriteMs;
+        }
+
+        private void kill(int offset)
+        {
+            buffer.putInt(offset + FLAGS_OFFSET, buffer.getInt(offset + FLAGS_OFFSET) & ~FLAG_ALIVE);
+        }
+
+        void read(int offset, byte[] dst)
+        {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(dst);
+        }
+
+        private void write(int offset, byte[] src)
+        {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.put(src);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package yanbinwa.iCache.metrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import yanbinwa.iCache.util.DaemonThreadFactory;
+
+/**
+ * CacheService的运行指标：每种操作一组OperationMetrics，每个partition(JUMP和RING模式下是slot)一个耗时直方图。
+ *
+ * 分片上的命令耗时和借连接等待由RedisShardClient自己记录。速率按固定周期统计
+ *
+ * @author yanbinwa
+ *
+ */
+public class CacheMetrics
+{
+    public static final int LATENCY_SUB_BUCKET_BITS = 5;
+    public static final long LATENCY_MAX_MICROS = TimeUnit.MINUTES.toMicros(1);
+    public static final int PARTITION_LATENCY_SUB_BUCKET_BITS = 3;
+    public static final int SIZE_SUB_BUCKET_BITS = 3;
+    public static final long SIZE_MAX = 512 * 1024 * 1024;
+    public static final long RATE_INTERVAL_MS = 5000;
+
+    private static final ScheduledExecutorService metricsTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-metrics"));
+
+    public enum Operation
+    {
+        GET, SET, MGET, MSET, DEL
+    }
+
+    private final OperationMetrics[] operations = new OperationMetrics[Operation.values().length];
+
+    private volatile LatencyHistogram[] partitionLatency = new LatencyHistogram[0];
+
+    public CacheMetrics()
+    {
+        for (Operation operation : Operation.values())
+        {
+            operations[operation.ordinal()] = new OperationMetrics();
+        }
+        metricsTimer.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                for (OperationMetrics metrics : operations)
+                {
+                    metrics.tick();
+                }
+            }
+
+        }, RATE_INTERVAL_MS, RATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public OperationMetrics getOperation(Operation operation)
+    {
+        return operations[operation.ordinal()];
+    }
+
+    /**
+     * 路由表发布时调用，partition个数不变时保留已有的数据
+     */
+    public void resetPartitions(int partitionNum)
+    {
+        if (partitionLatency.length == partitionNum)
+        {
+            return;
+        }
+        LatencyHistogram[] histograms = new LatencyHistogram[partitionNum];
+        for (int i = 0; i < partitionNum; i ++)
+        {
+            histograms[i] = new LatencyHistogram(PARTITION_LATENCY_SUB_BUCKET_BITS, LATENCY_MAX_MICROS);
+        }
+        partitionLatency = histograms;
+    }
+
+    public void recordPartition(int partition, long startNanos)
+    {
+        LatencyHistogram[] histograms = partitionLatency;
+        if (partition >= 0 && partition < histograms.length)
+        {
+            histograms[partition].record((System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    public JSONObject getOperationStats()
+    {
+        JSONObject stats = new JSONObject();
+        for (Operation operation : Operation.values())
+        {
+            stats.put(operation.name().toLowerCase(), operations[operation.ordinal()].getStats());
+        }
+        return stats;
+    }
+
+    public JSONObject getPartitionStats()
+    {
+        LatencyHistogram[] histograms = partitionLatency;
+        JSONObject stats = new JSONObject();
+        for (int i = 0; i < histograms.length; i ++)
+        {
+            if (histograms[i].getCount() > 0)
+            {
+                stats.put(String.valueOf(i), histograms[i].getSnapshot());
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,54 @@
+package yanbinwa.iCache.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import yanbinwa.iCache.service.CacheService;
+
+/**
+ * 把CacheService.getCacheStats()中的数值展开后发布到actuator的/metrics，
+ * 名字形如cache.operations.get.latencyMicros.p99、cache.shards.10_0_0_1:6379.poolWaitMicros.p99
+ * 
+ * @author yanbinwa
+ *
+ */
+@Component
+public class CachePublicMetrics implements PublicMetrics
+{
+    private static final String METRIC_PREFIX = "cache";
+
+    @Autowired
+    CacheService cacheService;
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        flatten(METRIC_PREFIX, new JSONObject(cacheService.getCacheStats()), metrics);
+        return metrics;
+    }
+
+    private void flatten(String prefix, JSONObject obj, List<Metric<?>> metrics)
+    {
+        for (String key : obj.keySet())
+        {
+            String name = prefix + "." + key.replace('.', '_');
+            Object value = obj.get(key);
+            if (value instanceof JSONObject)
+            {
+                flatten(name, (JSONObject) value, metrics);
+            }
+            else if (value instanceof Number)
+            {
+                metrics.add(new Metric<Number>(name, (Number) value));
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package yanbinwa.iCache.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * HDR风格的对数线性直方图，记录时不分配内存，可以被多个线程同时记录。
+ *
+ * 小于2^subBucketBits的值每个值一个桶，更大的值每个2的幂区间再均分为2^subBucketBits个桶，
+ * 相对误差不超过2^-subBucketBits；超过maxValue的值记入最后一个桶
+ *
+ * @author yanbinwa
+ *
+ */
+public class LatencyHistogram
+{
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final long maxValue;
+    private final AtomicLongArray counts;
+
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final AtomicLong maxRecorded = new AtomicLong(0);
+
+    public LatencyHistogram(int subBucketBits, long maxValue)
+    {
+        this.subBucketBits = subBucketBits;
+        this.subBucketCount = 1 << subBucketBits;
+        this.maxValue = maxValue;
+        this.counts = new AtomicLongArray(indexOf(maxValue) + 1);
+    }
+
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+        else if (value > maxValue)
+        {
+            value = maxValue;
+        }
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        totalValue.add(value);
+        long max = maxRecorded.get();
+        while (value > max && !maxRecorded.compareAndSet(max, value))
+        {
+            max = maxRecorded.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return totalCount.sum();
+    }
+
+    /**
+     * 返回对应桶的中间值，记录的同时读取时结果是近似的
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long count = totalCount.sum();
+        if (count == 0)
+        {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i ++)
+        {
+            seen += counts.get(i);
+            if (seen >= target)
+            {
+                return Math.min(valueOf(i), maxRecorded.get());
+            }
+        }
+        return maxRecorded.get();
+    }
+
+    public JSONObject getSnapshot()
+    {
+        JSONObject snapshot = new JSONObject();
+        long count = totalCount.sum();
+        snapshot.put("count", count);
+        snapshot.put("mean", count == 0 ? 0 : totalValue.sum() / count);
+        snapshot.put("max", maxRecorded.get());
+        snapshot.put("p50", getValueAtPercentile(50));
+        snapshot.put("p90", getValueAtPercentile(90));
+        snapshot.put("p99", getValueAtPercentile(99));
+        snapshot.put("p999", getValueAtPercentile(99.9));
+        return snapshot;
+    }
+
+    private int indexOf(long value)
+    {
+        if (value < subBucketCount)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return exponent * subBucketCount + (int) (value >>> exponent);
+    }
+
+    private long valueOf(int index)
+    {
+        if (index < subBucketCount)
+        {
+            return index;
+        }
+        int exponent = index / subBucketCount - 1;
+        long lower = (long) (index - exponent * subBucketCount) << exponent;
+        return lower + ((1L << exponent) >> 1);
+    }
+}
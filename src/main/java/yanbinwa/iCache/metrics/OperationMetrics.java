@@ -0,0 +1,69 @@
+package yanbinwa.iCache.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * 一种操作的耗时(微秒)、大小、错误和超时计数，以及最近一个统计周期的请求速率
+ *
+ * @author yanbinwa
+ *
+ */
+public class OperationMetrics
+{
+    private final LatencyHistogram latency = new LatencyHistogram(CacheMetrics.LATENCY_SUB_BUCKET_BITS, CacheMetrics.LATENCY_MAX_MICROS);
+    // 单key操作记录value的长度，批量操作记录key的个数
+    private final LatencyHistogram size = new LatencyHistogram(CacheMetrics.SIZE_SUB_BUCKET_BITS, CacheMetrics.SIZE_MAX);
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+
+    private long lastCount = 0;
+    private long lastTickTime = System.nanoTime();
+    private volatile double ratePerSecond = 0;
+
+    public void record(long startNanos, int size)
+    {
+        latency.record((System.nanoTime() - startNanos) / 1000);
+        if (size >= 0)
+        {
+            this.size.record(size);
+        }
+    }
+
+    public void recordError(long startNanos, boolean isTimeout)
+    {
+        latency.record((System.nanoTime() - startNanos) / 1000);
+        if (isTimeout)
+        {
+            timeoutCount.increment();
+        }
+        else
+        {
+            errorCount.increment();
+        }
+    }
+
+    synchronized void tick()
+    {
+        long now = System.nanoTime();
+        long count = latency.getCount();
+        if (now > lastTickTime)
+        {
+            ratePerSecond = (double) (count - lastCount) * 1000000000 / (now - lastTickTime);
+        }
+        lastCount = count;
+        lastTickTime = now;
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("latencyMicros", latency.getSnapshot());
+        stats.put("size", size.getSnapshot());
+        stats.put("errorCount", errorCount.sum());
+        stats.put("timeoutCount", timeoutCount.sum());
+        stats.put("ratePerSecond", ratePerSecond);
+        return stats;
+    }
+}
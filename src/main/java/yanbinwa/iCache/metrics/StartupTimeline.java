@@ -0,0 +1,95 @@
+package yanbinwa.iCache.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * 记录一次启动中各个阶段第一次完成的时间，相对于start的毫秒数，用于观察滚动重启时从启动到就绪的耗时。
+ *
+ * 阶段之间不一定按定义的顺序完成(例如从快照恢复时连接先于路由预建)，durationMs是与上一个完成的阶段之间的间隔。
+ * stopWork之后从CONFIGURED开始重新记录，STARTED保持不变
+ *
+ * @author yanbinwa
+ *
+ */
+public class StartupTimeline
+{
+    public enum Phase
+    {
+        STARTED,
+        CONFIGURED,
+        SNAPSHOT_RESTORED,
+        ORCHESTRATION_STARTED,
+        ROUTING_BUILT,
+        POOLS_WARMED,
+        READY
+    }
+
+    private final long[] phaseTimes = new long[Phase.values().length];
+
+    public synchronized void record(Phase phase)
+    {
+        if (phaseTimes[phase.ordinal()] == 0)
+        {
+            phaseTimes[phase.ordinal()] = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized boolean isReached(Phase phase)
+    {
+        return phaseTimes[phase.ordinal()] != 0;
+    }
+
+    /**
+     * 清除STARTED之后的阶段
+     */
+    public synchronized void reset()
+    {
+        for (int i = Phase.STARTED.ordinal() + 1; i < phaseTimes.length; i ++)
+        {
+            phaseTimes[i] = 0;
+        }
+    }
+
+    public synchronized JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        final long startTime = phaseTimes[Phase.STARTED.ordinal()];
+        List<Phase> reached = new ArrayList<Phase>();
+        for (Phase phase : Phase.values())
+        {
+            if (startTime != 0 && phaseTimes[phase.ordinal()] != 0)
+            {
+                reached.add(phase);
+            }
+        }
+        Collections.sort(reached, new Comparator<Phase>() {
+
+            @Override
+            public int compare(Phase a, Phase b)
+            {
+                return Long.compare(phaseTimes[a.ordinal()], phaseTimes[b.ordinal()]);
+            }
+
+        });
+        JSONObject phases = new JSONObject();
+        long previous = startTime;
+        for (Phase phase : reached)
+        {
+            long time = phaseTimes[phase.ordinal()];
+            JSONObject phaseStats = new JSONObject();
+            phaseStats.put("sinceStartMs", time - startTime);
+            phaseStats.put("durationMs", time - previous);
+            phases.put(phase.name(), phaseStats);
+            previous = time;
+        }
+        stats.put("startTime", startTime);
+        stats.put("phases", phases);
+        stats.put("isReady", phaseTimes[Phase.READY.ordinal()] != 0);
+        return stats;
+    }
+}
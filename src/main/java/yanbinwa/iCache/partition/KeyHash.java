@@ -0,0 +1,58 @@
+package yanbinwa.iCache.partition;
+
+/**
+ * 与JVM无关的稳定hash，不分配内存
+ * 
+ * @author yanbinwa
+ *
+ */
+public final class KeyHash
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    private KeyHash()
+    {
+        
+    }
+    
+    /**
+     * 对UTF-16的char做FNV-1a，再经过murmur3的fmix64打散
+     */
+    public static long hash64(String key)
+    {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i ++)
+        {
+            h ^= key.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return fmix64(h);
+    }
+    
+    /**
+     * Lamping & Veach, A Fast, Minimal Memory, Consistent Hash Algorithm
+     */
+    public static int jumpConsistentHash(long key, int buckets)
+    {
+        long b = -1;
+        long j = 0;
+        while (j < buckets)
+        {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+    
+    private static long fmix64(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
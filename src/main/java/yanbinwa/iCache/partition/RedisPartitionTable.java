@@ -0,0 +1,260 @@
+package yanbinwa.iCache.partition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import yanbinwa.iCache.redis.RedisShardClient;
+
+/**
+ * 不可变的路由快照，key先算出非负的slot，再直接作为数组下标，通过一个volatile引用整体发布。
+ *
+ * PARTITION模式下slot就是partition id；JUMP和RING模式下slot是redis服务的下标。
+ *
+ * 同名的redis服务有多个实例时，slot对应的client是primary，写只发到primary，读可以在partitionToReaders中选择。
+ *
+ * 路由信息不可变，唯一可变的是请求的引用计数：请求在解引用路由表之前acquire，结束后release，
+ * 被替换的路由表引用计数归零后，只在其中出现的client才可以关闭
+ *
+ * @author yanbinwa
+ *
+ */
+public final class RedisPartitionTable
+{
+    public static final RedisPartitionTable EMPTY = new RedisPartitionTable(new RedisShardClient[0], 0);
+
+    // 按线程分散的引用计数，每个计数占一个cache line
+    private static final int REF_STRIPES = 32;
+    private static final int REF_PADDING = 8;
+
+    private final RoutingStrategy strategy;
+
+    private final RedisShardClient[] partitionToRedisClient;
+
+    private final long epoch;
+
+    // RING模式下按hash排序的虚拟节点以及对应的slot
+    private final long[] ringHashes;
+    private final int[] ringSlots;
+
+    // 每个slot上可读的client(包含primary)，没有replica的slot为null
+    private final RedisShardClient[][] partitionToReaders;
+
+    private final AtomicLongArray refCounts = new AtomicLongArray(REF_STRIPES * REF_PADDING);
+
+    public RedisPartitionTable(RedisShardClient[] partitionToRedisClient, long epoch)
+    {
+        this(RoutingStrategy.PARTITION, partitionToRedisClient, epoch, null, null, null);
+    }
+
+    private RedisPartitionTable(RoutingStrategy strategy, RedisShardClient[] partitionToRedisClient, long epoch, long[] ringHashes, int[] ringSlots,
+            RedisShardClient[][] partitionToReaders)
+    {
+        this.strategy = strategy;
+        this.partitionToRedisClient = partitionToRedisClient;
+        this.epoch = epoch;
+        this.ringHashes = ringHashes;
+        this.ringSlots = ringSlots;
+        this.partitionToReaders = partitionToReaders;
+    }
+
+    /**
+     * 引用计数只在同一个线程上成对地增减，或者在release时减少，按stripe依次求和不会在还有引用时得到0。
+     * 调用者需要在acquire之后确认路由表仍然是当前发布的，否则release后重新获取
+     */
+    public void acquire()
+    {
+        refCounts.incrementAndGet(refStripe());
+    }
+
+    public void release()
+    {
+        refCounts.decrementAndGet(refStripe());
+    }
+
+    /**
+     * 路由表被替换之后调用，返回true表示不再有请求引用它
+     */
+    public boolean isReleased()
+    {
+        long refs = 0;
+        for (int i = 0; i < REF_STRIPES; i ++)
+        {
+            refs += refCounts.get(i * REF_PADDING);
+        }
+        return refs == 0;
+    }
+
+    private static int refStripe()
+    {
+        return ((int) Thread.currentThread().getId() & (REF_STRIPES - 1)) * REF_PADDING;
+    }
+
+    /**
+     * 返回带有replica的路由表，readers的长度需要与slot个数相同
+     */
+    public RedisPartitionTable withReaders(RedisShardClient[][] partitionToReaders)
+    {
+        if (partitionToReaders.length != partitionToRedisClient.length)
+        {
+            throw new IllegalArgumentException("Readers should have the same length as partitions");
+        }
+        return new RedisPartitionTable(strategy, partitionToRedisClient, epoch, ringHashes, ringSlots, partitionToReaders);
+    }
+
+    /**
+     * shards的下标就是jump hash的bucket，需要按assignJumpBuckets给出的顺序排列
+     */
+    public static RedisPartitionTable jump(RedisShardClient[] shards, long epoch)
+    {
+        return new RedisPartitionTable(RoutingStrategy.JUMP, shards, epoch, null, null, null);
+    }
+
+    /**
+     * 在上一次的bucket顺序上计算新的顺序：被移除的服务的bucket由最后一个bucket的服务填补，新加入的服务按名字排序追加在最后。
+     * 加入一个服务只移动约1/N的key，移除一个服务只移动它自己和最后一个bucket上的key，约2/N
+     */
+    public static List<String> assignJumpBuckets(List<String> previousBuckets, Collection<String> serviceNames)
+    {
+        Set<String> names = new HashSet<String>(serviceNames);
+        List<String> buckets = new ArrayList<String>(previousBuckets);
+        int index = 0;
+        while (index < buckets.size())
+        {
+            if (names.contains(buckets.get(index)))
+            {
+                index ++;
+                continue;
+            }
+            String last = buckets.remove(buckets.size() - 1);
+            if (index < buckets.size())
+            {
+                buckets.set(index, last);
+            }
+        }
+        List<String> added = new ArrayList<String>();
+        for (String name : serviceNames)
+        {
+            if (!buckets.contains(name))
+            {
+                added.add(name);
+            }
+        }
+        Collections.sort(added);
+        buckets.addAll(added);
+        return buckets;
+    }
+
+    public static RedisPartitionTable ring(RedisShardClient[] shards, String[] shardNames, int virtualNodes, long epoch)
+    {
+        final long[] hashes = new long[shards.length * virtualNodes];
+        int[] slots = new int[hashes.length];
+        Integer[] order = new Integer[hashes.length];
+        for (int i = 0; i < shards.length; i ++)
+        {
+            for (int v = 0; v < virtualNodes; v ++)
+            {
+                int index = i * virtualNodes + v;
+                hashes[index] = KeyHash.hash64(shardNames[i] + "#" + v);
+                order[index] = index;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                return Long.compare(hashes[a], hashes[b]);
+            }
+
+        });
+        long[] ringHashes = new long[hashes.length];
+        for (int i = 0; i < order.length; i ++)
+        {
+            ringHashes[i] = hashes[order[i]];
+            slots[i] = order[i] / virtualNodes;
+        }
+        return new RedisPartitionTable(RoutingStrategy.RING, shards, epoch, ringHashes, slots, null);
+    }
+
+    public RedisShardClient getRedisClient(String key)
+    {
+        int partition = getPartition(key);
+        if (partition < 0)
+        {
+            return null;
+        }
+        return partitionToRedisClient[partition];
+    }
+
+    public RedisShardClient getRedisClientByPartition(int partition)
+    {
+        if (partition < 0 || partition >= partitionToRedisClient.length)
+        {
+            return null;
+        }
+        return partitionToRedisClient[partition];
+    }
+
+    public RedisShardClient[] getReadersByPartition(int partition)
+    {
+        if (partitionToReaders == null || partition < 0 || partition >= partitionToReaders.length)
+        {
+            return null;
+        }
+        return partitionToReaders[partition];
+    }
+
+    /**
+     * 返回非负的slot，没有可用的slot时返回-1
+     */
+    public int getPartition(String key)
+    {
+        int partitionNum = partitionToRedisClient.length;
+        if (key == null || partitionNum == 0)
+        {
+            return -1;
+        }
+        switch (strategy)
+        {
+        case JUMP:
+            return KeyHash.jumpConsistentHash(KeyHash.hash64(key), partitionNum);
+        case RING:
+            int index = Arrays.binarySearch(ringHashes, KeyHash.hash64(key));
+            if (index < 0)
+            {
+                index = -index - 1;
+            }
+            return ringSlots[index == ringHashes.length ? 0 : index];
+        default:
+            return (key.hashCode() & Integer.MAX_VALUE) % partitionNum;
+        }
+    }
+
+    public int getPartitionNum()
+    {
+        return partitionToRedisClient.length;
+    }
+
+    public RoutingStrategy getStrategy()
+    {
+        return strategy;
+    }
+
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RedisPartitionTable [strategy=" + strategy + ", epoch=" + epoch + ", partitionNum=" + partitionToRedisClient.length + "]";
+    }
+}
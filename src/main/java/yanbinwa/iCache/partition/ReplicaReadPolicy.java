@@ -0,0 +1,120 @@
+package yanbinwa.iCache.partition;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+import yanbinwa.iCache.redis.RedisShardClient;
+
+/**
+ * 为一次读从partition的primary和replica中选择一个client。
+ *
+ * 开启read-your-writes时，本实例在readYourWritesMs内写过的key只读primary。写时间按key的hash记录在
+ * 固定大小的数组中，hash冲突只会让更多的读落到primary上，内存与key的个数无关
+ *
+ * @author yanbinwa
+ *
+ */
+public class ReplicaReadPolicy
+{
+    private static final int WRITE_SLOT_NUM = 4096;
+
+    private final ReplicaReadStrategy strategy;
+    private final long readYourWritesMs;
+    private final AtomicLongArray lastWriteAt;
+
+    private final LongAdder primaryReadCount = new LongAdder();
+    private final LongAdder replicaReadCount = new LongAdder();
+    private final LongAdder pinnedReadCount = new LongAdder();
+
+    public ReplicaReadPolicy(ReplicaReadStrategy strategy, long readYourWritesMs)
+    {
+        this.strategy = strategy;
+        this.readYourWritesMs = readYourWritesMs;
+        this.lastWriteAt = readYourWritesMs > 0 ? new AtomicLongArray(WRITE_SLOT_NUM) : null;
+    }
+
+    public void recordWrite(String key)
+    {
+        if (lastWriteAt != null)
+        {
+            lastWriteAt.set(slotOf(key), System.currentTimeMillis());
+        }
+    }
+
+    public boolean isRecentlyWritten(String key)
+    {
+        return lastWriteAt != null && System.currentTimeMillis() - lastWriteAt.get(slotOf(key)) < readYourWritesMs;
+    }
+
+    /**
+     * readers包含primary本身，为null表示该partition没有replica
+     */
+    public RedisShardClient select(RedisShardClient primary, RedisShardClient[] readers, String key)
+    {
+        if (readers == null || strategy == ReplicaReadStrategy.PRIMARY)
+        {
+            primaryReadCount.increment();
+            return primary;
+        }
+        if (key != null && isRecentlyWritten(key))
+        {
+            pinnedReadCount.increment();
+            return primary;
+        }
+        // 从随机位置开始比较，分数相同时不会总是选中同一个
+        int start = ThreadLocalRandom.current().nextInt(readers.length);
+        RedisShardClient selected = null;
+        double selectedScore = Double.MAX_VALUE;
+        for (int i = 0; i < readers.length; i ++)
+        {
+            RedisShardClient reader = readers[(start + i) % readers.length];
+            if (!reader.isAvailable())
+            {
+                continue;
+            }
+            double score = strategy == ReplicaReadStrategy.EWMA ? (double) reader.getEwmaLatencyMicros() * (reader.getInFlightCount() + 1) : reader.getInFlightCount();
+            if (score < selectedScore)
+            {
+                selected = reader;
+                selectedScore = score;
+            }
+        }
+        if (selected == null || selected == primary)
+        {
+            primaryReadCount.increment();
+            return primary;
+        }
+        replicaReadCount.increment();
+        return selected;
+    }
+
+    public ReplicaReadStrategy getStrategy()
+    {
+        return strategy;
+    }
+
+    public boolean isSameConfig(ReplicaReadStrategy strategy, long readYourWritesMs)
+    {
+        return this.strategy == strategy && this.readYourWritesMs == readYourWritesMs;
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("strategy", strategy.name());
+        stats.put("readYourWritesMs", readYourWritesMs);
+        stats.put("primaryReadCount", primaryReadCount.sum());
+        stats.put("replicaReadCount", replicaReadCount.sum());
+        stats.put("pinnedReadCount", pinnedReadCount.sum());
+        return stats;
+    }
+
+    private static int slotOf(String key)
+    {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (WRITE_SLOT_NUM - 1);
+    }
+}
@@ -0,0 +1,30 @@
+package yanbinwa.iCache.partition;
+
+/**
+ * PRIMARY: 所有读都发到primary
+ * LEAST_OUTSTANDING: 在primary和replica中选择进行中请求最少的一个
+ * EWMA: 按平滑后的命令耗时乘以(进行中请求数+1)选择最小的一个
+ * 
+ * @author yanbinwa
+ *
+ */
+public enum ReplicaReadStrategy
+{
+    PRIMARY, LEAST_OUTSTANDING, EWMA;
+    
+    public static ReplicaReadStrategy fromString(String name)
+    {
+        if (name == null)
+        {
+            return null;
+        }
+        for (ReplicaReadStrategy strategy : values())
+        {
+            if (strategy.name().equalsIgnoreCase(name.trim()))
+            {
+                return strategy;
+            }
+        }
+        return null;
+    }
+}
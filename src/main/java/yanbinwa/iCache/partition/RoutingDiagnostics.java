@@ -0,0 +1,72 @@
+package yanbinwa.iCache.partition;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * 记录每次路由表切换时有多少比例的key换了分片。
+ *
+ * 用一组固定的样本key分别在新旧路由表上查找，RedisShardClient在拓扑变化时对未变化的节点保持同一个对象，
+ * 因此直接比较对象是否相同即可
+ *
+ * @author yanbinwa
+ *
+ */
+public class RoutingDiagnostics
+{
+    private static final int SAMPLE_KEY_NUM = 10000;
+    private static final int HISTORY_SIZE = 20;
+
+    private final String[] sampleKeys = new String[SAMPLE_KEY_NUM];
+    private final Deque<JSONObject> history = new ArrayDeque<JSONObject>();
+
+    public RoutingDiagnostics()
+    {
+        for (int i = 0; i < SAMPLE_KEY_NUM; i ++)
+        {
+            sampleKeys[i] = "routing-sample:" + i;
+        }
+    }
+
+    public double record(RedisPartitionTable oldTable, RedisPartitionTable newTable)
+    {
+        int moved = 0;
+        for (String key : sampleKeys)
+        {
+            if (oldTable.getRedisClient(key) != newTable.getRedisClient(key))
+            {
+                moved ++;
+            }
+        }
+        double movedFraction = (double) moved / SAMPLE_KEY_NUM;
+        JSONObject record = new JSONObject();
+        record.put("time", System.currentTimeMillis());
+        record.put("fromEpoch", oldTable.getEpoch());
+        record.put("toEpoch", newTable.getEpoch());
+        record.put("fromStrategy", oldTable.getStrategy().name());
+        record.put("toStrategy", newTable.getStrategy().name());
+        record.put("fromPartitionNum", oldTable.getPartitionNum());
+        record.put("toPartitionNum", newTable.getPartitionNum());
+        record.put("movedFraction", movedFraction);
+        synchronized(history)
+        {
+            history.addFirst(record);
+            if (history.size() > HISTORY_SIZE)
+            {
+                history.removeLast();
+            }
+        }
+        return movedFraction;
+    }
+
+    public JSONArray getHistory()
+    {
+        synchronized(history)
+        {
+            return new JSONArray(history);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package yanbinwa.iCache.partition;
+
+/**
+ * PARTITION: 使用orchestrator分配的partition，key通过String.hashCode取模，与之前的部署保持兼容
+ * JUMP: 在按serviceName排序的redis服务上做jump consistent hash
+ * RING: 每个redis服务在hash环上放置若干虚拟节点
+ * 
+ * @author yanbinwa
+ *
+ */
+public enum RoutingStrategy
+{
+    PARTITION, JUMP, RING;
+    
+    public static RoutingStrategy fromString(String name)
+    {
+        if (name == null)
+        {
+            return null;
+        }
+        for (RoutingStrategy strategy : values())
+        {
+            if (strategy.name().equalsIgnoreCase(name.trim()))
+            {
+                return strategy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,70 @@
+package yanbinwa.iCache.redis;
+
+public final class AdaptivePoolConfig
+{
+    private final int minTotal;
+    private final int maxTotal;
+    private final long intervalMs;
+    private final long targetBorrowWaitMs;
+    
+    public AdaptivePoolConfig(int minTotal, int maxTotal, long intervalMs, long targetBorrowWaitMs)
+    {
+        this.minTotal = minTotal;
+        this.maxTotal = maxTotal;
+        this.intervalMs = intervalMs;
+        this.targetBorrowWaitMs = targetBorrowWaitMs;
+    }
+
+    public int getMinTotal()
+    {
+        return minTotal;
+    }
+
+    public int getMaxTotal()
+    {
+        return maxTotal;
+    }
+
+    public long getIntervalMs()
+    {
+        return intervalMs;
+    }
+
+    public long getTargetBorrowWaitMs()
+    {
+        return targetBorrowWaitMs;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof AdaptivePoolConfig))
+        {
+            return false;
+        }
+        AdaptivePoolConfig other = (AdaptivePoolConfig) obj;
+        return minTotal == other.minTotal && maxTotal == other.maxTotal && intervalMs == other.intervalMs
+                && targetBorrowWaitMs == other.targetBorrowWaitMs;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = minTotal;
+        result = 31 * result + maxTotal;
+        result = 31 * result + (int) (intervalMs ^ (intervalMs >>> 32));
+        result = 31 * result + (int) (targetBorrowWaitMs ^ (targetBorrowWaitMs >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AdaptivePoolConfig [minTotal=" + minTotal + ", maxTotal=" + maxTotal + ", intervalMs=" + intervalMs
+                + ", targetBorrowWaitMs=" + targetBorrowWaitMs + "]";
+    }
+}
@@ -0,0 +1,78 @@
+package yanbinwa.iCache.redis;
+
+public final class AutoPipelineConfig
+{
+    private final int ioLoops;
+    private final int maxBatch;
+    private final long lingerMicros;
+    private final int maxPending;
+    private final long timeoutMs;
+    
+    public AutoPipelineConfig(int ioLoops, int maxBatch, long lingerMicros, int maxPending, long timeoutMs)
+    {
+        this.ioLoops = ioLoops;
+        this.maxBatch = maxBatch;
+        this.lingerMicros = lingerMicros;
+        this.maxPending = maxPending;
+        this.timeoutMs = timeoutMs;
+    }
+
+    public int getIoLoops()
+    {
+        return ioLoops;
+    }
+
+    public int getMaxBatch()
+    {
+        return maxBatch;
+    }
+
+    public long getLingerMicros()
+    {
+        return lingerMicros;
+    }
+
+    public int getMaxPending()
+    {
+        return maxPending;
+    }
+
+    public long getTimeoutMs()
+    {
+        return timeoutMs;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof AutoPipelineConfig))
+        {
+            return false;
+        }
+        AutoPipelineConfig other = (AutoPipelineConfig) obj;
+        return ioLoops == other.ioLoops && maxBatch == other.maxBatch && lingerMicros == other.lingerMicros
+                && maxPending == other.maxPending && timeoutMs == other.timeoutMs;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = ioLoops;
+        result = 31 * result + maxBatch;
+        result = 31 * result + (int) (lingerMicros ^ (lingerMicros >>> 32));
+        result = 31 * result + maxPending;
+        result = 31 * result + (int) (timeoutMs ^ (timeoutMs >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AutoPipelineConfig [ioLoops=" + ioLoops + ", maxBatch=" + maxBatch + ", lingerMicros=" + lingerMicros
+                + ", maxPending=" + maxPending + ", timeoutMs=" + timeoutMs + "]";
+    }
+}
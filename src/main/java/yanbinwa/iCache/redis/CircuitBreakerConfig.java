@@ -0,0 +1,51 @@
+package yanbinwa.iCache.redis;
+
+public final class CircuitBreakerConfig
+{
+    private final double failureRateThreshold;
+    private final long slowCallMs;
+    private final int minRequests;
+    private final long windowMs;
+    private final long openMs;
+    
+    public CircuitBreakerConfig(double failureRateThreshold, long slowCallMs, int minRequests, long windowMs, long openMs)
+    {
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMs = slowCallMs;
+        this.minRequests = minRequests;
+        this.windowMs = windowMs;
+        this.openMs = openMs;
+    }
+
+    public double getFailureRateThreshold()
+    {
+        return failureRateThreshold;
+    }
+
+    public long getSlowCallMs()
+    {
+        return slowCallMs;
+    }
+
+    public int getMinRequests()
+    {
+        return minRequests;
+    }
+
+    public long getWindowMs()
+    {
+        return windowMs;
+    }
+
+    public long getOpenMs()
+    {
+        return openMs;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CircuitBreakerConfig [failureRateThreshold=" + failureRateThreshold + ", slowCallMs=" + slowCallMs
+                + ", minRequests=" + minRequests + ", windowMs=" + windowMs + ", openMs=" + openMs + "]";
+    }
+}
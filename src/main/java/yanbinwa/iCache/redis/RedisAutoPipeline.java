@@ -0,0 +1,270 @@
+package yanbinwa.iCache.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * 单个分片上的自动pipeline。
+ *
+ * 并发的单key命令先进入分片的队列，由少量的I/O loop线程取出，攒够maxBatch个或者等待lingerMicros后
+ * 作为一个pipeline发送，再逐个完成调用方的future。队列有上限，超过时直接失败，避免无界的排队
+ *
+ * @author yanbinwa
+ *
+ */
+public class RedisAutoPipeline
+{
+    private static final Logger logger = Logger.getLogger(RedisAutoPipeline.class);
+
+    private static final long IDLE_POLL_MS = 100;
+
+    private final JedisPool pool;
+    private final String name;
+    private final AutoPipelineConfig config;
+    private final LinkedBlockingQueue<PendingCommand> queue;
+    private final List<Thread> ioLoops = new ArrayList<Thread>();
+
+    private volatile boolean isRunning = false;
+
+    public RedisAutoPipeline(JedisPool pool, String name, AutoPipelineConfig config)
+    {
+        this.pool = pool;
+        this.name = name;
+        this.config = config;
+        this.queue = new LinkedBlockingQueue<PendingCommand>(config.getMaxPending());
+    }
+
+    public void start()
+    {
+        isRunning = true;
+        for (int i = 0; i < config.getIoLoops(); i ++)
+        {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    runIoLoop();
+                }
+
+            }, "cache-pipeline-" + name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            ioLoops.add(thread);
+        }
+        logger.info("Start auto pipeline for " + name + ": " + config);
+    }
+
+    public void stop()
+    {
+        isRunning = false;
+        for (Thread thread : ioLoops)
+        {
+            try
+            {
+                thread.join(IDLE_POLL_MS * 2);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ioLoops.clear();
+        List<PendingCommand> remains = new ArrayList<PendingCommand>();
+        queue.drainTo(remains);
+        for (PendingCommand command : remains)
+        {
+            command.future.completeExceptionally(new JedisException("Auto pipeline for " + name + " is stopped"));
+        }
+        logger.info("Stop auto pipeline for " + name);
+    }
+
+    public AutoPipelineConfig getConfig()
+    {
+        return config;
+    }
+
+    public CompletableFuture<String> getAsync(String key)
+    {
+        return submit(new PendingCommand(key, null));
+    }
+
+    public CompletableFuture<String> setAsync(String key, String value)
+    {
+        return submit(new PendingCommand(key, value));
+    }
+
+    public String get(String key, long waitMs)
+    {
+        return await(getAsync(key), waitMs);
+    }
+
+    public String set(String key, String value, long waitMs)
+    {
+        return await(setAsync(key, value), waitMs);
+    }
+
+    private CompletableFuture<String> submit(PendingCommand command)
+    {
+        if (!isRunning || !queue.offer(command))
+        {
+            command.future.completeExceptionally(new JedisException("Auto pipeline for " + name + " is full or stopped"));
+        }
+        return command.future;
+    }
+
+    private String await(CompletableFuture<String> future, long waitMs)
+    {
+        try
+        {
+            return future.get(waitMs, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new JedisException("Interrupted while waiting for " + name);
+        }
+        catch (TimeoutException e)
+        {
+            throw new RedisTimeoutException("Timeout while waiting for " + name);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof JedisException)
+            {
+                throw (JedisException) e.getCause();
+            }
+            throw new JedisException(e.getCause());
+        }
+    }
+
+    private void runIoLoop()
+    {
+        List<PendingCommand> batch = new ArrayList<PendingCommand>(config.getMaxBatch());
+        while (isRunning)
+        {
+            try
+            {
+                PendingCommand first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, config.getMaxBatch() - 1);
+                if (batch.size() < config.getMaxBatch() && config.getLingerMicros() > 0)
+                {
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(config.getLingerMicros());
+                    while (batch.size() < config.getMaxBatch())
+                    {
+                        long remain = deadline - System.nanoTime();
+                        if (remain <= 0)
+                        {
+                            break;
+                        }
+                        PendingCommand command = queue.poll(remain, TimeUnit.NANOSECONDS);
+                        if (command == null)
+                        {
+                            break;
+                        }
+                        batch.add(command);
+                    }
+                }
+                flush(batch);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                failAll(batch, new JedisException("Auto pipeline loop is interrupted"));
+                return;
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingCommand> batch)
+    {
+        List<Response<String>> responses = new ArrayList<Response<String>>(batch.size());
+        Jedis jedis = null;
+        try
+        {
+            jedis = pool.getResource();
+            Pipeline pipeline = jedis.pipelined();
+            for (PendingCommand command : batch)
+            {
+                if (command.value == null)
+                {
+                    responses.add(pipeline.get(command.key));
+                }
+                else
+                {
+                    responses.add(pipeline.set(command.key, command.value));
+                }
+            }
+            pipeline.sync();
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Fail to flush pipeline to " + name + ": " + e.getMessage());
+            failAll(batch, e instanceof JedisException ? e : new JedisException(e));
+            return;
+        }
+        finally
+        {
+            if (jedis != null)
+            {
+                jedis.close();
+            }
+        }
+        for (int i = 0; i < batch.size(); i ++)
+        {
+            PendingCommand command = batch.get(i);
+            try
+            {
+                command.future.complete(responses.get(i).get());
+            }
+            catch (RuntimeException e)
+            {
+                command.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void failAll(List<PendingCommand> batch, RuntimeException e)
+    {
+        for (PendingCommand command : batch)
+        {
+            command.future.completeExceptionally(e);
+        }
+    }
+
+    static final class PendingCommand
+    {
+        final String key;
+        // value为null表示GET
+        final String value;
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+
+        PendingCommand(String key, String value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
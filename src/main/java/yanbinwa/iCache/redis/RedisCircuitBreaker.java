@@ -0,0 +1,157 @@
+package yanbinwa.iCache.redis;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * 单个分片的熔断器。
+ *
+ * CLOSED状态下按固定时间窗口统计请求数和失败数(出错或耗时超过slowCallMs)，窗口内请求数达到minRequests
+ * 且失败比例达到failureRateThreshold时进入OPEN，OPEN期间所有请求直接失败；openMs之后进入HALF_OPEN，
+ * 只放过一个试探请求，成功则恢复CLOSED，失败则重新OPEN
+ *
+ * @author yanbinwa
+ *
+ */
+public class RedisCircuitBreaker
+{
+    private static final Logger logger = Logger.getLogger(RedisCircuitBreaker.class);
+
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private volatile CircuitBreakerConfig config;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private volatile long openedAt = 0;
+    private final AtomicBoolean isTrialInFlight = new AtomicBoolean(false);
+
+    private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong windowTotalCount = new AtomicLong(0);
+    private final AtomicLong windowFailureCount = new AtomicLong(0);
+
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+    private final LongAdder openCount = new LongAdder();
+
+    public RedisCircuitBreaker(String name, CircuitBreakerConfig config)
+    {
+        this.name = name;
+        this.config = config;
+    }
+
+    public void setConfig(CircuitBreakerConfig config)
+    {
+        this.config = config;
+    }
+
+    /**
+     * 返回false表示请求应当直接失败，返回true时调用方必须在结束后调用onResult
+     */
+    public boolean tryAcquire()
+    {
+        State current = state.get();
+        if (current == State.CLOSED)
+        {
+            return true;
+        }
+        if (current == State.OPEN)
+        {
+            if (System.currentTimeMillis() - openedAt < config.getOpenMs() || !state.compareAndSet(State.OPEN, State.HALF_OPEN))
+            {
+                rejectedCount.increment();
+                return false;
+            }
+            logger.info("Circuit breaker of " + name + " is half open");
+        }
+        if (isTrialInFlight.compareAndSet(false, true))
+        {
+            return true;
+        }
+        rejectedCount.increment();
+        return false;
+    }
+
+    public void onResult(long latencyMs, boolean isError)
+    {
+        CircuitBreakerConfig currentConfig = config;
+        boolean isFailure = isError || (currentConfig.getSlowCallMs() > 0 && latencyMs >= currentConfig.getSlowCallMs());
+        if (isFailure)
+        {
+            failureCount.increment();
+        }
+        State current = state.get();
+        if (current == State.HALF_OPEN)
+        {
+            if (isFailure)
+            {
+                open(State.HALF_OPEN);
+            }
+            else if (state.compareAndSet(State.HALF_OPEN, State.CLOSED))
+            {
+                resetWindow(System.currentTimeMillis());
+                logger.info("Circuit breaker of " + name + " is closed");
+            }
+            isTrialInFlight.set(false);
+            return;
+        }
+        if (current == State.OPEN)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long start = windowStart.get();
+        if (now - start >= currentConfig.getWindowMs() && windowStart.compareAndSet(start, now))
+        {
+            resetWindow(now);
+        }
+        long total = windowTotalCount.incrementAndGet();
+        long failures = isFailure ? windowFailureCount.incrementAndGet() : windowFailureCount.get();
+        if (isFailure && total >= currentConfig.getMinRequests() && failures >= total * currentConfig.getFailureRateThreshold())
+        {
+            open(State.CLOSED);
+        }
+    }
+
+    public State getState()
+    {
+        return state.get();
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("state", state.get().name());
+        stats.put("windowTotalCount", windowTotalCount.get());
+        stats.put("windowFailureCount", windowFailureCount.get());
+        stats.put("failureCount", failureCount.sum());
+        stats.put("rejectedCount", rejectedCount.sum());
+        stats.put("openCount", openCount.sum());
+        return stats;
+    }
+
+    private void open(State expect)
+    {
+        if (state.compareAndSet(expect, State.OPEN))
+        {
+            openedAt = System.currentTimeMillis();
+            openCount.increment();
+            logger.error("Circuit breaker of " + name + " is open, failures " + windowFailureCount.get() + " of " + windowTotalCount.get());
+        }
+    }
+
+    private void resetWindow(long now)
+    {
+        windowStart.set(now);
+        windowTotalCount.set(0);
+        windowFailureCount.set(0);
+    }
+}
@@ -0,0 +1,61 @@
+package yanbinwa.iCache.redis;
+
+import java.util.NoSuchElementException;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * 在JedisPool的基础上支持按次指定借连接的最长等待时间，用于把等待限制在请求剩余的时间内，
+ * 并且可以在运行时修改连接池的参数
+ * 
+ * @author yanbinwa
+ *
+ */
+public class RedisConnectionPool extends JedisPool
+{
+    public RedisConnectionPool(GenericObjectPoolConfig poolConfig, String host, int port, int timeout)
+    {
+        super(poolConfig, host, port, timeout);
+    }
+    
+    public Jedis getResource(long maxWaitMs)
+    {
+        try
+        {
+            Jedis jedis = internalPool.borrowObject(maxWaitMs);
+            jedis.setDataSource(this);
+            return jedis;
+        }
+        catch (NoSuchElementException e)
+        {
+            throw new RedisTimeoutException("Could not get a resource from the pool in " + maxWaitMs + "ms", e);
+        }
+        catch (Exception e)
+        {
+            throw new JedisConnectionException("Could not get a resource from the pool", e);
+        }
+    }
+    
+    /**
+     * maxTotal和maxIdle单独给出，自适应模式下由RedisShardClient计算
+     */
+    public void applyConfig(RedisPoolConfig config, int maxTotal, int maxIdle)
+    {
+        internalPool.setMaxTotal(maxTotal);
+        internalPool.setMaxIdle(maxIdle);
+        internalPool.setMinIdle(Math.min(config.getMinIdle(), maxIdle));
+        internalPool.setMaxWaitMillis(config.getMaxWaitMs());
+        internalPool.setTestOnBorrow(config.isTestOnBorrow());
+        internalPool.setTestWhileIdle(config.isTestWhileIdle());
+        internalPool.setTimeBetweenEvictionRunsMillis(config.getIdleCheckIntervalMs());
+    }
+    
+    public int getMaxTotal()
+    {
+        return internalPool.getMaxTotal();
+    }
+}
@@ -0,0 +1,122 @@
+package yanbinwa.iCache.redis;
+
+import redis.clients.jedis.JedisPoolConfig;
+
+public final class RedisPoolConfig
+{
+    private final int maxTotal;
+    private final int maxIdle;
+    private final int minIdle;
+    private final long maxWaitMs;
+    private final boolean testOnBorrow;
+    private final boolean testWhileIdle;
+    private final long idleCheckIntervalMs;
+    // 为null表示连接池大小固定为maxTotal
+    private final AdaptivePoolConfig adaptive;
+    
+    public RedisPoolConfig(int maxTotal, int maxIdle, int minIdle, long maxWaitMs, boolean testOnBorrow, boolean testWhileIdle,
+            long idleCheckIntervalMs, AdaptivePoolConfig adaptive)
+    {
+        this.maxTotal = maxTotal;
+        this.maxIdle = maxIdle;
+        this.minIdle = minIdle;
+        this.maxWaitMs = maxWaitMs;
+        this.testOnBorrow = testOnBorrow;
+        this.testWhileIdle = testWhileIdle;
+        this.idleCheckIntervalMs = idleCheckIntervalMs;
+        this.adaptive = adaptive;
+    }
+
+    public JedisPoolConfig toJedisPoolConfig()
+    {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(maxTotal);
+        config.setMaxIdle(maxIdle);
+        config.setMinIdle(minIdle);
+        config.setMaxWaitMillis(maxWaitMs);
+        config.setTestOnBorrow(testOnBorrow);
+        config.setTestWhileIdle(testWhileIdle);
+        config.setTimeBetweenEvictionRunsMillis(idleCheckIntervalMs);
+        return config;
+    }
+
+    public int getMaxTotal()
+    {
+        return maxTotal;
+    }
+
+    public int getMaxIdle()
+    {
+        return maxIdle;
+    }
+
+    public int getMinIdle()
+    {
+        return minIdle;
+    }
+
+    public long getMaxWaitMs()
+    {
+        return maxWaitMs;
+    }
+
+    public boolean isTestOnBorrow()
+    {
+        return testOnBorrow;
+    }
+
+    public boolean isTestWhileIdle()
+    {
+        return testWhileIdle;
+    }
+
+    public long getIdleCheckIntervalMs()
+    {
+        return idleCheckIntervalMs;
+    }
+
+    public AdaptivePoolConfig getAdaptive()
+    {
+        return adaptive;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof RedisPoolConfig))
+        {
+            return false;
+        }
+        RedisPoolConfig other = (RedisPoolConfig) obj;
+        return maxTotal == other.maxTotal && maxIdle == other.maxIdle && minIdle == other.minIdle && maxWaitMs == other.maxWaitMs
+                && testOnBorrow == other.testOnBorrow && testWhileIdle == other.testWhileIdle
+                && idleCheckIntervalMs == other.idleCheckIntervalMs
+                && (adaptive == null ? other.adaptive == null : adaptive.equals(other.adaptive));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = maxTotal;
+        result = 31 * result + maxIdle;
+        result = 31 * result + minIdle;
+        result = 31 * result + (int) (maxWaitMs ^ (maxWaitMs >>> 32));
+        result = 31 * result + (testOnBorrow ? 1 : 0);
+        result = 31 * result + (testWhileIdle ? 1 : 0);
+        result = 31 * result + (int) (idleCheckIntervalMs ^ (idleCheckIntervalMs >>> 32));
+        result = 31 * result + (adaptive == null ? 0 : adaptive.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RedisPoolConfig [maxTotal=" + maxTotal + ", maxIdle=" + maxIdle + ", minIdle=" + minIdle + ", maxWaitMs=" + maxWaitMs
+                + ", testOnBorrow=" + testOnBorrow + ", testWhileIdle=" + testWhileIdle + ", idleCheckIntervalMs=" + idleCheckIntervalMs
+                + ", adaptive=" + adaptive + "]";
+    }
+}
@@ -0,0 +1,6 @@
+package yanbinwa.iCache.redis;
+
+public interface RedisRoleListener
+{
+    void handleReadOnly(RedisShardClient redisClient);
+}
@@ -0,0 +1,1140 @@
+package yanbinwa.iCache.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+import yanbinwa.iCache.metrics.CacheMetrics;
+import yanbinwa.iCache.metrics.LatencyHistogram;
+import yanbinwa.iCache.util.DaemonThreadFactory;
+import yanbinwa.iCache.util.Deadline;
+
+/**
+ * 一个Redis分片的连接池，连接在每个命令内借出并归还，可以被多个线程同时使用。
+ *
+ * 多key的命令使用MGET/MSET，一次往返完成同一分片上的所有key。开启自动pipeline后，
+ * 单key的命令交给RedisAutoPipeline合并发送。开启write-behind后，所有写入进入RedisWriteBehind的缓冲区后立即返回，
+ * 读之前需要先通过getPendingWrite检查还没有写入Redis的值。
+ *
+ * 异步接口在分片独占的有界线程池中执行，线程数不超过连接池大小，队列满时直接失败，
+ * 一个慢分片最多占满自己的线程池，不会拖住调用方的线程。
+ *
+ * 每个命令都可以带一个Deadline(为null表示不限制)，借连接的等待和异步结果的等待都不会超过它；
+ * 熔断器打开时命令直接失败。
+ *
+ * 拓扑变化时新的client先预建连接再发布到路由表，被移除的client通过retire等待进行中的请求结束
+ * (或超过grace时间)后才关闭连接池。
+ *
+ * 连接池参数可以在运行时修改；开启自适应后按周期根据借连接的平均等待时间和峰值占用调整maxTotal，
+ * 异步线程池的线程数跟随maxTotal
+ *
+ * @author yanbinwa
+ *
+ */
+public class RedisShardClient
+{
+    private static final Logger logger = Logger.getLogger(RedisShardClient.class);
+    
+    private static final ScheduledExecutorService shardTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-shard-timer"));
+    
+    private static final long RETIRE_CHECK_INTERVAL_MS = 100;
+    private static final long WRITE_BEHIND_STOP_TIMEOUT_MS = 5000;
+    
+    // 峰值占用超过该比例时扩容，低于该比例且没有等待时缩容
+    private static final double ADAPTIVE_GROW_UTILIZATION = 0.9;
+    private static final double ADAPTIVE_SHRINK_UTILIZATION = 0.5;
+
+    private final String ip;
+    private final int port;
+    private volatile long maxWait;
+    private volatile RedisPoolConfig poolConfig;
+    private ScheduledFuture<?> adaptiveTask = null;
+    private final RedisConnectionPool pool;
+    private final ThreadPoolExecutor ioExecutor;
+    private final RedisCircuitBreaker circuitBreaker;
+    private volatile boolean isCircuitBreakerEnabled = false;
+    private volatile RedisAutoPipeline autoPipeline = null;
+    private volatile RedisWriteBehind writeBehind = null;
+
+    private final LongAdder deadlineExceededCount = new LongAdder();
+    private final AtomicInteger inFlightCount = new AtomicInteger(0);
+    private volatile boolean isClosed = false;
+    
+    // 自适应调整使用的统计，每个周期清零
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder borrowWaitNanos = new LongAdder();
+    private final AtomicInteger peakActive = new AtomicInteger(0);
+    private final LongAdder resizeCount = new LongAdder();
+    
+    // 命令耗时和借连接等待，单位微秒
+    private final LatencyHistogram commandLatency = new LatencyHistogram(CacheMetrics.LATENCY_SUB_BUCKET_BITS, CacheMetrics.LATENCY_MAX_MICROS);
+    private final LatencyHistogram poolWait = new LatencyHistogram(CacheMetrics.LATENCY_SUB_BUCKET_BITS, CacheMetrics.LATENCY_MAX_MICROS);
+    private final LongAdder errorCount = new LongAdder();
+    // 平滑系数1/8的命令耗时，用于在primary和replica之间选择
+    private volatile long ewmaLatencyNanos = 0;
+    // 拓扑变化时通过INFO replication查询，master或slave，查询失败为null
+    private volatile String role = null;
+    private volatile RedisRoleListener roleListener = null;
+    // 预建连接或者命令成功过一次之后为true
+    private volatile boolean isConnected = false;
+
+    public RedisShardClient(String ip, int port, RedisPoolConfig poolConfig, int ioQueueSize)
+    {
+        this.ip = ip;
+        this.port = port;
+        this.maxWait = poolConfig.getMaxWaitMs();
+        this.poolConfig = poolConfig;
+        int maxTotal = initialMaxTotal(poolConfig);
+        this.pool = new RedisConnectionPool(poolConfig.toJedisPoolConfig(), ip, port, Protocol.DEFAULT_TIMEOUT);
+        this.ioExecutor = new ThreadPoolExecutor(maxTotal, maxTotal, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(ioQueueSize), new DaemonThreadFactory("cache-io-" + ip + ":" + port));
+        this.circuitBreaker = new RedisCircuitBreaker(ip + ":" + port, null);
+        resize(maxTotal);
+        scheduleAdaptive(poolConfig.getAdaptive());
+    }
+
+    public String getString(final String key, final Deadline deadline)
+    {
+        return execute(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception
+            {
+                RedisAutoPipeline pipeline = autoPipeline;
+                if (pipeline != null)
+                {
+                    return pipeline.get(key, waitMs(deadline, pipeline.getConfig().getTimeoutMs()));
+                }
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.get(key);
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    public void setString(final String key, final String value, final Deadline deadline)
+    {
+        if (offerWriteBehind(key, value, deadline))
+        {
+            return;
+        }
+        execute(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception
+            {
+                RedisAutoPipeline pipeline = autoPipeline;
+                if (pipeline != null)
+                {
+                    return pipeline.set(key, value, waitMs(deadline, pipeline.getConfig().getTimeoutMs()));
+                }
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.set(key, value);
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    /**
+     * 返回的value与keys一一对应，不存在的key对应null
+     */
+    public List<String> getStrings(final List<String> keys, final Deadline deadline)
+    {
+        if (keys.isEmpty())
+        {
+            return new ArrayList<String>();
+        }
+        return execute(new Callable<List<String>>() {
+
+            @Override
+            public List<String> call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.mget(keys.toArray(new String[keys.size()]));
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    public void setStrings(Map<String, String> keyToValueMap, final Deadline deadline)
+    {
+        if (keyToValueMap.isEmpty())
+        {
+            return;
+        }
+        if (writeBehind != null)
+        {
+            for (Map.Entry<String, String> entry : keyToValueMap.entrySet())
+            {
+                if (!offerWriteBehind(entry.getKey(), entry.getValue(), deadline))
+                {
+                    throw new JedisException("Un valid value of " + entry.getKey() + " for write behind of " + this);
+                }
+            }
+            return;
+        }
+        final String[] keysValues = new String[keyToValueMap.size() * 2];
+        int index = 0;
+        for (Map.Entry<String, String> entry : keyToValueMap.entrySet())
+        {
+            keysValues[index ++] = entry.getKey();
+            keysValues[index ++] = entry.getValue();
+        }
+        execute(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.mset(keysValues);
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    /**
+     * 每个key用SET NX在同一个pipeline中写入，已经存在的key不会被覆盖，ttlMs小于等于0表示不设置过期时间
+     */
+    public void setStringsIfAbsent(final Map<String, String> keyToValueMap, final long ttlMs, final Deadline deadline)
+    {
+        if (keyToValueMap.isEmpty())
+        {
+            return;
+        }
+        execute(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    Pipeline pipeline = jedis.pipelined();
+                    for (Map.Entry<String, String> entry : keyToValueMap.entrySet())
+                    {
+                        if (ttlMs > 0)
+                        {
+                            pipeline.set(entry.getKey(), entry.getValue(), "NX", "PX", (int) Math.min(ttlMs, Integer.MAX_VALUE));
+                        }
+                        else
+                        {
+                            pipeline.setnx(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    pipeline.sync();
+                    return null;
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    /**
+     * 返回实际删除的key个数，开启write-behind时先丢弃缓冲区中这些key的值
+     */
+    public long deleteStrings(final List<String> keys, final Deadline deadline)
+    {
+        if (keys.isEmpty())
+        {
+            return 0;
+        }
+        discardWriteBehind(keys, deadline);
+        return execute(new Callable<Long>() {
+
+            @Override
+            public Long call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.del(keys.toArray(new String[keys.size()]));
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    /**
+     * 带过期时间的写不经过自动pipeline和write-behind，缓冲区中该key的值先被丢弃
+     */
+    public void setStringWithTtl(final String key, final String value, final long ttlMs, final Deadline deadline)
+    {
+        discardWriteBehind(Collections.singletonList(key), deadline);
+        execute(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.psetex(key, ttlMs, value);
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    /**
+     * GET和PTTL在同一个pipeline中发送，只有一次往返
+     */
+    public TtlValue getStringWithTtl(final String key, final Deadline deadline)
+    {
+        return execute(new Callable<TtlValue>() {
+
+            @Override
+            public TtlValue call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    Pipeline pipeline = jedis.pipelined();
+                    Response<String> value = pipeline.get(key);
+                    Response<Long> ttlMs = pipeline.pttl(key);
+                    pipeline.sync();
+                    return new TtlValue(value.get(), ttlMs.get());
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    /**
+     * 二进制的value不经过自动pipeline，返回Redis中保存的原始字节
+     */
+    public byte[] getBytes(String key, final Deadline deadline)
+    {
+        final byte[] rawKey = SafeEncoder.encode(key);
+        return execute(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.get(rawKey);
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    /**
+     * 二进制的value直接写入Redis，开启write-behind时先丢弃缓冲区中该key的值，避免之后被旧值覆盖
+     */
+    public void setBytes(String key, final byte[] value, final Deadline deadline)
+    {
+        discardWriteBehind(Collections.singletonList(key), deadline);
+        final byte[] rawKey = SafeEncoder.encode(key);
+        execute(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.set(rawKey, value);
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    /**
+     * 从cursor开始做一次SCAN，返回下一个cursor以及本次扫到的key，cursor为"0"表示扫描结束
+     */
+    public ScanResult<String> scan(final String cursor, final int count, final Deadline deadline)
+    {
+        return execute(new Callable<ScanResult<String>>() {
+
+            @Override
+            public ScanResult<String> call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.scan(cursor, new ScanParams().count(count));
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }, deadline);
+    }
+
+    public CompletableFuture<String> getStringAsync(final String key, final Deadline deadline)
+    {
+        final boolean isAcquired;
+        inFlightCount.incrementAndGet();
+        try
+        {
+            isAcquired = acquire(deadline);
+        }
+        catch (JedisException e)
+        {
+            inFlightCount.decrementAndGet();
+            return failedFuture(e);
+        }
+        RedisAutoPipeline pipeline = autoPipeline;
+        if (pipeline != null)
+        {
+            return track(pipeline.getAsync(key), isAcquired, deadline);
+        }
+        return track(submitAsync(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.get(key);
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }), isAcquired, deadline);
+    }
+
+    public CompletableFuture<String> setStringAsync(final String key, final String value, final Deadline deadline)
+    {
+        try
+        {
+            if (offerWriteBehind(key, value, deadline))
+            {
+                return CompletableFuture.completedFuture("OK");
+            }
+        }
+        catch (JedisException e)
+        {
+            return failedFuture(e);
+        }
+        final boolean isAcquired;
+        inFlightCount.incrementAndGet();
+        try
+        {
+            isAcquired = acquire(deadline);
+        }
+        catch (JedisException e)
+        {
+            inFlightCount.decrementAndGet();
+            return failedFuture(e);
+        }
+        RedisAutoPipeline pipeline = autoPipeline;
+        if (pipeline != null)
+        {
+            return track(pipeline.setAsync(key, value), isAcquired, deadline);
+        }
+        return track(submitAsync(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception
+            {
+                Jedis jedis = borrow(deadline);
+                try
+                {
+                    return jedis.set(key, value);
+                }
+                finally
+                {
+                    jedis.close();
+                }
+            }
+
+        }), isAcquired, deadline);
+    }
+
+    public void setCircuitBreakerConfig(CircuitBreakerConfig config)
+    {
+        if (config == null)
+        {
+            isCircuitBreakerEnabled = false;
+            return;
+        }
+        circuitBreaker.setConfig(config);
+        isCircuitBreakerEnabled = true;
+    }
+
+    /**
+     * 运行时修改连接池参数，自适应模式下maxTotal从当前值开始限制在[minTotal, maxTotal]内
+     */
+    public synchronized void setPoolConfig(RedisPoolConfig config)
+    {
+        if (isClosed || config.equals(poolConfig))
+        {
+            return;
+        }
+        RedisPoolConfig oldConfig = poolConfig;
+        poolConfig = config;
+        maxWait = config.getMaxWaitMs();
+        int maxTotal = config.getMaxTotal();
+        AdaptivePoolConfig adaptive = config.getAdaptive();
+        if (adaptive != null)
+        {
+            maxTotal = oldConfig.getAdaptive() == null ? initialMaxTotal(config) : clamp(pool.getMaxTotal(), adaptive);
+        }
+        resize(maxTotal);
+        scheduleAdaptive(adaptive);
+        logger.info("Update pool config of " + this + ": " + config);
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("address", ip + ":" + port);
+        stats.put("maxTotal", pool.getMaxTotal());
+        stats.put("adaptive", poolConfig.getAdaptive() != null);
+        stats.put("resizeCount", resizeCount.sum());
+        stats.put("numActive", pool.getNumActive());
+        stats.put("numIdle", pool.getNumIdle());
+        stats.put("numWaiters", pool.getNumWaiters());
+        stats.put("meanBorrowWaitTimeMillis", pool.getMeanBorrowWaitTimeMillis());
+        stats.put("maxBorrowWaitTimeMillis", pool.getMaxBorrowWaitTimeMillis());
+        stats.put("ioQueueSize", ioExecutor.getQueue().size());
+        stats.put("autoPipeline", autoPipeline != null);
+        RedisWriteBehind currentWriteBehind = writeBehind;
+        if (currentWriteBehind != null)
+        {
+            stats.put("writeBehind", currentWriteBehind.getStats());
+        }
+        stats.put("deadlineExceededCount", deadlineExceededCount.sum());
+        stats.put("inFlightCount", inFlightCount.get());
+        stats.put("role", role == null ? JSONObject.NULL : role);
+        stats.put("ewmaLatencyMicros", getEwmaLatencyMicros());
+        stats.put("errorCount", errorCount.sum());
+        stats.put("latencyMicros", commandLatency.getSnapshot());
+        stats.put("poolWaitMicros", poolWait.getSnapshot());
+        if (isCircuitBreakerEnabled)
+        {
+            stats.put("circuitBreaker", circuitBreaker.getStats());
+        }
+        return stats;
+    }
+
+    private <T> T execute(Callable<T> command, Deadline deadline)
+    {
+        inFlightCount.incrementAndGet();
+        boolean isAcquired = false;
+        long startTime = System.nanoTime();
+        boolean isError = true;
+        try
+        {
+            isAcquired = acquire(deadline);
+            T ret = command.call();
+            isError = false;
+            return ret;
+        }
+        catch (JedisException e)
+        {
+            onReadOnly(e);
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new JedisException(e);
+        }
+        finally
+        {
+            inFlightCount.decrementAndGet();
+            onResult(startTime, isAcquired, isError);
+        }
+    }
+
+    private CompletableFuture<String> submitAsync(final Callable<String> command)
+    {
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        try
+        {
+            ioExecutor.execute(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        future.complete(command.call());
+                    }
+                    catch (Exception e)
+                    {
+                        future.completeExceptionally(e);
+                    }
+                }
+
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            future.completeExceptionally(new JedisException("Io executor of " + this + " is full or stopped"));
+        }
+        return future;
+    }
+
+    /**
+     * 异步命令的熔断统计和超时，超过deadline时future以JedisException结束
+     */
+    private CompletableFuture<String> track(final CompletableFuture<String> future, final boolean isAcquired, Deadline deadline)
+    {
+        final long startTime = System.nanoTime();
+        final ScheduledFuture<?> timeout = deadline == null || future.isDone() ? null : shardTimer.schedule(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                if (future.completeExceptionally(new RedisTimeoutException("Deadline exceeded on " + RedisShardClient.this)))
+                {
+                    deadlineExceededCount.increment();
+                }
+            }
+
+        }, deadline.remainingMs(), TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<String, Throwable>() {
+
+            @Override
+            public void accept(String value, Throwable e)
+            {
+                inFlightCount.decrementAndGet();
+                if (timeout != null)
+                {
+                    timeout.cancel(false);
+                }
+                onResult(startTime, isAcquired, e != null);
+                onReadOnly(e instanceof CompletionException ? e.getCause() : e);
+            }
+
+        });
+        return future;
+    }
+
+    private void onResult(long startTime, boolean isAcquired, boolean isError)
+    {
+        long latencyNanos = System.nanoTime() - startTime;
+        commandLatency.record(latencyNanos / 1000);
+        long ewma = ewmaLatencyNanos;
+        ewmaLatencyNanos = ewma == 0 ? latencyNanos : ewma + (latencyNanos - ewma) / 8;
+        if (isError)
+        {
+            errorCount.increment();
+        }
+        else if (!isConnected)
+        {
+            isConnected = true;
+        }
+        if (isAcquired)
+        {
+            circuitBreaker.onResult(TimeUnit.NANOSECONDS.toMillis(latencyNanos), isError);
+        }
+    }
+
+    /**
+     * 返回true表示熔断器计入了这次请求，熔断或已超时则抛出JedisException
+     */
+    private boolean acquire(Deadline deadline)
+    {
+        if (deadline != null && deadline.isExpired())
+        {
+            deadlineExceededCount.increment();
+            throw new RedisTimeoutException("Deadline exceeded before calling " + this);
+        }
+        if (!isCircuitBreakerEnabled)
+        {
+            return false;
+        }
+        if (!circuitBreaker.tryAcquire())
+        {
+            throw new JedisException("Circuit breaker of " + this + " is open");
+        }
+        return true;
+    }
+
+    private Jedis borrow(Deadline deadline)
+    {
+        if (deadline == null)
+        {
+            long startTime = System.nanoTime();
+            Jedis jedis = pool.getResource();
+            onBorrow(startTime);
+            return jedis;
+        }
+        long remainingMs = deadline.remainingMs();
+        if (remainingMs <= 0)
+        {
+            deadlineExceededCount.increment();
+            throw new RedisTimeoutException("Deadline exceeded before borrowing from " + this);
+        }
+        long startTime = System.nanoTime();
+        Jedis jedis = pool.getResource(maxWait < 0 ? remainingMs : Math.min(maxWait, remainingMs));
+        onBorrow(startTime);
+        return jedis;
+    }
+
+    private void onBorrow(long startTime)
+    {
+        long waitNanos = System.nanoTime() - startTime;
+        poolWait.record(waitNanos / 1000);
+        borrowWaitNanos.add(waitNanos);
+        borrowCount.increment();
+        int active = pool.getNumActive();
+        int peak = peakActive.get();
+        while (active > peak && !peakActive.compareAndSet(peak, active))
+        {
+            peak = peakActive.get();
+        }
+    }
+
+    /**
+     * 等待时间超过目标或者峰值占用接近上限时扩容1/4，占用较低且没有等待时每次缩容1个
+     */
+    private synchronized void adjustPoolSize()
+    {
+        AdaptivePoolConfig adaptive = poolConfig.getAdaptive();
+        if (isClosed || adaptive == null)
+        {
+            return;
+        }
+        long count = borrowCount.sumThenReset();
+        long waitNanos = borrowWaitNanos.sumThenReset();
+        int peak = peakActive.getAndSet(0);
+        int maxTotal = pool.getMaxTotal();
+        double avgWaitMs = count == 0 ? 0 : (double) waitNanos / count / 1000000;
+        double utilization = (double) peak / maxTotal;
+        int newMaxTotal = maxTotal;
+        if (avgWaitMs >= adaptive.getTargetBorrowWaitMs() && count > 0 || utilization >= ADAPTIVE_GROW_UTILIZATION)
+        {
+            newMaxTotal = clamp(maxTotal + Math.max(1, maxTotal / 4), adaptive);
+        }
+        else if (utilization < ADAPTIVE_SHRINK_UTILIZATION && pool.getNumWaiters() == 0)
+        {
+            newMaxTotal = clamp(maxTotal - 1, adaptive);
+        }
+        if (newMaxTotal != maxTotal)
+        {
+            logger.info("Resize pool of " + this + " from " + maxTotal + " to " + newMaxTotal + ", avgBorrowWaitMs " + avgWaitMs
+                    + ", peak utilization " + utilization);
+            resize(newMaxTotal);
+            resizeCount.increment();
+        }
+    }
+
+    /**
+     * 自适应模式下maxIdle跟随maxTotal，避免扩容后的连接在归还时被关闭
+     */
+    private void resize(int maxTotal)
+    {
+        RedisPoolConfig config = poolConfig;
+        int maxIdle = config.getAdaptive() == null ? Math.min(config.getMaxIdle(), maxTotal) : maxTotal;
+        pool.applyConfig(config, maxTotal, maxIdle);
+        if (maxTotal > ioExecutor.getMaximumPoolSize())
+        {
+            ioExecutor.setMaximumPoolSize(maxTotal);
+            ioExecutor.setCorePoolSize(maxTotal);
+        }
+        else
+        {
+            ioExecutor.setCorePoolSize(maxTotal);
+            ioExecutor.setMaximumPoolSize(maxTotal);
+        }
+    }
+
+    private void scheduleAdaptive(AdaptivePoolConfig adaptive)
+    {
+        if (adaptiveTask != null)
+        {
+            adaptiveTask.cancel(false);
+            adaptiveTask = null;
+        }
+        if (adaptive == null)
+        {
+            return;
+        }
+        adaptiveTask = shardTimer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    adjustPoolSize();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Fail to adjust pool size of " + RedisShardClient.this, e);
+                }
+            }
+
+        }, adaptive.getIntervalMs(), adaptive.getIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private static int initialMaxTotal(RedisPoolConfig config)
+    {
+        AdaptivePoolConfig adaptive = config.getAdaptive();
+        return adaptive == null ? config.getMaxTotal() : clamp(config.getMaxTotal(), adaptive);
+    }
+
+    private static int clamp(int maxTotal, AdaptivePoolConfig adaptive)
+    {
+        return Math.max(adaptive.getMinTotal(), Math.min(adaptive.getMaxTotal(), maxTotal));
+    }
+
+    private static long waitMs(Deadline deadline, long defaultWaitMs)
+    {
+        return deadline == null ? defaultWaitMs : Math.min(defaultWaitMs, deadline.remainingMs());
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Exception e)
+    {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    public synchronized void enableAutoPipeline(AutoPipelineConfig config)
+    {
+        RedisAutoPipeline oldPipeline = autoPipeline;
+        if (oldPipeline != null && oldPipeline.getConfig().equals(config))
+        {
+            return;
+        }
+        RedisAutoPipeline pipeline = new RedisAutoPipeline(pool, ip + ":" + port, config);
+        pipeline.start();
+        autoPipeline = pipeline;
+        if (oldPipeline != null)
+        {
+            oldPipeline.stop();
+        }
+    }
+
+    public synchronized void enableWriteBehind(WriteBehindConfig config)
+    {
+        RedisWriteBehind oldWriteBehind = writeBehind;
+        if (oldWriteBehind != null && oldWriteBehind.getConfig().equals(config))
+        {
+            return;
+        }
+        RedisWriteBehind currentWriteBehind = new RedisWriteBehind(pool, ip + ":" + port, config);
+        currentWriteBehind.start();
+        writeBehind = currentWriteBehind;
+        if (oldWriteBehind != null)
+        {
+            oldWriteBehind.stop(WRITE_BEHIND_STOP_TIMEOUT_MS);
+        }
+    }
+
+    public synchronized void disableWriteBehind()
+    {
+        RedisWriteBehind oldWriteBehind = writeBehind;
+        if (oldWriteBehind != null)
+        {
+            writeBehind = null;
+            oldWriteBehind.stop(WRITE_BEHIND_STOP_TIMEOUT_MS);
+        }
+    }
+
+    public synchronized void disableAutoPipeline()
+    {
+        RedisAutoPipeline oldPipeline = autoPipeline;
+        if (oldPipeline != null)
+        {
+            autoPipeline = null;
+            oldPipeline.stop();
+        }
+    }
+
+    /**
+     * 返回还没有写入Redis的值，没有开启write-behind或没有该key时返回null
+     */
+    public String getPendingWrite(String key)
+    {
+        RedisWriteBehind currentWriteBehind = writeBehind;
+        return currentWriteBehind == null ? null : currentWriteBehind.getPending(key);
+    }
+
+    /**
+     * 等待write-behind缓冲区中的数据写入Redis，返回false表示timeoutMs内没有完成
+     */
+    public boolean flushWriteBehind(long timeoutMs)
+    {
+        RedisWriteBehind currentWriteBehind = writeBehind;
+        return currentWriteBehind == null || currentWriteBehind.flush(timeoutMs);
+    }
+
+    /**
+     * 返回false表示没有开启write-behind，缓冲区满时抛出JedisException
+     */
+    private void discardWriteBehind(List<String> keys, Deadline deadline)
+    {
+        RedisWriteBehind currentWriteBehind = writeBehind;
+        if (currentWriteBehind != null && !currentWriteBehind.discard(keys, waitMs(deadline, currentWriteBehind.getConfig().getMaxBlockMs())))
+        {
+            throw new RedisTimeoutException("Timeout while waiting for write behind of " + this);
+        }
+    }
+
+    private boolean offerWriteBehind(String key, String value, Deadline deadline)
+    {
+        RedisWriteBehind currentWriteBehind = writeBehind;
+        if (currentWriteBehind == null || value == null)
+        {
+            return false;
+        }
+        if (!currentWriteBehind.offer(key, value, waitMs(deadline, currentWriteBehind.getConfig().getMaxBlockMs())))
+        {
+            throw new JedisException("Write behind buffer of " + this + " is full");
+        }
+        return true;
+    }
+
+    /**
+     * 通过INFO replication查询当前的角色，失败或超过deadline时返回null
+     */
+    public String refreshRole(Deadline deadline)
+    {
+        String currentRole = null;
+        Jedis jedis = null;
+        try
+        {
+            jedis = borrow(deadline);
+            for (String line : jedis.info("replication").split("\r?\n"))
+            {
+                if (line.startsWith("role:"))
+                {
+                    currentRole = line.substring("role:".length()).trim();
+                    break;
+                }
+            }
+            isConnected = true;
+        }
+        catch (JedisException e)
+        {
+            logger.error("Fail to query role of " + this + ": " + e.getMessage());
+        }
+        finally
+        {
+            if (jedis != null)
+            {
+                jedis.close();
+            }
+        }
+        role = currentRole;
+        return currentRole;
+    }
+
+    public String getRole()
+    {
+        return role;
+    }
+
+    public void setRoleListener(RedisRoleListener listener)
+    {
+        roleListener = listener;
+    }
+
+    /**
+     * master切换后原来的master会以READONLY拒绝写入，此时先把角色标记为slave，再通知重新查询
+     */
+    private void onReadOnly(Throwable e)
+    {
+        if (!(e instanceof JedisDataException) || e.getMessage() == null || !e.getMessage().startsWith("READONLY"))
+        {
+            return;
+        }
+        role = "slave";
+        RedisRoleListener listener = roleListener;
+        if (listener != null)
+        {
+            listener.handleReadOnly(this);
+        }
+    }
+
+    public boolean isConnected()
+    {
+        return isConnected;
+    }
+
+    public int getInFlightCount()
+    {
+        return inFlightCount.get();
+    }
+
+    public long getEwmaLatencyMicros()
+    {
+        return ewmaLatencyNanos / 1000;
+    }
+
+    /**
+     * 未关闭且熔断器没有打开
+     */
+    public boolean isAvailable()
+    {
+        return !isClosed && (!isCircuitBreakerEnabled || circuitBreaker.getState() != RedisCircuitBreaker.State.OPEN);
+    }
+
+    /**
+     * 预先建立连接，返回实际建立的连接数，失败不会抛出异常
+     */
+    public int prewarm(int connectionNum)
+    {
+        int created = 0;
+        for (int i = 0; i < connectionNum; i ++)
+        {
+            try
+            {
+                pool.addObjects(1);
+                created ++;
+                isConnected = true;
+            }
+            catch (Exception e)
+            {
+                logger.error("Fail to prewarm connection to " + this + ": " + e.getMessage());
+                break;
+            }
+        }
+        return created;
+    }
+    
+    /**
+     * 引用过这个client的路由表都释放之后调用，之后不会有新的请求进入，进行中的请求结束或者超过graceMs后关闭连接池
+     */
+    public void retire(final long graceMs)
+    {
+        final long retireTime = System.currentTimeMillis();
+        shardTimer.schedule(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                long elapsed = System.currentTimeMillis() - retireTime;
+                int inFlight = inFlightCount.get();
+                if (inFlight > 0 && elapsed < graceMs)
+                {
+                    shardTimer.schedule(this, RETIRE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (inFlight > 0)
+                {
+                    logger.error("Close " + RedisShardClient.this + " with " + inFlight + " requests in flight after " + elapsed + "ms");
+                }
+                else
+                {
+                    logger.info("Close drained " + RedisShardClient.this + " after " + elapsed + "ms");
+                }
+                closePool();
+            }
+
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void closePool()
+    {
+        if (isClosed)
+        {
+            return;
+        }
+        isClosed = true;
+        scheduleAdaptive(null);
+        disableWriteBehind();
+        disableAutoPipeline();
+        ioExecutor.shutdown();
+        pool.destroy();
+    }
+
+    public String getIp()
+    {
+        return ip;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RedisShardClient [" + ip + ":" + port + "]";
+    }
+}
@@ -0,0 +1,24 @@
+package yanbinwa.iCache.redis;
+
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * 超过请求的deadline或者借连接超时，用于和其他的redis错误分开统计
+ * 
+ * @author yanbinwa
+ *
+ */
+public class RedisTimeoutException extends JedisException
+{
+    private static final long serialVersionUID = 1L;
+
+    public RedisTimeoutException(String message)
+    {
+        super(message);
+    }
+
+    public RedisTimeoutException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,499 @@
+package yanbinwa.iCache.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * 单个分片上的write-behind缓冲。
+ *
+ * 写入进入缓冲区后立即返回，同一个key的多次写只保留最后一个值。修改缓冲区需要持有lock，getPending不加锁，
+ * 缓冲区和正在发送的数据作为一个整体换出，读到的总是同一时刻的两者。flush线程在缓冲区达到maxBatch个key，
+ * 或第一个未发送的写入已经等待flushIntervalMs时，把整个缓冲区换出，按maxBatch拆成多个MSET在一个pipeline中发送。
+ *
+ * 缓冲区满时写入最多等待maxBlockMs，仍然没有空间则失败。正在发送的数据在收到回复之前仍然可以通过getPending读到，
+ * 发送失败的key在没有被更新的值覆盖、发送期间没有被discard且有空间时重新进入缓冲区
+ *
+ * @author yanbinwa
+ *
+ */
+public class RedisWriteBehind
+{
+    private static final Logger logger = Logger.getLogger(RedisWriteBehind.class);
+
+    private static final long IDLE_WAIT_MS = 100;
+
+    private final JedisPool pool;
+    private final String name;
+    private final WriteBehindConfig config;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private volatile Buffers buffers = new Buffers(new ConcurrentHashMap<String, String>(), Collections.<String, String>emptyMap());
+    // 正在发送期间被discard的key，发送失败时不能再放回缓冲区，否则旧值会覆盖之后的删除或写入
+    private final Set<String> discardedWhileFlushing = new HashSet<String>();
+    private long firstPendingNanos = 0;
+    private boolean isForceFlush = false;
+
+    private volatile boolean isRunning = false;
+    private Thread flushThread = null;
+
+    private final LongAdder acceptedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder flushedKeyCount = new LongAdder();
+    private final LongAdder failedFlushCount = new LongAdder();
+    private final LongAdder droppedKeyCount = new LongAdder();
+
+    public RedisWriteBehind(JedisPool pool, String name, WriteBehindConfig config)
+    {
+        this.pool = pool;
+        this.name = name;
+        this.config = config;
+    }
+
+    public void start()
+    {
+        isRunning = true;
+        flushThread = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                runFlushLoop();
+            }
+
+        }, "cache-write-behind-" + name);
+        flushThread.setDaemon(true);
+        flushThread.start();
+        logger.info("Start write behind for " + name + ": " + config);
+    }
+
+    /**
+     * 停止接收新的写入，等待缓冲区中的数据发送完成，最多等待timeoutMs
+     */
+    public void stop(long timeoutMs)
+    {
+        lock.lock();
+        try
+        {
+            isRunning = false;
+            flushNeeded.signalAll();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        try
+        {
+            flushThread.join(timeoutMs);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        int remains = getPendingCount();
+        if (remains > 0)
+        {
+            logger.error("Stop write behind for " + name + " with " + remains + " keys not flushed");
+        }
+        else
+        {
+            logger.info("Stop write behind for " + name);
+        }
+    }
+
+    public WriteBehindConfig getConfig()
+    {
+        return config;
+    }
+
+    /**
+     * 返回false表示缓冲区在waitMs内一直是满的，或者已经停止
+     */
+    public boolean offer(String key, String value, long waitMs)
+    {
+        long remainNanos = TimeUnit.MILLISECONDS.toNanos(waitMs);
+        lock.lock();
+        try
+        {
+            while (isRunning && buffers.pending.size() >= config.getMaxPendingKeys() && !buffers.pending.containsKey(key))
+            {
+                if (remainNanos <= 0)
+                {
+                    rejectedCount.increment();
+                    return false;
+                }
+                remainNanos = notFull.awaitNanos(remainNanos);
+            }
+            if (!isRunning)
+            {
+                rejectedCount.increment();
+                return false;
+            }
+            Map<String, String> pending = buffers.pending;
+            if (pending.isEmpty())
+            {
+                firstPendingNanos = System.nanoTime();
+            }
+            if (pending.put(key, value) != null)
+            {
+                coalescedCount.increment();
+            }
+            acceptedCount.increment();
+            if (pending.size() >= config.getMaxBatch())
+            {
+                flushNeeded.signal();
+            }
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            rejectedCount.increment();
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回还没有确认写入Redis的值，没有时返回null
+     */
+    public String getPending(String key)
+    {
+        Buffers current = buffers;
+        if (current.pending.isEmpty() && current.flushing.isEmpty())
+        {
+            return null;
+        }
+        String value = current.pending.get(key);
+        return value != null ? value : current.flushing.get(key);
+    }
+
+    /**
+     * 从缓冲区中移除这些key，如果其中有正在发送的key则等待发送完成，之后直接对Redis的删除不会被旧值覆盖。
+     * 返回false表示waitMs内没有等到
+     */
+    public boolean discard(Collection<String> keys, long waitMs)
+    {
+        long remainNanos = TimeUnit.MILLISECONDS.toNanos(waitMs);
+        lock.lock();
+        try
+        {
+            boolean isRemoved = false;
+            Map<String, String> flushing = buffers.flushing;
+            for (String key : keys)
+            {
+                isRemoved |= buffers.pending.remove(key) != null;
+                if (flushing.containsKey(key))
+                {
+                    discardedWhileFlushing.add(key);
+                }
+            }
+            if (isRemoved)
+            {
+                notFull.signalAll();
+            }
+            while (isFlushing(keys))
+            {
+                if (remainNanos <= 0)
+                {
+                    return false;
+                }
+                remainNanos = drained.awaitNanos(remainNanos);
+            }
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFlushing(Collection<String> keys)
+    {
+        for (String key : keys)
+        {
+            if (buffers.flushing.containsKey(key))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 立即发送缓冲区中的数据并等待完成，返回false表示timeoutMs内没有发送完
+     */
+    public boolean flush(long timeoutMs)
+    {
+        long remainNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try
+        {
+            isForceFlush = true;
+            flushNeeded.signal();
+            while (getPendingCount() > 0)
+            {
+                if (remainNanos <= 0 || !flushThread.isAlive())
+                {
+                    return false;
+                }
+                remainNanos = drained.awaitNanos(remainNanos);
+            }
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getPendingCount()
+    {
+        Buffers current = buffers;
+        return current.pending.size() + current.flushing.size();
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("pendingCount", getPendingCount());
+        stats.put("acceptedCount", acceptedCount.sum());
+        stats.put("coalescedCount", coalescedCount.sum());
+        stats.put("rejectedCount", rejectedCount.sum());
+        stats.put("flushCount", flushCount.sum());
+        stats.put("flushedKeyCount", flushedKeyCount.sum());
+        stats.put("failedFlushCount", failedFlushCount.sum());
+        stats.put("droppedKeyCount", droppedKeyCount.sum());
+        return stats;
+    }
+
+    private void runFlushLoop()
+    {
+        while (true)
+        {
+            Map<String, String> batch = null;
+            lock.lock();
+            try
+            {
+                if (!awaitFlush())
+                {
+                    return;
+                }
+                // 换出之后batch不再被修改
+                batch = buffers.pending;
+                buffers = new Buffers(new ConcurrentHashMap<String, String>(), batch);
+                isForceFlush = false;
+                notFull.signalAll();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            boolean isFlushed = send(batch);
+            lock.lock();
+            try
+            {
+                if (!isFlushed && isRunning)
+                {
+                    requeue(batch);
+                }
+                else if (!isFlushed)
+                {
+                    droppedKeyCount.add(batch.size());
+                    logger.error("Drop " + batch.size() + " keys of " + name + " after flush failure on stop");
+                }
+                // 重新放入缓冲区之后再清除正在发送的数据，getPending不会错过这些key
+                buffers = new Buffers(buffers.pending, Collections.<String, String>emptyMap());
+                discardedWhileFlushing.clear();
+                drained.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            if (!isFlushed && isRunning)
+            {
+                // 发送失败后等待一个周期再重试，避免分片不可用时空转
+                try
+                {
+                    Thread.sleep(Math.max(config.getFlushIntervalMs(), 1));
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 持有lock时调用，返回false表示已经停止且缓冲区为空
+     */
+    private boolean awaitFlush() throws InterruptedException
+    {
+        while (true)
+        {
+            Map<String, String> pending = buffers.pending;
+            if (pending.isEmpty())
+            {
+                if (!isRunning)
+                {
+                    return false;
+                }
+                isForceFlush = false;
+                drained.signalAll();
+                flushNeeded.await(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+                continue;
+            }
+            if (!isRunning || isForceFlush || pending.size() >= config.getMaxBatch())
+            {
+                return true;
+            }
+            long waitNanos = firstPendingNanos + TimeUnit.MILLISECONDS.toNanos(config.getFlushIntervalMs()) - System.nanoTime();
+            if (waitNanos <= 0)
+            {
+                return true;
+            }
+            flushNeeded.awaitNanos(waitNanos);
+        }
+    }
+
+    boolean send(Map<String, String> batch)
+    {
+        List<String> keysValues = new ArrayList<String>(config.getMaxBatch() * 2);
+        Jedis jedis = null;
+        try
+        {
+            jedis = pool.getResource();
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<String, String> entry : batch.entrySet())
+            {
+                keysValues.add(entry.getKey());
+                keysValues.add(entry.getValue());
+                if (keysValues.size() >= config.getMaxBatch() * 2)
+                {
+                    pipeline.mset(keysValues.toArray(new String[keysValues.size()]));
+                    keysValues.clear();
+                }
+            }
+            if (!keysValues.isEmpty())
+            {
+                pipeline.mset(keysValues.toArray(new String[keysValues.size()]));
+            }
+            // syncAndReturnAll会把每条命令的错误作为结果返回
+            for (Object reply : pipeline.syncAndReturnAll())
+            {
+                if (reply instanceof Exception)
+                {
+                    throw (Exception) reply;
+                }
+            }
+            flushCount.increment();
+            flushedKeyCount.add(batch.size());
+            return true;
+        }
+        catch (Exception e)
+        {
+            failedFlushCount.increment();
+            logger.error("Fail to flush " + batch.size() + " keys to " + name + ": " + e.getMessage());
+            return false;
+        }
+        finally
+        {
+            if (jedis != null)
+            {
+                jedis.close();
+            }
+        }
+    }
+
+    /**
+     * 持有lock时调用，发送失败的key放回缓冲区，已经有更新值的key和放不下的key丢弃
+     */
+    private void requeue(Map<String, String> batch)
+    {
+        Map<String, String> pending = buffers.pending;
+        boolean wasEmpty = pending.isEmpty();
+        int requeued = 0;
+        int dropped = 0;
+        for (Map.Entry<String, String> entry : batch.entrySet())
+        {
+            if (pending.containsKey(entry.getKey()) || discardedWhileFlushing.contains(entry.getKey()))
+            {
+                continue;
+            }
+            if (pending.size() >= config.getMaxPendingKeys())
+            {
+                dropped ++;
+                continue;
+            }
+            pending.put(entry.getKey(), entry.getValue());
+            requeued ++;
+        }
+        if (wasEmpty && requeued > 0)
+        {
+            firstPendingNanos = System.nanoTime();
+        }
+        if (dropped > 0)
+        {
+            droppedKeyCount.add(dropped);
+            logger.error("Drop " + dropped + " keys of " + name + " after flush failure");
+        }
+    }
+
+    /**
+     * pending只在持有lock时修改，flushing换出之后不再修改
+     */
+    private static final class Buffers
+    {
+        final ConcurrentHashMap<String, String> pending;
+        final Map<String, String> flushing;
+
+        Buffers(ConcurrentHashMap<String, String> pending, Map<String, String> flushing)
+        {
+            this.pending = pending;
+            this.flushing = flushing;
+        }
+    }
+}
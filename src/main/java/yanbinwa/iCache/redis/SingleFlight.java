@@ -0,0 +1,177 @@
+package yanbinwa.iCache.redis;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.json.JSONObject;
+
+import redis.clients.jedis.exceptions.JedisException;
+
+import yanbinwa.iCache.util.DaemonThreadFactory;
+
+/**
+ * 合并同一个key上并发的读请求。
+ *
+ * 第一个调用方成为leader去读Redis，之后到达的调用方拿到同一个future并在有限的时间内等待结果，
+ * 热点key失效时只会占用一个连接。写路径调用forget，之后的读不会再加入写之前发起的那次读
+ *
+ * @author yanbinwa
+ *
+ */
+public class SingleFlight
+{
+    private static final ScheduledExecutorService waitTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-single-flight-timer"));
+
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    private final LongAdder leaderCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder waitTimeoutCount = new LongAdder();
+
+    public Flight begin(String key)
+    {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null)
+        {
+            coalescedCount.increment();
+            return new Flight(key, existing, false);
+        }
+        leaderCount.increment();
+        return new Flight(key, future, true);
+    }
+
+    public void complete(Flight flight, String value)
+    {
+        inFlight.remove(flight.key, flight.future);
+        flight.future.complete(value);
+    }
+
+    public void fail(Flight flight, Throwable e)
+    {
+        if (e instanceof CompletionException && e.getCause() != null)
+        {
+            e = e.getCause();
+        }
+        inFlight.remove(flight.key, flight.future);
+        flight.future.completeExceptionally(e);
+    }
+
+    public void forget(String key)
+    {
+        inFlight.remove(key);
+    }
+
+    /**
+     * 非leader的调用方等待leader的结果，超时抛出RedisTimeoutException，leader失败时抛出相同的异常
+     */
+    public String await(Flight flight, long waitMs)
+    {
+        try
+        {
+            return flight.future.get(waitMs, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new JedisException("Interrupted while waiting for in flight read of " + flight.key);
+        }
+        catch (TimeoutException e)
+        {
+            waitTimeoutCount.increment();
+            throw new RedisTimeoutException("Timeout while waiting for in flight read of " + flight.key);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof JedisException)
+            {
+                throw (JedisException) e.getCause();
+            }
+            throw new JedisException(e.getCause());
+        }
+    }
+
+    /**
+     * 异步的follower，waitMs后以RedisTimeoutException结束，leader失败时以相同的异常结束
+     */
+    public CompletableFuture<String> awaitAsync(final Flight flight, long waitMs)
+    {
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        final ScheduledFuture<?> timeout = flight.future.isDone() ? null : waitTimer.schedule(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                if (result.completeExceptionally(new RedisTimeoutException("Timeout while waiting for in flight read of " + flight.key)))
+                {
+                    waitTimeoutCount.increment();
+                }
+            }
+
+        }, waitMs, TimeUnit.MILLISECONDS);
+        flight.future.whenComplete(new BiConsumer<String, Throwable>() {
+
+            @Override
+            public void accept(String value, Throwable e)
+            {
+                if (timeout != null)
+                {
+                    timeout.cancel(false);
+                }
+                if (e != null)
+                {
+                    result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                }
+                else
+                {
+                    result.complete(value);
+                }
+            }
+
+        });
+        return result;
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("inFlightCount", inFlight.size());
+        stats.put("leaderCount", leaderCount.sum());
+        stats.put("coalescedCount", coalescedCount.sum());
+        stats.put("waitTimeoutCount", waitTimeoutCount.sum());
+        return stats;
+    }
+
+    public static final class Flight
+    {
+        private final String key;
+        private final CompletableFuture<String> future;
+        private final boolean isLeader;
+
+        Flight(String key, CompletableFuture<String> future, boolean isLeader)
+        {
+            this.key = key;
+            this.future = future;
+            this.isLeader = isLeader;
+        }
+
+        public boolean isLeader()
+        {
+            return isLeader;
+        }
+
+        public CompletableFuture<String> getFuture()
+        {
+            return future;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package yanbinwa.iCache.redis;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * 写入时的过期时间抖动和读取时的提前刷新。
+ *
+ * 抖动按key的最长前缀匹配jitterRatio，实际的ttl在[ttl, ttl * (1 + jitterRatio)]中均匀分布，避免同一批写入的key同时过期。
+ *
+ * 提前刷新采用XFetch：剩余时间为ttl的key满足 -deltaMs * beta * ln(rand) >= ttl 时当作未命中，deltaMs是重新计算value的预计耗时，
+ * 越接近过期提前刷新的概率越高，因此同一个key的重新计算被分散到过期前的一小段时间内
+ *
+ * @author yanbinwa
+ *
+ */
+public class TtlPolicy
+{
+    public static final TtlPolicy NONE = new TtlPolicy(0, null, false, 0, 0);
+
+    private final double defaultJitterRatio;
+    // 按前缀长度从长到短排列
+    private final String[] prefixes;
+    private final double[] prefixJitterRatios;
+    private final boolean isEarlyRefreshEnabled;
+    private final double beta;
+    private final long deltaMs;
+
+    private final LongAdder earlyRefreshCount = new LongAdder();
+
+    public TtlPolicy(double defaultJitterRatio, Map<String, Double> prefixToJitterRatio, boolean isEarlyRefreshEnabled, double beta, long deltaMs)
+    {
+        this.defaultJitterRatio = defaultJitterRatio;
+        int size = prefixToJitterRatio == null ? 0 : prefixToJitterRatio.size();
+        this.prefixes = size == 0 ? new String[0] : prefixToJitterRatio.keySet().toArray(new String[size]);
+        Arrays.sort(prefixes, new Comparator<String>() {
+
+            @Override
+            public int compare(String a, String b)
+            {
+                return Integer.compare(b.length(), a.length());
+            }
+
+        });
+        this.prefixJitterRatios = new double[size];
+        for (int i = 0; i < size; i ++)
+        {
+            prefixJitterRatios[i] = prefixToJitterRatio.get(prefixes[i]);
+        }
+        this.isEarlyRefreshEnabled = isEarlyRefreshEnabled;
+        this.beta = beta;
+        this.deltaMs = deltaMs;
+    }
+
+    public long applyJitter(String key, long ttlMs)
+    {
+        double ratio = getJitterRatio(key);
+        if (ratio <= 0 || ttlMs <= 0)
+        {
+            return ttlMs;
+        }
+        return ttlMs + (long) (ttlMs * ratio * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * 返回true表示这次读应当当作未命中，由调用方提前重新计算
+     */
+    public boolean isEarlyExpired(long ttlMs)
+    {
+        if (!isEarlyRefreshEnabled || ttlMs <= 0)
+        {
+            return false;
+        }
+        // 1 - nextDouble()在(0, 1]中，ln不会是负无穷
+        double gap = -deltaMs * beta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        if (gap < ttlMs)
+        {
+            return false;
+        }
+        earlyRefreshCount.increment();
+        return true;
+    }
+
+    double getJitterRatio(String key)
+    {
+        for (int i = 0; i < prefixes.length; i ++)
+        {
+            if (key.startsWith(prefixes[i]))
+            {
+                return prefixJitterRatios[i];
+            }
+        }
+        return defaultJitterRatio;
+    }
+
+    public boolean isSameConfig(TtlPolicy other)
+    {
+        return other != null && defaultJitterRatio == other.defaultJitterRatio && Arrays.equals(prefixes, other.prefixes)
+                && Arrays.equals(prefixJitterRatios, other.prefixJitterRatios) && isEarlyRefreshEnabled == other.isEarlyRefreshEnabled
+                && beta == other.beta && deltaMs == other.deltaMs;
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("defaultJitterRatio", defaultJitterRatio);
+        stats.put("prefixNum", prefixes.length);
+        stats.put("earlyRefresh", isEarlyRefreshEnabled);
+        stats.put("earlyRefreshCount", earlyRefreshCount.sum());
+        return stats;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TtlPolicy [defaultJitterRatio=" + defaultJitterRatio + ", prefixes=" + Arrays.toString(prefixes) + ", jitterRatios="
+                + Arrays.toString(prefixJitterRatios) + ", isEarlyRefreshEnabled=" + isEarlyRefreshEnabled + ", beta=" + beta + ", deltaMs=" + deltaMs + "]";
+    }
+}
@@ -0,0 +1,40 @@
+package yanbinwa.iCache.redis;
+
+/**
+ * value以及剩余的过期时间，ttlMs与Redis的PTTL相同：-1表示没有过期时间，-2表示key不存在。
+ *
+ * 开启提前刷新时，快要过期的key会以很小的概率返回value为null而ttlMs大于0的结果，调用方应当把它当作未命中重新计算
+ *
+ * @author yanbinwa
+ *
+ */
+public final class TtlValue
+{
+    public static final long NO_EXPIRE = -1;
+    public static final long NOT_EXIST = -2;
+
+    private final String value;
+    private final long ttlMs;
+
+    public TtlValue(String value, long ttlMs)
+    {
+        this.value = value;
+        this.ttlMs = ttlMs;
+    }
+
+    public String getValue()
+    {
+        return value;
+    }
+
+    public long getTtlMs()
+    {
+        return ttlMs;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TtlValue [value=" + value + ", ttlMs=" + ttlMs + "]";
+    }
+}
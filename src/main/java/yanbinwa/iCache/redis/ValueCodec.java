@@ -0,0 +1,228 @@
+package yanbinwa.iCache.redis;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 二进制value在Redis中的存储格式。
+ *
+ * 不小于thresholdBytes的value用deflate压缩，前面加上MAGIC、格式和原始长度；其余value原样保存，
+ * 因此之前用字符串接口写入的数据也可以直接读出。原始value恰好以MAGIC开头时加上STORED的header，避免被误认为压缩数据
+ *
+ * @author yanbinwa
+ *
+ */
+public final class ValueCodec
+{
+    private static final Logger logger = Logger.getLogger(ValueCodec.class);
+
+    private static final byte[] MAGIC = {0, 'i', 'C', 'z'};
+    private static final byte FORMAT_STORED = 0;
+    private static final byte FORMAT_DEFLATE = 1;
+    // MAGIC、1字节格式、4字节原始长度
+    private static final int HEADER_BYTES = MAGIC.length + 5;
+
+    public static final ValueCodec DISABLED = new ValueCodec(Integer.MAX_VALUE, Deflater.BEST_SPEED);
+
+    // Deflater和Inflater持有native内存，每个线程复用一个
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater();
+        }
+
+    };
+
+    private final int thresholdBytes;
+    private final int level;
+
+    public ValueCodec(int thresholdBytes, int level)
+    {
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+    }
+
+    public byte[] encode(byte[] value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        // 不超过header长度的value压缩后不可能更短
+        if (value.length >= thresholdBytes && value.length > HEADER_BYTES)
+        {
+            byte[] compressed = deflate(value);
+            if (compressed != null)
+            {
+                return compressed;
+            }
+        }
+        return hasMagic(value) ? withHeader(value, FORMAT_STORED) : value;
+    }
+
+    /**
+     * 没有header的value原样返回
+     */
+    public static byte[] decode(byte[] value)
+    {
+        if (value == null || value.length < HEADER_BYTES || !hasMagic(value))
+        {
+            return value;
+        }
+        byte format = value[MAGIC.length];
+        int length = readLength(value);
+        if (format == FORMAT_STORED && length == value.length - HEADER_BYTES)
+        {
+            return Arrays.copyOfRange(value, HEADER_BYTES, value.length);
+        }
+        if (format != FORMAT_DEFLATE || length < 0)
+        {
+            return value;
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(value, HEADER_BYTES, value.length - HEADER_BYTES);
+        byte[] result = new byte[length];
+        try
+        {
+            int offset = 0;
+            while (offset < length && !inflater.finished())
+            {
+                int inflated = inflater.inflate(result, offset, length - offset);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                offset += inflated;
+            }
+            if (offset != length)
+            {
+                logger.error("Un valid compressed value, expect " + length + " bytes but got " + offset);
+                return value;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            logger.error("Un valid compressed value: " + e.getMessage());
+            return value;
+        }
+        return result;
+    }
+
+    public int getThresholdBytes()
+    {
+        return thresholdBytes;
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * 压缩后不小于原始长度时返回null
+     */
+    private byte[] deflate(byte[] value)
+    {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(value);
+        deflater.finish();
+        byte[] buffer = new byte[value.length];
+        writeHeader(buffer, FORMAT_DEFLATE, value.length);
+        int offset = HEADER_BYTES;
+        while (!deflater.finished() && offset < buffer.length)
+        {
+            offset += deflater.deflate(buffer, offset, buffer.length - offset);
+        }
+        if (!deflater.finished())
+        {
+            return null;
+        }
+        return Arrays.copyOf(buffer, offset);
+    }
+
+    private static byte[] withHeader(byte[] value, byte format)
+    {
+        byte[] result = new byte[HEADER_BYTES + value.length];
+        writeHeader(result, format, value.length);
+        System.arraycopy(value, 0, result, HEADER_BYTES, value.length);
+        return result;
+    }
+
+    private static void writeHeader(byte[] buffer, byte format, int length)
+    {
+        System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+        buffer[MAGIC.length] = format;
+        buffer[MAGIC.length + 1] = (byte) (length >>> 24);
+        buffer[MAGIC.length + 2] = (byte) (length >>> 16);
+        buffer[MAGIC.length + 3] = (byte) (length >>> 8);
+        buffer[MAGIC.length + 4] = (byte) length;
+    }
+
+    private static int readLength(byte[] value)
+    {
+        return (value[MAGIC.length + 1] & 0xff) << 24 | (value[MAGIC.length + 2] & 0xff) << 16
+                | (value[MAGIC.length + 3] & 0xff) << 8 | (value[MAGIC.length + 4] & 0xff);
+    }
+
+    private static boolean hasMagic(byte[] value)
+    {
+        if (value.length < MAGIC.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i ++)
+        {
+            if (value[i] != MAGIC[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof ValueCodec))
+        {
+            return false;
+        }
+        ValueCodec other = (ValueCodec) obj;
+        return thresholdBytes == other.thresholdBytes && level == other.level;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * thresholdBytes + level;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ValueCodec [thresholdBytes=" + thresholdBytes + ", level=" + level + "]";
+    }
+}
@@ -0,0 +1,70 @@
+package yanbinwa.iCache.redis;
+
+public final class WriteBehindConfig
+{
+    private final int maxPendingKeys;
+    private final int maxBatch;
+    private final long flushIntervalMs;
+    private final long maxBlockMs;
+    
+    public WriteBehindConfig(int maxPendingKeys, int maxBatch, long flushIntervalMs, long maxBlockMs)
+    {
+        this.maxPendingKeys = maxPendingKeys;
+        this.maxBatch = maxBatch;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxBlockMs = maxBlockMs;
+    }
+
+    public int getMaxPendingKeys()
+    {
+        return maxPendingKeys;
+    }
+
+    public int getMaxBatch()
+    {
+        return maxBatch;
+    }
+
+    public long getFlushIntervalMs()
+    {
+        return flushIntervalMs;
+    }
+
+    public long getMaxBlockMs()
+    {
+        return maxBlockMs;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof WriteBehindConfig))
+        {
+            return false;
+        }
+        WriteBehindConfig other = (WriteBehindConfig) obj;
+        return maxPendingKeys == other.maxPendingKeys && maxBatch == other.maxBatch
+                && flushIntervalMs == other.flushIntervalMs && maxBlockMs == other.maxBlockMs;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = maxPendingKeys;
+        result = 31 * result + maxBatch;
+        result = 31 * result + (int) (flushIntervalMs ^ (flushIntervalMs >>> 32));
+        result = 31 * result + (int) (maxBlockMs ^ (maxBlockMs >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WriteBehindConfig [maxPendingKeys=" + maxPendingKeys + ", maxBatch=" + maxBatch
+                + ", flushIntervalMs=" + flushIntervalMs + ", maxBlockMs=" + maxBlockMs + "]";
+    }
+}
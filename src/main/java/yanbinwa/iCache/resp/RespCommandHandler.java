@@ -0,0 +1,315 @@
+package yanbinwa.iCache.resp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import yanbinwa.common.exceptions.RedisErrorException;
+import yanbinwa.common.exceptions.ServiceUnavailableException;
+import yanbinwa.iCache.service.CacheService;
+
+/**
+ * 把Redis命令转换为CacheService的调用，返回的future总是正常结束，失败时结果是错误回复。
+ *
+ * GET和SET使用CacheService的异步接口，不占用I/O线程；MGET、MSET和DEL在worker线程中执行
+ *
+ * @author yanbinwa
+ *
+ */
+class RespCommandHandler
+{
+    private final CacheService cacheService;
+    private final Executor workerExecutor;
+
+    RespCommandHandler(CacheService cacheService, Executor workerExecutor)
+    {
+        this.cacheService = cacheService;
+        this.workerExecutor = workerExecutor;
+    }
+
+    CompletableFuture<byte[]> handle(List<byte[]> command)
+    {
+        try
+        {
+            return dispatch(command);
+        }
+        catch (RuntimeException e)
+        {
+            return CompletableFuture.completedFuture(toError(e));
+        }
+    }
+
+    private CompletableFuture<byte[]> dispatch(List<byte[]> command)
+    {
+        String name = new String(command.get(0), StandardCharsets.UTF_8).toUpperCase();
+        int argNum = command.size() - 1;
+        switch (name)
+        {
+        case "GET":
+            if (argNum != 1)
+            {
+                return wrongArgs(name);
+            }
+            return reply(cacheService.getStringAsync(toString(command.get(1))), new BiFunction<String, Throwable, byte[]>() {
+
+                @Override
+                public byte[] apply(String value, Throwable e)
+                {
+                    return e != null ? toError(e) : RespReply.bulk(value);
+                }
+
+            });
+        case "SET":
+            if (argNum == 4)
+            {
+                return setWithTtl(command);
+            }
+            if (argNum != 2)
+            {
+                return argNum > 2 ? CompletableFuture.completedFuture(RespReply.error("ERR only EX and PX options are supported")) : wrongArgs(name);
+            }
+            return reply(cacheService.setStringAsync(toString(command.get(1)), toString(command.get(2))), new BiFunction<Void, Throwable, byte[]>() {
+
+                @Override
+                public byte[] apply(Void value, Throwable e)
+                {
+                    return e != null ? toError(e) : RespReply.OK;
+                }
+
+            });
+        case "MGET":
+            if (argNum < 1)
+            {
+                return wrongArgs(name);
+            }
+            final List<String> keys = toStrings(command);
+            return execute(new Supplier<byte[]>() {
+
+                @Override
+                public byte[] get()
+                {
+                    try
+                    {
+                        return RespReply.array(cacheService.getStrings(keys));
+                    }
+                    catch (RedisErrorException | ServiceUnavailableException e)
+                    {
+                        return toError(e);
+                    }
+                }
+
+            });
+        case "MSET":
+            if (argNum < 2 || argNum % 2 != 0)
+            {
+                return wrongArgs(name);
+            }
+            final Map<String, String> keyToValueMap = new LinkedHashMap<String, String>();
+            for (int i = 1; i < command.size(); i += 2)
+            {
+                keyToValueMap.put(toString(command.get(i)), toString(command.get(i + 1)));
+            }
+            return execute(new Supplier<byte[]>() {
+
+                @Override
+                public byte[] get()
+                {
+                    try
+                    {
+                        cacheService.setStrings(keyToValueMap);
+                        return RespReply.OK;
+                    }
+                    catch (RedisErrorException | ServiceUnavailableException e)
+                    {
+                        return toError(e);
+                    }
+                }
+
+            });
+        case "DEL":
+            if (argNum < 1)
+            {
+                return wrongArgs(name);
+            }
+            final List<String> delKeys = toStrings(command);
+            return execute(new Supplier<byte[]>() {
+
+                @Override
+                public byte[] get()
+                {
+                    try
+                    {
+                        return RespReply.integer(cacheService.deleteStrings(delKeys));
+                    }
+                    catch (RedisErrorException | ServiceUnavailableException e)
+                    {
+                        return toError(e);
+                    }
+                }
+
+            });
+        case "PING":
+            if (argNum > 1)
+            {
+                return wrongArgs(name);
+            }
+            return CompletableFuture.completedFuture(argNum == 0 ? RespReply.PONG : RespReply.bulk(toString(command.get(1))));
+        case "SELECT":
+            // 只有一个db，客户端连接时发送的SELECT 0直接返回成功
+            return CompletableFuture.completedFuture(RespReply.OK);
+        case "COMMAND":
+            return CompletableFuture.completedFuture(RespReply.EMPTY_ARRAY);
+        default:
+            return CompletableFuture.completedFuture(RespReply.error("ERR unknown command '" + name.toLowerCase() + "'"));
+        }
+    }
+
+    /**
+     * SET key value EX seconds或PX milliseconds
+     */
+    private CompletableFuture<byte[]> setWithTtl(List<byte[]> command)
+    {
+        final String key = toString(command.get(1));
+        final String value = toString(command.get(2));
+        String option = toString(command.get(3)).toUpperCase();
+        long ttl = 0;
+        try
+        {
+            ttl = Long.parseLong(toString(command.get(4)));
+        }
+        catch (NumberFormatException e)
+        {
+            return CompletableFuture.completedFuture(RespReply.error("ERR value is not an integer or out of range"));
+        }
+        if (!option.equals("EX") && !option.equals("PX"))
+        {
+            return CompletableFuture.completedFuture(RespReply.error("ERR only EX and PX options are supported"));
+        }
+        if (ttl <= 0)
+        {
+            return CompletableFuture.completedFuture(RespReply.error("ERR invalid expire time in set"));
+        }
+        final long ttlMs = option.equals("EX") ? ttl * 1000 : ttl;
+        return execute(new Supplier<byte[]>() {
+
+            @Override
+            public byte[] get()
+            {
+                try
+                {
+                    cacheService.setString(key, value, ttlMs);
+                    return RespReply.OK;
+                }
+                catch (RedisErrorException | ServiceUnavailableException e)
+                {
+                    return toError(e);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * 返回命令涉及的key，同一个连接上涉及相同key的命令需要按顺序执行
+     */
+    static List<String> keysOf(List<byte[]> command)
+    {
+        String name = new String(command.get(0), StandardCharsets.UTF_8).toUpperCase();
+        switch (name)
+        {
+        case "GET":
+        case "SET":
+            return command.size() > 1 ? Collections.singletonList(toString(command.get(1))) : Collections.<String>emptyList();
+        case "MGET":
+        case "DEL":
+            return toStrings(command);
+        case "MSET":
+            List<String> keys = new ArrayList<String>(command.size() / 2);
+            for (int i = 1; i < command.size(); i += 2)
+            {
+                keys.add(toString(command.get(i)));
+            }
+            return keys;
+        default:
+            return Collections.emptyList();
+        }
+    }
+
+    private <T> CompletableFuture<byte[]> reply(CompletableFuture<T> future, BiFunction<T, Throwable, byte[]> toReply)
+    {
+        return future.handle(toReply);
+    }
+
+    /**
+     * worker线程中抛出的任何异常都转换为错误回复
+     */
+    private CompletableFuture<byte[]> execute(Supplier<byte[]> command)
+    {
+        try
+        {
+            return CompletableFuture.supplyAsync(command, workerExecutor).handle(new BiFunction<byte[], Throwable, byte[]>() {
+
+                @Override
+                public byte[] apply(byte[] reply, Throwable e)
+                {
+                    return e != null ? toError(e) : reply;
+                }
+
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            return CompletableFuture.completedFuture(RespReply.error("ERR server is busy"));
+        }
+    }
+
+    private static CompletableFuture<byte[]> wrongArgs(String name)
+    {
+        return CompletableFuture.completedFuture(RespReply.error("ERR wrong number of arguments for '" + name.toLowerCase() + "' command"));
+    }
+
+    static byte[] toError(Throwable e)
+    {
+        if (e instanceof CompletionException && e.getCause() != null)
+        {
+            e = e.getCause();
+        }
+        if (e instanceof ServiceUnavailableException)
+        {
+            return RespReply.error("ERR service unavailable");
+        }
+        if (e instanceof RedisErrorException)
+        {
+            return RespReply.error("ERR redis error");
+        }
+        if (e.getMessage() == null)
+        {
+            return RespReply.error("ERR " + e.getClass().getSimpleName());
+        }
+        return RespReply.error("ERR " + e.getMessage());
+    }
+
+    private static List<String> toStrings(List<byte[]> command)
+    {
+        List<String> keys = new ArrayList<String>(command.size() - 1);
+        for (int i = 1; i < command.size(); i ++)
+        {
+            keys.add(toString(command.get(i)));
+        }
+        return keys;
+    }
+
+    private static String toString(byte[] value)
+    {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,155 @@
+package yanbinwa.iCache.resp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个客户端连接的状态，除了isScheduled之外只在所属的I/O线程中访问。
+ *
+ * 每个命令对应replies中的一个future，按命令的顺序回复；客户端pipeline中不同key的命令可以并发执行，
+ * 相同key的命令按顺序执行，未回复的命令超过上限时暂停读取
+ *
+ * @author yanbinwa
+ *
+ */
+final class RespConnection
+{
+    private static final int INITIAL_BUFFER_BYTES = 16 * 1024;
+
+    final SocketChannel channel;
+    SelectionKey selectionKey;
+    ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    final ArrayDeque<PendingReply> replies = new ArrayDeque<PendingReply>();
+    // 每个key上最后一个未回复的命令，后续涉及相同key的命令在它完成后才执行
+    final Map<String, CompletableFuture<byte[]>> keyToLastReply = new HashMap<String, CompletableFuture<byte[]>>();
+    final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<ByteBuffer>();
+    // 有已完成的回复等待I/O线程处理
+    final AtomicBoolean isScheduled = new AtomicBoolean(false);
+    boolean isReadPaused = false;
+    // 收到QUIT或协议错误后，发送完已有的回复就关闭
+    boolean isClosing = false;
+
+    RespConnection(SocketChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * readBuffer满且没有完整的命令时扩容，返回false表示已经达到上限
+     */
+    boolean growReadBuffer()
+    {
+        if (readBuffer.capacity() >= RespParser.MAX_BULK_BYTES + RespParser.MAX_LINE_BYTES)
+        {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, RespParser.MAX_BULK_BYTES + RespParser.MAX_LINE_BYTES));
+        readBuffer.flip();
+        buffer.put(readBuffer);
+        readBuffer = buffer;
+        return true;
+    }
+
+    void updateInterestOps()
+    {
+        int ops = isReadPaused || isClosing ? 0 : SelectionKey.OP_READ;
+        if (!outgoing.isEmpty())
+        {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (selectionKey.isValid() && selectionKey.interestOps() != ops)
+        {
+            selectionKey.interestOps(ops);
+        }
+    }
+
+    void close()
+    {
+        if (selectionKey != null)
+        {
+            selectionKey.cancel();
+        }
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            // 关闭失败不影响其他连接
+        }
+    }
+
+    /**
+     * 执行完command后回复，keys为空时不需要等待其他命令
+     */
+    void addReply(CompletableFuture<byte[]> reply, List<String> keys)
+    {
+        replies.add(new PendingReply(reply, keys));
+        for (String key : keys)
+        {
+            keyToLastReply.put(key, reply);
+        }
+    }
+
+    /**
+     * 取出队首已完成的回复，没有时返回null
+     */
+    byte[] pollDoneReply()
+    {
+        PendingReply pending = replies.peek();
+        if (pending == null || !pending.future.isDone())
+        {
+            return null;
+        }
+        replies.poll();
+        for (String key : pending.keys)
+        {
+            keyToLastReply.remove(key, pending.future);
+        }
+        byte[] reply = null;
+        try
+        {
+            reply = pending.future.getNow(null);
+        }
+        catch (CompletionException | CancellationException e)
+        {
+            return RespCommandHandler.toError(e);
+        }
+        return reply == null ? RespReply.error("ERR internal error") : reply;
+    }
+
+    @Override
+    public String toString()
+    {
+        try
+        {
+            return "RespConnection [" + channel.getRemoteAddress() + "]";
+        }
+        catch (IOException e)
+        {
+            return "RespConnection [closed]";
+        }
+    }
+
+    static final class PendingReply
+    {
+        final CompletableFuture<byte[]> future;
+        final List<String> keys;
+
+        PendingReply(CompletableFuture<byte[]> future, List<String> keys)
+        {
+            this.future = future;
+            this.keys = keys;
+        }
+    }
+}
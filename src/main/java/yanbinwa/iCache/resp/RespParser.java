@@ -0,0 +1,148 @@
+package yanbinwa.iCache.resp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 解析Redis协议的请求，支持multi bulk(*N\r\n$len\r\n...)和telnet使用的inline命令。
+ *
+ * 数据不完整时返回null并且不移动buffer的position，收到更多数据后从命令的开头重新解析
+ *
+ * @author yanbinwa
+ *
+ */
+final class RespParser
+{
+    static final int MAX_ARGS = 1024 * 1024;
+    static final int MAX_BULK_BYTES = 64 * 1024 * 1024;
+    static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private RespParser()
+    {
+    }
+
+    /**
+     * buffer处于读模式，返回空列表表示空行
+     */
+    static List<byte[]> parse(ByteBuffer buffer) throws RespProtocolException
+    {
+        if (!buffer.hasRemaining())
+        {
+            return null;
+        }
+        int start = buffer.position();
+        List<byte[]> command = buffer.get(start) == '*' ? parseMultiBulk(buffer) : parseInline(buffer);
+        if (command == null)
+        {
+            buffer.position(start);
+        }
+        return command;
+    }
+
+    private static List<byte[]> parseMultiBulk(ByteBuffer buffer) throws RespProtocolException
+    {
+        String line = readLine(buffer);
+        if (line == null)
+        {
+            return null;
+        }
+        int argNum = parseLength(line.substring(1), MAX_ARGS);
+        if (argNum <= 0)
+        {
+            return Collections.emptyList();
+        }
+        List<byte[]> command = new ArrayList<byte[]>(Math.min(argNum, 64));
+        for (int i = 0; i < argNum; i ++)
+        {
+            line = readLine(buffer);
+            if (line == null)
+            {
+                return null;
+            }
+            if (line.isEmpty() || line.charAt(0) != '$')
+            {
+                throw new RespProtocolException("expected '$', got '" + line + "'");
+            }
+            int length = parseLength(line.substring(1), MAX_BULK_BYTES);
+            if (length < 0)
+            {
+                throw new RespProtocolException("invalid bulk length");
+            }
+            if (buffer.remaining() < length + 2)
+            {
+                return null;
+            }
+            byte[] arg = new byte[length];
+            buffer.get(arg);
+            if (buffer.get() != '\r' || buffer.get() != '\n')
+            {
+                throw new RespProtocolException("bulk should end with CRLF");
+            }
+            command.add(arg);
+        }
+        return command;
+    }
+
+    private static List<byte[]> parseInline(ByteBuffer buffer) throws RespProtocolException
+    {
+        String line = readLine(buffer);
+        if (line == null)
+        {
+            return null;
+        }
+        List<byte[]> command = new ArrayList<byte[]>();
+        for (String arg : line.trim().split("\\s+"))
+        {
+            if (!arg.isEmpty())
+            {
+                command.add(arg.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return command;
+    }
+
+    /**
+     * 读到\n为止，去掉结尾的\r；没有完整的一行时返回null
+     */
+    private static String readLine(ByteBuffer buffer) throws RespProtocolException
+    {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start; i < limit; i ++)
+        {
+            if (buffer.get(i) == '\n')
+            {
+                int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                byte[] line = new byte[end - start];
+                buffer.get(line);
+                buffer.position(i + 1);
+                return new String(line, StandardCharsets.UTF_8);
+            }
+            if (i - start >= MAX_LINE_BYTES)
+            {
+                throw new RespProtocolException("too big line");
+            }
+        }
+        return null;
+    }
+
+    private static int parseLength(String value, int max) throws RespProtocolException
+    {
+        try
+        {
+            int length = Integer.parseInt(value);
+            if (length > max)
+            {
+                throw new RespProtocolException("length " + length + " exceeds " + max);
+            }
+            return length;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new RespProtocolException("invalid length '" + value + "'");
+        }
+    }
+}
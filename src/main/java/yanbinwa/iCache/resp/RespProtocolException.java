@@ -0,0 +1,13 @@
+package yanbinwa.iCache.resp;
+
+import java.io.IOException;
+
+public class RespProtocolException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public RespProtocolException(String message)
+    {
+        super(message);
+    }
+}
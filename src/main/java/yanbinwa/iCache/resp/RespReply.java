@@ -0,0 +1,78 @@
+package yanbinwa.iCache.resp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Redis协议的回复编码
+ *
+ * @author yanbinwa
+ *
+ */
+final class RespReply
+{
+    static final byte[] OK = simple("OK");
+    static final byte[] PONG = simple("PONG");
+    static final byte[] NULL_BULK = "$-1\r\n".getBytes(StandardCharsets.UTF_8);
+    static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.UTF_8);
+
+    private RespReply()
+    {
+    }
+
+    static byte[] simple(String value)
+    {
+        return ("+" + value + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] error(String message)
+    {
+        return ("-" + message.replace('\r', ' ').replace('\n', ' ') + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] integer(long value)
+    {
+        return (":" + value + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] bulk(String value)
+    {
+        if (value == null)
+        {
+            return NULL_BULK;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() + 16);
+        writeBulk(out, value.getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    static byte[] array(List<String> values)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(values.size() * 16 + 16);
+        byte[] header = ("*" + values.size() + "\r\n").getBytes(StandardCharsets.UTF_8);
+        out.write(header, 0, header.length);
+        for (String value : values)
+        {
+            if (value == null)
+            {
+                out.write(NULL_BULK, 0, NULL_BULK.length);
+            }
+            else
+            {
+                writeBulk(out, value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeBulk(ByteArrayOutputStream out, byte[] value)
+    {
+        byte[] header = ("$" + value.length + "\r\n").getBytes(StandardCharsets.UTF_8);
+        out.write(header, 0, header.length);
+        out.write(value, 0, value.length);
+        out.write(CRLF, 0, CRLF.length);
+    }
+}
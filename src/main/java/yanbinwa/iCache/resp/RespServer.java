@@ -0,0 +1,442 @@
+package yanbinwa.iCache.resp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import yanbinwa.iCache.service.CacheService;
+import yanbinwa.iCache.util.DaemonThreadFactory;
+
+/**
+ * 可选的Redis协议(RESP)前端，支持GET、SET、MGET、MSET、DEL、PING，请求经过与HTTP接口相同的CacheService路由，
+ * 已有的Redis客户端可以把本服务当作分片代理使用。
+ *
+ * 一个accept线程把连接轮流分配给ioThreads个NIO线程，每个I/O线程有自己的Selector。客户端pipeline的多个命令
+ * 会并发执行并按顺序回复。port小于等于0时不启动
+ *
+ * @author yanbinwa
+ *
+ */
+public class RespServer
+{
+    private static final Logger logger = Logger.getLogger(RespServer.class);
+
+    // 单个连接上未回复的命令数上限，超过时暂停读取
+    private static final int MAX_PENDING_REPLIES = 1024;
+    private static final int WORKER_QUEUE_SIZE = 10000;
+
+    private final CacheService cacheService;
+    private final int port;
+    private final int ioThreads;
+    private final int workerThreads;
+
+    private ServerSocketChannel serverChannel = null;
+    private Thread acceptThread = null;
+    private final List<IoLoop> ioLoops = new ArrayList<IoLoop>();
+    private ThreadPoolExecutor workerExecutor = null;
+    private RespCommandHandler commandHandler = null;
+    private volatile boolean isRunning = false;
+
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+    private final LongAdder commandCount = new LongAdder();
+
+    public RespServer(CacheService cacheService, int port, int ioThreads, int workerThreads)
+    {
+        this.cacheService = cacheService;
+        this.port = port;
+        this.ioThreads = ioThreads;
+        this.workerThreads = workerThreads;
+    }
+
+    public synchronized void start() throws IOException
+    {
+        if (port <= 0)
+        {
+            logger.info("RESP front end is disabled");
+            return;
+        }
+        if (isRunning)
+        {
+            return;
+        }
+        if (ioThreads <= 0 || workerThreads <= 0)
+        {
+            logger.error("Un valid RESP front end config, ioThreads " + ioThreads + ", workerThreads " + workerThreads);
+            return;
+        }
+        workerExecutor = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(WORKER_QUEUE_SIZE), new DaemonThreadFactory("cache-resp-worker"));
+        commandHandler = new RespCommandHandler(cacheService, workerExecutor);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        isRunning = true;
+        for (int i = 0; i < ioThreads; i ++)
+        {
+            IoLoop ioLoop = new IoLoop(Selector.open());
+            Thread thread = new Thread(ioLoop, "cache-resp-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            ioLoops.add(ioLoop);
+        }
+        acceptThread = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                runAcceptLoop();
+            }
+
+        }, "cache-resp-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        logger.info("Start RESP front end on port " + port + " with " + ioThreads + " io threads");
+    }
+
+    public synchronized void stop()
+    {
+        if (!isRunning)
+        {
+            return;
+        }
+        isRunning = false;
+        try
+        {
+            serverChannel.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Fail to close RESP server channel: " + e.getMessage());
+        }
+        for (IoLoop ioLoop : ioLoops)
+        {
+            ioLoop.selector.wakeup();
+        }
+        ioLoops.clear();
+        workerExecutor.shutdown();
+        logger.info("Stop RESP front end on port " + port);
+    }
+
+    public JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("port", port);
+        stats.put("connectionCount", connectionCount.get());
+        stats.put("commandCount", commandCount.sum());
+        return stats;
+    }
+
+    private void runAcceptLoop()
+    {
+        int next = 0;
+        while (isRunning)
+        {
+            try
+            {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                ioLoops.get(next ++ % ioLoops.size()).register(new RespConnection(channel));
+            }
+            catch (ClosedChannelException e)
+            {
+                return;
+            }
+            catch (IOException e)
+            {
+                logger.error("Fail to accept RESP connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 一个NIO线程，负责若干连接的读写；命令完成的回调只把连接放入ready队列，实际的写在本线程中完成
+     */
+    class IoLoop implements Runnable
+    {
+        final Selector selector;
+        final ConcurrentLinkedQueue<RespConnection> newConnections = new ConcurrentLinkedQueue<RespConnection>();
+        final ConcurrentLinkedQueue<RespConnection> readyConnections = new ConcurrentLinkedQueue<RespConnection>();
+
+        IoLoop(Selector selector)
+        {
+            this.selector = selector;
+        }
+
+        void register(RespConnection connection)
+        {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        void schedule(RespConnection connection)
+        {
+            if (connection.isScheduled.compareAndSet(false, true))
+            {
+                readyConnections.add(connection);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (isRunning)
+            {
+                try
+                {
+                    selector.select();
+                    RespConnection connection = null;
+                    while ((connection = newConnections.poll()) != null)
+                    {
+                        connection.selectionKey = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        connectionCount.incrementAndGet();
+                    }
+                    while ((connection = readyConnections.poll()) != null)
+                    {
+                        connection.isScheduled.set(false);
+                        if (connection.channel.isOpen())
+                        {
+                            drainReplies(connection);
+                        }
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext())
+                    {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        connection = (RespConnection) key.attachment();
+                        if (key.isValid() && key.isReadable())
+                        {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable())
+                        {
+                            write(connection);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    logger.error("RESP io loop error: " + e.getMessage());
+                }
+                catch (RuntimeException e)
+                {
+                    // 单个连接的异常不能让I/O线程退出
+                    logger.error("Unexpected RESP io loop error: " + e, e);
+                }
+            }
+            for (SelectionKey key : selector.keys())
+            {
+                ((RespConnection) key.attachment()).close();
+            }
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Fail to close RESP selector: " + e.getMessage());
+            }
+        }
+
+        private void read(RespConnection connection)
+        {
+            try
+            {
+                if (!connection.readBuffer.hasRemaining() && !connection.growReadBuffer())
+                {
+                    throw new RespProtocolException("too big request");
+                }
+                if (connection.channel.read(connection.readBuffer) < 0)
+                {
+                    close(connection);
+                    return;
+                }
+                processCommands(connection);
+            }
+            catch (RespProtocolException e)
+            {
+                connection.addReply(CompletableFuture.completedFuture(RespReply.error("ERR Protocol error: " + e.getMessage())), Collections.<String>emptyList());
+                connection.isClosing = true;
+                drainReplies(connection);
+            }
+            catch (IOException e)
+            {
+                close(connection);
+            }
+        }
+
+        private void processCommands(final RespConnection connection) throws RespProtocolException
+        {
+            ByteBuffer buffer = connection.readBuffer;
+            buffer.flip();
+            try
+            {
+                while (!connection.isClosing && connection.replies.size() < MAX_PENDING_REPLIES)
+                {
+                    List<byte[]> command = RespParser.parse(buffer);
+                    if (command == null)
+                    {
+                        break;
+                    }
+                    if (command.isEmpty())
+                    {
+                        continue;
+                    }
+                    commandCount.increment();
+                    if (command.size() == 1 && "QUIT".equalsIgnoreCase(new String(command.get(0), StandardCharsets.UTF_8)))
+                    {
+                        connection.addReply(CompletableFuture.completedFuture(RespReply.OK), Collections.<String>emptyList());
+                        connection.isClosing = true;
+                        break;
+                    }
+                    List<String> keys = RespCommandHandler.keysOf(command);
+                    CompletableFuture<byte[]> reply = execute(connection, command, keys);
+                    connection.addReply(reply, keys);
+                    if (!reply.isDone())
+                    {
+                        reply.whenComplete(new BiConsumer<byte[], Throwable>() {
+
+                            @Override
+                            public void accept(byte[] value, Throwable e)
+                            {
+                                schedule(connection);
+                            }
+
+                        });
+                    }
+                }
+            }
+            finally
+            {
+                buffer.compact();
+            }
+            connection.isReadPaused = connection.replies.size() >= MAX_PENDING_REPLIES;
+            drainReplies(connection);
+        }
+
+        /**
+         * 同一个连接上相同key的命令需要等前一个完成再执行，保证pipeline中SET之后的GET能读到新值
+         */
+        private CompletableFuture<byte[]> execute(RespConnection connection, final List<byte[]> command, List<String> keys)
+        {
+            List<CompletableFuture<byte[]>> previous = null;
+            for (String key : keys)
+            {
+                CompletableFuture<byte[]> last = connection.keyToLastReply.get(key);
+                if (last != null && !last.isDone())
+                {
+                    if (previous == null)
+                    {
+                        previous = new ArrayList<CompletableFuture<byte[]>>();
+                    }
+                    previous.add(last);
+                }
+            }
+            if (previous == null)
+            {
+                return commandHandler.handle(command);
+            }
+            CompletableFuture<Void> ready = CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[previous.size()]));
+            return ready.thenCompose(new Function<Void, CompletableFuture<byte[]>>() {
+
+                @Override
+                public CompletableFuture<byte[]> apply(Void value)
+                {
+                    return commandHandler.handle(command);
+                }
+
+            });
+        }
+
+        /**
+         * 把队首已经完成的回复移到发送队列并尝试发送
+         */
+        private void drainReplies(RespConnection connection)
+        {
+            byte[] reply = null;
+            while ((reply = connection.pollDoneReply()) != null)
+            {
+                connection.outgoing.add(ByteBuffer.wrap(reply));
+            }
+            if (connection.isReadPaused && connection.replies.size() < MAX_PENDING_REPLIES)
+            {
+                // 暂停期间已经读到的命令需要在这里继续处理
+                connection.isReadPaused = false;
+                try
+                {
+                    processCommands(connection);
+                }
+                catch (RespProtocolException e)
+                {
+                    connection.addReply(CompletableFuture.completedFuture(RespReply.error("ERR Protocol error: " + e.getMessage())), Collections.<String>emptyList());
+                    connection.isClosing = true;
+                    write(connection);
+                }
+                return;
+            }
+            write(connection);
+        }
+
+        private void write(RespConnection connection)
+        {
+            try
+            {
+                while (!connection.outgoing.isEmpty())
+                {
+                    ByteBuffer[] buffers = connection.outgoing.toArray(new ByteBuffer[connection.outgoing.size()]);
+                    connection.channel.write(buffers);
+                    while (!connection.outgoing.isEmpty() && !connection.outgoing.peek().hasRemaining())
+                    {
+                        connection.outgoing.poll();
+                    }
+                    if (!connection.outgoing.isEmpty())
+                    {
+                        break;
+                    }
+                }
+                if (connection.isClosing && connection.replies.isEmpty() && connection.outgoing.isEmpty())
+                {
+                    close(connection);
+                    return;
+                }
+                connection.updateInterestOps();
+            }
+            catch (IOException e)
+            {
+                close(connection);
+            }
+        }
+
+        private void close(RespConnection connection)
+        {
+            if (connection.channel.isOpen())
+            {
+                connectionCount.decrementAndGet();
+            }
+            connection.close();
+        }
+    }
+}
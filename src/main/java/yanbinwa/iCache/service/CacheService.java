@@ -1,11 +1,17 @@
 package yanbinwa.iCache.service;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import org.springframework.beans.factory.InitializingBean;
 
 import yanbinwa.common.exceptions.RedisErrorException;
 import yanbinwa.common.exceptions.ServiceUnavailableException;
 import yanbinwa.common.iInterface.ConfigServiceIf;
 import yanbinwa.common.iInterface.ServiceLifeCycle;
+import yanbinwa.iCache.loader.CacheLoader;
+import yanbinwa.iCache.redis.TtlValue;
 
 public interface CacheService  extends InitializingBean, ServiceLifeCycle, ConfigServiceIf 
 {
@@ -19,10 +25,236 @@ public interface CacheService  extends InitializingBean, ServiceLifeCycle, Confi
     public static final String REDIS_SERVICE_GROUP_KEY = "redis";
     public static final String REDIS_INFO_NEED = "redisInfoNeed";
     
+    // 本地快照，配置在serviceDataProperties中(启动时zookeeper的配置还没有到达)。stopWork时写入最后的路由和最热的本地缓存条目，
+    // 启动时若快照不早于snapshotMaxAgeMs，在orchestration就绪前先用它路由和回填近端缓存，收到依赖信息后以其为准并校验回填的条目
+    public static final String SNAPSHOT_PATH = "snapshotPath";
+    public static final String SNAPSHOT_MAX_AGE_MS = "snapshotMaxAgeMs";
+    public static final String SNAPSHOT_MAX_ENTRIES = "snapshotMaxEntries";
+    public static final String SNAPSHOT_KEY = "snapshot";
+    
+    public static final long SNAPSHOT_MAX_AGE_MS_DEFAULT = 600000;
+    public static final int SNAPSHOT_MAX_ENTRIES_DEFAULT = 10000;
+    public static final int SNAPSHOT_RECONCILE_BATCH_SIZE = 100;
+    public static final long SNAPSHOT_RECONCILE_TIMEOUT_MS = 1000;
+    
+    // 连接池参数，由service config中的redisPool配置覆盖，修改后对已有的分片立即生效
+    public static final String REDIS_POOL_KEY = "redisPool";
+    public static final String REDIS_POOL_MAX_TOTAL = "maxTotal";
+    public static final String REDIS_POOL_MAX_IDLE = "maxIdle";
+    public static final String REDIS_POOL_MIN_IDLE = "minIdle";
+    public static final String REDIS_POOL_MAX_WAIT_MS = "maxWaitMs";
+    public static final String REDIS_POOL_TEST_ON_BORROW = "testOnBorrow";
+    public static final String REDIS_POOL_TEST_WHILE_IDLE = "testWhileIdle";
+    public static final String REDIS_POOL_IDLE_CHECK_INTERVAL_MS = "idleCheckIntervalMs";
+    public static final String REDIS_POOL_ADAPTIVE = "adaptive";
+    public static final String REDIS_POOL_ADAPTIVE_ENABLE = "enable";
+    public static final String REDIS_POOL_ADAPTIVE_MIN_TOTAL = "minTotal";
+    public static final String REDIS_POOL_ADAPTIVE_MAX_TOTAL = "maxTotal";
+    public static final String REDIS_POOL_ADAPTIVE_INTERVAL_MS = "intervalMs";
+    public static final String REDIS_POOL_ADAPTIVE_TARGET_BORROW_WAIT_MS = "targetBorrowWaitMs";
+    
     public static final int REDIS_MAX_TOTAL_DEFAULT = 10;
     public static final int REDIS_MAX_IDEL_DEFAULT = 10;
-    public static final long REDIS_MAX_WAIT_DEFAULT = -1;
-    public static final boolean REDIS_TEST_ON_BORROW_DEFAULT = true;
+    public static final int REDIS_MIN_IDLE_DEFAULT = 0;
+    public static final long REDIS_MAX_WAIT_DEFAULT = 1000;
+    // 默认由后台的空闲检测代替每次借连接时的PING
+    public static final boolean REDIS_TEST_ON_BORROW_DEFAULT = false;
+    public static final boolean REDIS_TEST_WHILE_IDLE_DEFAULT = true;
+    public static final long REDIS_IDLE_CHECK_INTERVAL_MS_DEFAULT = 30000;
+    public static final int REDIS_ADAPTIVE_MIN_TOTAL_DEFAULT = 2;
+    public static final int REDIS_ADAPTIVE_MAX_TOTAL_DEFAULT = 64;
+    public static final long REDIS_ADAPTIVE_INTERVAL_MS_DEFAULT = 5000;
+    public static final long REDIS_ADAPTIVE_TARGET_BORROW_WAIT_MS_DEFAULT = 1;
+    
+    public static final int SHARD_EXECUTOR_THREADS_DEFAULT = 16;
+    public static final int SHARD_IO_QUEUE_SIZE_DEFAULT = 1000;
+    public static final long ASYNC_REQUEST_TIMEOUT_MS_DEFAULT = 5000;
+    
+    // 每次调用的总时间预算，客户端可以通过header给出更短的预算
+    public static final String REQUEST_TIMEOUT_MS = "requestTimeoutMs";
+    public static final long REQUEST_TIMEOUT_MS_DEFAULT = 1000;
+    public static final String REQUEST_DEADLINE_HEADER = "X-Cache-Deadline-Ms";
+    
+    // 拓扑变化时新分片预建的连接数，以及被移除的分片等待进行中请求结束的最长时间
+    public static final String TOPOLOGY_SWAP_KEY = "topologySwap";
+    public static final String TOPOLOGY_SWAP_PREWARM_CONNECTIONS = "prewarmConnections";
+    public static final String TOPOLOGY_SWAP_DRAIN_GRACE_MS = "drainGraceMs";
+    // 新分片并行预建连接的最长等待时间，超时的分片仍然发布，在stats的startup中记为cold，启动时有cold的primary分片则不就绪
+    public static final String TOPOLOGY_SWAP_PREWARM_TIMEOUT_MS = "prewarmTimeoutMs";
+    public static final int TOPOLOGY_SWAP_PREWARM_CONNECTIONS_DEFAULT = 2;
+    public static final long TOPOLOGY_SWAP_DRAIN_GRACE_MS_DEFAULT = 30000;
+    public static final long TOPOLOGY_SWAP_PREWARM_TIMEOUT_MS_DEFAULT = 5000;
+    // 启动时有primary分片没连上时，每隔WARM_CHECK_INTERVAL_MS重试一次，全部连上后才就绪
+    public static final long WARM_CHECK_INTERVAL_MS = 1000;
+    // 被移除的分片每隔DRAIN_CHECK_INTERVAL_MS检查一次被替换的路由表是否还有请求在使用
+    public static final long DRAIN_CHECK_INTERVAL_MS = 100;
+    
+    public static final String STARTUP_KEY = "startup";
+    
+    public static final String ROUTING_KEY = "routing";
+    public static final String ROUTING_STRATEGY = "strategy";
+    public static final String ROUTING_VIRTUAL_NODES = "virtualNodes";
+    public static final int ROUTING_VIRTUAL_NODES_DEFAULT = 160;
+    
+    // 同名的redis服务有多个实例时，写发到primary，读按strategy在primary和replica之间选择
+    public static final String REPLICA_READ_KEY = "replicaRead";
+    public static final String REPLICA_READ_STRATEGY = "strategy";
+    public static final String REPLICA_READ_YOUR_WRITES = "readYourWrites";
+    public static final String REPLICA_READ_YOUR_WRITES_MS = "readYourWritesMs";
+    public static final long REPLICA_READ_YOUR_WRITES_MS_DEFAULT = 1000;
+    // 多实例redis服务的角色每隔REDIS_ROLE_REFRESH_INTERVAL_MS重新查询一次，写入返回READONLY时立即查询
+    public static final long REDIS_ROLE_REFRESH_INTERVAL_MS_DEFAULT = 10000;
+    public static final long REDIS_ROLE_QUERY_TIMEOUT_MS = 1000;
+    
+    public static final String CIRCUIT_BREAKER_KEY = "circuitBreaker";
+    public static final String CIRCUIT_BREAKER_ENABLE = "enable";
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = "failureRateThreshold";
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_MS = "slowCallMs";
+    public static final String CIRCUIT_BREAKER_MIN_REQUESTS = "minRequests";
+    public static final String CIRCUIT_BREAKER_WINDOW_MS = "windowMs";
+    public static final String CIRCUIT_BREAKER_OPEN_MS = "openMs";
+    
+    public static final double CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_DEFAULT = 0.5;
+    public static final long CIRCUIT_BREAKER_SLOW_CALL_MS_DEFAULT = 500;
+    public static final int CIRCUIT_BREAKER_MIN_REQUESTS_DEFAULT = 20;
+    public static final long CIRCUIT_BREAKER_WINDOW_MS_DEFAULT = 10000;
+    public static final long CIRCUIT_BREAKER_OPEN_MS_DEFAULT = 5000;
+    
+    public static final String AUTO_PIPELINE_KEY = "autoPipeline";
+    public static final String AUTO_PIPELINE_ENABLE = "enable";
+    public static final String AUTO_PIPELINE_IO_LOOPS = "ioLoops";
+    public static final String AUTO_PIPELINE_MAX_BATCH = "maxBatch";
+    public static final String AUTO_PIPELINE_LINGER_MICROS = "lingerMicros";
+    public static final String AUTO_PIPELINE_MAX_PENDING = "maxPending";
+    public static final String AUTO_PIPELINE_TIMEOUT_MS = "timeoutMs";
+    
+    public static final int AUTO_PIPELINE_IO_LOOPS_DEFAULT = 1;
+    public static final int AUTO_PIPELINE_MAX_BATCH_DEFAULT = 128;
+    public static final long AUTO_PIPELINE_LINGER_MICROS_DEFAULT = 0;
+    public static final int AUTO_PIPELINE_MAX_PENDING_DEFAULT = 10000;
+    public static final long AUTO_PIPELINE_TIMEOUT_MS_DEFAULT = 2000;
+    
+    // 按窗口统计访问次数最多的key，超过阈值的key在本地保留一个短时的副本
+    public static final String HOT_KEY_KEY = "hotKey";
+    public static final String HOT_KEY_ENABLE = "enable";
+    public static final String HOT_KEY_SKETCH_WIDTH = "sketchWidth";
+    public static final String HOT_KEY_TOP_K = "topK";
+    public static final String HOT_KEY_THRESHOLD = "hotThreshold";
+    public static final String HOT_KEY_WINDOW_MS = "windowMs";
+    public static final String HOT_KEY_PROMOTE = "promote";
+    public static final String HOT_KEY_LOCAL_TTL_MS = "localTtlMs";
+    
+    public static final int HOT_KEY_SKETCH_WIDTH_DEFAULT = 4096;
+    public static final int HOT_KEY_TOP_K_DEFAULT = 32;
+    public static final int HOT_KEY_THRESHOLD_DEFAULT = 1000;
+    public static final long HOT_KEY_WINDOW_MS_DEFAULT = 1000;
+    public static final boolean HOT_KEY_PROMOTE_DEFAULT = true;
+    public static final long HOT_KEY_LOCAL_TTL_MS_DEFAULT = 1000;
+    
+    // 同一个key上并发的读只发一次到Redis，其余请求等待同一个结果
+    public static final String SINGLE_FLIGHT_KEY = "singleFlight";
+    public static final String SINGLE_FLIGHT_ENABLE = "enable";
+    public static final boolean SINGLE_FLIGHT_ENABLE_DEFAULT = true;
+    
+    // 写入进入分片的缓冲区后立即返回，同一个key只保留最后一个值，按批量或时间用MSET写入Redis
+    public static final String WRITE_BEHIND_KEY = "writeBehind";
+    public static final String WRITE_BEHIND_ENABLE = "enable";
+    public static final String WRITE_BEHIND_MAX_PENDING_KEYS = "maxPendingKeys";
+    public static final String WRITE_BEHIND_MAX_BATCH = "maxBatch";
+    public static final String WRITE_BEHIND_FLUSH_INTERVAL_MS = "flushIntervalMs";
+    public static final String WRITE_BEHIND_MAX_BLOCK_MS = "maxBlockMs";
+    
+    public static final int WRITE_BEHIND_MAX_PENDING_KEYS_DEFAULT = 10000;
+    public static final int WRITE_BEHIND_MAX_BATCH_DEFAULT = 500;
+    public static final long WRITE_BEHIND_FLUSH_INTERVAL_MS_DEFAULT = 10;
+    public static final long WRITE_BEHIND_MAX_BLOCK_MS_DEFAULT = 10;
+    public static final long WRITE_BEHIND_FLUSH_ON_STOP_TIMEOUT_MS = 5000;
+    
+    // 注册了loader的key未命中时在windowMicros内合并加载，调用方最多等待timeoutMs
+    public static final String LOADER_KEY = "loader";
+    public static final String LOADER_WINDOW_MICROS = "windowMicros";
+    public static final String LOADER_MAX_BATCH = "maxBatch";
+    public static final String LOADER_TIMEOUT_MS = "timeoutMs";
+    public static final String LOADER_THREADS = "threads";
+    
+    public static final long LOADER_WINDOW_MICROS_DEFAULT = 1000;
+    public static final int LOADER_MAX_BATCH_DEFAULT = 100;
+    public static final long LOADER_TIMEOUT_MS_DEFAULT = 1000;
+    public static final int LOADER_THREADS_DEFAULT = 4;
+    
+    // 带过期时间的写入按key前缀增加随机抖动，读取时可以按XFetch在过期前以一定概率提前返回未命中
+    public static final String TTL_KEY = "ttl";
+    public static final String TTL_DEFAULT_JITTER_RATIO = "defaultJitterRatio";
+    public static final String TTL_JITTER = "jitter";
+    public static final String TTL_JITTER_PREFIX = "prefix";
+    public static final String TTL_JITTER_RATIO = "ratio";
+    public static final String TTL_EARLY_REFRESH = "earlyRefresh";
+    public static final String TTL_EARLY_REFRESH_ENABLE = "enable";
+    public static final String TTL_EARLY_REFRESH_BETA = "beta";
+    public static final String TTL_EARLY_REFRESH_DELTA_MS = "deltaMs";
+    
+    public static final double TTL_DEFAULT_JITTER_RATIO_DEFAULT = 0;
+    public static final double TTL_EARLY_REFRESH_BETA_DEFAULT = 1.0;
+    public static final long TTL_EARLY_REFRESH_DELTA_MS_DEFAULT = 100;
+    
+    // 二进制value不小于thresholdBytes时压缩后写入Redis，关闭压缩后已压缩的数据仍然可以读取
+    public static final String COMPRESSION_KEY = "compression";
+    public static final String COMPRESSION_ENABLE = "enable";
+    public static final String COMPRESSION_THRESHOLD_BYTES = "thresholdBytes";
+    public static final String COMPRESSION_LEVEL = "level";
+    
+    public static final boolean COMPRESSION_ENABLE_DEFAULT = true;
+    public static final int COMPRESSION_THRESHOLD_BYTES_DEFAULT = 4096;
+    public static final int COMPRESSION_LEVEL_DEFAULT = 1;
+    
+    // 读到不存在的key在本地记录ttlMs；开启bloom时每个分片通过SCAN构建Bloom filter，之后跟随写入更新，每rebuildIntervalMs重建一次。
+    // 其他进程直接写入Redis的key需要开启失效广播，否则最多在rebuildIntervalMs内被当作不存在
+    public static final String NEGATIVE_CACHE_KEY = "negativeCache";
+    public static final String NEGATIVE_CACHE_ENABLE = "enable";
+    public static final String NEGATIVE_CACHE_TTL_MS = "ttlMs";
+    public static final String NEGATIVE_CACHE_MAX_ENTRIES = "maxEntries";
+    public static final String NEGATIVE_CACHE_BLOOM = "bloom";
+    public static final String NEGATIVE_CACHE_BLOOM_ENABLE = "enable";
+    public static final String NEGATIVE_CACHE_BLOOM_EXPECTED_KEYS = "expectedKeys";
+    public static final String NEGATIVE_CACHE_BLOOM_FALSE_POSITIVE_RATE = "falsePositiveRate";
+    public static final String NEGATIVE_CACHE_BLOOM_MAX_BYTES = "maxBytes";
+    public static final String NEGATIVE_CACHE_BLOOM_REBUILD_INTERVAL_MS = "rebuildIntervalMs";
+    public static final String NEGATIVE_CACHE_BLOOM_SCAN_COUNT = "scanCount";
+    
+    public static final long NEGATIVE_CACHE_TTL_MS_DEFAULT = 1000;
+    public static final int NEGATIVE_CACHE_MAX_ENTRIES_DEFAULT = 100000;
+    public static final long NEGATIVE_CACHE_BLOOM_EXPECTED_KEYS_DEFAULT = 1000000;
+    public static final double NEGATIVE_CACHE_BLOOM_FALSE_POSITIVE_RATE_DEFAULT = 0.01;
+    public static final long NEGATIVE_CACHE_BLOOM_MAX_BYTES_DEFAULT = 16 * 1024 * 1024;
+    public static final long NEGATIVE_CACHE_BLOOM_REBUILD_INTERVAL_MS_DEFAULT = 600000;
+    public static final int NEGATIVE_CACHE_BLOOM_SCAN_COUNT_DEFAULT = 1000;
+    
+    public static final String NEAR_CACHE_KEY = "nearCache";
+    public static final String NEAR_CACHE_ENABLE = "enable";
+    public static final String NEAR_CACHE_MAX_ENTRIES = "maxEntries";
+    public static final String NEAR_CACHE_MAX_BYTES = "maxBytes";
+    public static final String NEAR_CACHE_EXPIRE_AFTER_WRITE_MS = "expireAfterWriteMs";
+    // heap或offHeap，offHeap时数据保存在direct ByteBuffer中，maxBytes预先分配，需要相应调大-XX:MaxDirectMemorySize
+    public static final String NEAR_CACHE_STORAGE = "storage";
+    public static final String NEAR_CACHE_STORAGE_HEAP = "heap";
+    public static final String NEAR_CACHE_STORAGE_OFF_HEAP = "offHeap";
+    
+    public static final int NEAR_CACHE_MAX_ENTRIES_DEFAULT = 10000;
+    public static final long NEAR_CACHE_MAX_BYTES_DEFAULT = 64 * 1024 * 1024;
+    public static final long NEAR_CACHE_EXPIRE_AFTER_WRITE_MS_DEFAULT = 0;
+    
+    // topicInfo中producers下该group的第一个topic作为失效广播的topic，每个实例都会消费它
+    public static final String INVALIDATION_TOPIC_GROUP = "cacheInvalidation";
+    public static final String INVALIDATION_KEY = "invalidation";
+    public static final String INVALIDATION_ENABLE = "enable";
+    public static final String INVALIDATION_BROKER_LIST = "brokerList";
+    public static final String INVALIDATION_FLUSH_INTERVAL_MS = "flushIntervalMs";
+    public static final String INVALIDATION_MAX_BATCH_KEYS = "maxBatchKeys";
+    public static final String INVALIDATION_MAX_PENDING_KEYS = "maxPendingKeys";
+    
+    public static final long INVALIDATION_FLUSH_INTERVAL_MS_DEFAULT = 50;
+    public static final int INVALIDATION_MAX_BATCH_KEYS_DEFAULT = 500;
+    public static final int INVALIDATION_MAX_PENDING_KEYS_DEFAULT = 100000;
     
     String getServiceName() throws ServiceUnavailableException;
     
@@ -37,4 +269,83 @@ public interface CacheService  extends InitializingBean, ServiceLifeCycle, Confi
     void setString(String key, String value) throws RedisErrorException, ServiceUnavailableException;
     
     String getString(String key) throws RedisErrorException, ServiceUnavailableException;
+    
+    /**
+     * ttlMs必须大于0，实际的过期时间会按ttl配置增加抖动
+     */
+    void setString(String key, String value, long ttlMs) throws RedisErrorException, ServiceUnavailableException;
+    
+    /**
+     * 返回value和剩余的过期时间，不经过本地缓存；开启提前刷新时快要过期的key可能返回value为null而ttlMs大于0的结果
+     */
+    TtlValue getStringWithTtl(String key) throws RedisErrorException, ServiceUnavailableException;
+    
+    /**
+     * 不阻塞调用线程，失败时future以RedisErrorException或ServiceUnavailableException结束
+     */
+    CompletableFuture<String> getStringAsync(String key);
+    
+    CompletableFuture<Void> setStringAsync(String key, String value);
+    
+    /**
+     * timeoutMs为客户端给出的时间预算，小于等于0或大于配置的requestTimeoutMs时使用配置值
+     */
+    CompletableFuture<String> getStringAsync(String key, long timeoutMs);
+    
+    CompletableFuture<Void> setStringAsync(String key, String value, long timeoutMs);
+    
+    /**
+     * 返回的value与keys一一对应，不存在的key对应null
+     */
+    List<String> getStrings(List<String> keys) throws RedisErrorException, ServiceUnavailableException;
+    
+    void setStrings(Map<String, String> keyToValueMap) throws RedisErrorException, ServiceUnavailableException;
+    
+    /**
+     * 返回实际删除的key个数
+     */
+    long deleteStrings(List<String> keys) throws RedisErrorException, ServiceUnavailableException;
+    
+    /**
+     * timeoutMs的含义与getStringAsync相同，是整个批量操作的时间预算
+     */
+    List<String> getStrings(List<String> keys, long timeoutMs) throws RedisErrorException, ServiceUnavailableException;
+    
+    void setStrings(Map<String, String> keyToValueMap, long timeoutMs) throws RedisErrorException, ServiceUnavailableException;
+    
+    long deleteStrings(List<String> keys, long timeoutMs) throws RedisErrorException, ServiceUnavailableException;
+    
+    /**
+     * 二进制的value，不经过本地缓存；较大的value按compression配置透明地压缩
+     */
+    void setBytes(String key, byte[] value) throws RedisErrorException, ServiceUnavailableException;
+    
+    /**
+     * 不存在的key返回null，用字符串接口写入的value返回其UTF-8编码
+     */
+    byte[] getBytes(String key) throws RedisErrorException, ServiceUnavailableException;
+    
+    /**
+     * 以prefix开头的key未命中时由loader加载并写回Redis，ttlMs小于等于0表示写回时不设置过期时间；
+     * 同一个prefix重复注册时替换之前的loader
+     */
+    void registerLoader(String prefix, CacheLoader loader, long ttlMs);
+    
+    void unregisterLoader(String prefix);
+    
+    String getNearCacheStats();
+    
+    String getShardStats();
+    
+    String getRoutingStats();
+    
+    /**
+     * 上一个统计窗口的热点key，按所在的分片分组
+     */
+    String getHotKeys();
+    
+    /**
+     * 每种操作、每个分片和每个partition的耗时分布(微秒)以及错误和超时计数
+     */
+    String getCacheStats();
 }
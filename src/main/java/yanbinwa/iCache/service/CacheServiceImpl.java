@@ -1,38 +1,106 @@
 package yanbinwa.iCache.service;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.Deflater;
 
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.stereotype.Service;
 
+import redis.clients.jedis.exceptions.JedisException;
+
 import yanbinwa.common.configClient.ConfigCallBack;
 import yanbinwa.common.configClient.ConfigClient;
 import yanbinwa.common.configClient.ConfigClientImpl;
 import yanbinwa.common.configClient.ServiceConfigState;
 import yanbinwa.common.exceptions.RedisErrorException;
 import yanbinwa.common.exceptions.ServiceUnavailableException;
-import yanbinwa.common.kafka.consumer.IKafkaConsumer;
-import yanbinwa.common.kafka.producer.IKafkaProducer;
 import yanbinwa.common.orchestrationClient.OrchestartionCallBack;
 import yanbinwa.common.orchestrationClient.OrchestrationClient;
 import yanbinwa.common.orchestrationClient.OrchestrationClientImpl;
 import yanbinwa.common.orchestrationClient.OrchestrationServiceState;
-import yanbinwa.common.redis.RedisClient;
 import yanbinwa.common.zNodedata.ZNodeDataUtil;
 import yanbinwa.common.zNodedata.ZNodeDependenceData;
 import yanbinwa.common.zNodedata.ZNodeServiceData;
 import yanbinwa.common.zNodedata.ZNodeServiceDataImpl;
 import yanbinwa.common.zNodedata.decorate.ZNodeDecorateType;
 import yanbinwa.common.zNodedata.decorate.ZNodeDependenceDataDecorateRedis;
+import yanbinwa.iCache.invalidation.InvalidationCallBack;
+import yanbinwa.iCache.invalidation.InvalidationChannel;
+import yanbinwa.iCache.invalidation.InvalidationTransport;
+import yanbinwa.iCache.invalidation.KafkaInvalidationTransport;
+import yanbinwa.iCache.loader.BatchingLoader;
+import yanbinwa.iCache.loader.CacheLoader;
+import yanbinwa.iCache.loader.LoadedValueWriter;
+import yanbinwa.iCache.loader.LoaderConfig;
+import yanbinwa.iCache.loader.LoaderRegistry;
+import yanbinwa.iCache.local.HotKeyCache;
+import yanbinwa.iCache.local.HotKeyDetector;
+import yanbinwa.iCache.local.HotKeyListener;
+import yanbinwa.iCache.local.LocalCache;
+import yanbinwa.iCache.local.NearCache;
+import yanbinwa.iCache.local.NegativeLookup;
+import yanbinwa.iCache.local.NegativeLookupConfig;
+import yanbinwa.iCache.local.OffHeapCache;
+import yanbinwa.iCache.metrics.CacheMetrics;
+import yanbinwa.iCache.metrics.OperationMetrics;
+import yanbinwa.iCache.metrics.StartupTimeline;
+import yanbinwa.iCache.partition.RedisPartitionTable;
+import yanbinwa.iCache.partition.ReplicaReadPolicy;
+import yanbinwa.iCache.partition.ReplicaReadStrategy;
+import yanbinwa.iCache.partition.RoutingDiagnostics;
+import yanbinwa.iCache.partition.RoutingStrategy;
+import yanbinwa.iCache.redis.AdaptivePoolConfig;
+import yanbinwa.iCache.redis.AutoPipelineConfig;
+import yanbinwa.iCache.redis.CircuitBreakerConfig;
+import yanbinwa.iCache.redis.RedisPoolConfig;
+import yanbinwa.iCache.redis.RedisRoleListener;
+import yanbinwa.iCache.redis.RedisShardClient;
+import yanbinwa.iCache.redis.RedisTimeoutException;
+import yanbinwa.iCache.redis.SingleFlight;
+import yanbinwa.iCache.redis.TtlPolicy;
+import yanbinwa.iCache.redis.TtlValue;
+import yanbinwa.iCache.redis.ValueCodec;
+import yanbinwa.iCache.redis.WriteBehindConfig;
+import yanbinwa.iCache.snapshot.CacheSnapshot;
+import yanbinwa.iCache.util.DaemonThreadFactory;
+import yanbinwa.iCache.util.Deadline;
 
 @Service("cacheService")
 @EnableAutoConfiguration
@@ -70,10 +138,6 @@ public class CacheServiceImpl implements CacheService
     
     OrchestrationClient client = null;
     
-    Map<String, IKafkaProducer> kafkaProducerMap = new HashMap<String, IKafkaProducer>();
-    
-    Map<String, IKafkaConsumer> kafkaConsumerMap = new HashMap<String, IKafkaConsumer>();
-    
     boolean isRunning = false;
     
     boolean isConfiged = false;
@@ -87,10 +151,115 @@ public class CacheServiceImpl implements CacheService
     private String zookeeperHostIp = null;
     
     // 记录了Redis与Partition的Mapping关系，其中hash值一律是通过key自带的hash来进行的
-    Map<ZNodeServiceData, RedisClient> redisServiceDataToRedisClientMap = new HashMap<ZNodeServiceData, RedisClient>();
-    Map<Integer, RedisClient> partitionKeyToRedisClientMap = new HashMap<Integer, RedisClient>();
-    int partitionMask = -1;
+    Map<ZNodeServiceData, RedisShardClient> redisServiceDataToRedisClientMap = new HashMap<ZNodeServiceData, RedisShardClient>();
+    // 读路径只做一次volatile读和一次数组下标访问，写路径在lock下构建新的快照后整体替换
+    volatile RedisPartitionTable redisPartitionTable = RedisPartitionTable.EMPTY;
+    // 已经被替换但可能还有请求在使用的路由表，其中的client要等它们都释放后才能关闭
+    private final ConcurrentLinkedQueue<RedisPartitionTable> supersededPartitionTables = new ConcurrentLinkedQueue<RedisPartitionTable>();
+    long partitionEpoch = 0;
     ReentrantLock lock = new ReentrantLock();
+    
+    // 路由方式由service config中的routing配置决定，切换时用上一次的partition信息重建路由表
+    RoutingStrategy routingStrategy = RoutingStrategy.PARTITION;
+    // JUMP模式下每个bucket对应的redis服务名，只在持有lock时修改
+    List<String> jumpBucketNames = Collections.emptyList();
+    int routingVirtualNodes = ROUTING_VIRTUAL_NODES_DEFAULT;
+    Map<String, Set<Integer>> lastRedisServiceNameToPartitionKeyMap = null;
+    RoutingDiagnostics routingDiagnostics = new RoutingDiagnostics();
+    // 为null时所有读都发到primary
+    volatile ReplicaReadPolicy replicaReadPolicy = null;
+    // 定时以及写入返回READONLY时重新查询多实例redis服务的角色，READONLY触发的查询同一时间只排队一次；
+    // 启动时还有没连上的primary分片时，也在这里定时重试
+    ScheduledExecutorService topologyTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-topology"));
+    ScheduledFuture<?> roleRefreshTask = null;
+    AtomicBoolean isRoleRefreshPending = new AtomicBoolean(false);
+    final RedisRoleListener roleRefresher = new RedisRoleListener() {
+
+        @Override
+        public void handleReadOnly(RedisShardClient redisClient)
+        {
+            logger.info("Redis " + redisClient + " is read only, refresh roles");
+            scheduleRoleRefresh();
+        }
+        
+    };
+    
+    CacheMetrics cacheMetrics = new CacheMetrics();
+    
+    // 批量请求按分片并行执行，第一个分片在调用线程中执行
+    ExecutorService shardExecutor = Executors.newFixedThreadPool(SHARD_EXECUTOR_THREADS_DEFAULT, new DaemonThreadFactory("cache-shard"));
+    
+    // 为null表示不开启自动pipeline，新创建的RedisShardClient也会使用该配置
+    volatile AutoPipelineConfig autoPipelineConfig = null;
+    
+    // 为null时写入直接发送到Redis
+    volatile WriteBehindConfig writeBehindConfig = null;
+    
+    // 按前缀注册的读穿透loader，未命中时合并加载，加载到的value只在key不存在时写回Redis
+    final LoaderRegistry loaderRegistry = new LoaderRegistry(new LoadedValueWriter() {
+
+        @Override
+        public void writeIfAbsent(Map<String, String> keyToValueMap, long ttlMs) throws Exception
+        {
+            writeLoadedValues(keyToValueMap, ttlMs);
+        }
+        
+    }, new LoaderConfig(LOADER_WINDOW_MICROS_DEFAULT, LOADER_MAX_BATCH_DEFAULT, LOADER_TIMEOUT_MS_DEFAULT, LOADER_THREADS_DEFAULT));
+    
+    // 过期时间的抖动和提前刷新，没有配置时为TtlPolicy.NONE
+    volatile TtlPolicy ttlPolicy = TtlPolicy.NONE;
+    
+    // 二进制value的压缩方式，关闭时为ValueCodec.DISABLED
+    volatile ValueCodec valueCodec = new ValueCodec(COMPRESSION_THRESHOLD_BYTES_DEFAULT, COMPRESSION_LEVEL_DEFAULT);
+    
+    volatile long requestTimeoutMs = REQUEST_TIMEOUT_MS_DEFAULT;
+    // 为null表示不开启熔断
+    volatile CircuitBreakerConfig circuitBreakerConfig = null;
+    
+    // 新创建的RedisShardClient使用该配置，修改时同步到已有的client
+    volatile RedisPoolConfig redisPoolConfig = new RedisPoolConfig(REDIS_MAX_TOTAL_DEFAULT, REDIS_MAX_IDEL_DEFAULT, REDIS_MIN_IDLE_DEFAULT,
+            REDIS_MAX_WAIT_DEFAULT, REDIS_TEST_ON_BORROW_DEFAULT, REDIS_TEST_WHILE_IDLE_DEFAULT, REDIS_IDLE_CHECK_INTERVAL_MS_DEFAULT, null);
+    
+    // 新分片在发布前预建的连接数，被移除的分片最多等待drainGraceMs后关闭
+    volatile int prewarmConnections = TOPOLOGY_SWAP_PREWARM_CONNECTIONS_DEFAULT;
+    volatile long drainGraceMs = TOPOLOGY_SWAP_DRAIN_GRACE_MS_DEFAULT;
+    volatile long prewarmTimeoutMs = TOPOLOGY_SWAP_PREWARM_TIMEOUT_MS_DEFAULT;
+    ExecutorService prewarmExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("cache-prewarm"));
+    
+    // 收到orchestration的路由并且所有primary分片都建立过连接后才为true，isServiceReady以此为准
+    volatile boolean isRoutingReady = false;
+    AtomicBoolean isWarmCheckScheduled = new AtomicBoolean(false);
+    StartupTimeline startupTimeline = new StartupTimeline();
+    
+    // 可选的进程内缓存，由service config中的nearCache配置创建，按storage保存在堆上或堆外，为null时表示关闭
+    volatile LocalCache nearCache = null;
+    
+    // 为null时不做热点统计，hotKeyCache为null时不把热点key复制到本地
+    volatile HotKeyDetector hotKeyDetector = null;
+    volatile HotKeyCache hotKeyCache = null;
+    
+    // 为null时不记录不存在的key
+    volatile NegativeLookup negativeLookup = null;
+    
+    // 为null时不合并并发的读
+    volatile SingleFlight singleFlight = new SingleFlight();
+    
+    // 跨实例的失效广播，invalidationTransport不为空时替代Kafka，用于测试
+    volatile InvalidationChannel invalidationChannel = null;
+    String invalidationConfig = null;
+    InvalidationTransport invalidationTransport = null;
+    
+    // 为null时不写快照；warmSnapshot是启动时打开的快照，恢复之后置为null
+    File snapshotFile = null;
+    long snapshotMaxAgeMs = SNAPSHOT_MAX_AGE_MS_DEFAULT;
+    int snapshotMaxEntries = SNAPSHOT_MAX_ENTRIES_DEFAULT;
+    volatile CacheSnapshot warmSnapshot = null;
+    // 路由表来自快照时为true，此时不覆盖快照；restoredValues是回填到近端缓存、还没有和Redis校验过的条目
+    volatile boolean isRoutingFromSnapshot = false;
+    volatile Map<String, String> restoredValues = null;
+    AtomicLong snapshotRestoredCount = new AtomicLong(0);
+    AtomicLong snapshotReconcileInvalidationCount = new AtomicLong(0);
+    AtomicLong snapshotSavedCount = new AtomicLong(0);
             
     @Override
     public void afterPropertiesSet() throws Exception
@@ -115,6 +284,8 @@ public class CacheServiceImpl implements CacheService
             serviceData.addServiceDataDecorate(ZNodeDecorateType.REDIS, true);
         }
         
+        configureSnapshot(serviceDataProperties);
+        
         configClient = new ConfigClientImpl(serviceData, configCallBack, zookeeperHostIp, zNodeInfoProperties);
         client = new OrchestrationClientImpl(serviceData, watcher, zookeeperHostIp, zNodeInfoProperties);
         
@@ -127,6 +298,7 @@ public class CacheServiceImpl implements CacheService
         if(!isRunning)
         {
             isRunning = true;
+            startupTimeline.record(StartupTimeline.Phase.STARTED);
             configClient.start();
             logger.info("Start cache service ...");
         }
@@ -168,7 +340,7 @@ public class CacheServiceImpl implements CacheService
         {
             throw new ServiceUnavailableException();
         }
-        return client.isReady();
+        return client.isReady() && isRoutingReady;
     }
 
     @Override
@@ -202,292 +374,3108 @@ public class CacheServiceImpl implements CacheService
     @Override
     public void setString(String key, String value) throws RedisErrorException, ServiceUnavailableException
     {
-        if(!isServiceReadyToWork())
-        {
-            throw new ServiceUnavailableException();
-        }
-        RedisClient redisClient = getRedisClientFromKey(key);
-        if (redisClient == null)
-        {
-            throw new RedisErrorException();
-        }
+        RedisPartitionTable partitionTable = acquirePartitionTable();
         try
         {
-            boolean ret = redisClient.getJedisConnection();
-            if (!ret)
-            {
-                logger.error("fail to get the redis connection");
-                throw new RedisErrorException();
-            }
-            redisClient.setString(key, value);
-        }
-        catch (InterruptedException e)
-        {
-            logger.error("get redis connection timeout");
-            e.printStackTrace();
+            setString(partitionTable, key, value);
         }
         finally
         {
-            redisClient.returnJedisConnection();
+            partitionTable.release();
         }
     }
-
-    @Override
-    public String getString(String key) throws RedisErrorException, ServiceUnavailableException
+    
+    private void setString(RedisPartitionTable partitionTable, String key, String value) throws RedisErrorException, ServiceUnavailableException
     {
         if(!isServiceReadyToWork())
         {
             throw new ServiceUnavailableException();
         }
-        RedisClient redisClient = getRedisClientFromKey(key);
+        long startTime = System.nanoTime();
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.SET);
+        recordHotKey(key);
+        int partition = key == null ? -1 : partitionTable.getPartition(key);
+        RedisShardClient redisClient = partitionTable.getRedisClientByPartition(partition);
         if (redisClient == null)
         {
+            metrics.recordError(startTime, false);
             throw new RedisErrorException();
         }
-        String value = null;
         try
         {
-            boolean ret = redisClient.getJedisConnection();
-            if (!ret)
-            {
-                logger.error("fail to get the redis connection");
-                throw new RedisErrorException();
-            }
-            value = redisClient.getString(key);
+            redisClient.setString(key, value, newDeadline(0));
         }
-        catch (InterruptedException e)
+        catch (JedisException e)
         {
-            logger.error("get redis connection timeout");
-            e.printStackTrace();
+            logger.error("Fail to set string to " + redisClient + ": " + e.getMessage());
+            metrics.recordError(startTime, isTimeout(e));
+            throw new RedisErrorException();
         }
         finally
         {
-            redisClient.returnJedisConnection();
+            invalidateLocalCache(key);
         }
-        return value;
-    }
-    
-    @Override
-    public void startWork()
-    {
-        logger.info("Start work cache service ...");
-        init();
-        client.start();
+        metrics.record(startTime, value == null ? -1 : value.length());
+        cacheMetrics.recordPartition(partition, startTime);
     }
 
     @Override
-    public void stopWork()
-    {
-        logger.info("Stop work cache service ...");
-        client.stop();
-        reset();
-    }
-    
-    private void init()
-    {
-        
-    }
-    
-    private void reset()
-    {
-        
-    }
-    
-    private RedisClient getRedisClientFromKey(String key)
+    public String getString(String key) throws RedisErrorException, ServiceUnavailableException
     {
-        if (key == null)
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
         {
-            return null;
+            return getString(partitionTable, key);
+        }
+        finally
+        {
+            partitionTable.release();
         }
-        int partitionKey =  key.hashCode() % partitionMask;
-        return partitionKeyToRedisClientMap.get(partitionKey);
     }
     
-    // 这里还要对RedisClient进行创建和删除操作
-    private void buildOrUpdateRedisPartitionInfo()
+    private String getString(RedisPartitionTable partitionTable, String key) throws RedisErrorException, ServiceUnavailableException
     {
-        ZNodeDependenceData depData = client.getDepData();
-        if (depData == null)
+        if(!isServiceReadyToWork())
         {
-            logger.error("buildOrUpdateRedisPartitionInfo the depData Should not be null for Cache service");
-            return;
+            throw new ServiceUnavailableException();
         }
-        if (!depData.isContainedDecorate(ZNodeDecorateType.REDIS))
+        long startTime = System.nanoTime();
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.GET);
+        HotKeyCache hotCache = recordHotKey(key) ? hotKeyCache : null;
+        long hotLoadSeq = 0;
+        if (hotCache != null)
         {
-            logger.error("depDate should contain redis decorate " + depData);
-            return;
+            String value = hotCache.get(key);
+            if (value != null)
+            {
+                metrics.record(startTime, value.length());
+                return value;
+            }
+            hotLoadSeq = hotCache.beginLoad(key);
         }
-        ZNodeDependenceDataDecorateRedis decorate = (ZNodeDependenceDataDecorateRedis)depData.getDependenceDataDecorate(ZNodeDecorateType.REDIS);
-        Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap = decorate.getRedisServiceNameToPartitionMap();
-        if (redisServiceNameToPartitionKeyMap == null)
+        LocalCache localCache = nearCache;
+        long loadSeq = 0;
+        if (localCache != null && key != null)
         {
-            logger.error("redisServiceNameToPartitionKeyMap should not be empty");
-            return;
+            String value = localCache.get(key);
+            if (value != null)
+            {
+                metrics.record(startTime, value.length());
+                return value;
+            }
+            loadSeq = localCache.beginLoad(key);
         }
-        Set<ZNodeServiceData> redisServiceData = depData.getDependenceData().get(REDIS_SERVICE_GROUP_KEY);
-        if (redisServiceData == null)
+        int partition = key == null ? -1 : partitionTable.getPartition(key);
+        RedisShardClient redisClient = partitionTable.getRedisClientByPartition(partition);
+        if (redisClient == null)
         {
-            logger.error("Cache service dependence should contain the redis service data");
-            return;
+            metrics.recordError(startTime, false);
+            throw new RedisErrorException();
         }
-        lock.lock();
+        String pendingValue = redisClient.getPendingWrite(key);
+        if (pendingValue != null)
+        {
+            metrics.record(startTime, pendingValue.length());
+            return pendingValue;
+        }
+        NegativeLookup negative = key == null ? null : negativeLookup;
+        long lookupSeq = 0;
+        if (negative != null)
+        {
+            if (negative.isKnownAbsent(redisClient, key))
+            {
+                String value = loadOnMiss(key);
+                metrics.record(startTime, value == null ? -1 : value.length());
+                return value;
+            }
+            lookupSeq = negative.beginLookup(key);
+        }
+        redisClient = selectReadClient(partitionTable, partition, redisClient, key);
+        Deadline deadline = newDeadline(0);
+        SingleFlight flights = singleFlight;
+        SingleFlight.Flight flight = flights == null || key == null ? null : flights.begin(key);
+        String value = null;
+        if (flight != null && !flight.isLeader())
+        {
+            try
+            {
+                value = flights.await(flight, getFollowerWaitMs(key, deadline));
+            }
+            catch (JedisException e)
+            {
+                logger.error("Fail to get string from " + redisClient + ": " + e.getMessage());
+                metrics.recordError(startTime, isTimeout(e));
+                throw new RedisErrorException();
+            }
+            metrics.record(startTime, value == null ? -1 : value.length());
+            return value;
+        }
+        // leader不论以何种方式结束都要完成flight，否则之后的读都会成为等待超时的follower
+        boolean isFlightDone = flight == null;
         try
         {
-            Set<ZNodeServiceData> currentRedisServiceData = redisServiceDataToRedisClientMap.keySet();
-            List<ZNodeServiceData> addRedisServiceData = new ArrayList<ZNodeServiceData>();
-            for (ZNodeServiceData data : redisServiceData)
+            try
             {
-                if (!currentRedisServiceData.contains(data))
-                {
-                    addRedisServiceData.add(data);
-                }
+                value = redisClient.getString(key, deadline);
             }
-            List<ZNodeServiceData> delRedisServiceData = new ArrayList<ZNodeServiceData>();
-            for (ZNodeServiceData data : currentRedisServiceData)
+            catch (JedisException e)
             {
-                if (!redisServiceData.contains(data))
+                flights.fail(flight, e);
+                isFlightDone = true;
+                logger.error("Fail to get string from " + redisClient + ": " + e.getMessage());
+                metrics.recordError(startTime, isTimeout(e));
+                throw new RedisErrorException();
+            }
+            // 不需要loader时直接用Redis的结果完成flight，follower不等待本地缓存的回填
+            if (!isFlightDone && (value != null || loaderRegistry.find(key) == null))
+            {
+                flights.complete(flight, value);
+                isFlightDone = true;
+            }
+            if (value == null)
+            {
+                if (negative != null)
                 {
-                    delRedisServiceData.add(data);
+                    negative.recordMiss(key, lookupSeq);
                 }
+                value = loadOnMiss(key);
             }
-            if (addRedisServiceData.size() > 0 || delRedisServiceData.size() > 0)
+            if (!isFlightDone)
             {
-                updateRedisClient(addRedisServiceData, delRedisServiceData);
+                flights.complete(flight, value);
+                isFlightDone = true;
+            }
+            if (localCache != null && value != null)
+            {
+                localCache.putIfNotInvalidated(key, value, loadSeq);
+            }
+            if (hotCache != null)
+            {
+                hotCache.putIfNotInvalidated(key, value, hotLoadSeq);
             }
-            updatePartitionKeyToRedisClientMap(redisServiceNameToPartitionKeyMap);
         }
         finally
         {
-            lock.unlock();
+            if (!isFlightDone)
+            {
+                flights.fail(flight, new JedisException("Leader read of " + key + " is failed"));
+            }
         }
+        metrics.record(startTime, value == null ? -1 : value.length());
+        cacheMetrics.recordPartition(partition, startTime);
+        return value;
     }
     
-    private void updateRedisClient(List<ZNodeServiceData> addRedisServiceData, List<ZNodeServiceData> delRedisServiceData)
+    @Override
+    public void setString(String key, String value, long ttlMs) throws RedisErrorException, ServiceUnavailableException
     {
-        lock.lock();
+        RedisPartitionTable partitionTable = acquirePartitionTable();
         try
         {
-            Map<ZNodeServiceData, RedisClient> redisServiceDataToRedisClientMapTmp = new HashMap<ZNodeServiceData, RedisClient>(redisServiceDataToRedisClientMap);
-            for (ZNodeServiceData data : delRedisServiceData)
-            {
-                RedisClient client = redisServiceDataToRedisClientMapTmp.remove(data);
-                if (client == null)
-                {
-                    logger.error("Redis client should not be empty " + data);
-                    continue;
-                }
-                client.closePool();
-            }
-            for (ZNodeServiceData data : addRedisServiceData)
-            {
-                if (redisServiceDataToRedisClientMapTmp.containsKey(data))
-                {
-                    logger.error("partitionKeyToRedisClientMapTmp should not contain " + data);
-                    continue;
-                }
-                RedisClient client = new RedisClient(data.getIp(), data.getPort(), REDIS_MAX_TOTAL_DEFAULT,
-                        REDIS_MAX_IDEL_DEFAULT, REDIS_MAX_WAIT_DEFAULT, REDIS_TEST_ON_BORROW_DEFAULT);
-                redisServiceDataToRedisClientMapTmp.put(data, client);
-            }
-            redisServiceDataToRedisClientMap = redisServiceDataToRedisClientMapTmp;
+            setString(partitionTable, key, value, ttlMs);
         }
         finally
         {
-            lock.unlock();
+            partitionTable.release();
         }
     }
     
-    private void updatePartitionKeyToRedisClientMap(Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap)
+    private void setString(RedisPartitionTable partitionTable, String key, String value, long ttlMs) throws RedisErrorException, ServiceUnavailableException
     {
-        lock.lock();
-        try
+        if(!isServiceReadyToWork())
         {
-            Map<Integer, RedisClient> partitionKeyToRedisClientMapTmp = new HashMap<Integer, RedisClient>();
-            Set<ZNodeServiceData> currentRedisServiceData = redisServiceDataToRedisClientMap.keySet();
-            for (String redisServiceName : redisServiceNameToPartitionKeyMap.keySet())
+            throw new ServiceUnavailableException();
+        }
+        long startTime = System.nanoTime();
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.SET);
+        recordHotKey(key);
+        int partition = key == null ? -1 : partitionTable.getPartition(key);
+        RedisShardClient redisClient = partitionTable.getRedisClientByPartition(partition);
+        if (redisClient == null || ttlMs <= 0)
+        {
+            if (ttlMs <= 0)
             {
-                for (ZNodeServiceData data : currentRedisServiceData)
-                {
-                    if (data.getServiceName().equals(redisServiceName))
-                    {
-                        Set<Integer> partitionKeys = redisServiceNameToPartitionKeyMap.get(redisServiceName);
-                        RedisClient client = redisServiceDataToRedisClientMap.get(data);
-                        for (Integer partitionKey : partitionKeys)
-                        {
-                            partitionKeyToRedisClientMapTmp.put(partitionKey, client);
-                        }
-                        break;
-                    }
-                }
+                logger.error("Un valid ttl " + ttlMs + " for key " + key);
             }
-            partitionKeyToRedisClientMap = partitionKeyToRedisClientMapTmp;
+            metrics.recordError(startTime, false);
+            throw new RedisErrorException();
+        }
+        try
+        {
+            redisClient.setStringWithTtl(key, value, ttlPolicy.applyJitter(key, ttlMs), newDeadline(0));
+        }
+        catch (JedisException e)
+        {
+            logger.error("Fail to set string with ttl to " + redisClient + ": " + e.getMessage());
+            metrics.recordError(startTime, isTimeout(e));
+            throw new RedisErrorException();
         }
         finally
         {
-            lock.unlock();
+            invalidateLocalCache(key);
         }
+        metrics.record(startTime, value == null ? -1 : value.length());
+        cacheMetrics.recordPartition(partition, startTime);
     }
     
-    private void clearRedisPartitionInfo()
+    @Override
+    public TtlValue getStringWithTtl(String key) throws RedisErrorException, ServiceUnavailableException
     {
-        lock.lock();
+        RedisPartitionTable partitionTable = acquirePartitionTable();
         try
         {
-            //不能通过partitionKeyToRedisClientMap来去做，应该用redisServiceDataToRedisClientMap
-            for(RedisClient redisClient : redisServiceDataToRedisClientMap.values())
-            {
-                redisClient.closePool();
-            }
-            partitionKeyToRedisClientMap.clear();
-            redisServiceDataToRedisClientMap.clear();
-            partitionMask = -1;
+            return getStringWithTtl(partitionTable, key);
         }
         finally
         {
-            lock.unlock();
+            partitionTable.release();
         }
     }
     
-    private void updateServiceConfigProperties(JSONObject serviceConfigPropertiesObj)
+    private TtlValue getStringWithTtl(RedisPartitionTable partitionTable, String key) throws RedisErrorException, ServiceUnavailableException
     {
-        if (!isConfiged)
+        if(!isServiceReadyToWork())
         {
-            logger.info("Update the serviceProperties for Cache");
-            startWork();
+            throw new ServiceUnavailableException();
         }
-        isConfiged = true;
+        long startTime = System.nanoTime();
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.GET);
+        recordHotKey(key);
+        int partition = key == null ? -1 : partitionTable.getPartition(key);
+        RedisShardClient redisClient = partitionTable.getRedisClientByPartition(partition);
+        if (redisClient == null)
+        {
+            metrics.recordError(startTime, false);
+            throw new RedisErrorException();
+        }
+        // 缓冲区中的值来自不带过期时间的写
+        String pendingValue = redisClient.getPendingWrite(key);
+        if (pendingValue != null)
+        {
+            metrics.record(startTime, pendingValue.length());
+            return new TtlValue(pendingValue, TtlValue.NO_EXPIRE);
+        }
+        redisClient = selectReadClient(partitionTable, partition, redisClient, key);
+        TtlValue ttlValue = null;
+        try
+        {
+            ttlValue = redisClient.getStringWithTtl(key, newDeadline(0));
+        }
+        catch (JedisException e)
+        {
+            logger.error("Fail to get string with ttl from " + redisClient + ": " + e.getMessage());
+            metrics.recordError(startTime, isTimeout(e));
+            throw new RedisErrorException();
+        }
+        // GET和PTTL之间key可能刚好过期
+        if (ttlValue.getValue() == null || ttlValue.getTtlMs() == TtlValue.NOT_EXIST)
+        {
+            ttlValue = new TtlValue(null, TtlValue.NOT_EXIST);
+        }
+        else if (ttlPolicy.isEarlyExpired(ttlValue.getTtlMs()))
+        {
+            ttlValue = new TtlValue(null, ttlValue.getTtlMs());
+        }
+        metrics.record(startTime, ttlValue.getValue() == null ? -1 : ttlValue.getValue().length());
+        cacheMetrics.recordPartition(partition, startTime);
+        return ttlValue;
     }
     
-    private boolean isServiceReadyToWork()
+    @Override
+    public CompletableFuture<String> getStringAsync(String key)
     {
-        return isRunning && isConfiged;
+        return getStringAsync(key, 0);
     }
     
-    /**
-     * 通过dependenceData来构建redisClientMap
-     * 
-     * @author yanbinwa
-     *
-     */
-    class OrchestrationWatcher implements OrchestartionCallBack
+    @Override
+    public CompletableFuture<Void> setStringAsync(String key, String value)
     {
-
-        OrchestrationServiceState curState = OrchestrationServiceState.NOTREADY;
-        
-        @Override
-        public void handleServiceStateChange(OrchestrationServiceState state)
+        return setStringAsync(key, value, 0);
+    }
+    
+    @Override
+    public CompletableFuture<String> getStringAsync(String key, long timeoutMs)
+    {
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
         {
-            logger.info("Service state is: " + state);
-            //由Unready -> ready
-            if (state == OrchestrationServiceState.READY && curState == OrchestrationServiceState.NOTREADY)
-            {
-                logger.info("The service is started");
-                curState = state;
-                buildOrUpdateRedisPartitionInfo();
-            }
-            else if(state == OrchestrationServiceState.NOTREADY && curState == OrchestrationServiceState.READY)
-            {
-                logger.info("The service is stopped");
+            return releaseOnComplete(partitionTable, getStringAsync(partitionTable, key, timeoutMs));
+        }
+        catch (RuntimeException e)
+        {
+            partitionTable.release();
+            throw e;
+        }
+    }
+    
+    private CompletableFuture<String> getStringAsync(RedisPartitionTable partitionTable, final String key, long timeoutMs)
+    {
+        if(!isServiceReadyToWork())
+        {
+            return failedFuture(new ServiceUnavailableException());
+        }
+        final long startTime = System.nanoTime();
+        final OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.GET);
+        final HotKeyCache hotCache = recordHotKey(key) ? hotKeyCache : null;
+        long hotLoadSeq = 0;
+        if (hotCache != null)
+        {
+            String value = hotCache.get(key);
+            if (value != null)
+            {
+                metrics.record(startTime, value.length());
+                return CompletableFuture.completedFuture(value);
+            }
+            hotLoadSeq = hotCache.beginLoad(key);
+        }
+        final LocalCache localCache = nearCache;
+        long loadSeq = 0;
+        if (localCache != null && key != null)
+        {
+            String value = localCache.get(key);
+            if (value != null)
+            {
+                metrics.record(startTime, value.length());
+                return CompletableFuture.completedFuture(value);
+            }
+            loadSeq = localCache.beginLoad(key);
+        }
+        final int partition = key == null ? -1 : partitionTable.getPartition(key);
+        RedisShardClient primaryClient = partitionTable.getRedisClientByPartition(partition);
+        if (primaryClient == null)
+        {
+            metrics.recordError(startTime, false);
+            return failedFuture(new RedisErrorException());
+        }
+        String pendingValue = primaryClient.getPendingWrite(key);
+        if (pendingValue != null)
+        {
+            metrics.record(startTime, pendingValue.length());
+            return CompletableFuture.completedFuture(pendingValue);
+        }
+        final NegativeLookup negative = key == null ? null : negativeLookup;
+        long lookupSeq = 0;
+        if (negative != null)
+        {
+            if (negative.isKnownAbsent(primaryClient, key))
+            {
+                BatchingLoader loader = loaderRegistry.find(key);
+                if (loader == null)
+                {
+                    metrics.record(startTime, -1);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return loader.load(key, loaderRegistry.getConfig().getTimeoutMs()).thenApply(new Function<String, String>() {
+
+                    @Override
+                    public String apply(String value)
+                    {
+                        metrics.record(startTime, value == null ? -1 : value.length());
+                        return value;
+                    }
+                    
+                });
+            }
+            lookupSeq = negative.beginLookup(key);
+        }
+        final long finalLookupSeq = lookupSeq;
+        final RedisShardClient redisClient = selectReadClient(partitionTable, partition, primaryClient, key);
+        final long finalLoadSeq = loadSeq;
+        final long finalHotLoadSeq = hotLoadSeq;
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        final SingleFlight flights = singleFlight;
+        final SingleFlight.Flight flight = flights == null || key == null ? null : flights.begin(key);
+        final Deadline deadline = newDeadline(timeoutMs);
+        if (flight != null && !flight.isLeader())
+        {
+            // follower按自己的deadline等待，不受leader的deadline影响
+            flights.awaitAsync(flight, getFollowerWaitMs(key, deadline)).whenComplete(new BiConsumer<String, Throwable>() {
+
+                @Override
+                public void accept(String value, Throwable e)
+                {
+                    if (e != null)
+                    {
+                        metrics.recordError(startTime, isTimeout(e));
+                        future.completeExceptionally(new RedisErrorException());
+                        return;
+                    }
+                    metrics.record(startTime, value == null ? -1 : value.length());
+                    future.complete(value);
+                }
+                
+            });
+            return future;
+        }
+        final BiConsumer<String, Throwable> completeWithValue = new BiConsumer<String, Throwable>() {
+
+            @Override
+            public void accept(String value, Throwable e)
+            {
+                if (flight != null)
+                {
+                    flights.complete(flight, value);
+                }
+                try
+                {
+                    if (localCache != null && value != null)
+                    {
+                        localCache.putIfNotInvalidated(key, value, finalLoadSeq);
+                    }
+                    if (hotCache != null)
+                    {
+                        hotCache.putIfNotInvalidated(key, value, finalHotLoadSeq);
+                    }
+                }
+                catch (RuntimeException ex)
+                {
+                    logger.error("Fail to fill local cache with " + key + ": " + ex);
+                }
+                metrics.record(startTime, value == null ? -1 : value.length());
+                cacheMetrics.recordPartition(partition, startTime);
+                future.complete(value);
+            }
+            
+        };
+        redisClient.getStringAsync(key, deadline).whenComplete(new BiConsumer<String, Throwable>() {
+
+            @Override
+            public void accept(String value, Throwable e)
+            {
+                if (e != null)
+                {
+                    if (flight != null)
+                    {
+                        flights.fail(flight, e);
+                    }
+                    logger.error("Fail to get string from " + redisClient + ": " + e.getMessage());
+                    metrics.recordError(startTime, isTimeout(e));
+                    future.completeExceptionally(new RedisErrorException());
+                    return;
+                }
+                try
+                {
+                    if (value == null && negative != null)
+                    {
+                        negative.recordMiss(key, finalLookupSeq);
+                    }
+                    BatchingLoader loader = value == null && key != null ? loaderRegistry.find(key) : null;
+                    if (loader != null)
+                    {
+                        loader.load(key, loaderRegistry.getConfig().getTimeoutMs()).whenComplete(completeWithValue);
+                        return;
+                    }
+                }
+                catch (RuntimeException ex)
+                {
+                    logger.error("Fail to load " + key + " on miss: " + ex);
+                }
+                completeWithValue.accept(value, null);
+            }
+            
+        });
+        return future;
+    }
+    
+    @Override
+    public CompletableFuture<Void> setStringAsync(String key, String value, long timeoutMs)
+    {
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
+        {
+            return releaseOnComplete(partitionTable, setStringAsync(partitionTable, key, value, timeoutMs));
+        }
+        catch (RuntimeException e)
+        {
+            partitionTable.release();
+            throw e;
+        }
+    }
+    
+    private CompletableFuture<Void> setStringAsync(RedisPartitionTable partitionTable, final String key, String value, long timeoutMs)
+    {
+        if(!isServiceReadyToWork())
+        {
+            return failedFuture(new ServiceUnavailableException());
+        }
+        final long startTime = System.nanoTime();
+        final OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.SET);
+        recordHotKey(key);
+        final int size = value == null ? -1 : value.length();
+        final int partition = key == null ? -1 : partitionTable.getPartition(key);
+        final RedisShardClient redisClient = partitionTable.getRedisClientByPartition(partition);
+        if (redisClient == null)
+        {
+            metrics.recordError(startTime, false);
+            return failedFuture(new RedisErrorException());
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        redisClient.setStringAsync(key, value, newDeadline(timeoutMs)).whenComplete(new BiConsumer<String, Throwable>() {
+
+            @Override
+            public void accept(String ret, Throwable e)
+            {
+                invalidateLocalCache(key);
+                if (e != null)
+                {
+                    logger.error("Fail to set string to " + redisClient + ": " + e.getMessage());
+                    metrics.recordError(startTime, isTimeout(e));
+                    future.completeExceptionally(new RedisErrorException());
+                    return;
+                }
+                metrics.record(startTime, size);
+                cacheMetrics.recordPartition(partition, startTime);
+                future.complete(null);
+            }
+            
+        });
+        return future;
+    }
+    
+    @Override
+    public List<String> getStrings(List<String> keys) throws RedisErrorException, ServiceUnavailableException
+    {
+        return getStrings(keys, 0);
+    }
+    
+    @Override
+    public List<String> getStrings(List<String> keys, long timeoutMs) throws RedisErrorException, ServiceUnavailableException
+    {
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
+        {
+            return getStrings(partitionTable, keys, timeoutMs);
+        }
+        finally
+        {
+            partitionTable.release();
+        }
+    }
+    
+    private List<String> getStrings(RedisPartitionTable partitionTable, List<String> keys, long timeoutMs) throws RedisErrorException, ServiceUnavailableException
+    {
+        if(!isServiceReadyToWork())
+        {
+            throw new ServiceUnavailableException();
+        }
+        if (keys == null)
+        {
+            throw new RedisErrorException();
+        }
+        long startTime = System.nanoTime();
+        final String[] values = new String[keys.size()];
+        final LocalCache localCache = nearCache;
+        final long[] loadSeqs = new long[keys.size()];
+        final NegativeLookup negative = negativeLookup;
+        final long[] lookupSeqs = new long[keys.size()];
+        final Deadline deadline = newDeadline(timeoutMs);
+        ReplicaReadPolicy policy = replicaReadPolicy;
+        // 同一个primary上的key在一次调用中使用同一个reader，保持一个分片一次MGET
+        Map<RedisShardClient, RedisShardClient> primaryToReaderMap = new IdentityHashMap<RedisShardClient, RedisShardClient>();
+        Map<RedisShardClient, List<Integer>> redisClientToIndexMap = new IdentityHashMap<RedisShardClient, List<Integer>>();
+        for (int i = 0; i < keys.size(); i ++)
+        {
+            String key = keys.get(i);
+            if (key == null)
+            {
+                throw new RedisErrorException();
+            }
+            if (localCache != null)
+            {
+                values[i] = localCache.get(key);
+                if (values[i] != null)
+                {
+                    continue;
+                }
+                loadSeqs[i] = localCache.beginLoad(key);
+            }
+            int partition = partitionTable.getPartition(key);
+            RedisShardClient redisClient = partitionTable.getRedisClientByPartition(partition);
+            if (redisClient == null)
+            {
+                throw new RedisErrorException();
+            }
+            values[i] = redisClient.getPendingWrite(key);
+            if (values[i] != null)
+            {
+                continue;
+            }
+            if (negative != null)
+            {
+                // 确定不存在的key留空，之后和其他未命中的key一起交给loader
+                if (negative.isKnownAbsent(redisClient, key))
+                {
+                    continue;
+                }
+                lookupSeqs[i] = negative.beginLookup(key);
+            }
+            if (policy != null && !policy.isRecentlyWritten(key))
+            {
+                RedisShardClient reader = primaryToReaderMap.get(redisClient);
+                if (reader == null)
+                {
+                    reader = policy.select(redisClient, partitionTable.getReadersByPartition(partition), null);
+                    primaryToReaderMap.put(redisClient, reader);
+                }
+                redisClient = reader;
+            }
+            List<Integer> indexes = redisClientToIndexMap.get(redisClient);
+            if (indexes == null)
+            {
+                indexes = new ArrayList<Integer>();
+                redisClientToIndexMap.put(redisClient, indexes);
+            }
+            indexes.add(i);
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Map.Entry<RedisShardClient, List<Integer>> entry : redisClientToIndexMap.entrySet())
+        {
+            final RedisShardClient redisClient = entry.getKey();
+            final List<Integer> indexes = entry.getValue();
+            final List<String> shardKeys = new ArrayList<String>(indexes.size());
+            for (Integer index : indexes)
+            {
+                shardKeys.add(keys.get(index));
+            }
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception
+                {
+                    List<String> shardValues = redisClient.getStrings(shardKeys, deadline);
+                    for (int i = 0; i < indexes.size(); i ++)
+                    {
+                        int index = indexes.get(i);
+                        values[index] = shardValues.get(i);
+                        if (localCache != null && values[index] != null)
+                        {
+                            localCache.putIfNotInvalidated(shardKeys.get(i), values[index], loadSeqs[index]);
+                        }
+                        if (negative != null && values[index] == null)
+                        {
+                            negative.recordMiss(shardKeys.get(i), lookupSeqs[index]);
+                        }
+                    }
+                    return null;
+                }
+                
+            });
+        }
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.MGET);
+        try
+        {
+            executeOnShards(tasks);
+        }
+        catch (RedisErrorException e)
+        {
+            metrics.recordError(startTime, false);
+            throw e;
+        }
+        loadMissingValues(keys, values, localCache, loadSeqs);
+        metrics.record(startTime, keys.size());
+        return Arrays.asList(values);
+    }
+    
+    @Override
+    public void setStrings(Map<String, String> keyToValueMap) throws RedisErrorException, ServiceUnavailableException
+    {
+        setStrings(keyToValueMap, 0);
+    }
+    
+    @Override
+    public void setStrings(Map<String, String> keyToValueMap, long timeoutMs) throws RedisErrorException, ServiceUnavailableException
+    {
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
+        {
+            setStrings(partitionTable, keyToValueMap, timeoutMs);
+        }
+        finally
+        {
+            partitionTable.release();
+        }
+    }
+    
+    private void setStrings(RedisPartitionTable partitionTable, Map<String, String> keyToValueMap, long timeoutMs) throws RedisErrorException, ServiceUnavailableException
+    {
+        if(!isServiceReadyToWork())
+        {
+            throw new ServiceUnavailableException();
+        }
+        if (keyToValueMap == null)
+        {
+            throw new RedisErrorException();
+        }
+        long startTime = System.nanoTime();
+        final Deadline deadline = newDeadline(timeoutMs);
+        Map<RedisShardClient, Map<String, String>> redisClientToValueMap = new IdentityHashMap<RedisShardClient, Map<String, String>>();
+        for (Map.Entry<String, String> entry : keyToValueMap.entrySet())
+        {
+            RedisShardClient redisClient = entry.getKey() == null ? null : partitionTable.getRedisClient(entry.getKey());
+            if (redisClient == null || entry.getValue() == null)
+            {
+                throw new RedisErrorException();
+            }
+            Map<String, String> shardValueMap = redisClientToValueMap.get(redisClient);
+            if (shardValueMap == null)
+            {
+                shardValueMap = new HashMap<String, String>();
+                redisClientToValueMap.put(redisClient, shardValueMap);
+            }
+            shardValueMap.put(entry.getKey(), entry.getValue());
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Map.Entry<RedisShardClient, Map<String, String>> entry : redisClientToValueMap.entrySet())
+        {
+            final RedisShardClient redisClient = entry.getKey();
+            final Map<String, String> shardValueMap = entry.getValue();
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception
+                {
+                    redisClient.setStrings(shardValueMap, deadline);
+                    return null;
+                }
+                
+            });
+        }
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.MSET);
+        try
+        {
+            executeOnShards(tasks);
+        }
+        catch (RedisErrorException e)
+        {
+            metrics.recordError(startTime, false);
+            throw e;
+        }
+        finally
+        {
+            for (String key : keyToValueMap.keySet())
+            {
+                invalidateLocalCache(key);
+            }
+        }
+        metrics.record(startTime, keyToValueMap.size());
+    }
+    
+    @Override
+    public long deleteStrings(List<String> keys) throws RedisErrorException, ServiceUnavailableException
+    {
+        return deleteStrings(keys, 0);
+    }
+    
+    @Override
+    public long deleteStrings(List<String> keys, long timeoutMs) throws RedisErrorException, ServiceUnavailableException
+    {
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
+        {
+            return deleteStrings(partitionTable, keys, timeoutMs);
+        }
+        finally
+        {
+            partitionTable.release();
+        }
+    }
+    
+    private long deleteStrings(RedisPartitionTable partitionTable, List<String> keys, long timeoutMs) throws RedisErrorException, ServiceUnavailableException
+    {
+        if(!isServiceReadyToWork())
+        {
+            throw new ServiceUnavailableException();
+        }
+        if (keys == null)
+        {
+            throw new RedisErrorException();
+        }
+        long startTime = System.nanoTime();
+        final Deadline deadline = newDeadline(timeoutMs);
+        Map<RedisShardClient, List<String>> redisClientToKeysMap = new IdentityHashMap<RedisShardClient, List<String>>();
+        for (String key : keys)
+        {
+            RedisShardClient redisClient = key == null ? null : partitionTable.getRedisClient(key);
+            if (redisClient == null)
+            {
+                throw new RedisErrorException();
+            }
+            List<String> shardKeys = redisClientToKeysMap.get(redisClient);
+            if (shardKeys == null)
+            {
+                shardKeys = new ArrayList<String>();
+                redisClientToKeysMap.put(redisClient, shardKeys);
+            }
+            shardKeys.add(key);
+        }
+        final AtomicLong deleted = new AtomicLong(0);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Map.Entry<RedisShardClient, List<String>> entry : redisClientToKeysMap.entrySet())
+        {
+            final RedisShardClient redisClient = entry.getKey();
+            final List<String> shardKeys = entry.getValue();
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception
+                {
+                    deleted.addAndGet(redisClient.deleteStrings(shardKeys, deadline));
+                    return null;
+                }
+                
+            });
+        }
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.DEL);
+        try
+        {
+            executeOnShards(tasks);
+        }
+        catch (RedisErrorException e)
+        {
+            metrics.recordError(startTime, false);
+            throw e;
+        }
+        finally
+        {
+            for (String key : keys)
+            {
+                invalidateLocalCache(key);
+            }
+        }
+        metrics.record(startTime, keys.size());
+        return deleted.get();
+    }
+    
+    @Override
+    public void setBytes(String key, byte[] value) throws RedisErrorException, ServiceUnavailableException
+    {
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
+        {
+            setBytes(partitionTable, key, value);
+        }
+        finally
+        {
+            partitionTable.release();
+        }
+    }
+    
+    private void setBytes(RedisPartitionTable partitionTable, String key, byte[] value) throws RedisErrorException, ServiceUnavailableException
+    {
+        if(!isServiceReadyToWork())
+        {
+            throw new ServiceUnavailableException();
+        }
+        long startTime = System.nanoTime();
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.SET);
+        recordHotKey(key);
+        int partition = key == null ? -1 : partitionTable.getPartition(key);
+        RedisShardClient redisClient = partitionTable.getRedisClientByPartition(partition);
+        if (redisClient == null || value == null)
+        {
+            metrics.recordError(startTime, false);
+            throw new RedisErrorException();
+        }
+        try
+        {
+            redisClient.setBytes(key, valueCodec.encode(value), newDeadline(0));
+        }
+        catch (JedisException e)
+        {
+            logger.error("Fail to set bytes to " + redisClient + ": " + e.getMessage());
+            metrics.recordError(startTime, isTimeout(e));
+            throw new RedisErrorException();
+        }
+        finally
+        {
+            invalidateLocalCache(key);
+        }
+        metrics.record(startTime, value.length);
+        cacheMetrics.recordPartition(partition, startTime);
+    }
+    
+    @Override
+    public byte[] getBytes(String key) throws RedisErrorException, ServiceUnavailableException
+    {
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
+        {
+            return getBytes(partitionTable, key);
+        }
+        finally
+        {
+            partitionTable.release();
+        }
+    }
+    
+    private byte[] getBytes(RedisPartitionTable partitionTable, String key) throws RedisErrorException, ServiceUnavailableException
+    {
+        if(!isServiceReadyToWork())
+        {
+            throw new ServiceUnavailableException();
+        }
+        long startTime = System.nanoTime();
+        OperationMetrics metrics = cacheMetrics.getOperation(CacheMetrics.Operation.GET);
+        recordHotKey(key);
+        int partition = key == null ? -1 : partitionTable.getPartition(key);
+        RedisShardClient redisClient = partitionTable.getRedisClientByPartition(partition);
+        if (redisClient == null)
+        {
+            metrics.recordError(startTime, false);
+            throw new RedisErrorException();
+        }
+        String pendingValue = redisClient.getPendingWrite(key);
+        if (pendingValue != null)
+        {
+            byte[] value = pendingValue.getBytes(StandardCharsets.UTF_8);
+            metrics.record(startTime, value.length);
+            return value;
+        }
+        redisClient = selectReadClient(partitionTable, partition, redisClient, key);
+        byte[] value = null;
+        try
+        {
+            value = ValueCodec.decode(redisClient.getBytes(key, newDeadline(0)));
+        }
+        catch (JedisException e)
+        {
+            logger.error("Fail to get bytes from " + redisClient + ": " + e.getMessage());
+            metrics.recordError(startTime, isTimeout(e));
+            throw new RedisErrorException();
+        }
+        metrics.record(startTime, value == null ? -1 : value.length);
+        cacheMetrics.recordPartition(partition, startTime);
+        return value;
+    }
+    
+    @Override
+    public void registerLoader(String prefix, CacheLoader loader, long ttlMs)
+    {
+        if (prefix == null || loader == null)
+        {
+            logger.error("Un valid cache loader for prefix " + prefix);
+            return;
+        }
+        loaderRegistry.register(prefix, loader, ttlMs);
+    }
+    
+    @Override
+    public void unregisterLoader(String prefix)
+    {
+        loaderRegistry.unregister(prefix);
+    }
+    
+    @Override
+    public String getNearCacheStats()
+    {
+        LocalCache localCache = nearCache;
+        JSONObject stats = localCache == null ? new JSONObject() : localCache.getStats();
+        stats.put(NEAR_CACHE_ENABLE, localCache != null);
+        InvalidationChannel channel = invalidationChannel;
+        if (channel != null)
+        {
+            stats.put(INVALIDATION_KEY, channel.getStats());
+        }
+        return stats.toString();
+    }
+    
+    @Override
+    public String getShardStats()
+    {
+        JSONArray stats = new JSONArray();
+        lock.lock();
+        try
+        {
+            for (RedisShardClient redisClient : redisServiceDataToRedisClientMap.values())
+            {
+                stats.put(redisClient.getStats());
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return stats.toString();
+    }
+    
+    @Override
+    public String getCacheStats()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("operations", cacheMetrics.getOperationStats());
+        stats.put("partitions", cacheMetrics.getPartitionStats());
+        SingleFlight flights = singleFlight;
+        if (flights != null)
+        {
+            stats.put(SINGLE_FLIGHT_KEY, flights.getStats());
+        }
+        ReplicaReadPolicy policy = replicaReadPolicy;
+        if (policy != null)
+        {
+            stats.put(REPLICA_READ_KEY, policy.getStats());
+        }
+        stats.put(TTL_KEY, ttlPolicy.getStats());
+        NegativeLookup negative = negativeLookup;
+        if (negative != null)
+        {
+            stats.put(NEGATIVE_CACHE_KEY, negative.getStats());
+        }
+        if (!loaderRegistry.isEmpty())
+        {
+            stats.put(LOADER_KEY, loaderRegistry.getStats());
+        }
+        JSONObject startupStats = startupTimeline.getStats();
+        startupStats.put("isRoutingReady", isRoutingReady);
+        JSONArray coldShards = new JSONArray();
+        for (RedisShardClient redisClient : getColdPrimaries())
+        {
+            coldShards.put(redisClient.getIp() + ":" + redisClient.getPort());
+        }
+        startupStats.put("coldShards", coldShards);
+        stats.put(STARTUP_KEY, startupStats);
+        if (snapshotFile != null)
+        {
+            JSONObject snapshotStats = new JSONObject();
+            snapshotStats.put("path", snapshotFile.getPath());
+            snapshotStats.put("isRoutingFromSnapshot", isRoutingFromSnapshot);
+            snapshotStats.put("restoredCount", snapshotRestoredCount.get());
+            snapshotStats.put("reconcileInvalidationCount", snapshotReconcileInvalidationCount.get());
+            snapshotStats.put("savedCount", snapshotSavedCount.get());
+            stats.put(SNAPSHOT_KEY, snapshotStats);
+        }
+        JSONObject shardStats = new JSONObject();
+        lock.lock();
+        try
+        {
+            for (RedisShardClient redisClient : redisServiceDataToRedisClientMap.values())
+            {
+                shardStats.put(redisClient.getIp() + ":" + redisClient.getPort(), redisClient.getStats());
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        stats.put("shards", shardStats);
+        return stats.toString();
+    }
+    
+    @Override
+    public String getHotKeys()
+    {
+        HotKeyDetector detector = hotKeyDetector;
+        JSONObject stats = new JSONObject();
+        stats.put(HOT_KEY_ENABLE, detector != null);
+        if (detector == null)
+        {
+            return stats.toString();
+        }
+        stats.put(HOT_KEY_WINDOW_MS, detector.getWindowMs());
+        stats.put(HOT_KEY_THRESHOLD, detector.getHotThreshold());
+        RedisPartitionTable partitionTable = redisPartitionTable;
+        JSONObject shards = new JSONObject();
+        for (Map.Entry<String, Integer> entry : detector.getHotKeys())
+        {
+            RedisShardClient redisClient = partitionTable.getRedisClient(entry.getKey());
+            String shardName = redisClient == null ? "unknown" : redisClient.getIp() + ":" + redisClient.getPort();
+            JSONObject hotKey = new JSONObject();
+            hotKey.put("key", entry.getKey());
+            hotKey.put("count", entry.getValue());
+            shards.append(shardName, hotKey);
+        }
+        stats.put("shards", shards);
+        HotKeyCache hotCache = hotKeyCache;
+        if (hotCache != null)
+        {
+            stats.put("localCopy", hotCache.getStats());
+        }
+        return stats.toString();
+    }
+    
+    @Override
+    public String getRoutingStats()
+    {
+        RedisPartitionTable partitionTable = redisPartitionTable;
+        JSONObject stats = new JSONObject();
+        stats.put("strategy", partitionTable.getStrategy().name());
+        stats.put("epoch", partitionTable.getEpoch());
+        stats.put("partitionNum", partitionTable.getPartitionNum());
+        stats.put("history", routingDiagnostics.getHistory());
+        return stats.toString();
+    }
+    
+    @Override
+    public void startWork()
+    {
+        logger.info("Start work cache service ...");
+        startupTimeline.record(StartupTimeline.Phase.CONFIGURED);
+        init();
+        roleRefreshTask = topologyTimer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                refreshRedisRoles();
+            }
+            
+        }, REDIS_ROLE_REFRESH_INTERVAL_MS_DEFAULT, REDIS_ROLE_REFRESH_INTERVAL_MS_DEFAULT, TimeUnit.MILLISECONDS);
+        client.start();
+        startupTimeline.record(StartupTimeline.Phase.ORCHESTRATION_STARTED);
+    }
+
+    @Override
+    public void stopWork()
+    {
+        logger.info("Stop work cache service ...");
+        // client.stop可能触发NOTREADY清空路由表，需要先写快照并写出write-behind缓冲区
+        saveSnapshot();
+        isRoutingReady = false;
+        flushWriteBehind();
+        if (roleRefreshTask != null)
+        {
+            roleRefreshTask.cancel(false);
+            roleRefreshTask = null;
+        }
+        client.stop();
+        reset();
+        startupTimeline.reset();
+    }
+    
+    /**
+     * 停止前把所有分片write-behind缓冲区中的数据写入Redis
+     */
+    void flushWriteBehind()
+    {
+        lock.lock();
+        try
+        {
+            for (RedisShardClient redisClient : redisServiceDataToRedisClientMap.values())
+            {
+                if (!redisClient.flushWriteBehind(WRITE_BEHIND_FLUSH_ON_STOP_TIMEOUT_MS))
+                {
+                    logger.error("Fail to flush write behind buffer of " + redisClient + " before stop");
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void init()
+    {
+        if (snapshotFile != null)
+        {
+            restoreSnapshot();
+            startupTimeline.record(StartupTimeline.Phase.SNAPSHOT_RESTORED);
+        }
+    }
+    
+    private void reset()
+    {
+        stopInvalidationChannel();
+        HotKeyCache hotCache = hotKeyCache;
+        if (hotCache != null)
+        {
+            hotCache.clear();
+        }
+        NegativeLookup negative = negativeLookup;
+        if (negative != null)
+        {
+            negative.invalidateAll();
+        }
+        LocalCache localCache = nearCache;
+        if (localCache != null)
+        {
+            localCache.clear();
+        }
+    }
+    
+    /**
+     * 返回true表示该key在上一个统计窗口是热点key
+     */
+    private boolean recordHotKey(String key)
+    {
+        HotKeyDetector detector = hotKeyDetector;
+        if (detector == null || key == null)
+        {
+            return false;
+        }
+        detector.record(key);
+        return detector.isHot(key);
+    }
+    
+    /**
+     * follower等待leader的时间，leader未命中后还要等待loader时，最多等待loader的超时时间
+     */
+    private long getFollowerWaitMs(String key, Deadline deadline)
+    {
+        long waitMs = deadline.remainingMs();
+        if (!loaderRegistry.isEmpty() && loaderRegistry.find(key) != null)
+        {
+            waitMs = Math.max(waitMs, loaderRegistry.getConfig().getTimeoutMs());
+        }
+        return waitMs;
+    }
+    
+    /**
+     * 没有匹配的loader时返回null，加载失败或超时也按未命中处理
+     */
+    private String loadOnMiss(String key)
+    {
+        BatchingLoader loader = key == null ? null : loaderRegistry.find(key);
+        if (loader == null)
+        {
+            return null;
+        }
+        return loader.load(key, loaderRegistry.getConfig().getTimeoutMs()).join();
+    }
+    
+    /**
+     * 批量读中未命中的key一起交给loader，同一个前缀的key会进入同一批加载
+     */
+    private void loadMissingValues(List<String> keys, String[] values, LocalCache localCache, long[] loadSeqs)
+    {
+        if (loaderRegistry.isEmpty())
+        {
+            return;
+        }
+        long timeoutMs = loaderRegistry.getConfig().getTimeoutMs();
+        Map<Integer, CompletableFuture<String>> indexToFutureMap = new HashMap<Integer, CompletableFuture<String>>();
+        for (int i = 0; i < values.length; i ++)
+        {
+            BatchingLoader loader = values[i] == null ? loaderRegistry.find(keys.get(i)) : null;
+            if (loader != null)
+            {
+                indexToFutureMap.put(i, loader.load(keys.get(i), timeoutMs));
+            }
+        }
+        for (Map.Entry<Integer, CompletableFuture<String>> entry : indexToFutureMap.entrySet())
+        {
+            int index = entry.getKey();
+            values[index] = entry.getValue().join();
+            if (localCache != null && values[index] != null)
+            {
+                localCache.putIfNotInvalidated(keys.get(index), values[index], loadSeqs[index]);
+            }
+        }
+    }
+    
+    /**
+     * 加载到的value按primary分组，每个分片一个pipeline
+     */
+    void writeLoadedValues(Map<String, String> keyToValueMap, long ttlMs) throws RedisErrorException
+    {
+        RedisPartitionTable partitionTable = acquirePartitionTable();
+        try
+        {
+            writeLoadedValues(partitionTable, keyToValueMap, ttlMs);
+        }
+        finally
+        {
+            partitionTable.release();
+        }
+    }
+    
+    private void writeLoadedValues(RedisPartitionTable partitionTable, Map<String, String> keyToValueMap, final long ttlMs) throws RedisErrorException
+    {
+        Map<RedisShardClient, Map<String, String>> redisClientToValuesMap = new IdentityHashMap<RedisShardClient, Map<String, String>>();
+        for (Map.Entry<String, String> entry : keyToValueMap.entrySet())
+        {
+            RedisShardClient redisClient = partitionTable.getRedisClient(entry.getKey());
+            if (redisClient == null)
+            {
+                throw new RedisErrorException();
+            }
+            Map<String, String> shardValues = redisClientToValuesMap.get(redisClient);
+            if (shardValues == null)
+            {
+                shardValues = new HashMap<String, String>();
+                redisClientToValuesMap.put(redisClient, shardValues);
+            }
+            shardValues.put(entry.getKey(), entry.getValue());
+        }
+        final Deadline deadline = newDeadline(0);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Map.Entry<RedisShardClient, Map<String, String>> entry : redisClientToValuesMap.entrySet())
+        {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception
+                {
+                    entry.getKey().setStringsIfAbsent(entry.getValue(), ttlMs, deadline);
+                    NegativeLookup negative = negativeLookup;
+                    if (negative != null)
+                    {
+                        for (String key : entry.getValue().keySet())
+                        {
+                            negative.recordWrite(entry.getKey(), key);
+                        }
+                    }
+                    return null;
+                }
+                
+            });
+        }
+        executeOnShards(tasks);
+    }
+    
+    private RedisShardClient selectReadClient(RedisPartitionTable partitionTable, int partition, RedisShardClient primary, String key)
+    {
+        ReplicaReadPolicy policy = replicaReadPolicy;
+        if (policy == null)
+        {
+            return primary;
+        }
+        return policy.select(primary, partitionTable.getReadersByPartition(partition), key);
+    }
+    
+    /**
+     * 写完成之后调用
+     */
+    private void invalidateLocalCache(String key)
+    {
+        ReplicaReadPolicy policy = replicaReadPolicy;
+        if (policy != null && key != null)
+        {
+            policy.recordWrite(key);
+        }
+        SingleFlight flights = singleFlight;
+        if (flights != null && key != null)
+        {
+            flights.forget(key);
+        }
+        if (key != null && !loaderRegistry.isEmpty())
+        {
+            loaderRegistry.forget(key);
+        }
+        HotKeyCache hotCache = hotKeyCache;
+        if (hotCache != null && key != null)
+        {
+            hotCache.invalidate(key);
+        }
+        NegativeLookup negative = negativeLookup;
+        if (negative != null && key != null)
+        {
+            negative.recordWrite(redisPartitionTable.getRedisClient(key), key);
+        }
+        LocalCache localCache = nearCache;
+        if (localCache != null)
+        {
+            localCache.invalidate(key);
+        }
+        InvalidationChannel channel = invalidationChannel;
+        if (channel != null)
+        {
+            channel.invalidate(key);
+        }
+    }
+    
+    /**
+     * 在解引用路由表之前增加它的引用计数，增加之后路由表已经被替换时重新获取
+     */
+    private RedisPartitionTable acquirePartitionTable()
+    {
+        while (true)
+        {
+            RedisPartitionTable partitionTable = redisPartitionTable;
+            partitionTable.acquire();
+            if (partitionTable == redisPartitionTable)
+            {
+                return partitionTable;
+            }
+            partitionTable.release();
+        }
+    }
+    
+    private static <T> CompletableFuture<T> releaseOnComplete(final RedisPartitionTable partitionTable, CompletableFuture<T> future)
+    {
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+
+            @Override
+            public void accept(T value, Throwable e)
+            {
+                partitionTable.release();
+            }
+            
+        });
+        return future;
+    }
+    
+    /**
+     * 客户端给出的预算只能缩短配置的requestTimeoutMs
+     */
+    private Deadline newDeadline(long timeoutMs)
+    {
+        long configTimeoutMs = requestTimeoutMs;
+        if (timeoutMs <= 0 || timeoutMs > configTimeoutMs)
+        {
+            timeoutMs = configTimeoutMs;
+        }
+        return Deadline.after(timeoutMs);
+    }
+    
+    private static boolean isTimeout(Throwable e)
+    {
+        if (e instanceof CompletionException && e.getCause() != null)
+        {
+            e = e.getCause();
+        }
+        return e instanceof RedisTimeoutException;
+    }
+    
+    private static <T> CompletableFuture<T> failedFuture(Exception e)
+    {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(e);
+        return future;
+    }
+    
+    private void executeOnShards(List<Callable<Void>> tasks) throws RedisErrorException
+    {
+        if (tasks.isEmpty())
+        {
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 1; i < tasks.size(); i ++)
+        {
+            futures.add(shardExecutor.submit(tasks.get(i)));
+        }
+        boolean isFailed = false;
+        try
+        {
+            tasks.get(0).call();
+        }
+        catch (Exception e)
+        {
+            logger.error("Fail to execute shard command: " + e.getMessage());
+            isFailed = true;
+        }
+        for (Future<Void> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException e)
+            {
+                logger.error("Fail to execute shard command: " + e.getCause().getMessage());
+                isFailed = true;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                isFailed = true;
+            }
+        }
+        if (isFailed)
+        {
+            throw new RedisErrorException();
+        }
+    }
+    
+    // 这里还要对RedisClient进行创建和删除操作，压测工具会覆盖该方法提供模拟的拓扑
+    void buildOrUpdateRedisPartitionInfo()
+    {
+        ZNodeDependenceData depData = client.getDepData();
+        if (depData == null)
+        {
+            logger.error("buildOrUpdateRedisPartitionInfo the depData Should not be null for Cache service");
+            return;
+        }
+        if (!depData.isContainedDecorate(ZNodeDecorateType.REDIS))
+        {
+            logger.error("depDate should contain redis decorate " + depData);
+            return;
+        }
+        ZNodeDependenceDataDecorateRedis decorate = (ZNodeDependenceDataDecorateRedis)depData.getDependenceDataDecorate(ZNodeDecorateType.REDIS);
+        Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap = decorate.getRedisServiceNameToPartitionMap();
+        if (redisServiceNameToPartitionKeyMap == null)
+        {
+            logger.error("redisServiceNameToPartitionKeyMap should not be empty");
+            return;
+        }
+        Set<ZNodeServiceData> redisServiceData = depData.getDependenceData().get(REDIS_SERVICE_GROUP_KEY);
+        if (redisServiceData == null)
+        {
+            logger.error("Cache service dependence should contain the redis service data");
+            return;
+        }
+        applyRedisTopology(redisServiceData, redisServiceNameToPartitionKeyMap);
+        reconcileSnapshot();
+        markRoutingReady();
+    }
+    
+    /**
+     * applyRedisTopology返回时新分片的预建连接已经结束。路由表不为空并且每个primary分片都建立过连接时才开始对外报告就绪，
+     * 否则定时重试连接没连上的分片，全部连上后再就绪。已经就绪后的拓扑变化不会因为新的分片没连上而退出就绪，
+     * 避免一个redis实例故障让所有cache实例同时下线
+     */
+    void markRoutingReady()
+    {
+        if (redisPartitionTable.getPartitionNum() == 0)
+        {
+            logger.error("Routing is empty, cache service is not ready");
+            isRoutingReady = false;
+            return;
+        }
+        startupTimeline.record(StartupTimeline.Phase.ROUTING_BUILT);
+        List<RedisShardClient> coldPrimaries = getColdPrimaries();
+        if (isRoutingReady)
+        {
+            if (!coldPrimaries.isEmpty())
+            {
+                logger.error("Primary shards are not connected after topology change: " + coldPrimaries);
+            }
+            return;
+        }
+        if (!coldPrimaries.isEmpty())
+        {
+            logger.error("Cache service is not ready, primary shards are not connected: " + coldPrimaries);
+            scheduleWarmCheck();
+            return;
+        }
+        isRoutingReady = true;
+        startupTimeline.record(StartupTimeline.Phase.READY);
+        logger.info("Cache service is ready: " + startupTimeline.getStats());
+    }
+    
+    private List<RedisShardClient> getColdPrimaries()
+    {
+        List<RedisShardClient> coldPrimaries = new ArrayList<RedisShardClient>();
+        Set<RedisShardClient> primaries = Collections.newSetFromMap(new IdentityHashMap<RedisShardClient, Boolean>());
+        primaries.addAll(getPrimaries(redisPartitionTable));
+        for (RedisShardClient primary : primaries)
+        {
+            if (!primary.isConnected())
+            {
+                coldPrimaries.add(primary);
+            }
+        }
+        return coldPrimaries;
+    }
+    
+    /**
+     * 每隔WARM_CHECK_INTERVAL_MS对没连上的primary分片再建一个连接，路由被清空或者已经就绪时停止
+     */
+    private void scheduleWarmCheck()
+    {
+        if (!isWarmCheckScheduled.compareAndSet(false, true))
+        {
+            return;
+        }
+        topologyTimer.schedule(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                isWarmCheckScheduled.set(false);
+                if (isRoutingReady || lastRedisServiceNameToPartitionKeyMap == null || isRoutingFromSnapshot)
+                {
+                    return;
+                }
+                for (final RedisShardClient redisClient : getColdPrimaries())
+                {
+                    prewarmExecutor.execute(new Runnable() {
+
+                        @Override
+                        public void run()
+                        {
+                            redisClient.prewarm(1);
+                        }
+                        
+                    });
+                }
+                markRoutingReady();
+            }
+            
+        }, WARM_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 按redis服务列表和partition分配更新client和路由表，不依赖orchestration，benchmark中直接调用。
+     *
+     * 新的client在锁外创建、并行预建连接和查询角色，之后在锁内替换client并发布路由表
+     */
+    void applyRedisTopology(Set<ZNodeServiceData> redisServiceData, Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap)
+    {
+        Map<ZNodeServiceData, RedisShardClient> createdRedisClients = createRedisClients(redisServiceData);
+        lock.lock();
+        try
+        {
+            Set<ZNodeServiceData> currentRedisServiceData = redisServiceDataToRedisClientMap.keySet();
+            List<ZNodeServiceData> addRedisServiceData = new ArrayList<ZNodeServiceData>();
+            for (ZNodeServiceData data : redisServiceData)
+            {
+                if (!currentRedisServiceData.contains(data))
+                {
+                    addRedisServiceData.add(data);
+                }
+            }
+            List<ZNodeServiceData> delRedisServiceData = new ArrayList<ZNodeServiceData>();
+            for (ZNodeServiceData data : currentRedisServiceData)
+            {
+                if (!redisServiceData.contains(data))
+                {
+                    delRedisServiceData.add(data);
+                }
+            }
+            // 新的client预建连接后再发布路由表，旧的client在路由表切换之后才开始排空
+            List<RedisShardClient> retiredRedisClients = new ArrayList<RedisShardClient>();
+            if (addRedisServiceData.size() > 0 || delRedisServiceData.size() > 0)
+            {
+                retiredRedisClients = updateRedisClient(addRedisServiceData, delRedisServiceData, createdRedisClients);
+            }
+            // 并发的拓扑更新已经创建了同一个实例的client
+            for (RedisShardClient redisClient : createdRedisClients.values())
+            {
+                redisClient.closePool();
+            }
+            updatePartitionKeyToRedisClientMap(redisServiceNameToPartitionKeyMap);
+            retireRedisClients(retiredRedisClients);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 为还没有client的实例创建client，预建连接并查询角色，不持有lock
+     */
+    private Map<ZNodeServiceData, RedisShardClient> createRedisClients(Set<ZNodeServiceData> redisServiceData)
+    {
+        Set<ZNodeServiceData> currentRedisServiceData;
+        lock.lock();
+        try
+        {
+            currentRedisServiceData = new HashSet<ZNodeServiceData>(redisServiceDataToRedisClientMap.keySet());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        Map<ZNodeServiceData, RedisShardClient> createdRedisClients = new HashMap<ZNodeServiceData, RedisShardClient>();
+        for (ZNodeServiceData data : redisServiceData)
+        {
+            if (!currentRedisServiceData.contains(data))
+            {
+                createdRedisClients.put(data, createRedisClient(data));
+            }
+        }
+        prewarmRedisClients(new ArrayList<RedisShardClient>(createdRedisClients.values()));
+        return createdRedisClients;
+    }
+    
+    private RedisShardClient createRedisClient(ZNodeServiceData data)
+    {
+        RedisShardClient client = new RedisShardClient(data.getIp(), data.getPort(), redisPoolConfig, SHARD_IO_QUEUE_SIZE_DEFAULT);
+        if (autoPipelineConfig != null)
+        {
+            client.enableAutoPipeline(autoPipelineConfig);
+        }
+        if (writeBehindConfig != null)
+        {
+            client.enableWriteBehind(writeBehindConfig);
+        }
+        client.setCircuitBreakerConfig(circuitBreakerConfig);
+        client.setRoleListener(roleRefresher);
+        return client;
+    }
+    
+    /**
+     * 返回被移除的client，由调用方在新的路由表发布之后retire；createdRedisClients中用到的client会被移除
+     */
+    private List<RedisShardClient> updateRedisClient(List<ZNodeServiceData> addRedisServiceData, List<ZNodeServiceData> delRedisServiceData,
+            Map<ZNodeServiceData, RedisShardClient> createdRedisClients)
+    {
+        lock.lock();
+        try
+        {
+            List<RedisShardClient> retiredRedisClients = new ArrayList<RedisShardClient>();
+            Map<ZNodeServiceData, RedisShardClient> redisServiceDataToRedisClientMapTmp = new HashMap<ZNodeServiceData, RedisShardClient>(redisServiceDataToRedisClientMap);
+            for (ZNodeServiceData data : delRedisServiceData)
+            {
+                RedisShardClient client = redisServiceDataToRedisClientMapTmp.remove(data);
+                if (client == null)
+                {
+                    logger.error("Redis client should not be empty " + data);
+                    continue;
+                }
+                retiredRedisClients.add(client);
+            }
+            for (ZNodeServiceData data : addRedisServiceData)
+            {
+                if (redisServiceDataToRedisClientMapTmp.containsKey(data))
+                {
+                    logger.error("partitionKeyToRedisClientMapTmp should not contain " + data);
+                    continue;
+                }
+                RedisShardClient client = createdRedisClients.remove(data);
+                if (client == null)
+                {
+                    // 创建之后被并发的拓扑更新删除又重新加入，不再预建连接
+                    client = createRedisClient(data);
+                }
+                redisServiceDataToRedisClientMapTmp.put(data, client);
+            }
+            redisServiceDataToRedisClientMap = redisServiceDataToRedisClientMapTmp;
+            return retiredRedisClients;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * 新建的client并行预建连接并查询角色，最多等待prewarmTimeoutMs；失败或超时的client仍然会发布，之后由markRoutingReady决定是否就绪
+     */
+    private void prewarmRedisClients(List<RedisShardClient> redisClients)
+    {
+        final int connectionNum = Math.min(prewarmConnections, redisPoolConfig.getMaxIdle());
+        if (redisClients.isEmpty())
+        {
+            startupTimeline.record(StartupTimeline.Phase.POOLS_WARMED);
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        final Deadline deadline = Deadline.after(prewarmTimeoutMs);
+        Map<RedisShardClient, Future<Integer>> redisClientToFutureMap = new IdentityHashMap<RedisShardClient, Future<Integer>>();
+        for (final RedisShardClient redisClient : redisClients)
+        {
+            redisClientToFutureMap.put(redisClient, prewarmExecutor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception
+                {
+                    int prewarmed = connectionNum > 0 ? redisClient.prewarm(connectionNum) : 0;
+                    redisClient.refreshRole(deadline);
+                    return prewarmed;
+                }
+                
+            }));
+        }
+        List<String> cold = new ArrayList<String>();
+        for (Map.Entry<RedisShardClient, Future<Integer>> entry : redisClientToFutureMap.entrySet())
+        {
+            RedisShardClient redisClient = entry.getKey();
+            try
+            {
+                int prewarmed = entry.getValue().get(deadline.remainingMs(), TimeUnit.MILLISECONDS);
+                logger.info("Prewarm " + prewarmed + " connections to " + redisClient + ", role is " + redisClient.getRole());
+                if (prewarmed == 0 && connectionNum > 0)
+                {
+                    cold.add(redisClient.getIp() + ":" + redisClient.getPort());
+                }
+            }
+            catch (TimeoutException e)
+            {
+                logger.error("Timeout to prewarm connections to " + redisClient + " in " + prewarmTimeoutMs + "ms");
+                cold.add(redisClient.getIp() + ":" + redisClient.getPort());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                cold.add(redisClient.getIp() + ":" + redisClient.getPort());
+            }
+            catch (ExecutionException e)
+            {
+                logger.error("Fail to prewarm connections to " + redisClient + ": " + e.getCause());
+                cold.add(redisClient.getIp() + ":" + redisClient.getPort());
+            }
+        }
+        startupTimeline.record(StartupTimeline.Phase.POOLS_WARMED);
+        logger.info("Prewarm " + redisClients.size() + " redis clients in " + (System.currentTimeMillis() - startTime) + "ms, cold: " + cold);
+    }
+    
+    private void updatePartitionKeyToRedisClientMap(Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap)
+    {
+        lock.lock();
+        try
+        {
+            lastRedisServiceNameToPartitionKeyMap = redisServiceNameToPartitionKeyMap;
+            if (routingStrategy == RoutingStrategy.PARTITION)
+            {
+                publishRedisPartitionTable(buildPartitionTable(redisServiceNameToPartitionKeyMap));
+            }
+            else
+            {
+                publishRedisPartitionTable(buildHashPartitionTable());
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private RedisPartitionTable buildPartitionTable(Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap)
+    {
+        int partitionNum = 0;
+        for (Set<Integer> partitionKeys : redisServiceNameToPartitionKeyMap.values())
+        {
+            for (Integer partitionKey : partitionKeys)
+            {
+                if (partitionKey == null || partitionKey < 0)
+                {
+                    logger.error("Invalid partition key " + partitionKey);
+                    continue;
+                }
+                partitionNum = Math.max(partitionNum, partitionKey + 1);
+            }
+        }
+        RedisShardClient[] partitionToRedisClient = new RedisShardClient[partitionNum];
+        RedisShardClient[][] partitionToReaders = new RedisShardClient[partitionNum][];
+        boolean hasReplica = false;
+        Map<String, RedisShardClient[]> redisServiceNameToReadersMap = buildRedisServiceNameToReadersMap();
+        for (String redisServiceName : redisServiceNameToPartitionKeyMap.keySet())
+        {
+            RedisShardClient[] readers = redisServiceNameToReadersMap.get(redisServiceName);
+            if (readers == null)
+            {
+                continue;
+            }
+            for (Integer partitionKey : redisServiceNameToPartitionKeyMap.get(redisServiceName))
+            {
+                if (partitionKey == null || partitionKey < 0)
+                {
+                    continue;
+                }
+                partitionToRedisClient[partitionKey] = readers[0];
+                if (readers.length > 1)
+                {
+                    partitionToReaders[partitionKey] = readers;
+                    hasReplica = true;
+                }
+            }
+        }
+        for (int i = 0; i < partitionNum; i ++)
+        {
+            if (partitionToRedisClient[i] == null)
+            {
+                logger.error("Partition " + i + " is not mapped to any redis client");
+            }
+        }
+        RedisPartitionTable partitionTable = new RedisPartitionTable(partitionToRedisClient, ++ partitionEpoch);
+        return hasReplica ? partitionTable.withReaders(partitionToReaders) : partitionTable;
+    }
+    
+    /**
+     * 按服务名排序，每个服务名对应的数组中第一个是primary，之后是replica
+     */
+    private Map<String, RedisShardClient[]> buildRedisServiceNameToReadersMap()
+    {
+        Map<String, List<RedisShardClient>> redisServiceNameToRedisClientsMap = new TreeMap<String, List<RedisShardClient>>();
+        for (Map.Entry<ZNodeServiceData, RedisShardClient> entry : redisServiceDataToRedisClientMap.entrySet())
+        {
+            List<RedisShardClient> clients = redisServiceNameToRedisClientsMap.get(entry.getKey().getServiceName());
+            if (clients == null)
+            {
+                clients = new ArrayList<RedisShardClient>();
+                redisServiceNameToRedisClientsMap.put(entry.getKey().getServiceName(), clients);
+            }
+            clients.add(entry.getValue());
+        }
+        Map<String, RedisShardClient[]> redisServiceNameToReadersMap = new TreeMap<String, RedisShardClient[]>();
+        for (Map.Entry<String, List<RedisShardClient>> entry : redisServiceNameToRedisClientsMap.entrySet())
+        {
+            redisServiceNameToReadersMap.put(entry.getKey(), buildReaders(entry.getKey(), entry.getValue()));
+        }
+        return redisServiceNameToReadersMap;
+    }
+    
+    /**
+     * 同名的多个实例按最近一次查询到的角色区分，没有唯一的master时取ip:port最小的master(或角色未知的实例)作为primary，
+     * 所有实例上的选择一致；确认为slave的实例不会成为primary，没有可选的实例时返回null，对应的partition不可用。
+     * 角色未知的实例不参与读
+     */
+    private RedisShardClient[] buildReaders(String redisServiceName, List<RedisShardClient> clients)
+    {
+        if (clients.size() == 1)
+        {
+            return new RedisShardClient[] {clients.get(0)};
+        }
+        Collections.sort(clients, new Comparator<RedisShardClient>() {
+
+            @Override
+            public int compare(RedisShardClient a, RedisShardClient b)
+            {
+                return (a.getIp() + ":" + a.getPort()).compareTo(b.getIp() + ":" + b.getPort());
+            }
+            
+        });
+        List<RedisShardClient> masters = new ArrayList<RedisShardClient>();
+        List<RedisShardClient> replicas = new ArrayList<RedisShardClient>();
+        List<RedisShardClient> unknowns = new ArrayList<RedisShardClient>();
+        for (RedisShardClient client : clients)
+        {
+            String role = client.getRole();
+            if ("master".equals(role))
+            {
+                masters.add(client);
+            }
+            else if ("slave".equals(role))
+            {
+                replicas.add(client);
+            }
+            else
+            {
+                unknowns.add(client);
+            }
+        }
+        if (masters.size() != 1)
+        {
+            logger.error("Redis service " + redisServiceName + " should have exactly one master, masters are " + masters);
+        }
+        RedisShardClient primary = !masters.isEmpty() ? masters.get(0) : unknowns.isEmpty() ? null : unknowns.get(0);
+        if (primary == null)
+        {
+            logger.error("Redis service " + redisServiceName + " has no master or unknown instance, all are slaves: " + replicas);
+            return null;
+        }
+        RedisShardClient[] readers = new RedisShardClient[replicas.size() + 1];
+        readers[0] = primary;
+        for (int i = 0; i < replicas.size(); i ++)
+        {
+            readers[i + 1] = replicas.get(i);
+        }
+        logger.info("Redis service " + redisServiceName + " primary is " + primary + ", replicas are " + replicas);
+        return readers;
+    }
+    
+    private void scheduleRoleRefresh()
+    {
+        if (!isRoleRefreshPending.compareAndSet(false, true))
+        {
+            return;
+        }
+        topologyTimer.execute(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                isRoleRefreshPending.set(false);
+                refreshRedisRoles();
+            }
+            
+        });
+    }
+    
+    /**
+     * 并行查询同名有多个实例的redis服务的角色，最多等待REDIS_ROLE_QUERY_TIMEOUT_MS，角色有变化时重新发布路由表。
+     * 定时执行，写命令返回READONLY时也会立即执行；查询不持有lock
+     */
+    void refreshRedisRoles()
+    {
+        List<RedisShardClient> redisClients = new ArrayList<RedisShardClient>();
+        lock.lock();
+        try
+        {
+            Map<String, List<RedisShardClient>> redisServiceNameToRedisClientsMap = new HashMap<String, List<RedisShardClient>>();
+            for (Map.Entry<ZNodeServiceData, RedisShardClient> entry : redisServiceDataToRedisClientMap.entrySet())
+            {
+                List<RedisShardClient> clients = redisServiceNameToRedisClientsMap.get(entry.getKey().getServiceName());
+                if (clients == null)
+                {
+                    clients = new ArrayList<RedisShardClient>();
+                    redisServiceNameToRedisClientsMap.put(entry.getKey().getServiceName(), clients);
+                }
+                clients.add(entry.getValue());
+            }
+            for (List<RedisShardClient> clients : redisServiceNameToRedisClientsMap.values())
+            {
+                if (clients.size() > 1)
+                {
+                    redisClients.addAll(clients);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (redisClients.isEmpty())
+        {
+            return;
+        }
+        Map<RedisShardClient, String> redisClientToRoleMap = new IdentityHashMap<RedisShardClient, String>();
+        Map<RedisShardClient, Future<String>> redisClientToFutureMap = new IdentityHashMap<RedisShardClient, Future<String>>();
+        final Deadline deadline = Deadline.after(REDIS_ROLE_QUERY_TIMEOUT_MS);
+        for (final RedisShardClient redisClient : redisClients)
+        {
+            redisClientToRoleMap.put(redisClient, redisClient.getRole());
+            redisClientToFutureMap.put(redisClient, prewarmExecutor.submit(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception
+                {
+                    return redisClient.refreshRole(deadline);
+                }
+                
+            }));
+        }
+        boolean isChanged = false;
+        for (Map.Entry<RedisShardClient, Future<String>> entry : redisClientToFutureMap.entrySet())
+        {
+            String role = null;
+            try
+            {
+                role = entry.getValue().get(deadline.remainingMs(), TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException | ExecutionException e)
+            {
+                logger.error("Fail to query role of " + entry.getKey() + ": " + e);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            String oldRole = redisClientToRoleMap.get(entry.getKey());
+            if (role == null ? oldRole != null : !role.equals(oldRole))
+            {
+                logger.info("Role of " + entry.getKey() + " changes from " + oldRole + " to " + role);
+                isChanged = true;
+            }
+        }
+        if (!isChanged)
+        {
+            return;
+        }
+        lock.lock();
+        try
+        {
+            if (lastRedisServiceNameToPartitionKeyMap != null)
+            {
+                updatePartitionKeyToRedisClientMap(lastRedisServiceNameToPartitionKeyMap);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * JUMP和RING不使用orchestrator分配的partition，每个redis服务名对应一个slot。
+     * RING按服务名排序；JUMP沿用上一次的bucket顺序，保证移除或在中间插入服务时不会重新编号其它bucket
+     */
+    private RedisPartitionTable buildHashPartitionTable()
+    {
+        Map<String, RedisShardClient[]> redisServiceNameToReadersMap = buildRedisServiceNameToReadersMap();
+        List<String> shardNames = new ArrayList<String>(redisServiceNameToReadersMap.keySet());
+        if (routingStrategy == RoutingStrategy.JUMP)
+        {
+            shardNames = RedisPartitionTable.assignJumpBuckets(jumpBucketNames, shardNames);
+            jumpBucketNames = shardNames;
+        }
+        else
+        {
+            jumpBucketNames = Collections.emptyList();
+        }
+        RedisShardClient[] shards = new RedisShardClient[shardNames.size()];
+        RedisShardClient[][] shardToReaders = new RedisShardClient[shards.length][];
+        boolean hasReplica = false;
+        int index = 0;
+        for (String shardName : shardNames)
+        {
+            RedisShardClient[] readers = redisServiceNameToReadersMap.get(shardName);
+            if (readers == null)
+            {
+                index ++;
+                continue;
+            }
+            shards[index] = readers[0];
+            if (readers.length > 1)
+            {
+                shardToReaders[index] = readers;
+                hasReplica = true;
+            }
+            index ++;
+        }
+        RedisPartitionTable partitionTable = null;
+        if (routingStrategy == RoutingStrategy.JUMP)
+        {
+            partitionTable = RedisPartitionTable.jump(shards, ++ partitionEpoch);
+        }
+        else
+        {
+            partitionTable = RedisPartitionTable.ring(shards, shardNames.toArray(new String[shards.length]), routingVirtualNodes, ++ partitionEpoch);
+        }
+        return hasReplica ? partitionTable.withReaders(shardToReaders) : partitionTable;
+    }
+    
+    private void publishRedisPartitionTable(RedisPartitionTable partitionTable)
+    {
+        RedisPartitionTable oldPartitionTable = redisPartitionTable;
+        cacheMetrics.resetPartitions(partitionTable.getPartitionNum());
+        redisPartitionTable = partitionTable;
+        // 被替换的路由表不会再被acquire，引用计数归零后就不再需要等待
+        Iterator<RedisPartitionTable> iterator = supersededPartitionTables.iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().isReleased())
+            {
+                iterator.remove();
+            }
+        }
+        supersededPartitionTables.add(oldPartitionTable);
+        NegativeLookup negative = negativeLookup;
+        if (negative != null)
+        {
+            negative.updateShards(getPrimaries(partitionTable));
+        }
+        double movedFraction = routingDiagnostics.record(oldPartitionTable, partitionTable);
+        logger.info("Publish redis partition table: " + partitionTable + ", moved fraction of keys: " + movedFraction);
+    }
+    
+    private static List<RedisShardClient> getPrimaries(RedisPartitionTable partitionTable)
+    {
+        List<RedisShardClient> primaries = new ArrayList<RedisShardClient>();
+        for (int i = 0; i < partitionTable.getPartitionNum(); i ++)
+        {
+            RedisShardClient primary = partitionTable.getRedisClientByPartition(i);
+            if (primary != null)
+            {
+                primaries.add(primary);
+            }
+        }
+        return primaries;
+    }
+    
+    /**
+     * 解析serviceDataProperties中的快照配置并打开已有的快照，快照在init中恢复
+     */
+    void configureSnapshot(Map<String, String> properties)
+    {
+        String path = properties.get(SNAPSHOT_PATH);
+        if (path == null || path.trim().isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            String maxAgeStr = properties.get(SNAPSHOT_MAX_AGE_MS);
+            String maxEntriesStr = properties.get(SNAPSHOT_MAX_ENTRIES);
+            long maxAgeMs = maxAgeStr == null ? SNAPSHOT_MAX_AGE_MS_DEFAULT : Long.parseLong(maxAgeStr.trim());
+            int maxEntries = maxEntriesStr == null ? SNAPSHOT_MAX_ENTRIES_DEFAULT : Integer.parseInt(maxEntriesStr.trim());
+            if (maxAgeMs < 0 || maxEntries < 0)
+            {
+                logger.error("Un valid snapshot config. maxAgeMs: " + maxAgeMs + "; maxEntries: " + maxEntries);
+                return;
+            }
+            snapshotMaxAgeMs = maxAgeMs;
+            snapshotMaxEntries = maxEntries;
+        }
+        catch (NumberFormatException e)
+        {
+            logger.error("Un valid snapshot config " + properties + ": " + e.getMessage());
+            return;
+        }
+        snapshotFile = new File(path.trim());
+        warmSnapshot = CacheSnapshot.open(snapshotFile, snapshotMaxAgeMs, REDIS_SERVICE_GROUP_KEY);
+        if (warmSnapshot != null)
+        {
+            logger.info("Open snapshot " + snapshotFile + ": " + warmSnapshot);
+        }
+    }
+    
+    /**
+     * 还没有路由信息时先使用快照中的路由，再把快照中的条目回填到近端缓存；条目从映射的文件中逐个解码
+     */
+    private void restoreSnapshot()
+    {
+        CacheSnapshot snapshot = warmSnapshot;
+        warmSnapshot = null;
+        if (snapshot == null)
+        {
+            return;
+        }
+        // 在orchestration的client启动之前调用，这里不会有并发的拓扑更新，applyRedisTopology需要在锁外预建连接
+        boolean isRoutingEmpty;
+        lock.lock();
+        try
+        {
+            isRoutingEmpty = lastRedisServiceNameToPartitionKeyMap == null && redisServiceDataToRedisClientMap.isEmpty();
+            if (isRoutingEmpty)
+            {
+                partitionEpoch = Math.max(partitionEpoch, snapshot.getEpoch());
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (isRoutingEmpty)
+        {
+            applyRedisTopology(snapshot.getRedisServiceData(), snapshot.getRedisServiceNameToPartitionKeyMap());
+            isRoutingFromSnapshot = true;
+            logger.info("Restore routing from snapshot: " + redisPartitionTable);
+        }
+        LocalCache localCache = nearCache;
+        if (localCache == null || snapshot.getEntryNum() == 0)
+        {
+            return;
+        }
+        Map<String, String> restored = new HashMap<String, String>();
+        Iterator<Map.Entry<String, String>> iterator = snapshot.entryIterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<String, String> entry = iterator.next();
+            if (localCache.putIfNotInvalidated(entry.getKey(), entry.getValue(), localCache.beginLoad(entry.getKey())))
+            {
+                restored.put(entry.getKey(), entry.getValue());
+            }
+        }
+        restoredValues = restored;
+        snapshotRestoredCount.addAndGet(restored.size());
+        logger.info("Restore " + restored.size() + " of " + snapshot.getEntryNum() + " entries from snapshot");
+    }
+    
+    /**
+     * 收到orchestration的路由之后调用，后台按分片批量读取回填的条目，与Redis中不同的从近端缓存中删除
+     */
+    void reconcileSnapshot()
+    {
+        isRoutingFromSnapshot = false;
+        final Map<String, String> restored = restoredValues;
+        restoredValues = null;
+        final LocalCache localCache = nearCache;
+        if (restored == null || restored.isEmpty() || localCache == null)
+        {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                reconcileRestoredValues(restored, localCache);
+            }
+            
+        }, "cache-snapshot-reconcile");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private void reconcileRestoredValues(Map<String, String> restored, LocalCache localCache)
+    {
+        RedisPartitionTable partitionTable = redisPartitionTable;
+        Map<RedisShardClient, List<String>> redisClientToKeysMap = new IdentityHashMap<RedisShardClient, List<String>>();
+        long invalidated = 0;
+        for (String key : restored.keySet())
+        {
+            RedisShardClient redisClient = partitionTable.getRedisClient(key);
+            if (redisClient == null)
+            {
+                localCache.invalidate(key);
+                invalidated ++;
+                continue;
+            }
+            List<String> keys = redisClientToKeysMap.get(redisClient);
+            if (keys == null)
+            {
+                keys = new ArrayList<String>();
+                redisClientToKeysMap.put(redisClient, keys);
+            }
+            keys.add(key);
+        }
+        for (Map.Entry<RedisShardClient, List<String>> entry : redisClientToKeysMap.entrySet())
+        {
+            List<String> keys = entry.getValue();
+            for (int from = 0; from < keys.size(); from += SNAPSHOT_RECONCILE_BATCH_SIZE)
+            {
+                List<String> batch = keys.subList(from, Math.min(keys.size(), from + SNAPSHOT_RECONCILE_BATCH_SIZE));
+                List<String> values = null;
+                try
+                {
+                    values = entry.getKey().getStrings(batch, Deadline.after(SNAPSHOT_RECONCILE_TIMEOUT_MS));
+                }
+                catch (JedisException e)
+                {
+                    logger.error("Fail to reconcile snapshot entries with " + entry.getKey() + ": " + e.getMessage());
+                }
+                for (int i = 0; i < batch.size(); i ++)
+                {
+                    String key = batch.get(i);
+                    if (values == null || !restored.get(key).equals(values.get(i)))
+                    {
+                        localCache.invalidate(key);
+                        invalidated ++;
+                    }
+                }
+            }
+        }
+        snapshotReconcileInvalidationCount.addAndGet(invalidated);
+        logger.info("Reconcile " + restored.size() + " snapshot entries, invalidate " + invalidated);
+    }
+    
+    /**
+     * 路由仍然来自快照时保留原来的快照，避免反复重启后一直使用过期的路由
+     */
+    void saveSnapshot()
+    {
+        if (snapshotFile == null)
+        {
+            return;
+        }
+        if (isRoutingFromSnapshot)
+        {
+            logger.info("Routing is still restored from snapshot, keep " + snapshotFile);
+            return;
+        }
+        Set<ZNodeServiceData> redisServiceData;
+        Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap;
+        long epoch;
+        lock.lock();
+        try
+        {
+            if (lastRedisServiceNameToPartitionKeyMap == null)
+            {
+                logger.info("There is no routing to save in snapshot");
+                return;
+            }
+            redisServiceData = new HashSet<ZNodeServiceData>(redisServiceDataToRedisClientMap.keySet());
+            redisServiceNameToPartitionKeyMap = new HashMap<String, Set<Integer>>(lastRedisServiceNameToPartitionKeyMap);
+            epoch = redisPartitionTable.getEpoch();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        LocalCache localCache = nearCache;
+        Map<String, String> entries = localCache == null ? new HashMap<String, String>() : localCache.getHottest(snapshotMaxEntries);
+        try
+        {
+            CacheSnapshot.write(snapshotFile, epoch, redisServiceData, redisServiceNameToPartitionKeyMap, entries);
+            snapshotSavedCount.incrementAndGet();
+            logger.info("Save snapshot " + snapshotFile + " with " + redisServiceData.size() + " redis services and " + entries.size() + " entries");
+        }
+        catch (IOException e)
+        {
+            logger.error("Fail to save snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 当前被替换的路由表都释放之后，client才可能不再被新的请求使用，之后由client排空进行中的请求并关闭连接池，
+     * 两者总共最多等待drainGraceMs
+     */
+    private void retireRedisClients(final List<RedisShardClient> redisClients)
+    {
+        if (redisClients.isEmpty())
+        {
+            return;
+        }
+        final List<RedisPartitionTable> partitionTables = new ArrayList<RedisPartitionTable>(supersededPartitionTables);
+        final long graceMs = drainGraceMs;
+        final long retireTime = System.currentTimeMillis();
+        topologyTimer.execute(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                Iterator<RedisPartitionTable> iterator = partitionTables.iterator();
+                while (iterator.hasNext())
+                {
+                    if (iterator.next().isReleased())
+                    {
+                        iterator.remove();
+                    }
+                }
+                long elapsed = System.currentTimeMillis() - retireTime;
+                if (!partitionTables.isEmpty() && elapsed < graceMs)
+                {
+                    topologyTimer.schedule(this, DRAIN_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (!partitionTables.isEmpty())
+                {
+                    logger.error("Retire " + redisClients + " while " + partitionTables.size() + " superseded partition tables are still in use after " + elapsed + "ms");
+                }
+                for (RedisShardClient redisClient : redisClients)
+                {
+                    redisClient.retire(Math.max(graceMs - elapsed, 0));
+                }
+            }
+
+        });
+    }
+    
+    private void clearRedisPartitionInfo()
+    {
+        lock.lock();
+        try
+        {
+            //先发布空的路由表，再排空连接池，不能通过redisPartitionTable来去做，应该用redisServiceDataToRedisClientMap
+            publishRedisPartitionTable(new RedisPartitionTable(new RedisShardClient[0], ++ partitionEpoch));
+            for(RedisShardClient redisClient : redisServiceDataToRedisClientMap.values())
+            {
+                // retire只在后台关闭连接池，write-behind缓冲区中的数据需要在这里同步写出
+                if (!redisClient.flushWriteBehind(WRITE_BEHIND_FLUSH_ON_STOP_TIMEOUT_MS))
+                {
+                    logger.error("Fail to flush write behind buffer of " + redisClient + " before retire");
+                }
+            }
+            retireRedisClients(new ArrayList<RedisShardClient>(redisServiceDataToRedisClientMap.values()));
+            redisServiceDataToRedisClientMap.clear();
+            lastRedisServiceNameToPartitionKeyMap = null;
+            jumpBucketNames = Collections.emptyList();
+            isRoutingFromSnapshot = false;
+            isRoutingReady = false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    void updateServiceConfigProperties(JSONObject serviceConfigPropertiesObj)
+    {
+        updateNearCache(serviceConfigPropertiesObj.optJSONObject(NEAR_CACHE_KEY));
+        updateSingleFlight(serviceConfigPropertiesObj.optJSONObject(SINGLE_FLIGHT_KEY));
+        updateHotKey(serviceConfigPropertiesObj.optJSONObject(HOT_KEY_KEY));
+        updateNegativeCache(serviceConfigPropertiesObj.optJSONObject(NEGATIVE_CACHE_KEY));
+        updateInvalidationChannel(serviceConfigPropertiesObj.optJSONObject(INVALIDATION_KEY));
+        updateAutoPipeline(serviceConfigPropertiesObj.optJSONObject(AUTO_PIPELINE_KEY));
+        updateWriteBehind(serviceConfigPropertiesObj.optJSONObject(WRITE_BEHIND_KEY));
+        updateCompression(serviceConfigPropertiesObj.optJSONObject(COMPRESSION_KEY));
+        updateTtl(serviceConfigPropertiesObj.optJSONObject(TTL_KEY));
+        updateLoader(serviceConfigPropertiesObj.optJSONObject(LOADER_KEY));
+        updateRequestTimeout(serviceConfigPropertiesObj.optLong(REQUEST_TIMEOUT_MS, REQUEST_TIMEOUT_MS_DEFAULT));
+        updateCircuitBreaker(serviceConfigPropertiesObj.optJSONObject(CIRCUIT_BREAKER_KEY));
+        updateRedisPool(serviceConfigPropertiesObj.optJSONObject(REDIS_POOL_KEY));
+        updateTopologySwap(serviceConfigPropertiesObj.optJSONObject(TOPOLOGY_SWAP_KEY));
+        updateRouting(serviceConfigPropertiesObj.optJSONObject(ROUTING_KEY));
+        updateReplicaRead(serviceConfigPropertiesObj.optJSONObject(REPLICA_READ_KEY));
+        if (!isConfiged)
+        {
+            logger.info("Update the serviceProperties for Cache");
+            startWork();
+        }
+        isConfiged = true;
+    }
+    
+    private void updateNearCache(JSONObject nearCacheObj)
+    {
+        if (nearCacheObj == null || !nearCacheObj.optBoolean(NEAR_CACHE_ENABLE, false))
+        {
+            if (nearCache != null)
+            {
+                logger.info("Near cache is disabled");
+                nearCache = null;
+            }
+            return;
+        }
+        int maxEntries = nearCacheObj.optInt(NEAR_CACHE_MAX_ENTRIES, NEAR_CACHE_MAX_ENTRIES_DEFAULT);
+        long maxBytes = nearCacheObj.optLong(NEAR_CACHE_MAX_BYTES, NEAR_CACHE_MAX_BYTES_DEFAULT);
+        long expireAfterWriteMs = nearCacheObj.optLong(NEAR_CACHE_EXPIRE_AFTER_WRITE_MS, NEAR_CACHE_EXPIRE_AFTER_WRITE_MS_DEFAULT);
+        String storage = nearCacheObj.optString(NEAR_CACHE_STORAGE, NEAR_CACHE_STORAGE_HEAP);
+        boolean isOffHeap = storage.equals(NEAR_CACHE_STORAGE_OFF_HEAP);
+        if (maxEntries <= 0 || maxBytes <= 0 || (!isOffHeap && !storage.equals(NEAR_CACHE_STORAGE_HEAP)))
+        {
+            logger.error("Un valid near cache config: " + nearCacheObj);
+            return;
+        }
+        LocalCache localCache = nearCache;
+        if (localCache != null && (localCache instanceof OffHeapCache) == isOffHeap && localCache.isSameConfig(maxEntries, maxBytes, expireAfterWriteMs))
+        {
+            return;
+        }
+        logger.info("Near cache is enabled: " + nearCacheObj);
+        if (isOffHeap)
+        {
+            nearCache = new OffHeapCache(maxEntries, maxBytes, expireAfterWriteMs);
+        }
+        else
+        {
+            nearCache = new NearCache(maxEntries, maxBytes, expireAfterWriteMs);
+        }
+    }
+    
+    private void updateNegativeCache(JSONObject negativeCacheObj)
+    {
+        if (negativeCacheObj == null || !negativeCacheObj.optBoolean(NEGATIVE_CACHE_ENABLE, false))
+        {
+            stopNegativeLookup();
+            return;
+        }
+        JSONObject bloomObj = negativeCacheObj.optJSONObject(NEGATIVE_CACHE_BLOOM);
+        if (bloomObj == null)
+        {
+            bloomObj = new JSONObject();
+        }
+        NegativeLookupConfig config = new NegativeLookupConfig(negativeCacheObj.optLong(NEGATIVE_CACHE_TTL_MS, NEGATIVE_CACHE_TTL_MS_DEFAULT),
+                negativeCacheObj.optInt(NEGATIVE_CACHE_MAX_ENTRIES, NEGATIVE_CACHE_MAX_ENTRIES_DEFAULT),
+                bloomObj.optBoolean(NEGATIVE_CACHE_BLOOM_ENABLE, false),
+                bloomObj.optLong(NEGATIVE_CACHE_BLOOM_EXPECTED_KEYS, NEGATIVE_CACHE_BLOOM_EXPECTED_KEYS_DEFAULT),
+                bloomObj.optDouble(NEGATIVE_CACHE_BLOOM_FALSE_POSITIVE_RATE, NEGATIVE_CACHE_BLOOM_FALSE_POSITIVE_RATE_DEFAULT),
+                bloomObj.optLong(NEGATIVE_CACHE_BLOOM_MAX_BYTES, NEGATIVE_CACHE_BLOOM_MAX_BYTES_DEFAULT),
+                bloomObj.optLong(NEGATIVE_CACHE_BLOOM_REBUILD_INTERVAL_MS, NEGATIVE_CACHE_BLOOM_REBUILD_INTERVAL_MS_DEFAULT),
+                bloomObj.optInt(NEGATIVE_CACHE_BLOOM_SCAN_COUNT, NEGATIVE_CACHE_BLOOM_SCAN_COUNT_DEFAULT));
+        if (config.getTtlMs() <= 0 || config.getMaxEntries() <= 0 || config.getExpectedKeys() <= 0 || config.getFalsePositiveRate() <= 0
+                || config.getFalsePositiveRate() >= 1 || config.getMaxBytes() <= 0 || config.getRebuildIntervalMs() <= 0 || config.getScanCount() <= 0)
+        {
+            logger.error("Un valid negative cache config: " + negativeCacheObj);
+            return;
+        }
+        NegativeLookup oldLookup = negativeLookup;
+        if (oldLookup != null && oldLookup.getConfig().equals(config))
+        {
+            return;
+        }
+        logger.info("Negative cache is enabled: " + config);
+        NegativeLookup lookup = new NegativeLookup(config);
+        lookup.start();
+        negativeLookup = lookup;
+        lookup.updateShards(getPrimaries(redisPartitionTable));
+        if (oldLookup != null)
+        {
+            oldLookup.stop();
+        }
+    }
+    
+    private void stopNegativeLookup()
+    {
+        NegativeLookup lookup = negativeLookup;
+        if (lookup != null)
+        {
+            logger.info("Negative cache is disabled");
+            negativeLookup = null;
+            lookup.stop();
+        }
+    }
+    
+    private void updateHotKey(JSONObject hotKeyObj)
+    {
+        if (hotKeyObj == null || !hotKeyObj.optBoolean(HOT_KEY_ENABLE, false))
+        {
+            stopHotKeyDetector();
+            return;
+        }
+        int sketchWidth = hotKeyObj.optInt(HOT_KEY_SKETCH_WIDTH, HOT_KEY_SKETCH_WIDTH_DEFAULT);
+        int topK = hotKeyObj.optInt(HOT_KEY_TOP_K, HOT_KEY_TOP_K_DEFAULT);
+        int threshold = hotKeyObj.optInt(HOT_KEY_THRESHOLD, HOT_KEY_THRESHOLD_DEFAULT);
+        long windowMs = hotKeyObj.optLong(HOT_KEY_WINDOW_MS, HOT_KEY_WINDOW_MS_DEFAULT);
+        boolean promote = hotKeyObj.optBoolean(HOT_KEY_PROMOTE, HOT_KEY_PROMOTE_DEFAULT);
+        long localTtlMs = hotKeyObj.optLong(HOT_KEY_LOCAL_TTL_MS, HOT_KEY_LOCAL_TTL_MS_DEFAULT);
+        if (sketchWidth <= 0 || topK <= 0 || threshold <= 0 || windowMs <= 0 || localTtlMs <= 0)
+        {
+            logger.error("Un valid hot key config: " + hotKeyObj);
+            return;
+        }
+        HotKeyDetector detector = hotKeyDetector;
+        if (detector == null || !detector.isSameConfig(sketchWidth, topK, threshold, windowMs))
+        {
+            stopHotKeyDetector();
+            logger.info("Hot key detector is enabled: " + hotKeyObj);
+            detector = new HotKeyDetector(sketchWidth, topK, threshold, windowMs);
+            detector.start(new HotKeyPromotionListener());
+            hotKeyDetector = detector;
+        }
+        HotKeyCache hotCache = hotKeyCache;
+        if (!promote)
+        {
+            hotKeyCache = null;
+        }
+        else if (hotCache == null || !hotCache.isSameConfig(topK, localTtlMs))
+        {
+            hotKeyCache = new HotKeyCache(topK, localTtlMs);
+        }
+    }
+    
+    private void stopHotKeyDetector()
+    {
+        HotKeyDetector detector = hotKeyDetector;
+        if (detector != null)
+        {
+            logger.info("Hot key detector is disabled");
+            hotKeyDetector = null;
+            hotKeyCache = null;
+            detector.stop();
+        }
+    }
+    
+    private void updateSingleFlight(JSONObject singleFlightObj)
+    {
+        boolean enable = singleFlightObj == null ? SINGLE_FLIGHT_ENABLE_DEFAULT : singleFlightObj.optBoolean(SINGLE_FLIGHT_ENABLE, SINGLE_FLIGHT_ENABLE_DEFAULT);
+        if (!enable)
+        {
+            if (singleFlight != null)
+            {
+                logger.info("Single flight read is disabled");
+                singleFlight = null;
+            }
+            return;
+        }
+        if (singleFlight == null)
+        {
+            logger.info("Single flight read is enabled");
+            singleFlight = new SingleFlight();
+        }
+    }
+    
+    private void updateRouting(JSONObject routingObj)
+    {
+        RoutingStrategy strategy = RoutingStrategy.PARTITION;
+        int virtualNodes = ROUTING_VIRTUAL_NODES_DEFAULT;
+        if (routingObj != null)
+        {
+            strategy = RoutingStrategy.fromString(routingObj.optString(ROUTING_STRATEGY, RoutingStrategy.PARTITION.name()));
+            virtualNodes = routingObj.optInt(ROUTING_VIRTUAL_NODES, ROUTING_VIRTUAL_NODES_DEFAULT);
+            if (strategy == null || virtualNodes <= 0)
+            {
+                logger.error("Un valid routing config: " + routingObj);
+                return;
+            }
+        }
+        lock.lock();
+        try
+        {
+            if (strategy == routingStrategy && virtualNodes == routingVirtualNodes)
+            {
+                return;
+            }
+            logger.info("Update routing strategy to " + strategy + " with virtual nodes " + virtualNodes);
+            routingStrategy = strategy;
+            routingVirtualNodes = virtualNodes;
+            if (lastRedisServiceNameToPartitionKeyMap != null)
+            {
+                updatePartitionKeyToRedisClientMap(lastRedisServiceNameToPartitionKeyMap);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void updateReplicaRead(JSONObject replicaReadObj)
+    {
+        ReplicaReadStrategy strategy = ReplicaReadStrategy.PRIMARY;
+        long readYourWritesMs = 0;
+        if (replicaReadObj != null)
+        {
+            strategy = ReplicaReadStrategy.fromString(replicaReadObj.optString(REPLICA_READ_STRATEGY, ReplicaReadStrategy.PRIMARY.name()));
+            if (replicaReadObj.optBoolean(REPLICA_READ_YOUR_WRITES, false))
+            {
+                readYourWritesMs = replicaReadObj.optLong(REPLICA_READ_YOUR_WRITES_MS, REPLICA_READ_YOUR_WRITES_MS_DEFAULT);
+            }
+            if (strategy == null || readYourWritesMs < 0)
+            {
+                logger.error("Un valid replica read config: " + replicaReadObj);
+                return;
+            }
+        }
+        if (strategy == ReplicaReadStrategy.PRIMARY)
+        {
+            if (replicaReadPolicy != null)
+            {
+                logger.info("Replica read is disabled");
+                replicaReadPolicy = null;
+            }
+            return;
+        }
+        ReplicaReadPolicy policy = replicaReadPolicy;
+        if (policy != null && policy.isSameConfig(strategy, readYourWritesMs))
+        {
+            return;
+        }
+        logger.info("Replica read is enabled: " + replicaReadObj);
+        replicaReadPolicy = new ReplicaReadPolicy(strategy, readYourWritesMs);
+    }
+    
+    private void updateRedisPool(JSONObject redisPoolObj)
+    {
+        if (redisPoolObj == null)
+        {
+            redisPoolObj = new JSONObject();
+        }
+        AdaptivePoolConfig adaptive = null;
+        JSONObject adaptiveObj = redisPoolObj.optJSONObject(REDIS_POOL_ADAPTIVE);
+        if (adaptiveObj != null && adaptiveObj.optBoolean(REDIS_POOL_ADAPTIVE_ENABLE, false))
+        {
+            adaptive = new AdaptivePoolConfig(adaptiveObj.optInt(REDIS_POOL_ADAPTIVE_MIN_TOTAL, REDIS_ADAPTIVE_MIN_TOTAL_DEFAULT),
+                    adaptiveObj.optInt(REDIS_POOL_ADAPTIVE_MAX_TOTAL, REDIS_ADAPTIVE_MAX_TOTAL_DEFAULT),
+                    adaptiveObj.optLong(REDIS_POOL_ADAPTIVE_INTERVAL_MS, REDIS_ADAPTIVE_INTERVAL_MS_DEFAULT),
+                    adaptiveObj.optLong(REDIS_POOL_ADAPTIVE_TARGET_BORROW_WAIT_MS, REDIS_ADAPTIVE_TARGET_BORROW_WAIT_MS_DEFAULT));
+            if (adaptive.getMinTotal() <= 0 || adaptive.getMaxTotal() < adaptive.getMinTotal() || adaptive.getIntervalMs() <= 0
+                    || adaptive.getTargetBorrowWaitMs() < 0)
+            {
+                logger.error("Un valid adaptive pool config: " + adaptiveObj);
+                return;
+            }
+        }
+        RedisPoolConfig config = new RedisPoolConfig(redisPoolObj.optInt(REDIS_POOL_MAX_TOTAL, REDIS_MAX_TOTAL_DEFAULT),
+                redisPoolObj.optInt(REDIS_POOL_MAX_IDLE, REDIS_MAX_IDEL_DEFAULT),
+                redisPoolObj.optInt(REDIS_POOL_MIN_IDLE, REDIS_MIN_IDLE_DEFAULT),
+                redisPoolObj.optLong(REDIS_POOL_MAX_WAIT_MS, REDIS_MAX_WAIT_DEFAULT),
+                redisPoolObj.optBoolean(REDIS_POOL_TEST_ON_BORROW, REDIS_TEST_ON_BORROW_DEFAULT),
+                redisPoolObj.optBoolean(REDIS_POOL_TEST_WHILE_IDLE, REDIS_TEST_WHILE_IDLE_DEFAULT),
+                redisPoolObj.optLong(REDIS_POOL_IDLE_CHECK_INTERVAL_MS, REDIS_IDLE_CHECK_INTERVAL_MS_DEFAULT),
+                adaptive);
+        if (config.getMaxTotal() <= 0 || config.getMaxIdle() < 0 || config.getMinIdle() < 0 || config.getIdleCheckIntervalMs() <= 0)
+        {
+            logger.error("Un valid redis pool config: " + redisPoolObj);
+            return;
+        }
+        lock.lock();
+        try
+        {
+            if (config.equals(redisPoolConfig))
+            {
+                return;
+            }
+            logger.info("Update redis pool config: " + config);
+            redisPoolConfig = config;
+            for (RedisShardClient redisClient : redisServiceDataToRedisClientMap.values())
+            {
+                redisClient.setPoolConfig(config);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void updateTopologySwap(JSONObject topologySwapObj)
+    {
+        int connections = TOPOLOGY_SWAP_PREWARM_CONNECTIONS_DEFAULT;
+        long graceMs = TOPOLOGY_SWAP_DRAIN_GRACE_MS_DEFAULT;
+        long timeoutMs = TOPOLOGY_SWAP_PREWARM_TIMEOUT_MS_DEFAULT;
+        if (topologySwapObj != null)
+        {
+            connections = topologySwapObj.optInt(TOPOLOGY_SWAP_PREWARM_CONNECTIONS, TOPOLOGY_SWAP_PREWARM_CONNECTIONS_DEFAULT);
+            graceMs = topologySwapObj.optLong(TOPOLOGY_SWAP_DRAIN_GRACE_MS, TOPOLOGY_SWAP_DRAIN_GRACE_MS_DEFAULT);
+            timeoutMs = topologySwapObj.optLong(TOPOLOGY_SWAP_PREWARM_TIMEOUT_MS, TOPOLOGY_SWAP_PREWARM_TIMEOUT_MS_DEFAULT);
+            if (connections < 0 || graceMs < 0 || timeoutMs <= 0)
+            {
+                logger.error("Un valid topology swap config: " + topologySwapObj);
+                return;
+            }
+        }
+        prewarmConnections = connections;
+        drainGraceMs = graceMs;
+        prewarmTimeoutMs = timeoutMs;
+    }
+    
+    private void updateRequestTimeout(long timeoutMs)
+    {
+        if (timeoutMs <= 0)
+        {
+            logger.error("Un valid request timeout: " + timeoutMs);
+            return;
+        }
+        requestTimeoutMs = timeoutMs;
+    }
+    
+    private void updateCircuitBreaker(JSONObject circuitBreakerObj)
+    {
+        CircuitBreakerConfig config = null;
+        if (circuitBreakerObj != null && circuitBreakerObj.optBoolean(CIRCUIT_BREAKER_ENABLE, false))
+        {
+            config = new CircuitBreakerConfig(circuitBreakerObj.optDouble(CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD, CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_DEFAULT),
+                    circuitBreakerObj.optLong(CIRCUIT_BREAKER_SLOW_CALL_MS, CIRCUIT_BREAKER_SLOW_CALL_MS_DEFAULT),
+                    circuitBreakerObj.optInt(CIRCUIT_BREAKER_MIN_REQUESTS, CIRCUIT_BREAKER_MIN_REQUESTS_DEFAULT),
+                    circuitBreakerObj.optLong(CIRCUIT_BREAKER_WINDOW_MS, CIRCUIT_BREAKER_WINDOW_MS_DEFAULT),
+                    circuitBreakerObj.optLong(CIRCUIT_BREAKER_OPEN_MS, CIRCUIT_BREAKER_OPEN_MS_DEFAULT));
+            if (config.getFailureRateThreshold() <= 0 || config.getFailureRateThreshold() > 1 || config.getMinRequests() <= 0
+                    || config.getWindowMs() <= 0 || config.getOpenMs() <= 0)
+            {
+                logger.error("Un valid circuit breaker config: " + circuitBreakerObj);
+                return;
+            }
+        }
+        lock.lock();
+        try
+        {
+            logger.info("Update circuit breaker config: " + config);
+            circuitBreakerConfig = config;
+            for (RedisShardClient redisClient : redisServiceDataToRedisClientMap.values())
+            {
+                redisClient.setCircuitBreakerConfig(config);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void updateWriteBehind(JSONObject writeBehindObj)
+    {
+        WriteBehindConfig config = null;
+        if (writeBehindObj != null && writeBehindObj.optBoolean(WRITE_BEHIND_ENABLE, false))
+        {
+            config = new WriteBehindConfig(writeBehindObj.optInt(WRITE_BEHIND_MAX_PENDING_KEYS, WRITE_BEHIND_MAX_PENDING_KEYS_DEFAULT),
+                    writeBehindObj.optInt(WRITE_BEHIND_MAX_BATCH, WRITE_BEHIND_MAX_BATCH_DEFAULT),
+                    writeBehindObj.optLong(WRITE_BEHIND_FLUSH_INTERVAL_MS, WRITE_BEHIND_FLUSH_INTERVAL_MS_DEFAULT),
+                    writeBehindObj.optLong(WRITE_BEHIND_MAX_BLOCK_MS, WRITE_BEHIND_MAX_BLOCK_MS_DEFAULT));
+            if (config.getMaxPendingKeys() <= 0 || config.getMaxBatch() <= 0 || config.getFlushIntervalMs() < 0 || config.getMaxBlockMs() < 0)
+            {
+                logger.error("Un valid write behind config: " + writeBehindObj);
+                return;
+            }
+        }
+        lock.lock();
+        try
+        {
+            if (config == null ? writeBehindConfig == null : config.equals(writeBehindConfig))
+            {
+                return;
+            }
+            logger.info("Update write behind config: " + config);
+            writeBehindConfig = config;
+            for (RedisShardClient redisClient : redisServiceDataToRedisClientMap.values())
+            {
+                if (config == null)
+                {
+                    redisClient.disableWriteBehind();
+                }
+                else
+                {
+                    redisClient.enableWriteBehind(config);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void updateLoader(JSONObject loaderObj)
+    {
+        LoaderConfig config = new LoaderConfig(LOADER_WINDOW_MICROS_DEFAULT, LOADER_MAX_BATCH_DEFAULT, LOADER_TIMEOUT_MS_DEFAULT, LOADER_THREADS_DEFAULT);
+        if (loaderObj != null)
+        {
+            config = new LoaderConfig(loaderObj.optLong(LOADER_WINDOW_MICROS, LOADER_WINDOW_MICROS_DEFAULT),
+                    loaderObj.optInt(LOADER_MAX_BATCH, LOADER_MAX_BATCH_DEFAULT),
+                    loaderObj.optLong(LOADER_TIMEOUT_MS, LOADER_TIMEOUT_MS_DEFAULT),
+                    loaderObj.optInt(LOADER_THREADS, LOADER_THREADS_DEFAULT));
+            if (config.getWindowMicros() < 0 || config.getMaxBatch() <= 0 || config.getTimeoutMs() <= 0 || config.getThreads() <= 0)
+            {
+                logger.error("Un valid loader config: " + loaderObj);
+                return;
+            }
+        }
+        if (!config.equals(loaderRegistry.getConfig()))
+        {
+            logger.info("Update loader config: " + config);
+            loaderRegistry.setConfig(config);
+        }
+    }
+    
+    private void updateTtl(JSONObject ttlObj)
+    {
+        TtlPolicy policy = TtlPolicy.NONE;
+        if (ttlObj != null)
+        {
+            Map<String, Double> prefixToJitterRatio = new HashMap<String, Double>();
+            JSONArray jitterArray = ttlObj.optJSONArray(TTL_JITTER);
+            for (int i = 0; jitterArray != null && i < jitterArray.length(); i ++)
+            {
+                JSONObject jitterObj = jitterArray.optJSONObject(i);
+                double ratio = jitterObj == null ? -1 : jitterObj.optDouble(TTL_JITTER_RATIO, -1);
+                if (ratio < 0 || !jitterObj.has(TTL_JITTER_PREFIX))
+                {
+                    logger.error("Un valid ttl jitter config: " + jitterArray.opt(i));
+                    return;
+                }
+                prefixToJitterRatio.put(jitterObj.getString(TTL_JITTER_PREFIX), ratio);
+            }
+            double defaultJitterRatio = ttlObj.optDouble(TTL_DEFAULT_JITTER_RATIO, TTL_DEFAULT_JITTER_RATIO_DEFAULT);
+            JSONObject earlyRefreshObj = ttlObj.optJSONObject(TTL_EARLY_REFRESH);
+            boolean isEarlyRefreshEnabled = earlyRefreshObj != null && earlyRefreshObj.optBoolean(TTL_EARLY_REFRESH_ENABLE, false);
+            double beta = earlyRefreshObj == null ? TTL_EARLY_REFRESH_BETA_DEFAULT : earlyRefreshObj.optDouble(TTL_EARLY_REFRESH_BETA, TTL_EARLY_REFRESH_BETA_DEFAULT);
+            long deltaMs = earlyRefreshObj == null ? TTL_EARLY_REFRESH_DELTA_MS_DEFAULT : earlyRefreshObj.optLong(TTL_EARLY_REFRESH_DELTA_MS, TTL_EARLY_REFRESH_DELTA_MS_DEFAULT);
+            if (defaultJitterRatio < 0 || beta <= 0 || deltaMs < 0)
+            {
+                logger.error("Un valid ttl config: " + ttlObj);
+                return;
+            }
+            policy = new TtlPolicy(defaultJitterRatio, prefixToJitterRatio, isEarlyRefreshEnabled, beta, deltaMs);
+        }
+        if (!policy.isSameConfig(ttlPolicy))
+        {
+            logger.info("Update ttl config: " + policy);
+            ttlPolicy = policy;
+        }
+    }
+    
+    private void updateCompression(JSONObject compressionObj)
+    {
+        ValueCodec codec = ValueCodec.DISABLED;
+        boolean isEnabled = compressionObj == null ? COMPRESSION_ENABLE_DEFAULT : compressionObj.optBoolean(COMPRESSION_ENABLE, COMPRESSION_ENABLE_DEFAULT);
+        if (isEnabled)
+        {
+            int thresholdBytes = compressionObj == null ? COMPRESSION_THRESHOLD_BYTES_DEFAULT : compressionObj.optInt(COMPRESSION_THRESHOLD_BYTES, COMPRESSION_THRESHOLD_BYTES_DEFAULT);
+            int level = compressionObj == null ? COMPRESSION_LEVEL_DEFAULT : compressionObj.optInt(COMPRESSION_LEVEL, COMPRESSION_LEVEL_DEFAULT);
+            if (thresholdBytes < 0 || level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+            {
+                logger.error("Un valid compression config: " + compressionObj);
+                return;
+            }
+            codec = new ValueCodec(thresholdBytes, level);
+        }
+        if (!codec.equals(valueCodec))
+        {
+            logger.info("Update compression config: " + codec);
+            valueCodec = codec;
+        }
+    }
+    
+    private void updateAutoPipeline(JSONObject autoPipelineObj)
+    {
+        AutoPipelineConfig config = null;
+        if (autoPipelineObj != null && autoPipelineObj.optBoolean(AUTO_PIPELINE_ENABLE, false))
+        {
+            config = new AutoPipelineConfig(autoPipelineObj.optInt(AUTO_PIPELINE_IO_LOOPS, AUTO_PIPELINE_IO_LOOPS_DEFAULT),
+                    autoPipelineObj.optInt(AUTO_PIPELINE_MAX_BATCH, AUTO_PIPELINE_MAX_BATCH_DEFAULT),
+                    autoPipelineObj.optLong(AUTO_PIPELINE_LINGER_MICROS, AUTO_PIPELINE_LINGER_MICROS_DEFAULT),
+                    autoPipelineObj.optInt(AUTO_PIPELINE_MAX_PENDING, AUTO_PIPELINE_MAX_PENDING_DEFAULT),
+                    autoPipelineObj.optLong(AUTO_PIPELINE_TIMEOUT_MS, AUTO_PIPELINE_TIMEOUT_MS_DEFAULT));
+            if (config.getIoLoops() <= 0 || config.getMaxBatch() <= 0 || config.getMaxPending() <= 0 || config.getTimeoutMs() <= 0)
+            {
+                logger.error("Un valid auto pipeline config: " + autoPipelineObj);
+                return;
+            }
+        }
+        lock.lock();
+        try
+        {
+            if (config == null ? autoPipelineConfig == null : config.equals(autoPipelineConfig))
+            {
+                return;
+            }
+            logger.info("Update auto pipeline config: " + config);
+            autoPipelineConfig = config;
+            for (RedisShardClient redisClient : redisServiceDataToRedisClientMap.values())
+            {
+                if (config == null)
+                {
+                    redisClient.disableAutoPipeline();
+                }
+                else
+                {
+                    redisClient.enableAutoPipeline(config);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void updateInvalidationChannel(JSONObject invalidationObj)
+    {
+        if (invalidationObj == null || !invalidationObj.optBoolean(INVALIDATION_ENABLE, false))
+        {
+            stopInvalidationChannel();
+            return;
+        }
+        String config = invalidationObj.toString();
+        if (invalidationChannel != null && config.equals(invalidationConfig))
+        {
+            return;
+        }
+        stopInvalidationChannel();
+        InvalidationTransport transport = invalidationTransport;
+        if (transport == null)
+        {
+            String topic = getInvalidationTopic();
+            String brokerList = invalidationObj.optString(INVALIDATION_BROKER_LIST, null);
+            if (topic == null || brokerList == null)
+            {
+                logger.error("Invalidation topic and broker list should not be null: " + invalidationObj);
+                return;
+            }
+            transport = new KafkaInvalidationTransport(brokerList, topic, topic + "_" + serviceData.getServiceName());
+        }
+        InvalidationChannel channel = new InvalidationChannel(transport, serviceData.getServiceName(), 
+                invalidationObj.optLong(INVALIDATION_FLUSH_INTERVAL_MS, INVALIDATION_FLUSH_INTERVAL_MS_DEFAULT),
+                invalidationObj.optInt(INVALIDATION_MAX_BATCH_KEYS, INVALIDATION_MAX_BATCH_KEYS_DEFAULT),
+                invalidationObj.optInt(INVALIDATION_MAX_PENDING_KEYS, INVALIDATION_MAX_PENDING_KEYS_DEFAULT));
+        channel.start(new NearCacheInvalidationCallBack());
+        invalidationChannel = channel;
+        invalidationConfig = config;
+    }
+    
+    private void stopInvalidationChannel()
+    {
+        InvalidationChannel channel = invalidationChannel;
+        if (channel != null)
+        {
+            invalidationChannel = null;
+            invalidationConfig = null;
+            channel.stop();
+        }
+    }
+    
+    private String getInvalidationTopic()
+    {
+        String topicInfoStr = serviceDataProperties.get(CacheService.SERVICE_TOPICINFO);
+        if (topicInfoStr == null)
+        {
+            return null;
+        }
+        try
+        {
+            JSONObject producersObj = new JSONObject(topicInfoStr).optJSONObject("producers");
+            if (producersObj == null)
+            {
+                return null;
+            }
+            JSONArray topicsObj = producersObj.optJSONArray(INVALIDATION_TOPIC_GROUP);
+            if (topicsObj == null || topicsObj.length() == 0)
+            {
+                return null;
+            }
+            return topicsObj.getString(0);
+        }
+        catch (JSONException e)
+        {
+            logger.error("Un valid topic info: " + topicInfoStr);
+            return null;
+        }
+    }
+    
+    private boolean isServiceReadyToWork()
+    {
+        return isRunning && isConfiged;
+    }
+    
+    /**
+     * 通过dependenceData来构建redisClientMap
+     * 
+     * @author yanbinwa
+     *
+     */
+    class OrchestrationWatcher implements OrchestartionCallBack
+    {
+
+        OrchestrationServiceState curState = OrchestrationServiceState.NOTREADY;
+        
+        @Override
+        public void handleServiceStateChange(OrchestrationServiceState state)
+        {
+            logger.info("Service state is: " + state);
+            //由Unready -> ready
+            if (state == OrchestrationServiceState.READY && curState == OrchestrationServiceState.NOTREADY)
+            {
+                logger.info("The service is started");
+                curState = state;
+                buildOrUpdateRedisPartitionInfo();
+            }
+            else if(state == OrchestrationServiceState.NOTREADY && curState == OrchestrationServiceState.READY)
+            {
+                logger.info("The service is stopped");
                 curState = state;
                 clearRedisPartitionInfo();
             }
@@ -499,6 +3487,78 @@ public class CacheServiceImpl implements CacheService
         }
     }
     
+    /**
+     * 热点集合变化后丢弃不再是热点的本地副本
+     */
+    class HotKeyPromotionListener implements HotKeyListener
+    {
+
+        @Override
+        public void handleHotKeysChange(Set<String> hotKeys)
+        {
+            HotKeyCache hotCache = hotKeyCache;
+            if (hotCache != null)
+            {
+                hotCache.retain(hotKeys);
+            }
+        }
+    }
+    
+    class NearCacheInvalidationCallBack implements InvalidationCallBack
+    {
+
+        @Override
+        public void handleInvalidate(List<String> keys)
+        {
+            HotKeyCache hotCache = hotKeyCache;
+            if (hotCache != null)
+            {
+                for (String key : keys)
+                {
+                    hotCache.invalidate(key);
+                }
+            }
+            NegativeLookup negative = negativeLookup;
+            if (negative != null)
+            {
+                RedisPartitionTable partitionTable = redisPartitionTable;
+                for (String key : keys)
+                {
+                    negative.recordWrite(partitionTable.getRedisClient(key), key);
+                }
+            }
+            LocalCache localCache = nearCache;
+            if (localCache == null)
+            {
+                return;
+            }
+            for (String key : keys)
+            {
+                localCache.invalidate(key);
+            }
+        }
+
+        @Override
+        public void handleInvalidateAll()
+        {
+            HotKeyCache hotCache = hotKeyCache;
+            if (hotCache != null)
+            {
+                hotCache.clear();
+            }
+            NegativeLookup negative = negativeLookup;
+            if (negative != null)
+            {
+                negative.invalidateAll();
+            }
+            LocalCache localCache = nearCache;
+            if (localCache != null)
+            {
+                localCache.clear();
+            }
+        }
+    }
+    
     class CacheConfigCallBack implements ConfigCallBack
     {
 
@@ -0,0 +1,288 @@
+package yanbinwa.iCache.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import yanbinwa.common.zNodedata.ZNodeServiceData;
+import yanbinwa.common.zNodedata.ZNodeServiceDataImpl;
+
+/**
+ * 停止时写入的本地快照，包含最后的路由信息(redis实例、partition分配和epoch)以及最热的本地缓存条目。
+ *
+ * 文件格式：[magic][version][createdAt][epoch][bodyLength][crc32]之后是body，body依次是redis实例、partition分配和缓存条目，
+ * 字符串为长度加UTF-8字节。写入时先写到临时文件并force，再原子地替换原文件，不会留下写了一半的快照。
+ *
+ * 读取时通过mmap打开，校验crc后只解析路由信息，缓存条目在遍历时才从映射的内存中解码
+ *
+ * @author yanbinwa
+ *
+ */
+public final class CacheSnapshot
+{
+    private static final Logger logger = Logger.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x69435350;
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 2 + 8 + 8 + 4 + 4;
+
+    private final long createdAt;
+    private final long epoch;
+    private final Set<ZNodeServiceData> redisServiceData;
+    private final Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap;
+    private final int entryNum;
+    // 缓存条目开始的位置
+    private final ByteBuffer entries;
+
+    private CacheSnapshot(long createdAt, long epoch, Set<ZNodeServiceData> redisServiceData, Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap,
+            int entryNum, ByteBuffer entries)
+    {
+        this.createdAt = createdAt;
+        this.epoch = epoch;
+        this.redisServiceData = redisServiceData;
+        this.redisServiceNameToPartitionKeyMap = redisServiceNameToPartitionKeyMap;
+        this.entryNum = entryNum;
+        this.entries = entries;
+    }
+
+    /**
+     * redis实例只保存ip、serviceName和port，ZNodeServiceDataImpl按这三项判断相等，与orchestration给出的实例可以直接比较
+     */
+    public static void write(File file, long epoch, Set<ZNodeServiceData> redisServiceData, Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap,
+            Map<String, String> entries) throws IOException
+    {
+        List<byte[]> strings = new ArrayList<byte[]>();
+        int bodyLength = 4;
+        for (ZNodeServiceData data : redisServiceData)
+        {
+            bodyLength += addString(strings, data.getIp()) + addString(strings, data.getServiceName()) + 4;
+        }
+        bodyLength += 4;
+        for (Map.Entry<String, Set<Integer>> entry : redisServiceNameToPartitionKeyMap.entrySet())
+        {
+            bodyLength += addString(strings, entry.getKey()) + 4 + 4 * entry.getValue().size();
+        }
+        bodyLength += 4;
+        for (Map.Entry<String, String> entry : entries.entrySet())
+        {
+            bodyLength += addString(strings, entry.getKey()) + addString(strings, entry.getValue());
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw"))
+        {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + bodyLength);
+            buffer.position(HEADER_BYTES);
+            Iterator<byte[]> iterator = strings.iterator();
+            buffer.putInt(redisServiceData.size());
+            for (ZNodeServiceData data : redisServiceData)
+            {
+                putString(buffer, iterator.next());
+                putString(buffer, iterator.next());
+                buffer.putInt(data.getPort());
+            }
+            buffer.putInt(redisServiceNameToPartitionKeyMap.size());
+            for (Map.Entry<String, Set<Integer>> entry : redisServiceNameToPartitionKeyMap.entrySet())
+            {
+                putString(buffer, iterator.next());
+                buffer.putInt(entry.getValue().size());
+                for (Integer partitionKey : entry.getValue())
+                {
+                    buffer.putInt(partitionKey);
+                }
+            }
+            buffer.putInt(entries.size());
+            while (iterator.hasNext())
+            {
+                putString(buffer, iterator.next());
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.position(HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, VERSION);
+            buffer.putLong(6, System.currentTimeMillis());
+            buffer.putLong(14, epoch);
+            buffer.putInt(22, bodyLength);
+            buffer.putInt(26, (int) crc.getValue());
+            buffer.force();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 文件不存在、损坏或者早于maxAgeMs时返回null
+     */
+    public static CacheSnapshot open(File file, long maxAgeMs, String redisServiceGroupName)
+    {
+        if (!file.isFile())
+        {
+            logger.info("Snapshot " + file + " does not exist");
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            if (channel.size() < HEADER_BYTES)
+            {
+                logger.error("Un valid snapshot " + file + ": file is too short");
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION || buffer.getInt(22) != channel.size() - HEADER_BYTES)
+            {
+                logger.error("Un valid snapshot " + file + ": bad header");
+                return null;
+            }
+            long createdAt = buffer.getLong(6);
+            long age = System.currentTimeMillis() - createdAt;
+            if (age > maxAgeMs)
+            {
+                logger.info("Snapshot " + file + " is too old: " + age + "ms");
+                return null;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.position(HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(26))
+            {
+                logger.error("Un valid snapshot " + file + ": crc mismatch");
+                return null;
+            }
+            buffer.position(HEADER_BYTES);
+            Set<ZNodeServiceData> redisServiceData = new HashSet<ZNodeServiceData>();
+            int instanceNum = buffer.getInt();
+            for (int i = 0; i < instanceNum; i ++)
+            {
+                String ip = getString(buffer);
+                String serviceName = getString(buffer);
+                int port = buffer.getInt();
+                redisServiceData.add(new ZNodeServiceDataImpl(ip, redisServiceGroupName, serviceName, port, "/" + serviceName));
+            }
+            Map<String, Set<Integer>> redisServiceNameToPartitionKeyMap = new HashMap<String, Set<Integer>>();
+            int serviceNum = buffer.getInt();
+            for (int i = 0; i < serviceNum; i ++)
+            {
+                String serviceName = getString(buffer);
+                int partitionNum = buffer.getInt();
+                Set<Integer> partitionKeys = new HashSet<Integer>();
+                for (int j = 0; j < partitionNum; j ++)
+                {
+                    partitionKeys.add(buffer.getInt());
+                }
+                redisServiceNameToPartitionKeyMap.put(serviceName, partitionKeys);
+            }
+            int entryNum = buffer.getInt();
+            return new CacheSnapshot(createdAt, buffer.getLong(14), redisServiceData, redisServiceNameToPartitionKeyMap, entryNum, buffer.slice());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.error("Fail to open snapshot " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public long getCreatedAt()
+    {
+        return createdAt;
+    }
+
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    public Set<ZNodeServiceData> getRedisServiceData()
+    {
+        return redisServiceData;
+    }
+
+    public Map<String, Set<Integer>> getRedisServiceNameToPartitionKeyMap()
+    {
+        return redisServiceNameToPartitionKeyMap;
+    }
+
+    public int getEntryNum()
+    {
+        return entryNum;
+    }
+
+    /**
+     * 按写入时的顺序(从热到冷)遍历缓存条目，每次调用都从头开始
+     */
+    public Iterator<Map.Entry<String, String>> entryIterator()
+    {
+        final ByteBuffer buffer = entries.duplicate();
+        return new Iterator<Map.Entry<String, String>>() {
+
+            int index = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < entryNum;
+            }
+
+            @Override
+            public Map.Entry<String, String> next()
+            {
+                if (index >= entryNum)
+                {
+                    throw new NoSuchElementException();
+                }
+                index ++;
+                String key = getString(buffer);
+                return new AbstractMap.SimpleImmutableEntry<String, String>(key, getString(buffer));
+            }
+
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CacheSnapshot [createdAt=" + createdAt + ", epoch=" + epoch + ", redisServiceNum=" + redisServiceData.size() + ", entryNum=" + entryNum + "]";
+    }
+
+    private static int addString(List<byte[]> strings, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        strings.add(bytes);
+        return 4 + bytes.length;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes)
+    {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,23 @@
+package yanbinwa.iCache.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String namePrefix;
+    private final AtomicInteger threadNum = new AtomicInteger(0);
+    
+    public DaemonThreadFactory(String namePrefix)
+    {
+        this.namePrefix = namePrefix;
+    }
+    
+    @Override
+    public Thread newThread(Runnable r)
+    {
+        Thread thread = new Thread(r, namePrefix + "-" + threadNum.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
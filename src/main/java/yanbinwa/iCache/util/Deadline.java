@@ -0,0 +1,56 @@
+package yanbinwa.iCache.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次请求的截止时间，基于System.nanoTime
+ * 
+ * @author yanbinwa
+ *
+ */
+public final class Deadline
+{
+    private final long expireAtNanos;
+    
+    private Deadline(long expireAtNanos)
+    {
+        this.expireAtNanos = expireAtNanos;
+    }
+    
+    public static Deadline after(long timeoutMs)
+    {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+    
+    public long remainingMs()
+    {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expireAtNanos - System.nanoTime()));
+    }
+    
+    public boolean isExpired()
+    {
+        return expireAtNanos - System.nanoTime() <= 0;
+    }
+    
+    /**
+     * 返回两个截止时间中较早的一个，参数为null时表示没有限制
+     */
+    public static Deadline min(Deadline a, Deadline b)
+    {
+        if (a == null)
+        {
+            return b;
+        }
+        if (b == null)
+        {
+            return a;
+        }
+        return a.expireAtNanos - b.expireAtNanos <= 0 ? a : b;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "Deadline [remainingMs=" + remainingMs() + "]";
+    }
+}
@@ -0,0 +1,127 @@
+package yanbinwa.iCache.invalidation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 两个InvalidationChannel通过InMemoryInvalidationTransport互相广播，flush周期设置得足够长，由测试直接调用flush
+ *
+ * @author yanbinwa
+ *
+ */
+public class InvalidationChannelTest
+{
+    private static final long FLUSH_INTERVAL_MS = 60000;
+    private static final int MAX_BATCH_KEYS = 3;
+    private static final int MAX_PENDING_KEYS = 10;
+
+    private InvalidationChannel channelA;
+    private InvalidationChannel channelB;
+    private RecordingCallBack callBackA;
+    private RecordingCallBack callBackB;
+
+    @Before
+    public void setUp()
+    {
+        List<InMemoryInvalidationTransport> group = InMemoryInvalidationTransport.newGroup();
+        channelA = new InvalidationChannel(new InMemoryInvalidationTransport(group), "a", FLUSH_INTERVAL_MS, MAX_BATCH_KEYS, MAX_PENDING_KEYS);
+        channelB = new InvalidationChannel(new InMemoryInvalidationTransport(group), "b", FLUSH_INTERVAL_MS, MAX_BATCH_KEYS, MAX_PENDING_KEYS);
+        callBackA = new RecordingCallBack();
+        callBackB = new RecordingCallBack();
+        channelA.start(callBackA);
+        channelB.start(callBackB);
+    }
+
+    @After
+    public void tearDown()
+    {
+        channelA.stop();
+        channelB.stop();
+    }
+
+    @Test
+    public void testKeysAreCoalescedAndBatched()
+    {
+        for (int i = 0; i < 7; i ++)
+        {
+            channelA.invalidate("k" + i);
+            channelA.invalidate("k" + i);
+        }
+        channelA.flush();
+        assertEquals(3, callBackB.batches.size());
+        HashSet<String> received = new HashSet<String>();
+        for (List<String> batch : callBackB.batches)
+        {
+            assertTrue(batch.size() <= MAX_BATCH_KEYS);
+            received.addAll(batch);
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("k0", "k1", "k2", "k3", "k4", "k5", "k6")), received);
+        assertEquals(7, channelA.getStats().getLong("sentKeyCount"));
+        assertEquals(0, channelA.getStats().getInt("pendingKeys"));
+    }
+
+    @Test
+    public void testOwnMessagesAreIgnored()
+    {
+        channelA.invalidate("k1");
+        channelA.invalidateAll();
+        channelA.flush();
+        channelA.invalidate("k2");
+        channelA.flush();
+        assertTrue(callBackA.batches.isEmpty());
+        assertEquals(0, callBackA.allCount);
+        assertEquals(1, callBackB.allCount);
+        assertEquals(Arrays.asList(Arrays.asList("k2")), callBackB.batches);
+    }
+
+    @Test
+    public void testOverflowBecomesInvalidateAll()
+    {
+        for (int i = 0; i <= MAX_PENDING_KEYS; i ++)
+        {
+            channelA.invalidate("k" + i);
+        }
+        channelA.flush();
+        assertEquals(1, callBackB.allCount);
+        assertTrue(callBackB.batches.isEmpty());
+        assertEquals(0, channelA.getStats().getInt("pendingKeys"));
+        channelA.flush();
+        assertEquals(1, callBackB.allCount);
+        assertTrue(callBackB.batches.isEmpty());
+    }
+
+    @Test
+    public void testStopFlushesPendingKeys()
+    {
+        channelA.invalidate("k1");
+        channelA.stop();
+        assertEquals(Arrays.asList(Arrays.asList("k1")), callBackB.batches);
+    }
+
+    private static class RecordingCallBack implements InvalidationCallBack
+    {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        int allCount = 0;
+
+        @Override
+        public synchronized void handleInvalidate(List<String> keys)
+        {
+            batches.add(keys);
+        }
+
+        @Override
+        public synchronized void handleInvalidateAll()
+        {
+            allCount ++;
+        }
+    }
+}
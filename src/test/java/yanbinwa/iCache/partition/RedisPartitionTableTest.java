@@ -0,0 +1,96 @@
+package yanbinwa.iCache.partition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * JUMP模式下bucket顺序的变化以及对应的key移动比例
+ *
+ * @author yanbinwa
+ *
+ */
+public class RedisPartitionTableTest
+{
+    private static final int KEY_NUM = 100000;
+
+    @Test
+    public void testFirstAssignmentIsSorted()
+    {
+        assertEquals(Arrays.asList("a", "b", "c"), RedisPartitionTable.assignJumpBuckets(Collections.<String>emptyList(), Arrays.asList("c", "a", "b")));
+    }
+
+    @Test
+    public void testAddedServicesAreAppended()
+    {
+        List<String> buckets = RedisPartitionTable.assignJumpBuckets(Arrays.asList("b", "d"), Arrays.asList("a", "b", "c", "d"));
+        assertEquals(Arrays.asList("b", "d", "a", "c"), buckets);
+    }
+
+    @Test
+    public void testRemovedBucketIsFilledByLast()
+    {
+        List<String> buckets = RedisPartitionTable.assignJumpBuckets(Arrays.asList("a", "b", "c", "d", "e"), Arrays.asList("a", "c", "d", "e"));
+        assertEquals(Arrays.asList("a", "e", "c", "d"), buckets);
+        // 最后一个bucket本身也被移除时，用剩下的最后一个填补
+        buckets = RedisPartitionTable.assignJumpBuckets(Arrays.asList("a", "b", "c", "d", "e"), Arrays.asList("a", "c", "d"));
+        assertEquals(Arrays.asList("a", "d", "c"), buckets);
+    }
+
+    @Test
+    public void testAddingServiceThatSortsFirstMovesAboutOneNth()
+    {
+        List<String> before = shardNames(1, 10);
+        List<String> after = RedisPartitionTable.assignJumpBuckets(before, concat(before, "redis0"));
+        assertTrue(movedFraction(before, after) < 1.5 / after.size());
+    }
+
+    @Test
+    public void testRemovingMiddleServiceMovesAboutTwoNths()
+    {
+        List<String> before = shardNames(0, 10);
+        List<String> names = new ArrayList<String>(before);
+        names.remove("redis3");
+        List<String> after = RedisPartitionTable.assignJumpBuckets(before, names);
+        assertTrue(movedFraction(before, after) < 2.5 / before.size());
+    }
+
+    private static double movedFraction(List<String> before, List<String> after)
+    {
+        int moved = 0;
+        for (int i = 0; i < KEY_NUM; i ++)
+        {
+            long hash = KeyHash.hash64("key" + i);
+            String oldShard = before.get(KeyHash.jumpConsistentHash(hash, before.size()));
+            String newShard = after.get(KeyHash.jumpConsistentHash(hash, after.size()));
+            if (!oldShard.equals(newShard))
+            {
+                moved ++;
+            }
+        }
+        return (double) moved / KEY_NUM;
+    }
+
+    private static List<String> shardNames(int from, int to)
+    {
+        List<String> names = new ArrayList<String>();
+        for (int i = from; i < to; i ++)
+        {
+            names.add("redis" + i);
+        }
+        return names;
+    }
+
+    private static List<String> concat(List<String> names, String name)
+    {
+        List<String> result = new ArrayList<String>(names);
+        result.add(name);
+        return result;
+    }
+}
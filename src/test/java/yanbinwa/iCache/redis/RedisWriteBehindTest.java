@@ -0,0 +1,126 @@
+package yanbinwa.iCache.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 发送失败时放回缓冲区的行为，send被替换为等待release后返回失败
+ *
+ * @author yanbinwa
+ *
+ */
+public class RedisWriteBehindTest
+{
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger sendCount = new AtomicInteger(0);
+    private RedisWriteBehind writeBehind;
+
+    @Before
+    public void setUp()
+    {
+        writeBehind = new RedisWriteBehind(null, "test", new WriteBehindConfig(100, 10, 10, 100)) {
+
+            @Override
+            boolean send(Map<String, String> batch)
+            {
+                sendCount.incrementAndGet();
+                sending.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+
+        };
+        writeBehind.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        release.countDown();
+        writeBehind.stop(1000);
+    }
+
+    @Test
+    public void testFailedFlushIsRequeued() throws Exception
+    {
+        assertTrue(writeBehind.offer("k1", "v1", 0));
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        assertEquals("v1", writeBehind.getPending("k1"));
+        release.countDown();
+        waitForSends(2);
+        assertEquals("v1", writeBehind.getPending("k1"));
+    }
+
+    @Test
+    public void testNewerValueWinsOverFailedFlush() throws Exception
+    {
+        assertTrue(writeBehind.offer("k1", "v1", 0));
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        assertTrue(writeBehind.offer("k1", "v2", 0));
+        release.countDown();
+        waitForSends(2);
+        assertEquals("v2", writeBehind.getPending("k1"));
+    }
+
+    @Test
+    public void testDiscardWhileFlushingIsNotRequeued() throws Exception
+    {
+        assertTrue(writeBehind.offer("k1", "v1", 0));
+        assertTrue(writeBehind.offer("k2", "v2", 0));
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        final boolean[] isDiscarded = new boolean[1];
+        Thread discarder = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                isDiscarded[0] = writeBehind.discard(Collections.singletonList("k1"), 5000);
+            }
+
+        });
+        discarder.start();
+        // discard需要等待正在发送的k1结束
+        Thread.sleep(50);
+        release.countDown();
+        discarder.join(5000);
+        assertTrue(isDiscarded[0]);
+        waitForSends(2);
+        assertNull(writeBehind.getPending("k1"));
+        assertEquals("v2", writeBehind.getPending("k2"));
+    }
+
+    /**
+     * 第二次send开始时第一次失败的batch已经处理完
+     */
+    private void waitForSends(int sendNum) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sendCount.get() < sendNum)
+        {
+            if (System.currentTimeMillis() > deadline)
+            {
+                throw new AssertionError("Only " + sendCount.get() + " sends after 5000ms");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package yanbinwa.iCache.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * encode之后decode应该得到原始value，覆盖压缩阈值附近和以MAGIC开头的value
+ *
+ * @author yanbinwa
+ *
+ */
+public class ValueCodecTest
+{
+    private static final byte[] MAGIC = {0, 'i', 'C', 'z'};
+
+    @Test
+    public void testZeroThresholdShortValues()
+    {
+        ValueCodec codec = new ValueCodec(0, Deflater.BEST_SPEED);
+        for (int length = 0; length <= 16; length ++)
+        {
+            assertRoundTrip(codec, repeat((byte) 'a', length));
+        }
+        assertRoundTrip(codec, "abc".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAtThreshold()
+    {
+        ValueCodec codec = new ValueCodec(64, Deflater.BEST_SPEED);
+        byte[] below = repeat((byte) 'a', 63);
+        assertArrayEquals(below, codec.encode(below));
+        byte[] atThreshold = repeat((byte) 'a', 64);
+        byte[] encoded = codec.encode(atThreshold);
+        assertTrue(encoded.length < atThreshold.length);
+        assertArrayEquals(atThreshold, ValueCodec.decode(encoded));
+    }
+
+    @Test
+    public void testIncompressibleValueIsStoredAsIs()
+    {
+        ValueCodec codec = new ValueCodec(0, Deflater.BEST_SPEED);
+        byte[] value = new byte[256];
+        new Random(1).nextBytes(value);
+        value[0] = 1;
+        assertArrayEquals(value, codec.encode(value));
+        assertRoundTrip(codec, value);
+    }
+
+    @Test
+    public void testMagicPrefixedValues()
+    {
+        ValueCodec[] codecs = {new ValueCodec(0, Deflater.BEST_SPEED), new ValueCodec(64, Deflater.BEST_SPEED), ValueCodec.DISABLED};
+        for (ValueCodec codec : codecs)
+        {
+            assertRoundTrip(codec, MAGIC);
+            assertRoundTrip(codec, concat(MAGIC, new byte[] {1, 0, 0, 0, 5}));
+            assertRoundTrip(codec, concat(MAGIC, repeat((byte) 'a', 100)));
+        }
+    }
+
+    @Test
+    public void testDisabledKeepsPlainValues()
+    {
+        byte[] value = repeat((byte) 'a', 1000);
+        assertArrayEquals(value, ValueCodec.DISABLED.encode(value));
+        assertFalse(Arrays.equals(value, new ValueCodec(0, Deflater.BEST_SPEED).encode(value)));
+    }
+
+    private static void assertRoundTrip(ValueCodec codec, byte[] value)
+    {
+        assertArrayEquals(codec + " length " + value.length, value, ValueCodec.decode(codec.encode(value)));
+    }
+
+    private static byte[] repeat(byte b, int length)
+    {
+        byte[] value = new byte[length];
+        Arrays.fill(value, b);
+        return value;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}